@@ -0,0 +1,109 @@
+#!/bin/bash
+
+# =============================================================================
+#                               _ _ _
+#   _ __   __ _  __ _ _   _  __| (_) |_ ___  _ __
+#  | '_ \ / _` |/ _` | | | |/ _` | | __/ _ \| '__|
+#  | |_) | (_| | (_| | |_| | (_| | | || (_) | |
+#  | .__/ \__, |\__,_|\__,_|\__,_|_|\__\___/|_|
+#  |_|    |___/
+#
+# =============================================================================
+# MIT License
+#
+# Copyright (C) 2023 John Dunlap<john.david.dunlap@gmail.com>
+#
+# Permission is hereby granted, free of charge, to any person obtaining a copy
+# of this software and associated documentation files (the "Software"), to deal
+# in the Software without restriction, including without limitation the rights
+# to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+# copies of the Software, and to permit persons to whom the Software is
+# furnished to do so, subject to the following conditions:
+#
+# The above copyright notice and this permission notice shall be included in
+# all copies or substantial portions of the Software.
+#
+# THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+# IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+# FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+# AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+# LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+# OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+# THE SOFTWARE.
+#
+# Set connection parameters by defining the following environment variables:
+# https://www.postgresql.org/docs/current/libpq-envars.html
+# PGHOST
+# PGPORT
+# PGDATABASE
+# PGUSER
+# PGPASSWORD
+#
+#
+# Measures the transactions per second of single row updates to a table
+# audited with --auth application, once setting the current user with a
+# separate statement at the start of each transaction and once with
+# AuditSession, which sends it along with the first statement. Each latency
+# is added to every packet in each direction by a relay, which emulates the
+# network between an application and its database. Requires psql and a
+# database in which the user may create tables. Build the jar first with:
+#
+#   mvn -DskipTests package
+#
+#   ./benchmark_session.sh [--clients N] [--duration SECONDS]
+#                          [--latencies "0 1 5"]
+#
+# The benchmark table is dropped and recreated on every run.
+#
+# =============================================================================
+
+CLIENTS=8
+DURATION=30
+LATENCIES="0 1 5"
+
+while [ $# -gt 0 ]; do
+    case "$1" in
+        --clients)
+            CLIENTS="$2"
+            shift 2
+            ;;
+        --duration)
+            DURATION="$2"
+            shift 2
+            ;;
+        --latencies)
+            LATENCIES="$2"
+            shift 2
+            ;;
+        *)
+            >&2 echo "Unknown option: $1"
+            exit 1
+            ;;
+    esac
+done
+
+JAR=$(ls target/pgauditor-*.jar 2>/dev/null | grep -v original | head -n 1)
+
+if [ -z "${JAR}" ]; then
+    >&2 echo "Build the jar first."
+    exit 2
+fi
+
+if ! command -v psql > /dev/null; then
+    >&2 echo "psql is required."
+    exit 2
+fi
+
+psql -q -v ON_ERROR_STOP=1 <<SQL || exit 1
+DROP TABLE IF EXISTS public.bench_session;
+DROP TABLE IF EXISTS public.aud_bench_session;
+CREATE TABLE public.bench_session(id bigint PRIMARY KEY, n integer NOT NULL);
+INSERT INTO public.bench_session SELECT g, 0 FROM generate_series(1, 10000) g;
+SQL
+
+java -jar "${JAR}" --table public.bench_session --auth application | psql -q -v ON_ERROR_STOP=1 > /dev/null || exit 1
+
+for latency in ${LATENCIES}; do
+    java -cp "${JAR}" org.voidzero.pgauditor.AuditSessionBenchmark "${CLIENTS}" "${DURATION}" "${latency}" \
+        --table public.bench_session || exit 1
+done
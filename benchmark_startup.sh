@@ -0,0 +1,138 @@
+#!/bin/bash
+
+# =============================================================================
+#                               _ _ _
+#   _ __   __ _  __ _ _   _  __| (_) |_ ___  _ __
+#  | '_ \ / _` |/ _` | | | |/ _` | | __/ _ \| '__|
+#  | |_) | (_| | (_| | |_| | (_| | | || (_) | |
+#  | .__/ \__, |\__,_|\__,_|\__,_|_|\__\___/|_|
+#  |_|    |___/
+#
+# =============================================================================
+# MIT License
+#
+# Copyright (C) 2023 John Dunlap<john.david.dunlap@gmail.com>
+#
+# Permission is hereby granted, free of charge, to any person obtaining a copy
+# of this software and associated documentation files (the "Software"), to deal
+# in the Software without restriction, including without limitation the rights
+# to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+# copies of the Software, and to permit persons to whom the Software is
+# furnished to do so, subject to the following conditions:
+#
+# The above copyright notice and this permission notice shall be included in
+# all copies or substantial portions of the Software.
+#
+# THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+# IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+# FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+# AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+# LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+# OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+# THE SOFTWARE.
+#
+# =============================================================================
+# Set connection parameters by defining the following environment variables:
+# https://www.postgresql.org/docs/current/libpq-envars.html
+# PGHOST
+# PGPORT
+# PGDATABASE
+# PGUSER
+# PGPASSWORD
+#
+#
+# Compares the startup time of the native executable, the jar with an AppCDS
+# archive, and the plain jar. Build them first with:
+#
+#   mvn -DskipTests package
+#   mvn -Pappcds -DskipTests package
+#   mvn -Pnative -DskipTests package
+#
+# Any build which is missing is skipped. By default each build is run with
+# --help, which measures startup and argument binding without a database.
+# Pass --table to also measure a full DDL generation against the database
+# described by the PG* environment variables:
+#
+#   ./benchmark_startup.sh [--runs N] [--table TABLE]
+#
+# =============================================================================
+
+RUNS=20
+TABLE=""
+
+while [ $# -gt 0 ]; do
+    case "$1" in
+        --runs)
+            RUNS="$2"
+            shift 2
+            ;;
+        --table)
+            TABLE="$2"
+            shift 2
+            ;;
+        *)
+            >&2 echo "Unknown option: $1"
+            exit 1
+            ;;
+    esac
+done
+
+JAR=$(ls target/pgauditor-*.jar 2>/dev/null | grep -v original | head -n 1)
+ARCHIVE="target/pgauditor.jsa"
+NATIVE="target/pgauditor"
+
+# Prints the mean wall time of RUNS invocations of the given command in
+# milliseconds. Output of the command is discarded and its exit status is
+# ignored because --help exits with a non-zero status.
+measure() {
+    local start
+    local end
+    local total=0
+
+    # Warm the page cache so that the first run isn't an outlier
+    "$@" > /dev/null 2>&1
+
+    for ((i = 0; i < RUNS; i++)); do
+        start=$(date +%s%N)
+        "$@" > /dev/null 2>&1
+        end=$(date +%s%N)
+        total=$((total + end - start))
+    done
+
+    echo $((total / RUNS / 1000000))
+}
+
+report() {
+    local name="$1"
+    shift
+    printf "%-10s %-10s %6s ms\n" "${name}" "${WORKLOAD}" "$(measure "$@")"
+}
+
+run_workload() {
+    if [ -x "${NATIVE}" ]; then
+        report native "${NATIVE}" "$@"
+    fi
+
+    if [ -n "${JAR}" ] && [ -f "${ARCHIVE}" ]; then
+        report appcds java -XX:SharedArchiveFile="${ARCHIVE}" -jar "${JAR}" "$@"
+    fi
+
+    if [ -n "${JAR}" ]; then
+        report jvm java -jar "${JAR}" "$@"
+    fi
+}
+
+if [ -z "${JAR}" ] && [ ! -x "${NATIVE}" ]; then
+    >&2 echo "Nothing to benchmark. Build the jar or the native executable first."
+    exit 2
+fi
+
+printf "%-10s %-10s %9s\n" "build" "workload" "mean"
+
+WORKLOAD="help"
+run_workload --help
+
+if [ -n "${TABLE}" ]; then
+    WORKLOAD="generate"
+    run_workload --table "${TABLE}"
+fi
@@ -0,0 +1,144 @@
+#!/bin/bash
+
+# =============================================================================
+#                               _ _ _
+#   _ __   __ _  __ _ _   _  __| (_) |_ ___  _ __
+#  | '_ \ / _` |/ _` | | | |/ _` | | __/ _ \| '__|
+#  | |_) | (_| | (_| | |_| | (_| | | || (_) | |
+#  | .__/ \__, |\__,_|\__,_|\__,_|_|\__\___/|_|
+#  |_|    |___/
+#
+# =============================================================================
+# MIT License
+#
+# Copyright (C) 2023 John Dunlap<john.david.dunlap@gmail.com>
+#
+# Permission is hereby granted, free of charge, to any person obtaining a copy
+# of this software and associated documentation files (the "Software"), to deal
+# in the Software without restriction, including without limitation the rights
+# to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+# copies of the Software, and to permit persons to whom the Software is
+# furnished to do so, subject to the following conditions:
+#
+# The above copyright notice and this permission notice shall be included in
+# all copies or substantial portions of the Software.
+#
+# THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+# IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+# FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+# AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+# LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+# OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+# THE SOFTWARE.
+#
+# =============================================================================
+# Set connection parameters by defining the following environment variables:
+# https://www.postgresql.org/docs/current/libpq-envars.html
+# PGHOST
+# PGPORT
+# PGDATABASE
+# PGUSER
+# PGPASSWORD
+#
+#
+# Measures the throughput of audited inserts and updates at increasing
+# numbers of concurrent clients, once with an ordinary audit table and once
+# with an audit table divided into hash partitions by --partitions, so that
+# the two layouts can be compared as write concurrency grows. Requires psql
+# and pgbench on the path and a database in which the user may create
+# tables. Build the jar first with:
+#
+#   mvn -DskipTests package
+#
+#   ./benchmark_triggers.sh [--partitions N] [--clients "1 16 64 200"]
+#                           [--duration SECONDS]
+#
+# The benchmark tables are dropped and recreated on every run.
+#
+# =============================================================================
+
+PARTITIONS=8
+CLIENTS="1 16 64 200"
+DURATION=30
+
+while [ $# -gt 0 ]; do
+    case "$1" in
+        --partitions)
+            PARTITIONS="$2"
+            shift 2
+            ;;
+        --clients)
+            CLIENTS="$2"
+            shift 2
+            ;;
+        --duration)
+            DURATION="$2"
+            shift 2
+            ;;
+        *)
+            >&2 echo "Unknown option: $1"
+            exit 1
+            ;;
+    esac
+done
+
+JAR=$(ls target/pgauditor-*.jar 2>/dev/null | grep -v original | head -n 1)
+
+if [ -z "${JAR}" ]; then
+    >&2 echo "Build the jar first."
+    exit 2
+fi
+
+for tool in psql pgbench; do
+    if ! command -v "${tool}" > /dev/null; then
+        >&2 echo "${tool} is required."
+        exit 2
+    fi
+done
+
+SCRIPT=$(mktemp)
+trap 'rm -f "${SCRIPT}"' EXIT
+
+# Creates an audited table and writes the pgbench script which modifies it
+# to SCRIPT.
+setup() {
+    local table="$1"
+    shift
+
+    psql -q -v ON_ERROR_STOP=1 <<SQL || exit 1
+DROP TABLE IF EXISTS public.${table};
+DROP TABLE IF EXISTS public.aud_${table};
+CREATE TABLE public.${table}(id bigint PRIMARY KEY, balance integer NOT NULL, note text);
+SQL
+
+    java -jar "${JAR}" --table "public.${table}" "$@" | psql -q -v ON_ERROR_STOP=1 > /dev/null || exit 1
+
+    # Every transaction inserts a row with a random key and then updates it,
+    # which fires both the insert and the update audit triggers
+    cat > "${SCRIPT}" <<SQL
+\set id random(1, 1000000000)
+INSERT INTO public.${table} VALUES (:id, 0, 'benchmark') ON CONFLICT (id) DO NOTHING;
+UPDATE public.${table} SET balance = balance + 1 WHERE id = :id;
+SQL
+}
+
+# Prints the transactions per second which pgbench reports.
+measure() {
+    local clients="$1"
+    pgbench -n -f "${SCRIPT}" -c "${clients}" -j "${clients}" -T "${DURATION}" 2> /dev/null \
+        | awk '/^tps/ { printf "%.0f", $3; exit }'
+}
+
+printf "%-12s %8s %10s\n" "layout" "clients" "tps"
+
+for layout in single partitioned; do
+    if [ "${layout}" = "single" ]; then
+        setup bench_single
+    else
+        setup bench_partitioned --partitions "${PARTITIONS}"
+    fi
+
+    for clients in ${CLIENTS}; do
+        printf "%-12s %8s %10s\n" "${layout}" "${clients}" "$(measure "${clients}")"
+    done
+done
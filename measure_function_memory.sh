@@ -0,0 +1,159 @@
+#!/bin/bash
+
+# =============================================================================
+#                               _ _ _
+#   _ __   __ _  __ _ _   _  __| (_) |_ ___  _ __
+#  | '_ \ / _` |/ _` | | | |/ _` | | __/ _ \| '__|
+#  | |_) | (_| | (_| | |_| | (_| | | || (_) | |
+#  | .__/ \__, |\__,_|\__,_|\__,_|_|\__\___/|_|
+#  |_|    |___/
+#
+# =============================================================================
+# MIT License
+#
+# Copyright (C) 2023 John Dunlap<john.david.dunlap@gmail.com>
+#
+# Permission is hereby granted, free of charge, to any person obtaining a copy
+# of this software and associated documentation files (the "Software"), to deal
+# in the Software without restriction, including without limitation the rights
+# to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+# copies of the Software, and to permit persons to whom the Software is
+# furnished to do so, subject to the following conditions:
+#
+# The above copyright notice and this permission notice shall be included in
+# all copies or substantial portions of the Software.
+#
+# THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+# IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+# FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+# AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+# LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+# OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+# THE SOFTWARE.
+#
+# =============================================================================
+# Set connection parameters by defining the following environment variables:
+# https://www.postgresql.org/docs/current/libpq-envars.html
+# PGHOST
+# PGPORT
+# PGDATABASE
+# PGUSER
+# PGPASSWORD
+#
+#
+# Measures how much memory one backend holds for each audited table once it
+# has inserted, updated, and deleted a row in every table, once with separate
+# insert, update, and delete functions and once with --single-function. The
+# memory is read from pg_backend_memory_contexts, so PostgreSQL 14 or later
+# is required, along with psql on the path and a database in which the user
+# may create tables. Build the jar first with:
+#
+#   mvn -DskipTests package
+#
+#   ./measure_function_memory.sh [--tables N] [--columns N]
+#
+# The benchmark tables are dropped and recreated on every run.
+#
+# =============================================================================
+
+TABLES=100
+COLUMNS=20
+
+while [ $# -gt 0 ]; do
+    case "$1" in
+        --tables)
+            TABLES="$2"
+            shift 2
+            ;;
+        --columns)
+            COLUMNS="$2"
+            shift 2
+            ;;
+        *)
+            >&2 echo "Unknown option: $1"
+            exit 1
+            ;;
+    esac
+done
+
+JAR=$(ls target/pgauditor-*.jar 2>/dev/null | grep -v original | head -n 1)
+
+if [ -z "${JAR}" ]; then
+    >&2 echo "Build the jar first."
+    exit 2
+fi
+
+if ! command -v psql > /dev/null; then
+    >&2 echo "psql is required."
+    exit 2
+fi
+
+SCRIPT=$(mktemp)
+trap 'rm -f "${SCRIPT}"' EXIT
+
+# Creates TABLES audited tables of COLUMNS columns each whose names start
+# with the given prefix.
+setup() {
+    local prefix="$1"
+    shift
+
+    local columns=""
+
+    for c in $(seq 1 "${COLUMNS}"); do
+        columns="${columns}, c${c} text"
+    done
+
+    {
+        for t in $(seq 1 "${TABLES}"); do
+            echo "DROP TABLE IF EXISTS public.${prefix}_${t};"
+            echo "DROP TABLE IF EXISTS public.aud_${prefix}_${t};"
+            echo "CREATE TABLE public.${prefix}_${t}(id integer PRIMARY KEY${columns});"
+        done
+    } | psql -q -v ON_ERROR_STOP=1 > /dev/null || exit 1
+
+    # The first table also creates the sequence, enum type, and functions
+    # which every audited table in a schema shares
+    java -jar "${JAR}" --table "public.${prefix}_1" "$@" | psql -q -v ON_ERROR_STOP=1 > /dev/null || exit 1
+
+    # The rest are sent to one JVM in batch mode and the DDL is pulled out of
+    # each response without a JSON parser, which is enough because the
+    # generated DDL contains no double quotes or backslashes
+    {
+        for t in $(seq 2 "${TABLES}"); do
+            echo "{\"table\": \"public.${prefix}_${t}\"$(for flag in "$@"; do printf ', "%s": true' "${flag#--}"; done)}"
+        done
+    } | java -jar "${JAR}" --batch \
+        | sed -e 's/^.*"ddl":"//' -e 's/"}$//' -e 's/\\n/\n/g' \
+        | psql -q -v ON_ERROR_STOP=1 > /dev/null || exit 1
+}
+
+# Prints the bytes of backend memory per table after one backend has fired
+# every audit function of every table whose name starts with the given
+# prefix. Changes are rolled back, so the audit tables stay empty.
+measure() {
+    local prefix="$1"
+
+    {
+        echo "CREATE TEMPORARY TABLE before AS SELECT sum(total_bytes) AS bytes FROM pg_backend_memory_contexts;"
+        echo "BEGIN;"
+
+        for t in $(seq 1 "${TABLES}"); do
+            echo "INSERT INTO public.${prefix}_${t}(id, c1) VALUES (1, 'a');"
+            echo "UPDATE public.${prefix}_${t} SET c1 = 'b';"
+            echo "DELETE FROM public.${prefix}_${t};"
+        done
+
+        echo "ROLLBACK;"
+        echo "SELECT ((SELECT sum(total_bytes) FROM pg_backend_memory_contexts) - bytes) / ${TABLES} FROM before;"
+    } > "${SCRIPT}"
+
+    psql -qtA -v ON_ERROR_STOP=1 -f "${SCRIPT}" | tail -n 1
+}
+
+printf "%-10s %8s %8s %16s\n" "functions" "tables" "columns" "bytes per table"
+
+setup bench_separate
+printf "%-10s %8s %8s %16s\n" "separate" "${TABLES}" "${COLUMNS}" "$(measure bench_separate)"
+
+setup bench_single --single-function
+printf "%-10s %8s %8s %16s\n" "single" "${TABLES}" "${COLUMNS}" "$(measure bench_single)"
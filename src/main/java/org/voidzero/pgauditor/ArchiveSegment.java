@@ -0,0 +1,666 @@
+package org.voidzero.pgauditor;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A file containing a range of audit records from one audit table, written by the archive command and read by the
+ * read-archive command.
+ * <p>
+ * Values are stored column by column in the binary format which PostgreSQL uses for COPY, so that archiving never has
+ * to convert them, and each column is compressed separately because the values in a column resemble each other far
+ * more than the values in a row do. A file is laid out as follows:
+ * <pre>
+ * "PGAUDSEG" format version (int32)
+ * compressed column 1 ... compressed column N
+ * manifest (UTF-8 JSON)
+ * manifest offset (int64) manifest length (int32) CRC32C of everything before it (int32) "PGAUDSEG"
+ * </pre>
+ * The manifest describes the audit table, the number of rows, the range of audit ids and change times which the file
+ * contains, and the type, position, and size of each column. Uncompressed, each column is a sequence of values which
+ * are each preceded by their length as an int32, where -1 represents null.
+ */
+class ArchiveSegment {
+    static final int VERSION = 1;
+
+    private static final byte[] MAGIC = "PGAUDSEG".getBytes(StandardCharsets.US_ASCII);
+    private static final int HEADER_LENGTH = MAGIC.length + 4;
+    private static final int TRAILER_LENGTH = 8 + 4 + 4 + MAGIC.length;
+
+    /**
+     * PostgreSQL counts dates and timestamps from 2000-01-01 rather than from the Unix epoch.
+     */
+    private static final LocalDateTime POSTGRES_EPOCH = LocalDateTime.of(2000, 1, 1, 0, 0);
+
+    private final Path path;
+    private final MappedByteBuffer buffer;
+    private final Map<String, Object> manifest;
+    private final List<Map<?, ?>> columns = new ArrayList<>();
+
+    private ArchiveSegment(final Path path, final MappedByteBuffer buffer, final Map<String, Object> manifest) {
+        this.path = path;
+        this.buffer = buffer;
+        this.manifest = manifest;
+
+        for (Object column : (List<?>) manifest.get("columns")) {
+            columns.add((Map<?, ?>) column);
+        }
+    }
+
+    /**
+     * Memory map a segment and verify its checksum.
+     *
+     * @param path The segment file
+     * @return The segment
+     * @throws IOException Thrown when the file cannot be read
+     * @throws RuntimeException Thrown when the file is not a segment or is corrupt
+     */
+    static ArchiveSegment open(final Path path) throws IOException {
+        MappedByteBuffer buffer;
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        int size = buffer.capacity();
+        byte[] magic = new byte[MAGIC.length];
+
+        if (size < HEADER_LENGTH + TRAILER_LENGTH || !Arrays.equals(magic(buffer, 0, magic), MAGIC)
+                || !Arrays.equals(magic(buffer, size - MAGIC.length, magic), MAGIC)) {
+            throw new RuntimeException("%s is not an archive segment".formatted(path));
+        }
+
+        if (buffer.getInt(MAGIC.length) != VERSION) {
+            throw new RuntimeException(
+                    "Unsupported archive segment version %d in %s. This version of PgAuditor reads version %d"
+                            .formatted(buffer.getInt(MAGIC.length), path, VERSION));
+        }
+
+        int trailer = size - TRAILER_LENGTH;
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.slice(0, trailer + 12));
+
+        if ((int) crc.getValue() != buffer.getInt(trailer + 12)) {
+            throw new RuntimeException("The checksum of %s does not match its contents".formatted(path));
+        }
+
+        long manifestOffset = buffer.getLong(trailer);
+        int manifestLength = buffer.getInt(trailer + 8);
+        byte[] manifest = new byte[manifestLength];
+        buffer.get((int) manifestOffset, manifest);
+
+        Map<String, Object> map = new LinkedHashMap<>();
+        ((Map<?, ?>) Json.read(new String(manifest, StandardCharsets.UTF_8)))
+                .forEach((key, value) -> map.put(String.valueOf(key), value));
+        return new ArchiveSegment(path, buffer, map);
+    }
+
+    private static byte[] magic(final ByteBuffer buffer, final int offset, final byte[] target) {
+        buffer.get(offset, target);
+        return target;
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    Map<String, Object> getManifest() {
+        return manifest;
+    }
+
+    long getRows() {
+        return (Long) manifest.get("rows");
+    }
+
+    /**
+     * Pass every row which matches a filter to a consumer, in audit id order. Segments which cannot contain a
+     * matching row are skipped using the ranges in the manifest, and the remaining rows are filtered by decoding only
+     * the audit_id and changed_at columns, so that only matching rows are decoded in full.
+     *
+     * @param filter Selects rows by audit id or change time
+     * @param consumer Receives each matching row as a map from column name to value
+     */
+    void scan(final Filter filter, final Consumer<Map<String, Object>> consumer) {
+        if (getRows() == 0 || filter.excludes(manifest)) {
+            return;
+        }
+
+        int rows = (int) getRows();
+        int auditId = indexOf("audit_id");
+        int changedAt = indexOf("changed_at");
+        ByteBuffer[] values = new ByteBuffer[columns.size()];
+        values[auditId] = ByteBuffer.wrap(inflate(columns.get(auditId)));
+
+        if (changedAt >= 0) {
+            values[changedAt] = ByteBuffer.wrap(inflate(columns.get(changedAt)));
+        }
+
+        // The other columns are only decompressed once a row matches, which they may never do
+        boolean inflated = false;
+
+        for (int row = 0; row < rows; row++) {
+            long id = values[auditId].getLong(values[auditId].position() + 4);
+            long micros = changedAt < 0 || values[changedAt].getInt(values[changedAt].position()) < 0
+                    ? Long.MIN_VALUE : values[changedAt].getLong(values[changedAt].position() + 4);
+
+            if (!filter.matches(id, micros)) {
+                for (ByteBuffer column : values) {
+                    if (column != null) {
+                        skip(column);
+                    }
+                }
+                continue;
+            }
+
+            if (!inflated) {
+                for (int i = 0; i < values.length; i++) {
+                    if (values[i] == null) {
+                        values[i] = ByteBuffer.wrap(inflate(columns.get(i)));
+
+                        for (int skipped = 0; skipped < row; skipped++) {
+                            skip(values[i]);
+                        }
+                    }
+                }
+                inflated = true;
+            }
+
+            Map<String, Object> map = new LinkedHashMap<>();
+
+            for (int i = 0; i < values.length; i++) {
+                int length = values[i].getInt();
+                Object value = null;
+
+                if (length >= 0) {
+                    value = decode((String) columns.get(i).get("decoder"),
+                            values[i].slice(values[i].position(), length));
+                    values[i].position(values[i].position() + length);
+                }
+                map.put((String) columns.get(i).get("name"), value);
+            }
+            consumer.accept(map);
+        }
+    }
+
+    private static void skip(final ByteBuffer column) {
+        int length = column.getInt();
+        column.position(column.position() + Math.max(length, 0));
+    }
+
+    private int indexOf(final String name) {
+        for (int i = 0; i < columns.size(); i++) {
+            if (name.equals(columns.get(i).get("name"))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private byte[] inflate(final Map<?, ?> column) {
+        int offset = (int) (long) (Long) column.get("offset");
+        int length = (int) (long) (Long) column.get("length");
+        byte[] raw = new byte[(int) (long) (Long) column.get("raw_length")];
+        Inflater inflater = new Inflater();
+
+        try {
+            inflater.setInput(buffer.slice(offset, length));
+            int inflated = 0;
+
+            while (inflated < raw.length && !inflater.finished()) {
+                inflated += inflater.inflate(raw, inflated, raw.length - inflated);
+            }
+
+            if (inflated != raw.length) {
+                throw new RuntimeException("Column %s of %s is truncated".formatted(column.get("name"), path));
+            }
+        } catch (DataFormatException e) {
+            throw new RuntimeException("Column %s of %s is corrupt".formatted(column.get("name"), path), e);
+        } finally {
+            inflater.end();
+        }
+        return raw;
+    }
+
+    /**
+     * The decoder which reads values of a type in their binary COPY format, or "raw" when values of the type are
+     * returned as hex.
+     *
+     * @param typeName The name of the type in pg_type
+     * @param typeType The kind of the type in pg_type
+     */
+    static String decoder(final String typeName, final String typeType) {
+        if ("e".equals(typeType)) {
+            // Enum values are sent as their labels
+            return "text";
+        }
+
+        return switch (typeName) {
+            case "bool", "int2", "int4", "int8", "float4", "float8", "numeric", "jsonb", "timestamptz", "timestamp",
+                    "date", "uuid" -> typeName;
+            case "text", "varchar", "bpchar", "name", "json" -> "text";
+            case "xid8" -> "int8";
+            default -> "raw";
+        };
+    }
+
+    private static Object decode(final String decoder, final ByteBuffer value) {
+        switch (decoder) {
+            case "bool" -> {
+                return value.get(0) != 0;
+            }
+            case "int2" -> {
+                return (long) value.getShort(0);
+            }
+            case "int4" -> {
+                return (long) value.getInt(0);
+            }
+            case "int8" -> {
+                return value.getLong(0);
+            }
+            case "float4" -> {
+                return (double) value.getFloat(0);
+            }
+            case "float8" -> {
+                return value.getDouble(0);
+            }
+            case "numeric" -> {
+                return decodeNumeric(value);
+            }
+            case "text" -> {
+                return StandardCharsets.UTF_8.decode(value).toString();
+            }
+            case "jsonb" -> {
+                // The first byte is the version of the jsonb binary format, which is followed by the text
+                return StandardCharsets.UTF_8.decode(value.position(1)).toString();
+            }
+            case "timestamptz" -> {
+                long micros = value.getLong(0);
+                return infinity(micros) != null ? infinity(micros) : toInstant(micros).toString();
+            }
+            case "timestamp" -> {
+                long micros = value.getLong(0);
+                return infinity(micros) != null ? infinity(micros)
+                        : POSTGRES_EPOCH.plus(micros, ChronoUnit.MICROS).toString();
+            }
+            case "date" -> {
+                int days = value.getInt(0);
+                return infinity(days) != null ? infinity(days) : POSTGRES_EPOCH.toLocalDate().plusDays(days).toString();
+            }
+            case "uuid" -> {
+                return new UUID(value.getLong(0), value.getLong(8)).toString();
+            }
+            default -> {
+                StringBuilder hex = new StringBuilder("\\x");
+
+                for (int i = 0; i < value.remaining(); i++) {
+                    hex.append(String.format("%02x", value.get(i)));
+                }
+                return hex.toString();
+            }
+        }
+    }
+
+    /**
+     * The text of a timestamp or timestamptz which is infinite. Finite timestamps can be as large as int sentinels, so
+     * only the long sentinels are infinite.
+     */
+    private static String infinity(final long micros) {
+        if (micros == Long.MAX_VALUE) {
+            return "infinity";
+        } else if (micros == Long.MIN_VALUE) {
+            return "-infinity";
+        }
+        return null;
+    }
+
+    /**
+     * The text of a date which is infinite.
+     */
+    private static String infinity(final int days) {
+        if (days == Integer.MAX_VALUE) {
+            return "infinity";
+        } else if (days == Integer.MIN_VALUE) {
+            return "-infinity";
+        }
+        return null;
+    }
+
+    /**
+     * Decode a numeric, which is sent as a count of base 10000 digits, the weight of the first digit, a sign, the
+     * display scale, and the digits.
+     */
+    private static Object decodeNumeric(final ByteBuffer value) {
+        int digits = value.getShort(0);
+        int weight = value.getShort(2);
+        int sign = value.getShort(4) & 0xFFFF;
+        int scale = value.getShort(6);
+
+        if (sign == 0xC000) {
+            return "NaN";
+        } else if (sign == 0xD000) {
+            return "infinity";
+        } else if (sign == 0xF000) {
+            return "-infinity";
+        }
+
+        BigInteger unscaled = BigInteger.ZERO;
+
+        for (int i = 0; i < digits; i++) {
+            unscaled = unscaled.multiply(BigInteger.valueOf(10000)).add(BigInteger.valueOf(value.getShort(8 + i * 2)));
+        }
+
+        BigDecimal number = new BigDecimal(unscaled).scaleByPowerOfTen((weight - digits + 1) * 4).setScale(scale);
+        return sign == 0x4000 ? number.negate() : number;
+    }
+
+    private static Instant toInstant(final long micros) {
+        return POSTGRES_EPOCH.toInstant(ZoneOffset.UTC).plus(micros, ChronoUnit.MICROS);
+    }
+
+    private static long toMicros(final Instant instant) {
+        return ChronoUnit.MICROS.between(POSTGRES_EPOCH.toInstant(ZoneOffset.UTC), instant);
+    }
+
+    /**
+     * Selects rows by audit id or change time, in the same way as --since and --until select rows for the changelog
+     * command: a number is compared with the audit id and anything else is interpreted as a timestamp. Timestamps
+     * must be in ISO-8601 form, optionally with a space instead of the T, and are taken to be UTC unless they include
+     * an offset.
+     */
+    static class Filter {
+        private long afterAuditId = Long.MIN_VALUE;
+        private long untilAuditId = Long.MAX_VALUE;
+        private long afterChangedAt = Long.MIN_VALUE;
+        private long untilChangedAt = Long.MAX_VALUE;
+        private boolean byChangedAt;
+
+        Filter(final String since, final String until) {
+            if (since != null) {
+                try {
+                    afterAuditId = Long.parseLong(since.trim());
+                } catch (NumberFormatException e) {
+                    afterChangedAt = parseTimestamp(since);
+                    byChangedAt = true;
+                }
+            }
+
+            if (until != null) {
+                try {
+                    untilAuditId = Long.parseLong(until.trim());
+                } catch (NumberFormatException e) {
+                    untilChangedAt = parseTimestamp(until);
+                    byChangedAt = true;
+                }
+            }
+        }
+
+        private static long parseTimestamp(final String timestamp) {
+            String iso = timestamp.trim().replace(' ', 'T');
+
+            try {
+                return toMicros(OffsetDateTime.parse(iso).toInstant());
+            } catch (DateTimeParseException e) {
+                // Fall through to the forms without an offset
+            }
+
+            try {
+                return toMicros(LocalDateTime.parse(iso).toInstant(ZoneOffset.UTC));
+            } catch (DateTimeParseException e) {
+                // Fall through to a date on its own
+            }
+
+            try {
+                return toMicros(LocalDate.parse(iso).atStartOfDay().toInstant(ZoneOffset.UTC));
+            } catch (DateTimeParseException e) {
+                throw new RuntimeException("%s is neither an audit id nor an ISO-8601 timestamp".formatted(timestamp));
+            }
+        }
+
+        /**
+         * True if no row which is described by a manifest can match.
+         */
+        private boolean excludes(final Map<String, Object> manifest) {
+            if ((Long) manifest.get("max_audit_id") <= afterAuditId
+                    || (Long) manifest.get("min_audit_id") > untilAuditId) {
+                return true;
+            }
+
+            if (!byChangedAt || manifest.get("min_changed_at") == null) {
+                return false;
+            }
+            return toMicros(Instant.parse((String) manifest.get("max_changed_at"))) <= afterChangedAt
+                    || toMicros(Instant.parse((String) manifest.get("min_changed_at"))) > untilChangedAt;
+        }
+
+        private boolean matches(final long auditId, final long changedAt) {
+            if (auditId <= afterAuditId || auditId > untilAuditId) {
+                return false;
+            }
+            return !byChangedAt
+                    || (changedAt != Long.MIN_VALUE && changedAt > afterChangedAt && changedAt <= untilChangedAt);
+        }
+    }
+
+    /**
+     * Accumulates rows from a binary COPY stream and writes them as a segment. Memory use is bounded by the size of
+     * the rows in one segment, which the caller controls by writing a segment whenever {@link #size()} or
+     * {@link #rows()} grows too large.
+     */
+    static class Builder {
+        private final Map<String, Object> header;
+        private final List<Map<String, Object>> columnInfo;
+        private final byte[][] values;
+        private final int[] sizes;
+        private final int auditId;
+        private final int changedAt;
+        private int rows;
+        private long size;
+        private long minAuditId = Long.MAX_VALUE;
+        private long maxAuditId = Long.MIN_VALUE;
+        private long minChangedAt = Long.MAX_VALUE;
+        private long maxChangedAt = Long.MIN_VALUE;
+
+        /**
+         * @param header Entries which are copied to the start of the manifest of every segment, such as the name of
+         *               the audit table
+         * @param columnInfo One map per column containing its name, type, and decoder
+         */
+        Builder(final Map<String, Object> header, final List<Map<String, Object>> columnInfo) {
+            this.header = header;
+            this.columnInfo = columnInfo;
+            this.values = new byte[columnInfo.size()][];
+            this.sizes = new int[columnInfo.size()];
+
+            int auditId = -1;
+            int changedAt = -1;
+
+            for (int i = 0; i < columnInfo.size(); i++) {
+                values[i] = new byte[8192];
+
+                if ("audit_id".equals(columnInfo.get(i).get("name"))) {
+                    auditId = i;
+                } else if ("changed_at".equals(columnInfo.get(i).get("name"))) {
+                    changedAt = i;
+                }
+            }
+
+            if (auditId < 0 || !"int8".equals(columnInfo.get(auditId).get("decoder"))) {
+                throw new RuntimeException("Only audit tables with a bigint audit_id column can be archived");
+            }
+
+            this.auditId = auditId;
+            this.changedAt = changedAt >= 0 && "timestamptz".equals(columnInfo.get(changedAt).get("decoder"))
+                    ? changedAt : -1;
+        }
+
+        int rows() {
+            return rows;
+        }
+
+        long size() {
+            return size;
+        }
+
+        /**
+         * Read one tuple of a binary COPY stream, after its field count.
+         *
+         * @param in The COPY stream
+         * @param fields The field count which preceded the tuple
+         */
+        void read(final DataInputStream in, final int fields) throws IOException {
+            if (fields != values.length) {
+                throw new RuntimeException("Expected %d columns but COPY sent %d".formatted(values.length, fields));
+            }
+
+            for (int i = 0; i < fields; i++) {
+                int length = in.readInt();
+                int required = sizes[i] + 4 + Math.max(length, 0);
+
+                if (required > values[i].length) {
+                    if (required < 0) {
+                        throw new RuntimeException("Column %s is too large for one segment"
+                                .formatted(columnInfo.get(i).get("name")));
+                    }
+                    int doubled = (int) Math.min(Integer.MAX_VALUE - 8, values[i].length * 2L);
+                    values[i] = Arrays.copyOf(values[i], Math.max(required, doubled));
+                }
+
+                ByteBuffer.wrap(values[i], sizes[i], 4).putInt(length);
+                sizes[i] += 4;
+
+                if (length > 0) {
+                    in.readFully(values[i], sizes[i], length);
+                    sizes[i] += length;
+                }
+                size += 4 + Math.max(length, 0);
+            }
+
+            long id = ByteBuffer.wrap(values[auditId], sizes[auditId] - 8, 8).getLong();
+            minAuditId = Math.min(minAuditId, id);
+            maxAuditId = Math.max(maxAuditId, id);
+
+            if (changedAt >= 0 && ByteBuffer.wrap(values[changedAt], sizes[changedAt] - 12, 4).getInt() == 8) {
+                long micros = ByteBuffer.wrap(values[changedAt], sizes[changedAt] - 8, 8).getLong();
+                minChangedAt = Math.min(minChangedAt, micros);
+                maxChangedAt = Math.max(maxChangedAt, micros);
+            }
+            rows++;
+        }
+
+        /**
+         * Write the accumulated rows to a segment and start a new one. The segment is written to a temporary file
+         * which is flushed to disk before it is renamed, so that a segment either exists completely or not at all.
+         *
+         * @param directory The directory in which the segment should be written
+         * @return The path of the segment
+         */
+        Path write(final Path directory) throws IOException {
+            Path path = directory.resolve("%s.%s.%020d.seg"
+                    .formatted(header.get("schema"), header.get("audit_table"), minAuditId));
+            Path temporary = directory.resolve(path.getFileName() + ".partial");
+            CRC32C crc = new CRC32C();
+            List<Map<String, Object>> columns = new ArrayList<>();
+
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                write(channel, crc, ByteBuffer.allocate(HEADER_LENGTH).put(MAGIC).putInt(VERSION).flip());
+                byte[] chunk = new byte[65536];
+
+                for (int i = 0; i < values.length; i++) {
+                    long offset = channel.position();
+                    Deflater deflater = new Deflater();
+
+                    try {
+                        deflater.setInput(values[i], 0, sizes[i]);
+                        deflater.finish();
+
+                        while (!deflater.finished()) {
+                            write(channel, crc, ByteBuffer.wrap(chunk, 0, deflater.deflate(chunk)));
+                        }
+                    } finally {
+                        deflater.end();
+                    }
+
+                    Map<String, Object> column = new LinkedHashMap<>(columnInfo.get(i));
+                    column.put("offset", offset);
+                    column.put("length", channel.position() - offset);
+                    column.put("raw_length", (long) sizes[i]);
+                    columns.add(column);
+                }
+
+                Map<String, Object> manifest = new LinkedHashMap<>(header);
+                manifest.put("version", (long) VERSION);
+                manifest.put("rows", (long) rows);
+                manifest.put("min_audit_id", minAuditId);
+                manifest.put("max_audit_id", maxAuditId);
+                manifest.put("min_changed_at",
+                        minChangedAt == Long.MAX_VALUE ? null : toInstant(minChangedAt).toString());
+                manifest.put("max_changed_at",
+                        maxChangedAt == Long.MIN_VALUE ? null : toInstant(maxChangedAt).toString());
+                manifest.put("columns", columns);
+
+                long manifestOffset = channel.position();
+                byte[] json = Json.write(manifest).getBytes(StandardCharsets.UTF_8);
+                write(channel, crc, ByteBuffer.wrap(json));
+
+                // The checksum covers the start of the trailer, so it must be computed before it is written
+                ByteBuffer trailer = ByteBuffer.allocate(TRAILER_LENGTH).putLong(manifestOffset).putInt(json.length);
+                crc.update(trailer.array(), 0, 12);
+                trailer.putInt((int) crc.getValue()).put(MAGIC).flip();
+
+                while (trailer.hasRemaining()) {
+                    channel.write(trailer);
+                }
+                channel.force(true);
+            }
+
+            Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+            Arrays.fill(sizes, 0);
+            rows = 0;
+            size = 0;
+            minAuditId = Long.MAX_VALUE;
+            maxAuditId = Long.MIN_VALUE;
+            minChangedAt = Long.MAX_VALUE;
+            maxChangedAt = Long.MIN_VALUE;
+            return path;
+        }
+
+        private static void write(final FileChannel channel, final CRC32C crc, final ByteBuffer buffer)
+                throws IOException {
+            crc.update(buffer.duplicate());
+
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+}
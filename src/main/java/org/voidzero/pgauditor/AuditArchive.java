@@ -0,0 +1,348 @@
+package org.voidzero.pgauditor;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.PGCopyInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Copies a range of an audit table to compressed, column oriented segment files so that it can be moved off of the
+ * database's storage. See the archive command and {@link ArchiveSegment}.
+ * <p>
+ * The range is read with COPY in its binary format, which is the cheapest way to get rows out of PostgreSQL, and is
+ * streamed into segments which are written whenever they reach {@link #SEGMENT_ROWS} rows or {@link #SEGMENT_BYTES}
+ * bytes, so memory use doesn't depend on the size of the range. Everything is read in one repeatable read transaction,
+ * so the row count which the segments are verified against describes exactly the rows which were copied. Nothing is
+ * ever deleted: once the segments have been verified, the operator is told that the range is safe to remove and how to
+ * select it.
+ * <p>
+ * Audit ids and change times are assigned before the transaction which writes the audit record commits, so a
+ * transaction which is still running could later add records inside the range. The range is therefore bounded by a
+ * horizon, in the same way as {@link AuditTail} bounds its reads: the value of the audit sequence before the archive
+ * started, which is only used once every transaction which was in progress at that point has finished.
+ */
+public class AuditArchive {
+    static final int SEGMENT_ROWS = 1 << 20;
+    static final long SEGMENT_BYTES = 64L << 20;
+
+    /**
+     * How long to wait before checking again whether the transactions which were in progress when the horizon was
+     * captured have finished.
+     */
+    private static final int HORIZON_RETRY_MILLIS = 1000;
+
+    /**
+     * The signature which starts every binary COPY stream.
+     */
+    private static final byte[] COPY_SIGNATURE = {'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte) 0xFF, '\r', '\n', 0};
+
+    private final Connection connection;
+    private final Configuration config;
+    private final String auditTable;
+
+    /**
+     * Construct a new instance of this class.
+     *
+     * @param connection The database connection from which audit records should be read
+     * @param config User supplied parameters
+     */
+    public AuditArchive(final Connection connection, final Configuration config) {
+        this.connection = connection;
+        this.config = config;
+        this.auditTable = "aud_" + config.getTableOnly();
+    }
+
+    /**
+     * Archive the range selected by --since and --until and print a summary.
+     *
+     * @throws SQLException Thrown when the audit table cannot be read
+     * @throws IOException Thrown when a segment cannot be written or read back
+     */
+    public void run() throws SQLException, IOException, InterruptedException {
+        String qualified = AuditedTables.quote(config.getSchema()) + "." + AuditedTables.quote(auditTable);
+        String condition = config.getSince() == null ? condition(config.getUntil(), "<=")
+                : condition(config.getSince(), ">") + " AND " + condition(config.getUntil(), "<=");
+        condition += " AND audit_id <= " + captureHorizon();
+        Path directory = Path.of(config.getArchiveDir());
+        Files.createDirectories(directory);
+
+        boolean autoCommit = connection.getAutoCommit();
+        int isolation = connection.getTransactionIsolation();
+        connection.setAutoCommit(false);
+        connection.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+
+        long expected;
+        long copied = 0;
+        List<Path> segments = new ArrayList<>();
+
+        try {
+            List<Map<String, Object>> columns = getColumns();
+            expected = count(qualified, condition);
+
+            if (expected == 0) {
+                System.out.println("Nothing to archive: %s has no audit records WHERE %s"
+                        .formatted(qualified, condition));
+                return;
+            }
+
+            Map<String, Object> header = new LinkedHashMap<>();
+            header.put("schema", config.getSchema());
+            header.put("table", config.getTableOnly());
+            header.put("audit_table", auditTable);
+            ArchiveSegment.Builder builder = new ArchiveSegment.Builder(header, columns);
+
+            List<String> names = new ArrayList<>();
+
+            for (Map<String, Object> column : columns) {
+                names.add(AuditedTables.quote((String) column.get("name")));
+            }
+
+            String copy = "COPY (SELECT %s FROM %s WHERE %s ORDER BY audit_id) TO STDOUT (FORMAT binary)"
+                    .formatted(String.join(", ", names), qualified, condition);
+
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new PGCopyInputStream(connection.unwrap(PGConnection.class), copy), 65536))) {
+                readHeader(in);
+
+                for (int fields = in.readShort(); fields != -1; fields = in.readShort()) {
+                    builder.read(in, fields);
+                    copied++;
+
+                    if (builder.rows() >= SEGMENT_ROWS || builder.size() >= SEGMENT_BYTES) {
+                        segments.add(builder.write(directory));
+                    }
+                }
+            }
+
+            if (builder.rows() > 0) {
+                segments.add(builder.write(directory));
+            }
+        } finally {
+            connection.rollback();
+            connection.setTransactionIsolation(isolation);
+            connection.setAutoCommit(autoCommit);
+        }
+
+        verify(segments, expected, copied);
+
+        System.out.println("Archived %d audit records from %s into %d segment(s) in %s".formatted(
+                copied, qualified, segments.size(), directory));
+        System.out.println("Row counts and checksums have been verified, so these audit records are safe to detach:");
+        System.out.println("  SELECT * FROM %s WHERE %s".formatted(qualified, condition));
+        System.out.println("Before detaching them, check that this still returns %d:".formatted(copied));
+        System.out.println("  SELECT count(*) FROM %s WHERE %s".formatted(qualified, condition));
+    }
+
+    /**
+     * Capture the value of the audit sequence and wait until every transaction which was in progress at that point
+     * has finished. Transactions which start later take higher audit ids, so no record at or below the returned value
+     * can be added afterwards.
+     *
+     * @return The highest audit id which may be archived
+     */
+    private long captureHorizon() throws SQLException, InterruptedException {
+        long lastValue;
+        String inProgress;
+
+        // The sequence must be read before the running transactions are listed, so that every transaction which could
+        // hold an audit id at or below its value has either committed or is listed. The snapshot's list of running
+        // transactions leaves out those which started after the last one finished, but every transaction which has
+        // written anything holds a lock on its own id until it ends
+        try (PreparedStatement statement = connection.prepareStatement("SELECT last_value FROM %s.pgauditor_audit_seq"
+                .formatted(AuditedTables.quote(config.getSchema())));
+             ResultSet resultSet = statement.executeQuery()) {
+            resultSet.next();
+            lastValue = resultSet.getLong(1);
+        }
+
+        String running = """
+            SELECT coalesce(string_agg(transactionid::text, ','), '')
+            FROM pg_locks
+            WHERE locktype = 'transactionid' AND mode = 'ExclusiveLock' AND granted
+        """;
+
+        try (PreparedStatement statement = connection.prepareStatement(running);
+             ResultSet resultSet = statement.executeQuery()) {
+            resultSet.next();
+            inProgress = resultSet.getString(1);
+        }
+
+        String stillRunning = """
+            SELECT count(*)
+            FROM pg_locks
+            WHERE locktype = 'transactionid' AND mode = 'ExclusiveLock' AND granted
+              AND transactionid::text = ANY (string_to_array(?, ','))
+        """;
+
+        while (!inProgress.isEmpty()) {
+            long count;
+
+            try (PreparedStatement statement = connection.prepareStatement(stillRunning)) {
+                statement.setString(1, inProgress);
+
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    resultSet.next();
+                    count = resultSet.getLong(1);
+                }
+            }
+
+            if (count == 0) {
+                break;
+            }
+
+            System.err.println("Waiting for %d transaction(s) which could still add audit records to the range"
+                    .formatted(count));
+            Thread.sleep(HORIZON_RETRY_MILLIS);
+        }
+        return lastValue;
+    }
+
+    /**
+     * Print the archived audit records selected by --table, --since, and --until as JSON lines, in audit id order
+     * within each audit table. This is the read-archive command.
+     *
+     * @param config User supplied parameters
+     * @param out Where audit records are written
+     * @throws IOException Thrown when a segment cannot be read or a record cannot be written
+     */
+    public static void read(final Configuration config, final Writer out) throws IOException {
+        ArchiveSegment.Filter filter = new ArchiveSegment.Filter(config.getSince(), config.getUntil());
+        String prefix = config.getRawTable() == null ? "" : config.getSchema() + ".aud_" + config.getTableOnly() + ".";
+        List<Path> paths;
+
+        // Segment names start with the audit table and the first audit id, zero padded, so sorting them sorts
+        // segments by audit table and then by audit id
+        try (Stream<Path> files = Files.list(Path.of(config.getArchiveDir()))) {
+            paths = files.filter(path -> path.getFileName().toString().startsWith(prefix)
+                    && path.getFileName().toString().endsWith(".seg")).sorted().toList();
+        }
+
+        for (Path path : paths) {
+            ArchiveSegment segment = ArchiveSegment.open(path);
+            Map<String, Object> manifest = segment.getManifest();
+            String table = manifest.get("schema") + "." + manifest.get("table");
+
+            segment.scan(filter, row -> {
+                Map<String, Object> record = new LinkedHashMap<>();
+                record.put("table", table);
+                record.putAll(row);
+
+                try {
+                    out.write(Json.write(record));
+                    out.write('\n');
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+        out.flush();
+    }
+
+    /**
+     * Build one half of the condition which selects the range, in the same way as the changelog command interprets
+     * --since and --until. COPY doesn't accept parameters, so values are written as literals.
+     */
+    private static String condition(final String bound, final String operator) {
+        try {
+            return "audit_id %s %d".formatted(operator, Long.parseLong(bound.trim()));
+        } catch (NumberFormatException e) {
+            return "changed_at %s '%s'::timestamptz".formatted(operator, bound.replace("'", "''"));
+        }
+    }
+
+    private List<Map<String, Object>> getColumns() throws SQLException {
+        String sql = """
+            SELECT
+                a.attname,
+                format_type(a.atttypid, a.atttypmod) AS column_type,
+                t.typname,
+                t.typtype
+            FROM pg_attribute a
+                INNER JOIN pg_class c ON a.attrelid = c.oid
+                INNER JOIN pg_namespace n ON c.relnamespace = n.oid
+                INNER JOIN pg_type t ON a.atttypid = t.oid
+            WHERE c.relname = ?
+                AND n.nspname = ?
+                AND a.attnum > 0
+                AND NOT a.attisdropped
+            ORDER BY a.attnum
+        """;
+
+        List<Map<String, Object>> columns = new ArrayList<>();
+
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            statement.setString(1, auditTable);
+            statement.setString(2, config.getSchema());
+
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    Map<String, Object> column = new LinkedHashMap<>();
+                    column.put("name", resultSet.getString("attname"));
+                    column.put("type", resultSet.getString("column_type"));
+                    column.put("decoder", ArchiveSegment.decoder(resultSet.getString("typname"),
+                            resultSet.getString("typtype")));
+                    columns.add(column);
+                }
+            }
+        }
+
+        if (columns.isEmpty()) {
+            throw new RuntimeException("%s.%s does not exist".formatted(config.getSchema(), auditTable));
+        }
+        return columns;
+    }
+
+    private long count(final String qualified, final String condition) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(
+                "SELECT count(*) FROM %s WHERE %s".formatted(qualified, condition));
+             ResultSet resultSet = statement.executeQuery()) {
+            resultSet.next();
+            return resultSet.getLong(1);
+        }
+    }
+
+    private static void readHeader(final DataInputStream in) throws IOException {
+        byte[] signature = new byte[COPY_SIGNATURE.length];
+        in.readFully(signature);
+
+        if (!Arrays.equals(signature, COPY_SIGNATURE)) {
+            throw new RuntimeException("COPY did not return its binary format");
+        }
+
+        // Flags, which are all unused, followed by a header extension which may be skipped
+        in.readInt();
+        in.skipNBytes(in.readInt());
+    }
+
+    /**
+     * Read every segment back and check that, together, they contain exactly the rows which the database counted.
+     */
+    private static void verify(final List<Path> segments, final long expected, final long copied) throws IOException {
+        long archived = 0;
+
+        for (Path segment : segments) {
+            archived += ArchiveSegment.open(segment).getRows();
+        }
+
+        if (copied != expected || archived != expected) {
+            throw new RuntimeException(("The database counted %d audit records, COPY returned %d, and the segments "
+                    + "contain %d. Do not detach this range").formatted(expected, copied, archived));
+        }
+    }
+}
@@ -0,0 +1,563 @@
+package org.voidzero.pgauditor;
+
+import org.voidzero.influx.jdbc.InfluxConnection;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Projects what auditing would cost for tables which may not be audited yet, with the layout and capture flags which
+ * were passed on the command line. See the estimate command.
+ * <p>
+ * Write rates are taken from pg_stat_user_tables and column widths from pg_stats, so nothing is scanned. The sizes of
+ * audit rows and index entries are modelled from PostgreSQL's on-disk format: a heap tuple has a 24 byte header, a
+ * null bitmap, and a 4 byte line pointer, and is padded to 8 bytes, and a btree entry has an 8 byte header and a line
+ * pointer. WAL is modelled as one record per heap tuple and one per index entry, without full page images, which
+ * depend upon the checkpoint interval, so it is a lower bound. Updates are assumed to change one column, of average
+ * width, unless whole rows are captured by --point-in-time, and statements are assumed to change one row each when
+ * --rollup counts them.
+ */
+public class AuditEstimate {
+    private static final int SECONDS_PER_DAY = 86_400;
+    private static final int TUPLE_HEADER_BYTES = 24;
+    private static final int LINE_POINTER_BYTES = 4;
+    private static final int INDEX_TUPLE_HEADER_BYTES = 8;
+    private static final double BTREE_FILL_FACTOR = 0.9;
+
+    /**
+     * The approximate size of a WAL record's header and block reference, without its data.
+     */
+    private static final int WAL_RECORD_BYTES = 50;
+
+    /**
+     * The width which is assumed for variable length columns which haven't been analyzed, and for the user and
+     * application names which are recorded with each audit record.
+     */
+    private static final int DEFAULT_WIDTH = 16;
+
+    /**
+     * The approximate size of one entry in the GIN index on changed_columns.
+     */
+    private static final int GIN_ENTRY_BYTES = 8;
+
+    /**
+     * The size of the header of a one dimensional array without NULLs, such as the search signature.
+     */
+    private static final int ARRAY_HEADER_BYTES = 24;
+
+    /**
+     * The size of the heap pointer at the start of each entry in a bloom index, which is followed by its signature.
+     */
+    private static final int BLOOM_TUPLE_HEADER_BYTES = 6;
+
+    /**
+     * The approximate size of the diff which --jsonb-diff records when an update changes one value of a document.
+     */
+    private static final int JSONB_DIFF_BYTES = 96;
+
+    /**
+     * The width of a row of pgauditor_rollup: the table's schema and name, the day, the user and application names, the
+     * operation, the slot, and the count.
+     */
+    private static final int ROLLUP_ROW_BYTES = 4 * DEFAULT_WIDTH + 4 + 4 + 2 + 8;
+
+    /**
+     * Configuration object which contains all configuration parameters which were extracted from environment variables
+     * and parsed from command line arguments.
+     */
+    private final Configuration config;
+
+    /**
+     * The database connection which should be introspected.
+     */
+    private final InfluxConnection connection;
+
+    /**
+     * This is used to capture the formatted report.
+     */
+    private final StringBuilder output = new StringBuilder();
+
+    /**
+     * Construct a new instance of this class.
+     *
+     * @param connection The database connection which should be introspected
+     * @param config User supplied parameters which select the tables, the audit layout, and the output format
+     */
+    public AuditEstimate(final InfluxConnection connection, final Configuration config) {
+        this.connection = connection;
+        this.config = config;
+    }
+
+    public void run() throws SQLException, InterruptedException {
+        List<Map<String, Object>> tables = sampleTables();
+        int interval = config.getInterval() == null ? 0 : config.getInterval();
+        double seconds;
+        boolean upperBound = false;
+
+        if (interval > 0) {
+            // Measure write rates directly by sampling twice
+            Thread.sleep(interval * 1000L);
+            Map<String, Map<String, Object>> before = new HashMap<>();
+
+            for (Map<String, Object> table : tables) {
+                before.put(table.get("table_schema") + "." + table.get("table_name"), table);
+            }
+
+            tables = sampleTables();
+
+            for (Map<String, Object> table : tables) {
+                Map<String, Object> previous = before.get(table.get("table_schema") + "." + table.get("table_name"));
+
+                for (String counter : List.of("inserts", "updates", "hot_updates", "deletes")) {
+                    long start = previous == null ? 0 : toLong(previous.get(counter));
+                    table.put(counter, toLong(table.get(counter)) - start);
+                }
+            }
+            seconds = interval;
+        } else {
+            // Average the writes since statistics were last reset. When they never have been, the counters may have
+            // been carried across clean restarts, but the only known starting point is the last one, so the rates are
+            // an upper bound
+            Map<String, Object> period = connection.getMap("""
+                SELECT
+                    extract(epoch FROM now() - coalesce(stats_reset, pg_postmaster_start_time())) AS seconds,
+                    stats_reset IS NULL AS upper_bound
+                FROM pg_stat_database
+                WHERE datname = current_database()
+            """);
+            seconds = toDouble(period.get("seconds"));
+            upperBound = Boolean.TRUE.equals(period.get("upper_bound"));
+        }
+
+        Map<String, Map<String, Object>> widths = getColumnWidths();
+        LiveCatalog catalog = new LiveCatalog(connection);
+        boolean bloomAvailable = config.getBloomIndex() && catalog.extensionAvailable("bloom");
+
+        for (Map<String, Object> table : tables) {
+            estimate(table, catalog, widths, seconds, bloomAvailable);
+            table.put("rates_are_upper_bound", upperBound);
+        }
+
+        tables.sort(Comparator.comparingDouble((Map<String, Object> table) ->
+                toDouble(table.get("growth_bytes_per_day"))).reversed());
+
+        for (int i = 0; i < tables.size(); i++) {
+            tables.get(i).put("rank", i + 1);
+        }
+
+        switch (config.getFormat()) {
+            case JSON -> output.append(Json.write(tables)).append('\n');
+            case PROMETHEUS -> writePrometheus(tables);
+            default -> writeHuman(tables, seconds, upperBound);
+        }
+    }
+
+    /**
+     * Collects the write counters of every table which could be audited. The counters of a partitioned table are the
+     * sums of those of its partitions.
+     */
+    private List<Map<String, Object>> sampleTables() throws SQLException {
+        StringBuilder sql = new StringBuilder("""
+            SELECT
+                n.nspname AS table_schema,
+                src.relname AS table_name,
+                (SELECT count(*) FROM pg_index i WHERE i.indrelid = src.oid) AS indexes,
+                s.inserts,
+                s.updates,
+                s.hot_updates,
+                s.deletes,
+                (
+            """).append(AuditedTables.PREDICATE).append("""
+                ) AS audited
+            FROM pg_class src
+                INNER JOIN pg_namespace n ON src.relnamespace = n.oid
+                CROSS JOIN LATERAL (
+                    SELECT
+                        coalesce(sum(st.n_tup_ins), 0) AS inserts,
+                        coalesce(sum(st.n_tup_upd), 0) AS updates,
+                        coalesce(sum(st.n_tup_hot_upd), 0) AS hot_updates,
+                        coalesce(sum(st.n_tup_del), 0) AS deletes
+                    FROM pg_stat_user_tables st
+                    WHERE st.relid = src.oid
+                        OR st.relid IN (SELECT relid FROM pg_partition_tree(src.oid) WHERE isleaf)
+                ) s
+            WHERE src.relkind IN ('r', 'p')
+                AND NOT src.relispartition
+                AND n.nspname NOT IN ('pg_catalog', 'information_schema')
+                AND n.nspname NOT LIKE 'pg\\_%'
+                AND src.relname NOT LIKE 'aud\\_%'
+                AND src.relname NOT LIKE 'pgauditor\\_%'
+            """);
+        List<Object> parameters = new ArrayList<>();
+        AuditedTables.appendFilter(sql, parameters, config);
+
+        sql.append("ORDER BY n.nspname, src.relname");
+
+        List<Map<String, Object>> tables = new ArrayList<>();
+
+        for (Map<String, Object> row : connection.getListMap(sql.toString(), parameters.toArray())) {
+            tables.add(new LinkedHashMap<>(row));
+        }
+        return tables;
+    }
+
+    /**
+     * Collects the average width of the values in every column, keyed by schema qualified table name and then by
+     * column name. Columns which haven't been analyzed fall back upon the length of their type.
+     */
+    private Map<String, Map<String, Object>> getColumnWidths() throws SQLException {
+        String sql = """
+            SELECT
+                n.nspname AS table_schema,
+                c.relname AS table_name,
+                a.attname AS column_name,
+                coalesce(s.avg_width, CASE WHEN t.typlen > 0 THEN t.typlen ELSE %d END) AS width,
+                coalesce(s.null_frac, 0) AS null_frac
+            FROM pg_attribute a
+                INNER JOIN pg_class c ON a.attrelid = c.oid
+                INNER JOIN pg_namespace n ON c.relnamespace = n.oid
+                INNER JOIN pg_type t ON a.atttypid = t.oid
+                LEFT JOIN LATERAL (
+                    SELECT avg_width, null_frac
+                    FROM pg_stats
+                    WHERE schemaname = n.nspname
+                        AND tablename = c.relname
+                        AND attname = a.attname
+                    ORDER BY inherited DESC
+                    LIMIT 1
+                ) s ON true
+            WHERE c.relkind IN ('r', 'p')
+                AND a.attnum > 0
+                AND NOT a.attisdropped
+                AND n.nspname NOT IN ('pg_catalog', 'information_schema')
+        """.formatted(DEFAULT_WIDTH);
+
+        Map<String, Map<String, Object>> widths = new HashMap<>();
+
+        for (Map<String, Object> row : connection.getListMap(sql)) {
+            widths.computeIfAbsent(row.get("table_schema") + "." + row.get("table_name"), k -> new HashMap<>())
+                    .put((String) row.get("column_name"), row);
+        }
+        return widths;
+    }
+
+    private void estimate(final Map<String, Object> table, final LiveCatalog catalog,
+                          final Map<String, Map<String, Object>> widths, final double seconds,
+                          final boolean bloomAvailable) throws SQLException {
+        String schema = (String) table.get("table_schema");
+        String name = (String) table.get("table_name");
+        List<Map<String, Object>> columns = catalog.getColumns(schema, name);
+        List<String> keyColumns = catalog.getPrimaryKeyColumns(schema, name);
+        Map<String, Object> columnWidths = widths.getOrDefault(schema + "." + name, Map.of());
+
+        // Widths of the values which audit records copy from the table, ignoring NULLs, which take no space. An update
+        // records the old and new value of the column which it changes, or a diff when it is diffed by --jsonb-diff
+        double rowWidth = 0;
+        double keyWidth = 0;
+        double changeWidth = 0;
+        int diffedColumns = 0;
+
+        // The columns which --bloom-index covers, and how many of their values aren't NULL in an average row
+        List<String> bloomNames = config.getBloomColumns() == null ? null
+                : List.of(config.getBloomColumns().trim().split("\\s*,\\s*"));
+        int bloomColumns = 0;
+        double bloomValues = 0;
+
+        for (Map<String, Object> column : columns) {
+            Map<?, ?> stats = (Map<?, ?>) columnWidths.get((String) column.get("column_name"));
+            double width = stats == null ? DEFAULT_WIDTH
+                    : toDouble(stats.get("width")) * (1 - toDouble(stats.get("null_frac")));
+            rowWidth += width;
+
+            if (config.getBloomIndex() && PgAuditor.BLOOM_TYPES.contains((String) column.get("data_type"))
+                    && (bloomNames == null || bloomNames.contains((String) column.get("column_name")))) {
+                bloomColumns++;
+                bloomValues += stats == null ? 1 : 1 - toDouble(stats.get("null_frac"));
+            }
+
+            if (config.getJsonbDiff() && "jsonb".equals(column.get("data_type"))) {
+                changeWidth += JSONB_DIFF_BYTES;
+                diffedColumns++;
+            } else {
+                changeWidth += 2 * width;
+            }
+
+            if (keyColumns.contains((String) column.get("column_name"))) {
+                keyWidth += width;
+            }
+        }
+
+        double averageChange = columns.isEmpty() ? 0 : changeWidth / columns.size();
+        boolean pointInTime = config.getPointInTime() && !keyColumns.isEmpty();
+        boolean changedColumns = config.getChangedColumns() || config.getOldValuesOnly();
+
+        // Columns which every audit record has: audit_id, operation, changed_by, and changed_at
+        double fixedWidth = 8 + 4 + DEFAULT_WIDTH + 8;
+        int fixedColumns = 4;
+
+        if (config.getApplicationName()) {
+            fixedWidth += DEFAULT_WIDTH;
+            fixedColumns++;
+        }
+
+        if (config.getTxid()) {
+            fixedWidth += 8;
+            fixedColumns++;
+        }
+
+        if (config.getStatementOrdinal()) {
+            fixedWidth += 4;
+            fixedColumns++;
+        }
+
+        if (changedColumns) {
+            fixedColumns++;
+        }
+
+        if (config.getPartitions() > 0) {
+            fixedWidth += 4;
+            fixedColumns++;
+        }
+
+        // Without the bloom extension, each audit record has a search signature with the hash of each covered value
+        // which it records
+        boolean searchSignature = bloomColumns > 0 && !bloomAvailable;
+        double insertValues = bloomValues;
+        double updateValues = pointInTime ? bloomValues : columns.isEmpty() ? 0 : 2.0 * bloomColumns / columns.size();
+
+        if (searchSignature) {
+            fixedColumns++;
+        }
+
+        // Updates of a table with diffed columns also record the old and new key, so that its diffs can be ordered,
+        // and so do updates which only record old values, which record half of the change
+        double updateChange;
+
+        if (pointInTime) {
+            updateChange = rowWidth + keyWidth;
+        } else if (config.getOldValuesOnly()) {
+            updateChange = averageChange / 2 + 2 * keyWidth;
+        } else {
+            updateChange = averageChange + (diffedColumns > 0 ? 2 * keyWidth : 0);
+        }
+
+        int bitmapBytes = (fixedColumns + 2 * columns.size() + diffedColumns + 7) / 8;
+        double insertRow = heapTuple(fixedWidth + rowWidth
+                + (searchSignature ? ARRAY_HEADER_BYTES + 4 * insertValues : 0), bitmapBytes);
+        double deleteRow = insertRow;
+        double updateRow = heapTuple(fixedWidth + updateChange
+                + (searchSignature ? ARRAY_HEADER_BYTES + 4 * updateValues : 0)
+                + (changedColumns ? 24 + 2 : 0), bitmapBytes);
+
+        // Index entries written for each audit record: the unique index on audit_id, and the optional indexes
+        double uniqueEntry = btreeEntry(config.getPartitions() > 0 ? 12 : 8);
+        double insertIndex = uniqueEntry;
+        double updateIndex = uniqueEntry;
+        double deleteIndex = uniqueEntry;
+
+        if (pointInTime) {
+            // The new key index covers inserts and updates, and the old key index covers records which removed a key
+            double keyEntry = btreeEntry(keyWidth + 16);
+            insertIndex += keyEntry;
+            updateIndex += keyEntry;
+            deleteIndex += keyEntry;
+        }
+
+        if (config.getTxid()) {
+            double transactionEntry = btreeEntry(8 + (config.getStatementOrdinal() ? 4 : 0));
+            insertIndex += transactionEntry;
+            updateIndex += transactionEntry;
+            deleteIndex += transactionEntry;
+        }
+
+        if (changedColumns) {
+            // The GIN index on changed_columns also has an entry for every record whose changed_columns is NULL
+            insertIndex += GIN_ENTRY_BYTES;
+            updateIndex += GIN_ENTRY_BYTES;
+            deleteIndex += GIN_ENTRY_BYTES;
+        }
+
+        int bloomIndexes = 0;
+
+        if (searchSignature) {
+            // The GIN index on the search signature has an entry for each hash
+            insertIndex += insertValues * GIN_ENTRY_BYTES;
+            updateIndex += updateValues * GIN_ENTRY_BYTES;
+            deleteIndex += insertValues * GIN_ENTRY_BYTES;
+            bloomIndexes++;
+        } else if (bloomColumns > 0) {
+            // Every audit record has an entry in each bloom index, which is a signature of fixed length over both the
+            // old_ and new_ columns, and bloom pages have no line pointers or free space
+            for (int i = 0; i < 2 * bloomColumns; i += PgAuditor.MAX_INDEX_COLUMNS) {
+                double bloomEntry = BLOOM_TUPLE_HEADER_BYTES
+                        + PgAuditor.getBloomLength(Math.min(PgAuditor.MAX_INDEX_COLUMNS, 2 * bloomColumns - i)) / 8.0;
+                insertIndex += bloomEntry;
+                updateIndex += bloomEntry;
+                deleteIndex += bloomEntry;
+                bloomIndexes++;
+            }
+        }
+
+        int indexes = toInt(table.get("indexes"));
+        int auditIndexes = 1 + (pointInTime ? 1 : 0) + (config.getTxid() ? 1 : 0)
+                + (changedColumns ? 1 : 0) + bloomIndexes;
+        double perDay = seconds > 0 ? SECONDS_PER_DAY / seconds : 0;
+        double inserts = toLong(table.get("inserts")) * perDay;
+        double updates = toLong(table.get("updates")) * perDay;
+        double hotUpdates = toLong(table.get("hot_updates")) * perDay;
+        double deletes = toLong(table.get("deletes")) * perDay;
+
+        double rows = inserts + updates + deletes;
+        double heapBytes = inserts * insertRow + updates * updateRow + deletes * deleteRow;
+        double indexBytes = inserts * insertIndex + updates * updateIndex + deletes * deleteIndex;
+
+        // Each audit record is one heap record and one record per index entry. The table's own WAL is modelled in the
+        // same way: HOT updates don't touch its indexes, and deletes only mark the old tuple
+        double auditWal = heapBytes + indexBytes + rows * WAL_RECORD_BYTES * (1 + auditIndexes);
+
+        if (config.getRollup()) {
+            // Each statement also upserts a counter, which is updated in place once it exists. The write counters don't
+            // say how many statements there were, so each row is assumed to be changed by a statement of its own
+            auditWal += rows * (WAL_RECORD_BYTES + heapTuple(ROLLUP_ROW_BYTES, 1));
+        }
+
+        double sourceRow = heapTuple(rowWidth, (columns.size() + 7) / 8);
+        double sourceIndexEntry = WAL_RECORD_BYTES + btreeEntry(keyWidth);
+        double sourceWal = inserts * (WAL_RECORD_BYTES + sourceRow + indexes * sourceIndexEntry)
+                + updates * (WAL_RECORD_BYTES + sourceRow)
+                + (updates - hotUpdates) * indexes * sourceIndexEntry
+                + deletes * WAL_RECORD_BYTES;
+
+        table.put("audit_rows_per_day", rows);
+        table.put("bytes_per_audit_row", rows > 0 ? heapBytes / rows : insertRow);
+        table.put("index_bytes_per_audit_row", rows > 0 ? indexBytes / rows : insertIndex);
+        table.put("heap_bytes_per_day", heapBytes);
+        table.put("index_bytes_per_day", indexBytes);
+        table.put("growth_bytes_per_day", heapBytes + indexBytes);
+        table.put("wal_bytes_per_day", auditWal);
+        table.put("wal_amplification", sourceWal > 0 ? (sourceWal + auditWal) / sourceWal : null);
+    }
+
+    /**
+     * The space which a heap tuple with the given data takes, including its line pointer.
+     */
+    private static double heapTuple(final double dataBytes, final int bitmapBytes) {
+        return align(TUPLE_HEADER_BYTES + bitmapBytes) + align(dataBytes) + LINE_POINTER_BYTES;
+    }
+
+    /**
+     * The space which a btree entry with the given key takes, including its line pointer and free space.
+     */
+    private static double btreeEntry(final double keyBytes) {
+        return (align(INDEX_TUPLE_HEADER_BYTES + keyBytes) + LINE_POINTER_BYTES) / BTREE_FILL_FACTOR;
+    }
+
+    private static double align(final double bytes) {
+        return Math.ceil(bytes / 8) * 8;
+    }
+
+    private void writeHuman(final List<Map<String, Object>> tables, final double seconds, final boolean upperBound) {
+        if (tables.isEmpty()) {
+            output.append("No tables were found\n");
+            return;
+        }
+
+        output.append("Projected from %.1f hours of statistics, ranked by daily growth\n".formatted(
+                seconds / 3600));
+
+        if (upperBound) {
+            output.append("Statistics have never been reset, so writes from before the last restart may be counted "
+                    + "and rates are an upper bound. Pass --interval to measure them\n");
+        }
+        output.append('\n');
+        output.append("%4s  %-40s %14s %10s %10s %10s %10s %6s\n".formatted(
+                "rank", "table", "rows/day", "bytes/row", "heap/day", "index/day", "WAL/day", "WAL x"));
+
+        for (Map<String, Object> table : tables) {
+            Object amplification = table.get("wal_amplification");
+            String name = table.get("table_schema") + "." + table.get("table_name")
+                    + (Boolean.TRUE.equals(table.get("audited")) ? " *" : "");
+
+            output.append("%4d  %-40s %14.0f %10.0f %10s %10s %10s %6s\n".formatted(
+                    toInt(table.get("rank")),
+                    name,
+                    toDouble(table.get("audit_rows_per_day")),
+                    toDouble(table.get("bytes_per_audit_row")),
+                    formatBytes(toDouble(table.get("heap_bytes_per_day"))),
+                    formatBytes(toDouble(table.get("index_bytes_per_day"))),
+                    formatBytes(toDouble(table.get("wal_bytes_per_day"))),
+                    amplification == null ? "n/a" : "%.2f".formatted(toDouble(amplification))));
+        }
+
+        if (tables.stream().anyMatch(table -> Boolean.TRUE.equals(table.get("audited")))) {
+            output.append("\n* already audited\n");
+        }
+    }
+
+    private void writePrometheus(final List<Map<String, Object>> tables) {
+        gauge(tables, "pgauditor_estimated_audit_rows_per_day", "audit_rows_per_day",
+                "Projected number of audit records which auditing the table would write each day.");
+        gauge(tables, "pgauditor_estimated_audit_bytes_per_day", "growth_bytes_per_day",
+                "Projected daily growth of the audit table including indexes.");
+        gauge(tables, "pgauditor_estimated_wal_bytes_per_day", "wal_bytes_per_day",
+                "Projected WAL which auditing the table would write each day.");
+        gauge(tables, "pgauditor_estimated_wal_amplification", "wal_amplification",
+                "Projected ratio of the WAL written for the table with auditing to the WAL written without it.");
+    }
+
+    private void gauge(final List<Map<String, Object>> tables, final String name, final String field,
+                       final String help) {
+        output.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        output.append("# TYPE ").append(name).append(" gauge\n");
+
+        for (Map<String, Object> table : tables) {
+            if (table.get(field) != null) {
+                output.append(name)
+                        .append("{schema=\"").append(escapeLabel(table.get("table_schema")))
+                        .append("\",table=\"").append(escapeLabel(table.get("table_name")))
+                        .append("\"} ").append(table.get(field)).append('\n');
+            }
+        }
+    }
+
+    private static String escapeLabel(final Object value) {
+        return String.valueOf(value)
+                .replace("\\", "\\\\")
+                .replace("\"", "\\\"")
+                .replace("\n", "\\n");
+    }
+
+    private static String formatBytes(final double bytes) {
+        String[] units = {"B", "kB", "MB", "GB", "TB"};
+        double value = bytes;
+        int unit = 0;
+
+        while (Math.abs(value) >= 1024 && unit < units.length - 1) {
+            value /= 1024;
+            unit++;
+        }
+        return unit == 0 ? "%.0f B".formatted(value) : "%.1f %s".formatted(value, units[unit]);
+    }
+
+    private static int toInt(final Object value) {
+        return value == null ? 0 : ((Number) value).intValue();
+    }
+
+    private static long toLong(final Object value) {
+        return value == null ? 0 : ((Number) value).longValue();
+    }
+
+    private static double toDouble(final Object value) {
+        return value == null ? 0 : ((Number) value).doubleValue();
+    }
+
+    @Override
+    public String toString() {
+        return output.toString();
+    }
+}
@@ -0,0 +1,885 @@
+package org.voidzero.pgauditor;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+import org.voidzero.influx.jdbc.InfluxConnection;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Rebuilds a table as it was at a point in time into a new table. See the restore command.
+ * <p>
+ * The audit table is divided into primary key ranges, whose boundaries are taken from a sample of the keys which it
+ * records, and each range is restored on one of --max-connections connections. Every connection reads the same
+ * snapshot, which is exported by the connection which plans the ranges, so the restored table is consistent even while
+ * the audited table is being written to. A range is restored by reading its audit records up to the point in time in
+ * audit id order and applying each one to a map from primary key to row, so that the last record of each key decides
+ * whether the row existed and what it contained. The surviving rows are written to the new table with COPY.
+ * <p>
+ * The map of a range holds at most --max-rows-in-memory rows. When it would hold more, it and the rest of the range's
+ * audit records are divided by the hash of their keys into files in a temporary directory, and each file is then
+ * restored in the same way. Only the records of tables which were audited with --point-in-time contain whole rows, so
+ * only those tables can be restored.
+ */
+public class AuditRestore {
+    /**
+     * The number of pages of the audit table which are sampled for each range when the boundaries of the ranges are
+     * chosen.
+     */
+    private static final int SAMPLE_PAGES_PER_RANGE = 8;
+
+    /**
+     * The number of files into which a range, or a file, whose rows don't fit in memory is divided.
+     */
+    private static final int SPILL_PARTS = 16;
+
+    /**
+     * The number of audit records which are fetched at a time.
+     */
+    private static final int FETCH_SIZE = 10_000;
+
+    /**
+     * The number of bytes which are buffered before they are sent to COPY.
+     */
+    private static final int COPY_BUFFER_SIZE = 65536;
+
+    /**
+     * A range of primary keys. The lower bound is exclusive and the upper bound is inclusive, and either one is null
+     * when the range is unbounded on that side. Bounds hold the text of each key column.
+     */
+    private record Range(List<String> lower, List<String> upper) {
+    }
+
+    /**
+     * An audit record reduced to its effect on the table: a row which exists from now on, or the removal of the row
+     * whose key is held by the key columns of an otherwise empty row.
+     */
+    private record Event(boolean present, String[] row) {
+    }
+
+    /**
+     * The source of the events of a range or of a file.
+     */
+    private interface Events {
+        /**
+         * @return The next event, or null when there are no more
+         */
+        Event next() throws SQLException, IOException;
+    }
+
+    /**
+     * The rows of a range, or of a file, keyed by primary key.
+     */
+    private interface State {
+        void put(String[] row);
+
+        void remove(String[] row);
+
+        int size();
+
+        Iterable<String[]> rows();
+    }
+
+    private final Configuration config;
+    private final String schema;
+    private final String table;
+    private final String auditTable;
+    private final String targetSchema;
+    private final String targetTable;
+
+    /**
+     * The columns of the table, in order.
+     */
+    private List<Map<String, Object>> columns;
+
+    /**
+     * The primary key columns of the table.
+     */
+    private List<String> keyColumns;
+
+    /**
+     * The full type of each primary key column, which bounds are cast to.
+     */
+    private List<String> keyTypes;
+
+    /**
+     * The position of each primary key column among the columns of the table.
+     */
+    private int[] keyPositions;
+
+    /**
+     * Whether the primary key is a single integer column, in which case rows are kept in a map keyed by a primitive
+     * long rather than by the text of the key.
+     */
+    private boolean integerKey;
+
+    private Path spillDir;
+    private String snapshot;
+    private final ConcurrentLinkedQueue<Range> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicLong recordsRead = new AtomicLong();
+    private final AtomicLong rowsWritten = new AtomicLong();
+    private final AtomicLong filesSpilled = new AtomicLong();
+
+    /**
+     * Construct a new instance of this class.
+     *
+     * @param config User supplied parameters
+     */
+    public AuditRestore(final Configuration config) {
+        this.config = config;
+        this.schema = config.getSchema();
+        this.table = config.getTableOnly();
+        this.auditTable = "aud_" + table;
+        int index = config.getTarget().lastIndexOf('.');
+        this.targetSchema = index > 0 ? config.getTarget().substring(0, index) : schema;
+        this.targetTable = index > 0 ? config.getTarget().substring(index + 1) : config.getTarget();
+    }
+
+    /**
+     * Restore the table passed to --table as of --as-of into the table passed to --target, which is created, and print
+     * a summary.
+     *
+     * @param jdbcConnection The underlying JDBC connection, which creates the target table and exports the snapshot
+     *                       which every connection reads
+     * @param connection The database connection which is used to read the catalog
+     * @throws SQLException Thrown when the audit table cannot be read or the target table cannot be written
+     * @throws IOException Thrown when rows which don't fit in memory cannot be written to temporary files
+     * @throws InterruptedException Thrown when interrupted while waiting for ranges to be restored
+     */
+    public void run(final Connection jdbcConnection, final InfluxConnection connection)
+            throws SQLException, IOException, InterruptedException {
+        LiveCatalog catalog = new LiveCatalog(connection);
+        keyColumns = catalog.getPrimaryKeyColumns(schema, table);
+
+        if (keyColumns.isEmpty()) {
+            throw new RuntimeException("%s.%s has no primary key, so it can't be divided into ranges"
+                    .formatted(schema, table));
+        }
+
+        if (!catalog.functionExists(schema, auditTable + "_as_of")) {
+            throw new RuntimeException(("%s.%s can only be restored when it was audited with --point-in-time, "
+                    + "because other audit records of updates don't contain unchanged columns").formatted(schema, table));
+        }
+
+        if (catalog.tableExists(targetSchema, targetTable)) {
+            throw new RuntimeException("%s.%s already exists. The restore command only writes to a new table"
+                    .formatted(targetSchema, targetTable));
+        }
+
+        columns = catalog.getColumns(schema, table);
+        keyTypes = new ArrayList<>();
+        keyPositions = new int[keyColumns.size()];
+
+        for (int i = 0; i < keyColumns.size(); i++) {
+            for (int j = 0; j < columns.size(); j++) {
+                if (keyColumns.get(i).equals(columns.get(j).get("column_name"))) {
+                    keyTypes.add((String) columns.get(j).get("formatted_type"));
+                    keyPositions[i] = j;
+                }
+            }
+        }
+
+        integerKey = keyColumns.size() == 1 && List.of("smallint", "integer", "bigint").contains(keyTypes.get(0));
+
+        // The point in time is checked, and shown as the server understands it, before anything is created
+        String asOf;
+
+        try (PreparedStatement statement = jdbcConnection.prepareStatement("SELECT ?::timestamptz::text")) {
+            statement.setString(1, config.getAsOf());
+
+            try (ResultSet resultSet = statement.executeQuery()) {
+                resultSet.next();
+                asOf = resultSet.getString(1);
+            }
+        }
+
+        // Defaults are copied so that the restored table can take the place of the original, and the primary key is
+        // added once it has been filled, which is faster than maintaining it while rows are copied
+        jdbcConnection.setReadOnly(false);
+
+        try (Statement statement = jdbcConnection.createStatement()) {
+            statement.execute("CREATE TABLE %s.%s (LIKE %s.%s INCLUDING DEFAULTS)"
+                    .formatted(targetSchema, targetTable, schema, table));
+        }
+
+        boolean autoCommit = jdbcConnection.getAutoCommit();
+        long started = System.nanoTime();
+        List<Range> ranges;
+        spillDir = Files.createTempDirectory("pgauditor-restore");
+
+        try {
+            jdbcConnection.setAutoCommit(false);
+            jdbcConnection.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+
+            try (PreparedStatement statement = jdbcConnection.prepareStatement("SELECT pg_export_snapshot()");
+                 ResultSet resultSet = statement.executeQuery()) {
+                resultSet.next();
+                snapshot = resultSet.getString(1);
+            }
+
+            ranges = planRanges(jdbcConnection);
+            queue.addAll(ranges);
+            System.out.println("Restoring %s.%s as of %s into %s.%s in %d ranges on %d connections".formatted(
+                    schema, table, asOf, targetSchema, targetTable, ranges.size(), workers()));
+
+            ExecutorService executor = Executors.newFixedThreadPool(workers());
+            List<Future<Void>> futures = new ArrayList<>();
+
+            try {
+                for (int i = 0; i < workers(); i++) {
+                    futures.add(executor.submit(() -> {
+                        work();
+                        return null;
+                    }));
+                }
+
+                for (Future<Void> future : futures) {
+                    try {
+                        future.get();
+                    } catch (ExecutionException e) {
+                        throw new RuntimeException(("Restoring %s.%s failed, so %s.%s is incomplete and should be "
+                                + "dropped").formatted(schema, table, targetSchema, targetTable), e.getCause());
+                    }
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+
+            // The snapshot is only needed until every range has been read
+            jdbcConnection.commit();
+            jdbcConnection.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+            try (Statement statement = jdbcConnection.createStatement()) {
+                statement.execute("ALTER TABLE %s.%s ADD PRIMARY KEY (%s)"
+                        .formatted(targetSchema, targetTable, String.join(", ", keyColumns)));
+            }
+
+            jdbcConnection.commit();
+        } finally {
+            jdbcConnection.setAutoCommit(autoCommit);
+
+            // Files are left behind when a range fails while they are being restored
+            try (Stream<Path> files = Files.list(spillDir)) {
+                for (Path file : files.toList()) {
+                    Files.deleteIfExists(file);
+                }
+            }
+
+            Files.delete(spillDir);
+        }
+
+        System.out.println("Restored %d rows from %d audit records in %d seconds%s".formatted(
+                rowsWritten.get(), recordsRead.get(), (System.nanoTime() - started) / 1_000_000_000L,
+                filesSpilled.get() == 0 ? "" : ", spilling to %d files".formatted(filesSpilled.get())));
+    }
+
+    private int workers() {
+        return Math.max(1, config.getMaxConnections());
+    }
+
+    /**
+     * Choose the boundaries of the ranges from a block sample of the keys which the audit table records. The live table
+     * isn't sampled, because its rows may be the ones which are being replaced.
+     */
+    private List<Range> planRanges(final Connection jdbcConnection) throws SQLException {
+        int wanted = Math.max(1, config.getRanges());
+        long pages;
+
+        try (PreparedStatement statement = jdbcConnection.prepareStatement("""
+            SELECT c.relpages
+            FROM pg_class c
+                INNER JOIN pg_namespace n ON c.relnamespace = n.oid
+            WHERE n.nspname = ?
+                AND c.relname = ?
+        """)) {
+            statement.setString(1, schema);
+            statement.setString(2, auditTable);
+
+            try (ResultSet resultSet = statement.executeQuery()) {
+                resultSet.next();
+                pages = resultSet.getLong(1);
+            }
+        }
+
+        double percent = pages <= 0 ? 100 : Math.min(100, 100.0 * wanted * SAMPLE_PAGES_PER_RANGE / pages);
+        List<String> keyText = new ArrayList<>();
+
+        for (int i = 0; i < keyColumns.size(); i++) {
+            keyText.add("new_%s::text AS key_%d".formatted(keyColumns.get(i), i + 1));
+        }
+
+        List<List<String>> sample = new ArrayList<>();
+        String sql = "SELECT %s FROM %s.%s TABLESAMPLE SYSTEM (%s) WHERE operation IN ('INSERT', 'UPDATE') ORDER BY %s"
+                .formatted(String.join(", ", keyText), schema, auditTable, percent,
+                        String.join(", ", prefixed("new_")));
+
+        try (PreparedStatement statement = jdbcConnection.prepareStatement(sql);
+             ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+                List<String> key = new ArrayList<>();
+
+                for (int i = 0; i < keyColumns.size(); i++) {
+                    key.add(resultSet.getString(i + 1));
+                }
+                sample.add(key);
+            }
+        }
+
+        List<Range> ranges = new ArrayList<>();
+        List<String> lower = null;
+
+        for (int i = 1; i < wanted && !sample.isEmpty(); i++) {
+            List<String> upper = sample.get((int) ((long) i * sample.size() / wanted));
+
+            if (lower == null || !lower.equals(upper)) {
+                ranges.add(new Range(lower, upper));
+                lower = upper;
+            }
+        }
+
+        ranges.add(new Range(lower, null));
+        return ranges;
+    }
+
+    private void work() throws SQLException, IOException {
+        try (Connection connection = DriverManager.getConnection(config.getConnectionString(),
+                config.getUsername(), config.getPassword())) {
+            connection.setReadOnly(false);
+            connection.setAutoCommit(false);
+            connection.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+
+            for (Range range = queue.poll(); range != null; range = queue.poll()) {
+                restore(connection, range);
+            }
+        }
+    }
+
+    /**
+     * Restore one range in its own transaction, which reads the exported snapshot and copies the range's rows into the
+     * target table.
+     */
+    private void restore(final Connection connection, final Range range) throws SQLException, IOException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("SET TRANSACTION SNAPSHOT '%s'".formatted(snapshot));
+        }
+
+        List<String> parameters = new ArrayList<>();
+        String sql = query(range, parameters);
+        State state = newState();
+        List<Path> spilled;
+
+        // The audit records must all have been read before COPY can start on the same connection
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            statement.setFetchSize(FETCH_SIZE);
+
+            for (int i = 0; i < parameters.size(); i++) {
+                statement.setString(i + 1, parameters.get(i));
+            }
+
+            try (ResultSet resultSet = statement.executeQuery()) {
+                spilled = fold(() -> {
+                    if (!resultSet.next()) {
+                        return null;
+                    }
+
+                    recordsRead.incrementAndGet();
+                    String[] row = new String[columns.size()];
+
+                    for (int i = 0; i < row.length; i++) {
+                        row[i] = resultSet.getString(i + 2);
+                    }
+                    return new Event(resultSet.getBoolean(1), row);
+                }, state, 0);
+            }
+        }
+
+        CopyIn copy = connection.unwrap(PGConnection.class).getCopyAPI().copyIn(
+                "COPY %s.%s (%s) FROM STDIN".formatted(targetSchema, targetTable, columnNames()));
+
+        try {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(COPY_BUFFER_SIZE);
+
+            if (spilled == null) {
+                write(copy, buffer, state);
+            } else {
+                drain(spilled, 1, copy, buffer);
+            }
+
+            copy.writeToCopy(buffer.toByteArray(), 0, buffer.size());
+            copy.endCopy();
+        } finally {
+            if (copy.isActive()) {
+                copy.cancelCopy();
+            }
+        }
+
+        connection.commit();
+    }
+
+    /**
+     * The statement which reads the effects of the audit records of a range up to the point in time, in audit id
+     * order. It reads the same records as the as-of function: inserts and updates through the new key index and records
+     * which remove a key through the old key index. A removal only carries the columns of the key which it removes.
+     */
+    private String query(final Range range, final List<String> parameters) {
+        List<String> newColumns = new ArrayList<>();
+        List<String> oldColumns = new ArrayList<>();
+
+        for (Map<String, Object> column : columns) {
+            String name = (String) column.get("column_name");
+            newColumns.add("new_%s::text".formatted(name));
+            oldColumns.add(keyColumns.contains(name) ? "old_%s::text".formatted(name) : "NULL");
+        }
+
+        parameters.add(config.getAsOf());
+        String inserted = condition("new_", range, parameters);
+        parameters.add(config.getAsOf());
+        String removed = condition("old_", range, parameters);
+
+        return """
+            SELECT present, %s
+            FROM (
+                SELECT audit_id, true AS present, %s
+                FROM %s.%s
+                WHERE changed_at <= ?::timestamptz
+                    AND operation IN ('INSERT', 'UPDATE')
+                    AND %s
+                UNION ALL
+                SELECT audit_id, false, %s
+                FROM %s.%s
+                WHERE changed_at <= ?::timestamptz
+                    AND (%s)
+                    AND %s
+            ) e
+            ORDER BY audit_id
+        """.formatted(
+                columnNames(),
+                aliased(newColumns),
+                schema,
+                auditTable,
+                inserted,
+                aliased(oldColumns),
+                schema,
+                auditTable,
+                PgAuditor.createKeyRemovedCondition(keyColumns),
+                removed);
+    }
+
+    /**
+     * Apply events to the state until they run out, in which case null is returned, or until the state holds more than
+     * --max-rows-in-memory rows, in which case the state and the remaining events are divided into files, which are
+     * returned. The events of each key keep their order within its file. The hash which divides them depends on the
+     * depth, so that a file which is divided again isn't divided in the same way as the range or file it came from.
+     */
+    private List<Path> fold(final Events events, final State state, final int depth)
+            throws SQLException, IOException {
+        for (Event event = events.next(); event != null; event = events.next()) {
+            if (!hasKey(event.row())) {
+                // A row can't have a null primary key, so the event can't affect one
+                continue;
+            }
+
+            if (event.present()) {
+                state.put(event.row());
+            } else {
+                state.remove(event.row());
+            }
+
+            if (state.size() > config.getMaxRowsInMemory()) {
+                return spill(events, state, depth);
+            }
+        }
+        return null;
+    }
+
+    private List<Path> spill(final Events events, final State state, final int depth)
+            throws SQLException, IOException {
+        List<Path> files = new ArrayList<>();
+        DataOutputStream[] outs = new DataOutputStream[SPILL_PARTS];
+
+        try {
+            for (int i = 0; i < SPILL_PARTS; i++) {
+                Path file = Files.createTempFile(spillDir, "range", ".spill");
+                files.add(file);
+                outs[i] = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 65536));
+            }
+
+            filesSpilled.addAndGet(SPILL_PARTS);
+
+            for (String[] row : state.rows()) {
+                writeEvent(outs[part(row, depth)], new Event(true, row));
+            }
+
+            for (Event event = events.next(); event != null; event = events.next()) {
+                if (hasKey(event.row())) {
+                    writeEvent(outs[part(event.row(), depth)], event);
+                }
+            }
+        } finally {
+            for (DataOutputStream out : outs) {
+                if (out != null) {
+                    out.close();
+                }
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Restore each file in turn and delete it, dividing it again when its rows don't fit in memory either.
+     */
+    private void drain(final List<Path> files, final int depth, final CopyIn copy, final ByteArrayOutputStream buffer)
+            throws SQLException, IOException {
+        for (Path file : files) {
+            State state = newState();
+            List<Path> spilled;
+
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 65536))) {
+                spilled = fold(() -> readEvent(in), state, depth);
+            }
+
+            Files.delete(file);
+
+            if (spilled == null) {
+                write(copy, buffer, state);
+            } else {
+                drain(spilled, depth + 1, copy, buffer);
+            }
+        }
+    }
+
+    /**
+     * Write rows in COPY's text format.
+     */
+    private void write(final CopyIn copy, final ByteArrayOutputStream buffer, final State state)
+            throws SQLException {
+        StringBuilder line = new StringBuilder();
+
+        for (String[] row : state.rows()) {
+            line.setLength(0);
+
+            for (int i = 0; i < row.length; i++) {
+                if (i > 0) {
+                    line.append('\t');
+                }
+
+                if (row[i] == null) {
+                    line.append("\\N");
+                    continue;
+                }
+
+                for (int j = 0; j < row[i].length(); j++) {
+                    char c = row[i].charAt(j);
+
+                    switch (c) {
+                        case '\\' -> line.append("\\\\");
+                        case '\t' -> line.append("\\t");
+                        case '\n' -> line.append("\\n");
+                        case '\r' -> line.append("\\r");
+                        default -> line.append(c);
+                    }
+                }
+            }
+
+            line.append('\n');
+            buffer.writeBytes(line.toString().getBytes(StandardCharsets.UTF_8));
+
+            if (buffer.size() >= COPY_BUFFER_SIZE) {
+                copy.writeToCopy(buffer.toByteArray(), 0, buffer.size());
+                buffer.reset();
+            }
+        }
+
+        rowsWritten.addAndGet(state.size());
+    }
+
+    private static void writeEvent(final DataOutputStream out, final Event event) throws IOException {
+        out.writeBoolean(event.present());
+
+        for (String value : event.row()) {
+            if (value == null) {
+                out.writeInt(-1);
+            } else {
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        }
+    }
+
+    private Event readEvent(final DataInputStream in) throws IOException {
+        boolean present;
+
+        try {
+            present = in.readBoolean();
+        } catch (EOFException e) {
+            return null;
+        }
+
+        String[] row = new String[columns.size()];
+
+        for (int i = 0; i < row.length; i++) {
+            int length = in.readInt();
+
+            if (length >= 0) {
+                row[i] = new String(in.readNBytes(length), StandardCharsets.UTF_8);
+            }
+        }
+        return new Event(present, row);
+    }
+
+    private boolean hasKey(final String[] row) {
+        for (int position : keyPositions) {
+            if (row[position] == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int part(final String[] row, final int depth) {
+        int hash = 1;
+
+        for (int position : keyPositions) {
+            hash = 31 * hash + row[position].hashCode();
+        }
+
+        // Murmur3's finalizer, seeded by the depth, so that every depth divides keys differently
+        hash ^= depth * 0x9E3779B9;
+        hash ^= hash >>> 16;
+        hash *= 0x85EBCA6B;
+        hash ^= hash >>> 13;
+        hash *= 0xC2B2AE35;
+        hash ^= hash >>> 16;
+        return Math.floorMod(hash, SPILL_PARTS);
+    }
+
+    private State newState() {
+        return integerKey ? new LongKeyState(keyPositions[0]) : new TextKeyState(keyPositions);
+    }
+
+    private String columnNames() {
+        List<String> names = new ArrayList<>();
+
+        for (Map<String, Object> column : columns) {
+            names.add((String) column.get("column_name"));
+        }
+        return String.join(", ", names);
+    }
+
+    /**
+     * Name each expression after the column which it reads, so that both halves of the query have the same columns.
+     */
+    private String aliased(final List<String> expressions) {
+        List<String> aliased = new ArrayList<>();
+
+        for (int i = 0; i < expressions.size(); i++) {
+            aliased.add("%s AS %s".formatted(expressions.get(i), columns.get(i).get("column_name")));
+        }
+        return String.join(", ", aliased);
+    }
+
+    /**
+     * The condition which restricts the key columns, whose names start with the given prefix, to a range. Row
+     * comparisons are used so that composite keys are ordered in the same way as their primary key index.
+     */
+    private String condition(final String prefix, final Range range, final List<String> parameters) {
+        List<String> conditions = new ArrayList<>();
+        String key = "(%s)".formatted(String.join(", ", prefixed(prefix)));
+        List<String> placeholders = new ArrayList<>();
+
+        for (String keyType : keyTypes) {
+            placeholders.add("?::" + keyType);
+        }
+
+        if (range.lower() != null) {
+            conditions.add("%s > (%s)".formatted(key, String.join(", ", placeholders)));
+            parameters.addAll(range.lower());
+        }
+
+        if (range.upper() != null) {
+            conditions.add("%s <= (%s)".formatted(key, String.join(", ", placeholders)));
+            parameters.addAll(range.upper());
+        }
+        return conditions.isEmpty() ? "true" : String.join(" AND ", conditions);
+    }
+
+    private List<String> prefixed(final String prefix) {
+        List<String> names = new ArrayList<>();
+
+        for (String keyColumn : keyColumns) {
+            names.add(prefix + keyColumn);
+        }
+        return names;
+    }
+
+    /**
+     * Rows keyed by the text of their primary key columns.
+     */
+    private static final class TextKeyState implements State {
+        private final int[] keyPositions;
+        private final Map<List<String>, String[]> rows = new HashMap<>();
+
+        TextKeyState(final int[] keyPositions) {
+            this.keyPositions = keyPositions;
+        }
+
+        private List<String> key(final String[] row) {
+            String[] key = new String[keyPositions.length];
+
+            for (int i = 0; i < key.length; i++) {
+                key[i] = row[keyPositions[i]];
+            }
+            return Arrays.asList(key);
+        }
+
+        @Override
+        public void put(final String[] row) {
+            rows.put(key(row), row);
+        }
+
+        @Override
+        public void remove(final String[] row) {
+            rows.remove(key(row));
+        }
+
+        @Override
+        public int size() {
+            return rows.size();
+        }
+
+        @Override
+        public Iterable<String[]> rows() {
+            return rows.values();
+        }
+    }
+
+    /**
+     * Rows keyed by a single integer primary key column, in an open addressing table with linear probing, so that
+     * neither keys nor entries are allocated for each row.
+     */
+    private static final class LongKeyState implements State {
+        private final int keyPosition;
+        private long[] keys = new long[1024];
+        private String[][] rows = new String[1024][];
+        private int size;
+
+        LongKeyState(final int keyPosition) {
+            this.keyPosition = keyPosition;
+        }
+
+        private int slot(final long key) {
+            long hash = key * 0x9E3779B97F4A7C15L;
+            return (int) (hash ^ (hash >>> 32)) & (keys.length - 1);
+        }
+
+        private int find(final long key) {
+            int slot = slot(key);
+
+            while (rows[slot] != null && keys[slot] != key) {
+                slot = (slot + 1) & (keys.length - 1);
+            }
+            return slot;
+        }
+
+        @Override
+        public void put(final String[] row) {
+            long key = Long.parseLong(row[keyPosition]);
+            int slot = find(key);
+
+            if (rows[slot] == null) {
+                keys[slot] = key;
+                size++;
+            }
+
+            rows[slot] = row;
+
+            if (size * 2 > keys.length) {
+                grow();
+            }
+        }
+
+        @Override
+        public void remove(final String[] row) {
+            int slot = find(Long.parseLong(row[keyPosition]));
+
+            if (rows[slot] == null) {
+                return;
+            }
+
+            rows[slot] = null;
+            size--;
+
+            // Later entries of the same probe sequence are shifted back into the gap, so that lookups never stop early
+            for (int next = (slot + 1) & (keys.length - 1); rows[next] != null; next = (next + 1) & (keys.length - 1)) {
+                int home = slot(keys[next]);
+
+                if (((next - home) & (keys.length - 1)) >= ((next - slot) & (keys.length - 1))) {
+                    keys[slot] = keys[next];
+                    rows[slot] = rows[next];
+                    rows[next] = null;
+                    slot = next;
+                }
+            }
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            String[][] oldRows = rows;
+            keys = new long[oldKeys.length * 2];
+            rows = new String[oldKeys.length * 2][];
+
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldRows[i] != null) {
+                    int slot = find(oldKeys[i]);
+                    keys[slot] = oldKeys[i];
+                    rows[slot] = oldRows[i];
+                }
+            }
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public Iterable<String[]> rows() {
+            List<String[]> list = new ArrayList<>(size);
+
+            for (String[] row : rows) {
+                if (row != null) {
+                    list.add(row);
+                }
+            }
+            return list;
+        }
+    }
+}
@@ -0,0 +1,430 @@
+package org.voidzero.pgauditor;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * Wraps the JDBC connections of an application whose tables are audited in APPLICATION authentication mode, so that
+ * the current user, and optionally application_name, are set for every transaction without an extra round trip.
+ * <p>
+ * The settings are made transaction local with set_config() and sent in the same query as the first statement of each
+ * transaction. PostgreSQL runs every statement of such a query before it replies, so the settings cost no more than a
+ * few bytes. Because nothing outlives the transaction, connections can safely be shared through transaction mode
+ * poolers such as PgBouncer. In auto-commit mode every statement is its own transaction, so every statement carries the
+ * settings. The user is read from the supplier at the start of each transaction, and nothing is set when it returns
+ * null, so the audit functions still refuse anonymous changes.
+ * <p>
+ * Statements are prefixed by executing them as "SELECT set_config(...); statement" and skipping the first result, so
+ * results, update counts, and further results look exactly as they would without the wrapper. Batches, callable
+ * statements, and statements which return generated keys can't be prefixed, so the settings are sent in a separate
+ * query before them. Transactions which are ended by executing COMMIT or ROLLBACK as SQL, rather than through the
+ * Connection, aren't noticed, so the next transaction won't be identified.
+ */
+public final class AuditSession {
+    /**
+     * Results of a prefixed statement which belong to the statement rather than to its parameters or settings. These
+     * are read from whichever statement was executed last.
+     */
+    private static final Set<String> RESULT_METHODS = Set.of("getResultSet", "getUpdateCount", "getLargeUpdateCount",
+            "getMoreResults", "getGeneratedKeys", "getWarnings", "clearWarnings", "cancel");
+
+    private AuditSession() {
+    }
+
+    /**
+     * Wrap a data source so that each of its connections is wrapped by
+     * {@link #wrap(Connection, String, Supplier, Supplier)}.
+     *
+     * @param dataSource The data source of the application
+     * @param configProperty The setting which the audit functions read the current user from. See --config-property
+     * @param user Supplies the current user at the start of each transaction
+     * @param applicationName Supplies application_name at the start of each transaction, or null when
+     *                        application_name should be left as it is
+     * @return The wrapped data source
+     */
+    public static DataSource wrap(final DataSource dataSource, final String configProperty,
+                                  final Supplier<String> user, final Supplier<String> applicationName) {
+        return proxy(DataSource.class, (proxy, method, args) -> {
+            Object result = invoke(dataSource, method, args);
+
+            if (method.getName().equals("getConnection")) {
+                return wrap((Connection) result, configProperty, user, applicationName);
+            }
+            return result;
+        });
+    }
+
+    /**
+     * Wrap a connection so that the current user is set for each of its transactions.
+     *
+     * @param connection The connection of the application
+     * @param configProperty The setting which the audit functions read the current user from. See --config-property
+     * @param user Supplies the current user at the start of each transaction
+     * @param applicationName Supplies application_name at the start of each transaction, or null when
+     *                        application_name should be left as it is
+     * @return The wrapped connection
+     */
+    public static Connection wrap(final Connection connection, final String configProperty,
+                                  final Supplier<String> user, final Supplier<String> applicationName) {
+        return new Session(connection, configProperty, user, applicationName).proxy;
+    }
+
+    /**
+     * Quote a value as a string literal which means the same thing whatever standard_conforming_strings is set to.
+     */
+    static String literal(final String value) {
+        return "E'" + value.replace("\\", "\\\\").replace("'", "''") + "'";
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(final Class<T> type, final InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(AuditSession.class.getClassLoader(), new Class<?>[]{type}, handler);
+    }
+
+    private static Object invoke(final Object target, final Method method, final Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * The state of one wrapped connection.
+     */
+    private static final class Session {
+        private final Connection connection;
+        private final String configProperty;
+        private final Supplier<String> user;
+        private final Supplier<String> applicationName;
+        private final Connection proxy;
+
+        /**
+         * True until the settings have been sent in the current transaction.
+         */
+        private boolean pending = true;
+
+        private Session(final Connection connection, final String configProperty, final Supplier<String> user,
+                        final Supplier<String> applicationName) {
+            this.connection = connection;
+            this.configProperty = configProperty;
+            this.user = user;
+            this.applicationName = applicationName;
+            this.proxy = AuditSession.proxy(Connection.class, this::invokeConnection);
+        }
+
+        private Object invokeConnection(final Object proxy, final Method method, final Object[] args)
+                throws Throwable {
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "AuditSession[" + connection + "]";
+                case "createStatement":
+                    return new SimpleStatement((Statement) invoke(connection, method, args)).proxy;
+                case "prepareStatement":
+                    return new Prepared(method, args).proxy;
+                case "prepareCall":
+                    return callable((CallableStatement) invoke(connection, method, args));
+                case "commit":
+                case "rollback":
+                case "setAutoCommit":
+                    // The settings end with the transaction, and with a rolled back savepoint
+                    pending = true;
+                    return invoke(connection, method, args);
+                default:
+                    return invoke(connection, method, args);
+            }
+        }
+
+        /**
+         * Callable statements can't be prefixed, so they are identified by a separate query before each execution.
+         */
+        private CallableStatement callable(final CallableStatement statement) {
+            return AuditSession.proxy(CallableStatement.class, (proxy, method, args) -> {
+                if (method.getName().equals("getConnection")) {
+                    return this.proxy;
+                }
+
+                if (method.getName().startsWith("execute")) {
+                    identify();
+                }
+                return invoke(statement, method, args);
+            });
+        }
+
+        /**
+         * Whether the next statement should carry the settings.
+         */
+        private boolean needsSettings() throws SQLException {
+            return (pending || connection.getAutoCommit()) && user.get() != null;
+        }
+
+        /**
+         * Record that the settings were sent in the current transaction.
+         */
+        private void sent() throws SQLException {
+            pending = connection.getAutoCommit();
+        }
+
+        /**
+         * The query which makes the settings, with their values as parameters.
+         */
+        private String settingsQuery() {
+            return "SELECT set_config(%s, ?, true)%s".formatted(literal(configProperty),
+                    applicationName == null ? "" : ", set_config('application_name', ?, true)");
+        }
+
+        /**
+         * The query which makes the settings, with their values as literals, for statements without parameters.
+         */
+        private String settingsLiteralQuery() {
+            return "SELECT set_config(%s, %s, true)%s".formatted(literal(configProperty), literal(user.get()),
+                    applicationName == null ? ""
+                            : ", set_config('application_name', %s, true)".formatted(literal(applicationName.get())));
+        }
+
+        /**
+         * Bind the values of the settings to the first parameters of a statement.
+         *
+         * @return The number of parameters which were bound
+         */
+        private int bindSettings(final PreparedStatement statement) throws SQLException {
+            statement.setString(1, user.get());
+
+            if (applicationName == null) {
+                return 1;
+            }
+            statement.setString(2, applicationName.get());
+            return 2;
+        }
+
+        /**
+         * Send the settings in a query of their own, for statements which can't carry them.
+         */
+        private void identify() throws SQLException {
+            if (!needsSettings()) {
+                return;
+            }
+
+            try (PreparedStatement statement = connection.prepareStatement(settingsQuery())) {
+                bindSettings(statement);
+                statement.execute();
+            }
+            sent();
+        }
+
+        /**
+         * Move past the result of the settings query to the statement's own first result, and report it in the way
+         * that the method which executed the statement would have.
+         */
+        private Object firstResult(final Statement statement, final String method) throws SQLException {
+            boolean resultSet = statement.getMoreResults();
+
+            switch (method) {
+                case "executeQuery":
+                    if (!resultSet) {
+                        throw new SQLException("No results were returned by the query.");
+                    }
+                    return statement.getResultSet();
+                case "executeUpdate":
+                    return resultSet ? 0 : statement.getUpdateCount();
+                case "executeLargeUpdate":
+                    return resultSet ? 0L : statement.getLargeUpdateCount();
+                default:
+                    return resultSet;
+            }
+        }
+
+        /**
+         * A statement which is executed with SQL text. When the settings are needed, they are prepended to the text
+         * as literals.
+         */
+        private final class SimpleStatement {
+            private final Statement statement;
+            private final Statement proxy;
+
+            private SimpleStatement(final Statement statement) {
+                this.statement = statement;
+                this.proxy = AuditSession.proxy(Statement.class, this::invokeStatement);
+            }
+
+            private Object invokeStatement(final Object proxy, final Method method, final Object[] args)
+                    throws Throwable {
+                String name = method.getName();
+
+                switch (name) {
+                    case "getConnection":
+                        return Session.this.proxy;
+                    case "executeBatch":
+                    case "executeLargeBatch":
+                        identify();
+                        return invoke(statement, method, args);
+                    case "execute":
+                    case "executeQuery":
+                    case "executeUpdate":
+                    case "executeLargeUpdate":
+                        break;
+                    default:
+                        return invoke(statement, method, args);
+                }
+
+                if (!needsSettings()) {
+                    return invoke(statement, method, args);
+                }
+
+                if (args.length > 1) {
+                    // Generated keys are requested by the remaining arguments
+                    identify();
+                    return invoke(statement, method, args);
+                }
+
+                statement.execute(settingsLiteralQuery() + ";\n" + args[0]);
+                sent();
+                return firstResult(statement, name);
+            }
+        }
+
+        /**
+         * A prepared statement. Parameters and settings are passed to a statement prepared from the application's SQL
+         * and recorded. When the settings are needed, a second statement is prepared from the same SQL preceded by the
+         * settings query, the recordings are replayed onto it with their parameter indexes shifted past the settings,
+         * and it is executed instead.
+         */
+        private final class Prepared {
+            private final PreparedStatement statement;
+            private final Method prepare;
+            private final Object[] prepareArgs;
+            private final PreparedStatement proxy;
+
+            /**
+             * The latest value of each parameter, keyed by index.
+             */
+            private final Map<Integer, Object[]> parameters = new LinkedHashMap<>();
+            private final Map<Integer, Method> parameterMethods = new LinkedHashMap<>();
+
+            /**
+             * The latest arguments of each call which changed a statement setting, such as the fetch size.
+             */
+            private final Map<Method, Object[]> settings = new LinkedHashMap<>();
+
+            /**
+             * The statement which carries the settings, which is prepared when it is first needed.
+             */
+            private PreparedStatement prefixed;
+
+            /**
+             * The statement which was executed last, whose results the application is reading.
+             */
+            private Statement current;
+
+            private Prepared(final Method prepare, final Object[] args) throws Throwable {
+                this.statement = (PreparedStatement) invoke(connection, prepare, args);
+                this.prepare = prepare;
+                this.prepareArgs = args;
+                this.current = statement;
+                this.proxy = AuditSession.proxy(PreparedStatement.class, this::invokePrepared);
+            }
+
+            private Object invokePrepared(final Object proxy, final Method method, final Object[] args)
+                    throws Throwable {
+                String name = method.getName();
+
+                if (RESULT_METHODS.contains(name)) {
+                    return invoke(current, method, args);
+                }
+
+                switch (name) {
+                    case "getConnection":
+                        return Session.this.proxy;
+                    case "close":
+                        if (prefixed != null) {
+                            prefixed.close();
+                        }
+                        return invoke(statement, method, args);
+                    case "clearParameters":
+                        parameters.clear();
+                        parameterMethods.clear();
+                        return invoke(statement, method, args);
+                    case "executeBatch":
+                    case "executeLargeBatch":
+                        current = statement;
+                        identify();
+                        return invoke(statement, method, args);
+                    case "execute":
+                    case "executeQuery":
+                    case "executeUpdate":
+                    case "executeLargeUpdate":
+                        break;
+                    default:
+                        if (name.startsWith("set") && args != null && args.length > 0) {
+                            record(method, args);
+                        }
+                        return invoke(statement, method, args);
+                }
+
+                if (args != null && args.length > 0) {
+                    // Statement methods which take SQL text aren't allowed on a prepared statement
+                    return invoke(statement, method, args);
+                }
+
+                if (!needsSettings() || prepareArgs.length > 1) {
+                    // Statements which return generated keys are prepared with more than one argument
+                    identify();
+                    current = statement;
+                    return invoke(statement, method, args);
+                }
+
+                PreparedStatement target = prefixed();
+                int offset = bindSettings(target);
+
+                for (Map.Entry<Integer, Object[]> parameter : parameters.entrySet()) {
+                    Object[] shifted = parameter.getValue().clone();
+                    shifted[0] = parameter.getKey() + offset;
+                    invoke(target, parameterMethods.get(parameter.getKey()), shifted);
+                }
+
+                current = target;
+                target.execute();
+                sent();
+                return firstResult(target, name);
+            }
+
+            private void record(final Method method, final Object[] args) {
+                if (method.getDeclaringClass() == PreparedStatement.class && args[0] instanceof Integer index) {
+                    parameters.put(index, args);
+                    parameterMethods.put(index, method);
+                } else if (method.getDeclaringClass() == Statement.class) {
+                    settings.put(method, args);
+                }
+            }
+
+            private PreparedStatement prefixed() throws Throwable {
+                if (prefixed == null) {
+                    Object[] args = prepareArgs.clone();
+                    args[0] = settingsQuery() + ";\n" + args[0];
+                    prefixed = (PreparedStatement) invoke(connection, prepare, args);
+                }
+
+                for (Map.Entry<Method, Object[]> setting : settings.entrySet()) {
+                    invoke(prefixed, setting.getKey(), setting.getValue());
+                }
+                return prefixed;
+            }
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package org.voidzero.pgauditor;
+
+import org.voidzero.influx.cli.InfluxCli;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures transactions per second against a table audited in APPLICATION authentication mode, once setting the
+ * current user with a separate statement at the start of each transaction and once with {@link AuditSession}. See
+ * benchmark_session.sh, which creates the table.
+ * <p>
+ * Usage: AuditSessionBenchmark CLIENTS SECONDS LATENCY_MS [pgauditor connection options] --table TABLE
+ * <p>
+ * On a local connection a round trip costs microseconds, so the difference is lost in the noise. When LATENCY_MS is
+ * greater than zero, connections go through a relay which delays everything that it forwards, in each direction, by
+ * that many milliseconds, which is how the difference appears between an application and a database in another rack
+ * or zone.
+ */
+public class AuditSessionBenchmark {
+    private final Configuration config;
+    private final String url;
+    private final int clients;
+    private final int seconds;
+    private final long rows;
+
+    private AuditSessionBenchmark(final Configuration config, final String url, final int clients, final int seconds,
+                                  final long rows) {
+        this.config = config;
+        this.url = url;
+        this.clients = clients;
+        this.seconds = seconds;
+        this.rows = rows;
+    }
+
+    public static void main(String[] args) throws SQLException, InterruptedException, IOException {
+        if (args.length < 3) {
+            System.err.println("Usage: AuditSessionBenchmark CLIENTS SECONDS LATENCY_MS [pgauditor connection options] "
+                    + "--table TABLE");
+            System.exit(2);
+        }
+
+        Configuration config = (Configuration) new InfluxCli().bindOrExit(Configuration.class,
+                Arrays.copyOfRange(args, 3, args.length));
+        int latency = Integer.parseInt(args[2]);
+        String url = config.getConnectionString();
+
+        if (latency > 0) {
+            URI target = URI.create(url.substring("jdbc:".length()));
+            int port = relay(target.getHost(), target.getPort(), latency);
+            url = "jdbc:postgresql://localhost:%d%s?%s".formatted(port, target.getPath(), target.getQuery());
+        }
+
+        long rows;
+
+        try (Connection connection = connect(config, url);
+             PreparedStatement statement = connection.prepareStatement(
+                     "SELECT count(*) FROM %s".formatted(config.getTableWithSchema()));
+             ResultSet resultSet = statement.executeQuery()) {
+            resultSet.next();
+            rows = resultSet.getLong(1);
+        }
+
+        AuditSessionBenchmark benchmark = new AuditSessionBenchmark(config, url, Integer.parseInt(args[0]),
+                Integer.parseInt(args[1]), rows);
+
+        System.out.printf("%-10s %8s %10s %12s%n", "mode", "clients", "latency", "tps");
+        System.out.printf("%-10s %8d %8dms %12.0f%n", "separate", benchmark.clients, latency, benchmark.run(false));
+        System.out.printf("%-10s %8d %8dms %12.0f%n", "session", benchmark.clients, latency, benchmark.run(true));
+    }
+
+    /**
+     * Start a relay which forwards connections to the database and delays what it forwards.
+     *
+     * @return The local port on which the relay accepts connections
+     */
+    private static int relay(final String host, final int port, final int latency) throws IOException {
+        ServerSocket server = new ServerSocket(0);
+        Thread acceptor = new Thread(() -> {
+            while (true) {
+                try {
+                    Socket client = server.accept();
+                    Socket database = new Socket(host, port);
+                    client.setTcpNoDelay(true);
+                    database.setTcpNoDelay(true);
+                    forward(client, database, latency);
+                    forward(database, client, latency);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return server.getLocalPort();
+    }
+
+    private static void forward(final Socket from, final Socket to, final int latency) {
+        Thread thread = new Thread(() -> {
+            byte[] buffer = new byte[65536];
+
+            try (InputStream in = from.getInputStream(); OutputStream out = to.getOutputStream()) {
+                for (int read = in.read(buffer); read != -1; read = in.read(buffer)) {
+                    Thread.sleep(latency);
+                    out.write(buffer, 0, read);
+                }
+            } catch (IOException | InterruptedException e) {
+                // The other side closed the connection
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private Connection connect() throws SQLException {
+        return connect(config, url);
+    }
+
+    private static Connection connect(final Configuration config, final String url) throws SQLException {
+        // PgAuditor's own connections are read only, but the benchmark writes. Commits don't wait for WAL to be flushed
+        // so that round trips, rather than the disk, limit throughput
+        Connection connection = DriverManager.getConnection(url, config.getUsername(), config.getPassword());
+        connection.setReadOnly(false);
+
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("SET synchronous_commit = off");
+        }
+        return connection;
+    }
+
+    /**
+     * Run one update per transaction from every client for the configured number of seconds.
+     *
+     * @param session Whether the current user should be set by {@link AuditSession} rather than by a separate statement
+     * @return Transactions per second
+     */
+    private double run(final boolean session) throws InterruptedException {
+        LongAdder transactions = new LongAdder();
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        List<Thread> threads = new ArrayList<>();
+        List<SQLException> errors = new ArrayList<>();
+
+        for (int i = 0; i < clients; i++) {
+            String user = "user" + i;
+
+            Thread thread = new Thread(() -> {
+                try (Connection raw = connect()) {
+                    Connection connection = session
+                            ? AuditSession.wrap(raw, config.getConfigProperty(), () -> user, null)
+                            : raw;
+                    connection.setAutoCommit(false);
+
+                    try (PreparedStatement identify = connection.prepareStatement("SELECT set_config(?, ?, true)");
+                         PreparedStatement update = connection.prepareStatement(
+                                 "UPDATE %s SET n = n + 1 WHERE id = ?".formatted(config.getTableWithSchema()))) {
+                        while (System.nanoTime() < deadline) {
+                            if (!session) {
+                                identify.setString(1, config.getConfigProperty());
+                                identify.setString(2, user);
+                                identify.execute();
+                            }
+
+                            update.setLong(1, ThreadLocalRandom.current().nextLong(rows) + 1);
+                            update.executeUpdate();
+                            connection.commit();
+                            transactions.increment();
+                        }
+                    }
+                } catch (SQLException e) {
+                    synchronized (errors) {
+                        errors.add(e);
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        if (!errors.isEmpty()) {
+            throw new RuntimeException(errors.get(0));
+        }
+        return transactions.doubleValue() / seconds;
+    }
+}
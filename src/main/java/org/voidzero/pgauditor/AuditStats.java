@@ -0,0 +1,402 @@
+package org.voidzero.pgauditor;
+
+import org.voidzero.influx.jdbc.InfluxConnection;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reports what auditing costs for every audited table. Audited tables are discovered by the names which
+ * {@link PgAuditor} gives to their triggers and functions, so no configuration is required beyond the connection
+ * parameters. All figures are taken from the cumulative statistics views, which means that nothing is scanned and the
+ * command is cheap enough to be run by a metrics scraper.
+ */
+public class AuditStats {
+    /**
+     * Prefixes of the row and statement level audit functions which are generated for each table.
+     */
+    private static final String[] FUNCTION_PREFIXES = {"afi_", "afu_", "afd_", "afa_", "aft_"};
+
+    /**
+     * Configuration object which contains all configuration parameters which were extracted from environment variables
+     * and parsed from command line arguments.
+     */
+    private final Configuration config;
+
+    /**
+     * The database connection which should be introspected.
+     */
+    private final InfluxConnection connection;
+
+    /**
+     * This is used to capture the formatted report.
+     */
+    private final StringBuilder output = new StringBuilder();
+
+    /**
+     * Construct a new instance of this class.
+     *
+     * @param connection The database connection which should be introspected
+     * @param config User supplied parameters which select the tables and the output format
+     */
+    public AuditStats(final InfluxConnection connection, final Configuration config) {
+        this.connection = connection;
+        this.config = config;
+    }
+
+    public void run() throws SQLException, InterruptedException {
+        if ("none".equals(connection.getString("SELECT current_setting('track_functions')"))) {
+            System.err.println("track_functions is set to none, so trigger function calls and timings are not " +
+                    "available. Set track_functions to pl to collect them.");
+        }
+
+        List<Map<String, Object>> tables = sampleTables();
+        int interval = config.getInterval() == null ? 0 : config.getInterval();
+        boolean upperBound = false;
+
+        if (interval > 0) {
+            // Measure growth directly by sampling twice
+            Thread.sleep(interval * 1000L);
+            Map<String, Map<String, Object>> before = new HashMap<>();
+
+            for (Map<String, Object> table : tables) {
+                before.put(key(table), table);
+            }
+
+            tables = sampleTables();
+
+            for (Map<String, Object> table : tables) {
+                Map<String, Object> previous = before.get(key(table));
+                long rows = 0;
+                long bytes = 0;
+
+                if (previous != null) {
+                    rows = toLong(table.get("audit_rows_written")) - toLong(previous.get("audit_rows_written"));
+                    bytes = toLong(table.get("audit_total_bytes")) - toLong(previous.get("audit_total_bytes"));
+                }
+
+                table.put("growth_rows_per_second", (double) rows / interval);
+                table.put("growth_bytes_per_second", (double) bytes / interval);
+            }
+        } else {
+            // Estimate growth by averaging the number of audit rows written since statistics were last reset. When
+            // they never have been, the counters may have been carried across clean restarts, but the only known
+            // starting point is the last one, so the rates are an upper bound
+            Map<String, Object> period = connection.getMap("""
+                SELECT
+                    extract(epoch FROM now() - coalesce(stats_reset, pg_postmaster_start_time())) AS seconds,
+                    stats_reset IS NULL AS upper_bound
+                FROM pg_stat_database
+                WHERE datname = current_database()
+            """);
+            double seconds = toDouble(period.get("seconds"));
+            upperBound = Boolean.TRUE.equals(period.get("upper_bound"));
+
+            for (Map<String, Object> table : tables) {
+                long liveRows = toLong(table.get("audit_rows"));
+                double rowsPerSecond = seconds > 0 ? toLong(table.get("audit_rows_written")) / seconds : 0;
+                double bytesPerRow = liveRows > 0 ? (double) toLong(table.get("audit_total_bytes")) / liveRows : 0;
+                table.put("growth_rows_per_second", rowsPerSecond);
+                table.put("growth_bytes_per_second", rowsPerSecond * bytesPerRow);
+            }
+        }
+
+        Map<String, List<Map<String, Object>>> functions = getFunctionStats();
+
+        for (Map<String, Object> table : tables) {
+            long sourceWrites = toLong(table.get("source_writes"));
+            long totalBytes = toLong(table.get("audit_total_bytes"));
+            table.put("audit_rows_per_source_write",
+                    sourceWrites > 0 ? (double) toLong(table.get("audit_rows_written")) / sourceWrites : null);
+            table.put("audit_toast_share",
+                    totalBytes > 0 ? (double) toLong(table.get("audit_toast_bytes")) / totalBytes : 0.0);
+
+            List<Map<String, Object>> tableFunctions = new ArrayList<>();
+            long calls = 0;
+            double totalTime = 0;
+            double selfTime = 0;
+
+            for (String prefix : FUNCTION_PREFIXES) {
+                String name = prefix + table.get("table_name");
+
+                String qualifiedName = table.get("table_schema") + "." + name;
+
+                for (Map<String, Object> function : functions.getOrDefault(qualifiedName, List.of())) {
+                    tableFunctions.add(function);
+                    calls += toLong(function.get("calls"));
+                    totalTime += toDouble(function.get("total_time_ms"));
+                    selfTime += toDouble(function.get("self_time_ms"));
+                }
+            }
+
+            table.put("trigger_calls", calls);
+            table.put("trigger_total_time_ms", totalTime);
+            table.put("trigger_self_time_ms", selfTime);
+            table.put("functions", tableFunctions);
+            table.put("growth_is_upper_bound", upperBound);
+        }
+
+        switch (config.getFormat()) {
+            case JSON -> output.append(Json.write(tables)).append('\n');
+            case PROMETHEUS -> writePrometheus(tables);
+            default -> writeHuman(tables);
+        }
+    }
+
+    /**
+     * Collects the size and write counters of every audited table and of the audit table which belongs to it.
+     */
+    private List<Map<String, Object>> sampleTables() throws SQLException {
+        StringBuilder sql = new StringBuilder("""
+            SELECT
+                n.nspname AS table_schema,
+                src.relname AS table_name,
+                aud.relname AS audit_table,
+                ss.source_writes,
+                sa.audit_rows_written,
+                sa.audit_rows,
+                sz.audit_total_bytes,
+                sz.audit_index_bytes,
+                sz.audit_toast_bytes
+            FROM pg_class src
+                INNER JOIN pg_namespace n ON src.relnamespace = n.oid
+                INNER JOIN pg_class aud ON aud.relnamespace = n.oid AND aud.relname = 'aud_' || src.relname
+                -- A partitioned table has no storage or counters of its own, so they are summed over its partitions.
+                -- pg_partition_tree() returns no rows for an ordinary table, which is included directly
+                CROSS JOIN LATERAL (
+                    SELECT coalesce(sum(st.n_tup_ins + st.n_tup_upd + st.n_tup_del), 0) AS source_writes
+                    FROM pg_stat_user_tables st
+                    WHERE st.relid = src.oid
+                        OR st.relid IN (SELECT relid FROM pg_partition_tree(src.oid) WHERE isleaf)
+                ) ss
+                CROSS JOIN LATERAL (
+                    SELECT
+                        coalesce(sum(st.n_tup_ins), 0) AS audit_rows_written,
+                        coalesce(sum(st.n_live_tup), 0) AS audit_rows
+                    FROM pg_stat_user_tables st
+                    WHERE st.relid = aud.oid
+                        OR st.relid IN (SELECT relid FROM pg_partition_tree(aud.oid) WHERE isleaf)
+                ) sa
+                CROSS JOIN LATERAL (
+                    SELECT
+                        coalesce(sum(pg_total_relation_size(c.oid)), 0) AS audit_total_bytes,
+                        coalesce(sum(pg_indexes_size(c.oid)), 0) AS audit_index_bytes,
+                        coalesce(sum(CASE WHEN c.reltoastrelid = 0 THEN 0
+                            ELSE pg_total_relation_size(c.reltoastrelid) END), 0) AS audit_toast_bytes
+                    FROM pg_class c
+                    WHERE c.oid = aud.oid
+                        OR c.oid IN (SELECT relid FROM pg_partition_tree(aud.oid) WHERE isleaf)
+                ) sz
+            WHERE src.relkind IN ('r', 'p')
+                AND (
+        """).append(AuditedTables.PREDICATE).append("    )\n");
+        List<Object> parameters = new ArrayList<>();
+        AuditedTables.appendFilter(sql, parameters, config);
+
+        sql.append("ORDER BY n.nspname, src.relname");
+
+        List<Map<String, Object>> tables = new ArrayList<>();
+
+        for (Map<String, Object> row : connection.getListMap(sql.toString(), parameters.toArray())) {
+            tables.add(new LinkedHashMap<>(row));
+        }
+        return tables;
+    }
+
+    /**
+     * Collects the call counts and timings of every audit function, keyed by schema qualified function name. These are
+     * only populated when track_functions is set to pl or all.
+     */
+    private Map<String, List<Map<String, Object>>> getFunctionStats() throws SQLException {
+        String sql = """
+            SELECT
+                schemaname,
+                funcname AS function,
+                calls,
+                total_time AS total_time_ms,
+                self_time AS self_time_ms
+            FROM pg_stat_user_functions
+            WHERE funcname ~ ?
+        """;
+
+        Map<String, List<Map<String, Object>>> functions = new HashMap<>();
+
+        for (Map<String, Object> row : connection.getListMap(sql, "^(" + String.join("|", FUNCTION_PREFIXES) + ")")) {
+            Map<String, Object> function = new LinkedHashMap<>(row);
+            String name = function.remove("schemaname") + "." + function.get("function");
+            functions.computeIfAbsent(name, k -> new ArrayList<>()).add(function);
+        }
+        return functions;
+    }
+
+    private void writeHuman(final List<Map<String, Object>> tables) {
+        if (tables.isEmpty()) {
+            output.append("No audited tables were found\n");
+            return;
+        }
+
+        for (Map<String, Object> table : tables) {
+            Object rowsPerWrite = table.get("audit_rows_per_source_write");
+
+            output.append(table.get("table_schema")).append('.').append(table.get("table_name"))
+                    .append(" (audit table ").append(table.get("table_schema")).append('.')
+                    .append(table.get("audit_table")).append(")\n");
+            output.append("  trigger calls        %d\n".formatted(toLong(table.get("trigger_calls"))));
+            output.append("  trigger time         %.3f ms total, %.3f ms self\n".formatted(
+                    toDouble(table.get("trigger_total_time_ms")),
+                    toDouble(table.get("trigger_self_time_ms"))));
+
+            for (Map<String, Object> function : castList(table.get("functions"))) {
+                output.append("    %-18s %d calls, %.3f ms total, %.3f ms self\n".formatted(
+                        function.get("function"),
+                        toLong(function.get("calls")),
+                        toDouble(function.get("total_time_ms")),
+                        toDouble(function.get("self_time_ms"))));
+            }
+
+            output.append("  audit table size     %s (indexes %s, toast %s, %.1f%% toast)\n".formatted(
+                    formatBytes(toLong(table.get("audit_total_bytes"))),
+                    formatBytes(toLong(table.get("audit_index_bytes"))),
+                    formatBytes(toLong(table.get("audit_toast_bytes"))),
+                    toDouble(table.get("audit_toast_share")) * 100));
+            output.append("  audit rows written   %d (%s per source write)\n".formatted(
+                    toLong(table.get("audit_rows_written")),
+                    rowsPerWrite == null ? "n/a" : "%.2f".formatted(toDouble(rowsPerWrite))));
+            output.append("  growth               %.2f rows/s, %s/s%s\n\n".formatted(
+                    toDouble(table.get("growth_rows_per_second")),
+                    formatBytes(Math.round(toDouble(table.get("growth_bytes_per_second")))),
+                    Boolean.TRUE.equals(table.get("growth_is_upper_bound")) ? " at most" : ""));
+        }
+    }
+
+    private void writePrometheus(final List<Map<String, Object>> tables) {
+        metric("pgauditor_trigger_calls_total", "counter",
+                "Number of times the audit trigger functions of a table have been called.");
+
+        for (Map<String, Object> table : tables) {
+            for (Map<String, Object> function : castList(table.get("functions"))) {
+                sample("pgauditor_trigger_calls_total", table, function.get("function"), toLong(function.get("calls")));
+            }
+        }
+
+        metric("pgauditor_trigger_time_seconds_total", "counter",
+                "Time spent in the audit trigger functions of a table, including functions that they call.");
+
+        for (Map<String, Object> table : tables) {
+            for (Map<String, Object> function : castList(table.get("functions"))) {
+                sample("pgauditor_trigger_time_seconds_total", table, function.get("function"),
+                        toDouble(function.get("total_time_ms")) / 1000);
+            }
+        }
+
+        metric("pgauditor_trigger_self_time_seconds_total", "counter",
+                "Time spent in the audit trigger functions of a table, excluding functions that they call.");
+
+        for (Map<String, Object> table : tables) {
+            for (Map<String, Object> function : castList(table.get("functions"))) {
+                sample("pgauditor_trigger_self_time_seconds_total", table, function.get("function"),
+                        toDouble(function.get("self_time_ms")) / 1000);
+            }
+        }
+
+        gauge(tables, "pgauditor_audit_table_bytes", "audit_total_bytes",
+                "Total size of the audit table including indexes and toast.");
+        gauge(tables, "pgauditor_audit_table_toast_bytes", "audit_toast_bytes",
+                "Size of the toast table which belongs to the audit table.");
+        gauge(tables, "pgauditor_audit_table_toast_ratio", "audit_toast_share",
+                "Share of the audit table size which is stored in toast.");
+        counter(tables, "pgauditor_audit_rows_written_total", "audit_rows_written",
+                "Number of rows written to the audit table since statistics were reset.");
+        counter(tables, "pgauditor_source_writes_total", "source_writes",
+                "Number of rows inserted, updated, and deleted in the audited table since statistics were reset.");
+        gauge(tables, "pgauditor_audit_rows_per_source_write", "audit_rows_per_source_write",
+                "Audit rows written for each row written to the audited table.");
+        gauge(tables, "pgauditor_audit_growth_rows_per_second", "growth_rows_per_second",
+                "Rate at which rows are being added to the audit table.");
+        gauge(tables, "pgauditor_audit_growth_bytes_per_second", "growth_bytes_per_second",
+                "Rate at which the audit table is growing.");
+    }
+
+    private void gauge(final List<Map<String, Object>> tables, final String name, final String field,
+                       final String help) {
+        metric(name, "gauge", help);
+
+        for (Map<String, Object> table : tables) {
+            if (table.get(field) != null) {
+                sample(name, table, null, table.get(field));
+            }
+        }
+    }
+
+    private void counter(final List<Map<String, Object>> tables, final String name, final String field,
+                         final String help) {
+        metric(name, "counter", help);
+
+        for (Map<String, Object> table : tables) {
+            sample(name, table, null, table.get(field));
+        }
+    }
+
+    private void metric(final String name, final String type, final String help) {
+        output.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        output.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private void sample(final String name, final Map<String, Object> table, final Object function,
+                        final Object value) {
+        output.append(name)
+                .append("{schema=\"").append(escapeLabel(table.get("table_schema")))
+                .append("\",table=\"").append(escapeLabel(table.get("table_name")));
+
+        if (function != null) {
+            output.append("\",function=\"").append(escapeLabel(function));
+        }
+
+        output.append("\"} ").append(value).append('\n');
+    }
+
+    private static String escapeLabel(final Object value) {
+        return String.valueOf(value)
+                .replace("\\", "\\\\")
+                .replace("\"", "\\\"")
+                .replace("\n", "\\n");
+    }
+
+    private static String formatBytes(final long bytes) {
+        String[] units = {"B", "kB", "MB", "GB", "TB"};
+        double value = bytes;
+        int unit = 0;
+
+        while (Math.abs(value) >= 1024 && unit < units.length - 1) {
+            value /= 1024;
+            unit++;
+        }
+        return unit == 0 ? bytes + " B" : "%.1f %s".formatted(value, units[unit]);
+    }
+
+    private static String key(final Map<String, Object> table) {
+        return table.get("table_schema") + "." + table.get("table_name");
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Map<String, Object>> castList(final Object value) {
+        return (List<Map<String, Object>>) value;
+    }
+
+    private static long toLong(final Object value) {
+        return value == null ? 0 : ((Number) value).longValue();
+    }
+
+    private static double toDouble(final Object value) {
+        return value == null ? 0 : ((Number) value).doubleValue();
+    }
+
+    @Override
+    public String toString() {
+        return output.toString();
+    }
+}
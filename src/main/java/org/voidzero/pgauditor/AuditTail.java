@@ -0,0 +1,329 @@
+package org.voidzero.pgauditor;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.voidzero.influx.jdbc.InfluxConnection;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Streams new audit records to stdout as JSON lines. Audit tables are read by keyset on audit_id through a server side
+ * cursor, so the cost of each read depends upon the number of new records rather than the size of the audit table.
+ * Reads are triggered by notifications from tables generated with --notify, or by --poll-interval elapsing.
+ * <p>
+ * Audit ids are taken from a sequence before the transaction which writes the audit record commits, so a record
+ * with a lower audit id can become visible after one with a higher audit id has been read. To avoid skipping such
+ * records, each read is bounded by a horizon: the value of the audit sequence at an earlier point in time, which is
+ * only used once every transaction which was in progress at that point has finished. Delivery is at least once; if
+ * the process is killed between writing records and saving the checkpoint, those records are written again.
+ */
+public class AuditTail {
+    /**
+     * The number of rows which are fetched from the server side cursor at a time.
+     */
+    private static final int FETCH_SIZE = 1000;
+
+    /**
+     * How long to wait before checking a horizon again when transactions which were in progress are still running.
+     */
+    private static final int HORIZON_RETRY_MILLIS = 200;
+
+    /**
+     * The maximum number of horizons which are kept while a long running transaction prevents them from being used.
+     * When it is exceeded, the oldest horizons are discarded, which only delays records until a newer one is usable.
+     */
+    private static final int MAX_HORIZONS = 100;
+
+    /**
+     * The audit sequence values of each schema at a point in time, along with the transactions which were in progress
+     * at that point. Records with audit ids at or below these values are final once those transactions have finished.
+     */
+    private static class Horizon {
+        private final Map<String, Long> lastValues;
+        private final String inProgress;
+
+        private Horizon(final Map<String, Long> lastValues, final String inProgress) {
+            this.lastValues = lastValues;
+            this.inProgress = inProgress;
+        }
+    }
+
+    /**
+     * Configuration object which contains all configuration parameters which were extracted from environment variables
+     * and parsed from command line arguments.
+     */
+    private final Configuration config;
+
+    /**
+     * The underlying JDBC connection, which is needed for notifications and server side cursors.
+     */
+    private final Connection connection;
+
+    /**
+     * The same connection, used for simple catalog queries.
+     */
+    private final InfluxConnection influx;
+
+    /**
+     * Where JSON lines are written.
+     */
+    private final Writer out;
+
+    /**
+     * The last audit id which has been written for each schema qualified audit table.
+     */
+    private final Map<String, Long> checkpoints = new TreeMap<>();
+
+    /**
+     * Horizons which cannot be used yet because transactions which were in progress when they were captured are still
+     * running. The newest horizon is at the end.
+     */
+    private final Deque<Horizon> horizons = new ArrayDeque<>();
+
+    /**
+     * Audited tables, keyed by schema qualified audit table name.
+     */
+    private final Map<String, Map<String, Object>> tables = new LinkedHashMap<>();
+
+    /**
+     * Construct a new instance of this class.
+     *
+     * @param connection The underlying JDBC connection
+     * @param influx A wrapper around the same connection
+     * @param config User supplied parameters
+     * @param out Where JSON lines are written
+     */
+    public AuditTail(final Connection connection, final InfluxConnection influx, final Configuration config,
+                     final Writer out) {
+        this.connection = connection;
+        this.influx = influx;
+        this.config = config;
+        this.out = out;
+    }
+
+    public void run() throws SQLException, IOException {
+        loadCheckpoint();
+        findTables();
+
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("LISTEN " + PgAuditor.NOTIFY_CHANNEL);
+        }
+
+        // Server side cursors require a transaction
+        connection.setAutoCommit(false);
+        PGConnection pgConnection = connection.unwrap(PGConnection.class);
+        Set<String> pending = new LinkedHashSet<>(tables.keySet());
+        int pollMillis = Math.max(1, config.getPollInterval()) * 1000;
+
+        while (!Thread.currentThread().isInterrupted()) {
+            horizons.addLast(captureHorizon());
+
+            while (horizons.size() > MAX_HORIZONS) {
+                horizons.removeFirst();
+            }
+
+            Horizon horizon = takeSafeHorizon();
+
+            if (horizon != null) {
+                for (String auditTable : pending) {
+                    drain(auditTable, horizon);
+                }
+                pending.clear();
+            }
+
+            // Notifications are only delivered between transactions
+            connection.commit();
+
+            int wait = pending.isEmpty() ? pollMillis : Math.min(pollMillis, HORIZON_RETRY_MILLIS);
+            PGNotification[] notifications = pgConnection.getNotifications(wait);
+
+            if (notifications == null || notifications.length == 0) {
+                if (wait == pollMillis) {
+                    // Nothing was announced, so check every table in case some of them weren't generated with --notify
+                    findTables();
+                    pending.addAll(tables.keySet());
+                }
+                continue;
+            }
+
+            for (PGNotification notification : notifications) {
+                if (!tables.containsKey(notification.getParameter())) {
+                    // A table has been audited since the tail started
+                    findTables();
+                }
+
+                if (tables.containsKey(notification.getParameter())) {
+                    pending.add(notification.getParameter());
+                }
+            }
+        }
+    }
+
+    private void findTables() throws SQLException {
+        for (Map<String, Object> table : AuditedTables.find(influx, config)) {
+            tables.putIfAbsent(table.get("table_schema") + "." + table.get("audit_table"), table);
+        }
+    }
+
+    private Horizon captureHorizon() throws SQLException {
+        Map<String, Long> lastValues = new HashMap<>();
+
+        // The sequences must be read before the running transactions are listed, so that every transaction which could
+        // hold an audit id at or below these values has either committed or is listed. The snapshot's list of running
+        // transactions leaves out those which started after the last one finished, but every transaction which has
+        // written anything holds a lock on its own id until it ends
+        for (Map<String, Object> table : tables.values()) {
+            String schema = (String) table.get("table_schema");
+
+            if (!lastValues.containsKey(schema)) {
+                Map<String, Object> row = influx.getMap("SELECT last_value FROM " +
+                        AuditedTables.quote(schema) + ".pgauditor_audit_seq");
+                lastValues.put(schema, ((Number) row.get("last_value")).longValue());
+            }
+        }
+
+        String inProgress = influx.getString("""
+            SELECT coalesce(string_agg(transactionid::text, ','), '')
+            FROM pg_locks
+            WHERE locktype = 'transactionid' AND mode = 'ExclusiveLock' AND granted
+        """);
+        return new Horizon(lastValues, inProgress);
+    }
+
+    /**
+     * Returns the newest horizon whose transactions have all finished and discards every horizon older than it.
+     */
+    private Horizon takeSafeHorizon() throws SQLException {
+        Iterator<Horizon> iterator = horizons.descendingIterator();
+
+        while (iterator.hasNext()) {
+            Horizon horizon = iterator.next();
+            boolean finished = horizon.inProgress.isEmpty() || !Boolean.FALSE.equals(influx.getBoolean("""
+                SELECT NOT EXISTS (
+                    SELECT 1
+                    FROM pg_locks
+                    WHERE locktype = 'transactionid' AND mode = 'ExclusiveLock' AND granted
+                      AND transactionid::text = ANY (string_to_array(?, ','))
+                )
+            """, horizon.inProgress));
+
+            if (finished) {
+                while (horizons.peekFirst() != horizon) {
+                    horizons.removeFirst();
+                }
+                horizons.removeFirst();
+                return horizon;
+            }
+        }
+        return null;
+    }
+
+    private void drain(final String auditTable, final Horizon horizon) throws SQLException, IOException {
+        Map<String, Object> table = tables.get(auditTable);
+        String schema = (String) table.get("table_schema");
+        Long limit = horizon.lastValues.get(schema);
+        long last = checkpoints.getOrDefault(auditTable, 0L);
+
+        if (limit == null || limit <= last) {
+            return;
+        }
+
+        String sql = "SELECT * FROM " + AuditedTables.quote(schema) + "." +
+                AuditedTables.quote((String) table.get("audit_table")) +
+                " WHERE audit_id > ? AND audit_id <= ? ORDER BY audit_id";
+        String source = schema + "." + table.get("table_name");
+        long count = 0;
+
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            statement.setFetchSize(FETCH_SIZE);
+            statement.setLong(1, last);
+            statement.setLong(2, limit);
+
+            try (ResultSet resultSet = statement.executeQuery()) {
+                ResultSetMetaData metaData = resultSet.getMetaData();
+
+                while (resultSet.next()) {
+                    Map<String, Object> record = new LinkedHashMap<>();
+                    record.put("table", source);
+
+                    for (int i = 1; i <= metaData.getColumnCount(); i++) {
+                        record.put(metaData.getColumnLabel(i), Json.value(resultSet, i));
+                    }
+
+                    out.write(Json.write(record));
+                    out.write('\n');
+                    last = resultSet.getLong("audit_id");
+
+                    if (++count % FETCH_SIZE == 0) {
+                        out.flush();
+                    }
+                }
+            }
+        }
+
+        if (count > 0) {
+            out.flush();
+            checkpoints.put(auditTable, last);
+            saveCheckpoint();
+        }
+    }
+
+    private void loadCheckpoint() throws IOException {
+        if (config.getCheckpoint() == null || !Files.exists(Path.of(config.getCheckpoint()))) {
+            return;
+        }
+
+        Properties properties = new Properties();
+
+        try (Reader reader = Files.newBufferedReader(Path.of(config.getCheckpoint()), StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        }
+
+        for (String name : properties.stringPropertyNames()) {
+            checkpoints.put(name, Long.parseLong(properties.getProperty(name)));
+        }
+    }
+
+    private void saveCheckpoint() throws IOException {
+        if (config.getCheckpoint() == null) {
+            return;
+        }
+
+        Properties properties = new Properties();
+
+        for (Map.Entry<String, Long> entry : checkpoints.entrySet()) {
+            properties.setProperty(entry.getKey(), entry.getValue().toString());
+        }
+
+        // Write to a temporary file and rename it so that a crash never leaves a partially written checkpoint
+        Path path = Path.of(config.getCheckpoint()).toAbsolutePath();
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+
+        try (Writer writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+            properties.store(writer, "pgauditor tail checkpoint");
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,579 @@
+package org.voidzero.pgauditor;
+
+import org.voidzero.influx.jdbc.InfluxConnection;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Checks that the audit trail of a table describes the table as it is now. See the verify command.
+ * <p>
+ * The table is divided into primary key ranges, whose boundaries are taken from a sample of the table, and each range
+ * is checked on one of --max-connections connections. A range is checked by comparing an order independent hash of
+ * its rows with the same hash of the rows which the audit table says should exist, which are reconstructed in the same
+ * way as the as-of function reconstructs them. Both hashes are computed by one statement, so that they describe the
+ * same snapshot even while the table is being written to. When the table was audited with --point-in-time, whole rows
+ * are compared, and otherwise only primary keys are, because audit records of updates don't contain unchanged columns.
+ * <p>
+ * A range whose hashes differ is divided into smaller ranges which are checked in turn, until ranges are small enough
+ * for the keys which differ to be listed. The audit table must have the indexes on its key columns which
+ * --point-in-time creates, because each range reads its audit records by key. Nothing is ever written.
+ */
+public class AuditVerify {
+    /**
+     * The number of pages which are sampled for each range when the boundaries of the initial ranges are chosen. Block
+     * sampling returns every row of a sampled page, so it is sized in pages rather than rows.
+     */
+    private static final int SAMPLE_PAGES_PER_RANGE = 8;
+
+    /**
+     * Ranges with no more than this many rows on either side are listed key by key rather than divided further.
+     */
+    private static final long LEAF_ROWS = 10_000;
+
+    /**
+     * The number of ranges into which a range whose hashes differ is divided.
+     */
+    private static final int DRILL_DOWN_PARTS = 16;
+
+    /**
+     * The maximum number of keys which are printed. Differences beyond these are only counted.
+     */
+    private static final int MAX_REPORTED_KEYS = 1000;
+
+    /**
+     * A range of primary keys. The lower bound is exclusive and the upper bound is inclusive, and either one is null
+     * when the range is unbounded on that side. Bounds hold the text of each key column.
+     */
+    private record Range(List<String> lower, List<String> upper) {
+    }
+
+    private final Configuration config;
+    private final String schema;
+    private final String table;
+    private final String auditTable;
+
+    /**
+     * The primary key columns of the table.
+     */
+    private List<String> keyColumns;
+
+    /**
+     * The full type of each primary key column, which bounds are cast to.
+     */
+    private List<String> keyTypes;
+
+    /**
+     * The full type of every column of the table, in order, or null when only keys are compared.
+     */
+    private List<Map<String, Object>> columns;
+
+    private final ConcurrentLinkedDeque<Range> queue = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicLong rangesChecked = new AtomicLong();
+    private final AtomicLong rowsRead = new AtomicLong();
+    private final AtomicLong differences = new AtomicLong();
+    private final List<String> reported = Collections.synchronizedList(new ArrayList<>());
+    private long started;
+
+    /**
+     * Construct a new instance of this class.
+     *
+     * @param config User supplied parameters
+     */
+    public AuditVerify(final Configuration config) {
+        this.config = config;
+        this.schema = config.getSchema();
+        this.table = config.getTableOnly();
+        this.auditTable = "aud_" + table;
+    }
+
+    /**
+     * Verify the table passed to --table and print the keys whose rows differ from their audit trail.
+     *
+     * @param jdbcConnection The underlying JDBC connection, which is used to sample the table
+     * @param connection The database connection which is used to plan the ranges
+     * @return True if the table and its audit trail agree
+     * @throws SQLException Thrown when the table or its audit table cannot be read
+     * @throws InterruptedException Thrown when interrupted while waiting for ranges to be checked
+     */
+    public boolean run(final Connection jdbcConnection, final InfluxConnection connection)
+            throws SQLException, InterruptedException {
+        LiveCatalog catalog = new LiveCatalog(connection);
+        keyColumns = catalog.getPrimaryKeyColumns(schema, table);
+
+        if (keyColumns.isEmpty()) {
+            throw new RuntimeException("%s.%s has no primary key, so it can't be divided into ranges"
+                    .formatted(schema, table));
+        }
+
+        if (!catalog.tableExists(schema, auditTable)) {
+            throw new RuntimeException("%s.%s does not exist".formatted(schema, auditTable));
+        }
+
+        List<Map<String, Object>> tableColumns = catalog.getColumns(schema, table);
+        keyTypes = new ArrayList<>();
+
+        for (String keyColumn : keyColumns) {
+            for (Map<String, Object> column : tableColumns) {
+                if (keyColumn.equals(column.get("column_name"))) {
+                    keyTypes.add((String) column.get("formatted_type"));
+                }
+            }
+        }
+
+        // Only the as-of function's audit records are complete enough to reconstruct whole rows. Other audit records
+        // of updates only contain the columns which changed, so the key of an updated row is only recorded when the
+        // whole key changed, which is only certain when the key has a single column
+        boolean wholeRows = catalog.functionExists(schema, auditTable + "_as_of");
+        columns = wholeRows ? tableColumns : null;
+
+        if (!wholeRows && keyColumns.size() > 1) {
+            throw new RuntimeException(("%s.%s has a composite primary key, so it can only be verified when it was "
+                    + "audited with --point-in-time").formatted(schema, table));
+        }
+
+        requireKeyIndexes(catalog);
+
+        List<Range> ranges = planRanges(jdbcConnection, connection);
+        System.out.println("Verifying %s.%s against %s.%s in %d ranges on %d connections, comparing %s".formatted(
+                schema, table, schema, auditTable, ranges.size(), workers(),
+                wholeRows ? "whole rows" : "primary keys only"));
+
+        started = System.nanoTime();
+        pending.addAndGet(ranges.size());
+        queue.addAll(ranges);
+
+        ExecutorService executor = Executors.newFixedThreadPool(workers());
+        List<Future<Void>> futures = new ArrayList<>();
+
+        try {
+            for (int i = 0; i < workers(); i++) {
+                futures.add(executor.submit(() -> {
+                    work();
+                    return null;
+                }));
+            }
+
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // Ranges finish in any order
+        reported.sort(null);
+
+        for (String line : reported) {
+            System.out.println(line);
+        }
+
+        if (differences.get() > reported.size()) {
+            System.out.println("  and %d more".formatted(differences.get() - reported.size()));
+        }
+
+        System.out.println("Checked %d ranges and read %d rows in %d seconds: %s".formatted(
+                rangesChecked.get(), rowsRead.get(), (System.nanoTime() - started) / 1_000_000_000L,
+                differences.get() == 0 ? "the audit trail matches the table"
+                        : differences.get() + " keys differ from their audit trail"));
+        return differences.get() == 0;
+    }
+
+    /**
+     * Refuse to verify an audit table which lacks the indexes on its key columns that --point-in-time creates. Every
+     * range, and every part of a range which is divided, reads the audit records of its own keys, so each one would
+     * otherwise scan the whole audit table. Nothing is written, so the statements which create them are printed
+     * instead.
+     */
+    private void requireKeyIndexes(final LiveCatalog catalog) throws SQLException {
+        String create = catalog.getPartitions(schema, auditTable).isEmpty() ? "CREATE INDEX CONCURRENTLY"
+                : "CREATE INDEX";
+        List<String> missing = new ArrayList<>();
+
+        if (!catalog.indexExists(schema, "ain_" + auditTable)) {
+            missing.add("%s IF NOT EXISTS ain_%s ON %s.%s %s;".formatted(create, auditTable, schema, auditTable,
+                    PgAuditor.createNewKeyIndexDefinition(keyColumns)));
+        }
+
+        if (!catalog.indexExists(schema, "aio_" + auditTable)) {
+            missing.add("%s IF NOT EXISTS aio_%s ON %s.%s %s;".formatted(create, auditTable, schema, auditTable,
+                    PgAuditor.createOldKeyIndexDefinition(keyColumns)));
+        }
+
+        if (!missing.isEmpty()) {
+            throw new RuntimeException(("%s.%s has no index on its key columns, so every range would scan all of it. "
+                    + "Create the indexes first:\n%s").formatted(schema, auditTable, String.join("\n", missing)));
+        }
+    }
+
+    private int workers() {
+        return Math.max(1, config.getMaxConnections());
+    }
+
+    /**
+     * Choose the boundaries of the initial ranges from a block sample of the primary key, so that planning doesn't read
+     * the whole table. The sample is sized from the table's page count as of its last analyze.
+     */
+    private List<Range> planRanges(final Connection jdbcConnection, final InfluxConnection connection)
+            throws SQLException {
+        int wanted = Math.max(1, config.getRanges());
+        Map<String, Object> estimate = connection.getMap("""
+            SELECT c.relpages AS pages
+            FROM pg_class c
+                INNER JOIN pg_namespace n ON c.relnamespace = n.oid
+            WHERE n.nspname = ?
+                AND c.relname = ?
+        """, schema, table);
+        long pages = ((Number) estimate.get("pages")).longValue();
+        double percent = pages <= 0 ? 100 : Math.min(100, 100.0 * wanted * SAMPLE_PAGES_PER_RANGE / pages);
+
+        List<List<String>> sample = new ArrayList<>();
+        String sql = "SELECT %s FROM %s.%s TABLESAMPLE SYSTEM (%s) ORDER BY %s".formatted(
+                keyText(), schema, table, percent, String.join(", ", keyColumns));
+
+        try (PreparedStatement statement = jdbcConnection.prepareStatement(sql);
+             ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+                sample.add(readKey(resultSet, 1));
+            }
+        }
+
+        List<Range> ranges = new ArrayList<>();
+        List<String> lower = null;
+
+        for (int i = 1; i < wanted && !sample.isEmpty(); i++) {
+            List<String> upper = sample.get((int) ((long) i * sample.size() / wanted));
+
+            if (lower == null || !lower.equals(upper)) {
+                ranges.add(new Range(lower, upper));
+                lower = upper;
+            }
+        }
+
+        ranges.add(new Range(lower, null));
+        return ranges;
+    }
+
+    private void work() throws SQLException, InterruptedException {
+        try (Connection connection = DriverManager.getConnection(config.getConnectionString(),
+                config.getUsername(), config.getPassword())) {
+            connection.setReadOnly(true);
+
+            while (pending.get() > 0) {
+                Range range = queue.poll();
+
+                if (range == null) {
+                    // Another connection is still checking a range which may be divided into more ranges
+                    Thread.sleep(10);
+                    continue;
+                }
+
+                try {
+                    check(connection, range);
+                } finally {
+                    pending.decrementAndGet();
+                }
+            }
+        }
+    }
+
+    private void check(final Connection connection, final Range range) throws SQLException, InterruptedException {
+        List<String> parameters = new ArrayList<>();
+        String sql = """
+            SELECT live.rows AS live_rows, live.hash AS live_hash, audit.rows AS audit_rows, audit.hash AS audit_hash
+            FROM (
+                SELECT count(*) AS rows, coalesce(sum(hashtextextended(row, 0)), 0) AS hash FROM (%s) t
+            ) live, (
+                SELECT count(*) AS rows, coalesce(sum(hashtextextended(row, 0)), 0) AS hash FROM (%s) a
+            ) audit
+        """.formatted(liveRows(range, parameters), auditRows(range, parameters));
+
+        long liveRows;
+        long auditRows;
+        boolean matches;
+
+        try (PreparedStatement statement = prepare(connection, sql, parameters);
+             ResultSet resultSet = statement.executeQuery()) {
+            resultSet.next();
+            liveRows = resultSet.getLong("live_rows");
+            auditRows = resultSet.getLong("audit_rows");
+            matches = liveRows == auditRows
+                    && resultSet.getBigDecimal("live_hash").equals(resultSet.getBigDecimal("audit_hash"));
+        }
+
+        rangesChecked.incrementAndGet();
+        throttle(liveRows + auditRows);
+
+        if (matches) {
+            return;
+        }
+
+        if (Math.max(liveRows, auditRows) > LEAF_ROWS) {
+            List<Range> parts = split(connection, range, liveRows >= auditRows);
+
+            if (parts.size() > 1) {
+                pending.addAndGet(parts.size());
+                parts.forEach(queue::addFirst);
+                return;
+            }
+        }
+
+        list(connection, range);
+    }
+
+    /**
+     * Divide a range at the keys which divide the rows of the larger side into equal parts.
+     */
+    private List<Range> split(final Connection connection, final Range range, final boolean live)
+            throws SQLException {
+        List<String> parameters = new ArrayList<>();
+        String keys = live
+                ? "SELECT %s FROM %s.%s WHERE %s".formatted(String.join(", ", keyColumns), schema, table,
+                        condition("", range, parameters))
+                : "SELECT %s FROM %s.%s WHERE operation IN ('INSERT', 'UPDATE') AND %s".formatted(
+                        String.join(", ", prefixed("new_", " AS ")), schema, auditTable,
+                        condition("new_", range, parameters));
+        String sql = """
+            SELECT DISTINCT ON (part) %s
+            FROM (SELECT *, ntile(%d) OVER (ORDER BY %s) AS part FROM (%s) k) p
+            ORDER BY part, %s
+        """.formatted(keyText(), DRILL_DOWN_PARTS, String.join(", ", keyColumns), keys,
+                String.join(" DESC, ", keyColumns) + " DESC");
+
+        List<Range> parts = new ArrayList<>();
+        List<String> lower = range.lower();
+
+        try (PreparedStatement statement = prepare(connection, sql, parameters);
+             ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+                List<String> upper = readKey(resultSet, 1);
+                parts.add(new Range(lower, upper));
+                lower = upper;
+            }
+        }
+
+        // The last part extends to the end of the range, which may contain keys which only the other side has
+        if (!parts.isEmpty()) {
+            parts.set(parts.size() - 1, new Range(parts.get(parts.size() - 1).lower(), range.upper()));
+        }
+        return parts;
+    }
+
+    /**
+     * Record every key in a range whose row differs from the row reconstructed from its audit trail.
+     */
+    private void list(final Connection connection, final Range range) throws SQLException {
+        List<String> parameters = new ArrayList<>();
+        String sql = """
+            SELECT
+                coalesce(t.key, a.key) AS key,
+                CASE
+                    WHEN a.key IS NULL THEN 'missing from the audit trail'
+                    WHEN t.key IS NULL THEN 'missing from the table'
+                    ELSE 'differs from the audit trail'
+                END AS difference
+            FROM (%s) t
+                FULL JOIN (%s) a ON a.key = t.key
+            WHERE t.row IS DISTINCT FROM a.row
+            ORDER BY 1
+        """.formatted(liveRows(range, parameters), auditRows(range, parameters));
+
+        try (PreparedStatement statement = prepare(connection, sql, parameters);
+             ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+                if (differences.incrementAndGet() <= MAX_REPORTED_KEYS) {
+                    reported.add("  %s: %s".formatted(resultSet.getString("key"), resultSet.getString("difference")));
+                }
+            }
+        }
+    }
+
+    /**
+     * The key and the text of each row of the table in a range.
+     */
+    private String liveRows(final Range range, final List<String> parameters) {
+        return "SELECT ROW(%s)::text AS key, %s AS row FROM %s.%s t WHERE %s".formatted(
+                String.join(", ", keyColumns),
+                columns != null ? "t::text" : "ROW(%s)::text".formatted(String.join(", ", keyColumns)),
+                schema,
+                table,
+                condition("", range, parameters));
+    }
+
+    /**
+     * The key and the text of each row in a range which the audit trail says should exist, in the same form as
+     * {@link #liveRows(Range, List)}. The most recent audit record of each key decides whether the row exists, as in
+     * the as-of function.
+     */
+    private String auditRows(final Range range, final List<String> parameters) {
+        List<String> eventKey = prefixed("e.", "");
+        String row;
+
+        if (columns != null) {
+            List<String> values = new ArrayList<>();
+
+            for (Map<String, Object> column : columns) {
+                values.add("a.new_%s::%s".formatted(column.get("column_name"), column.get("formatted_type")));
+            }
+            row = "ROW(%s)::%s.%s::text".formatted(String.join(", ", values), schema, table);
+        } else {
+            row = "ROW(%s)::text".formatted(String.join(", ", castKey("a.new_")));
+        }
+
+        String inserted = condition("new_", range, parameters);
+        String removed = condition("old_", range, parameters);
+
+        return """
+            SELECT ROW(%s)::text AS key, %s AS row
+            FROM (
+                SELECT DISTINCT ON (%s) e.audit_id, e.present
+                FROM (
+                    SELECT %s, audit_id, true AS present
+                    FROM %s.%s
+                    WHERE operation IN ('INSERT', 'UPDATE') AND %s IS NOT NULL AND %s
+                    UNION ALL
+                    SELECT %s, audit_id, false
+                    FROM %s.%s
+                    WHERE (%s) AND %s
+                ) e
+                ORDER BY %s, e.audit_id DESC
+            ) latest
+                INNER JOIN %s.%s a ON a.audit_id = latest.audit_id
+            WHERE latest.present
+        """.formatted(
+                String.join(", ", castKey("a.new_")),
+                row,
+                String.join(", ", eventKey),
+                String.join(", ", prefixed("new_", " AS ")),
+                schema,
+                auditTable,
+                String.join(" IS NOT NULL AND ", prefixed("new_", "")),
+                inserted,
+                String.join(", ", prefixed("old_", " AS ")),
+                schema,
+                auditTable,
+                PgAuditor.createKeyRemovedCondition(keyColumns),
+                removed,
+                String.join(", ", eventKey),
+                schema,
+                auditTable);
+    }
+
+    /**
+     * The condition which restricts the key columns, whose names start with the given prefix, to a range. Row
+     * comparisons are used so that composite keys are ordered in the same way as their primary key index.
+     */
+    private String condition(final String prefix, final Range range, final List<String> parameters) {
+        List<String> conditions = new ArrayList<>();
+        String key = "(%s)".formatted(String.join(", ", prefixed(prefix, "")));
+
+        if (range.lower() != null) {
+            conditions.add("%s > (%s)".formatted(key, placeholders()));
+            parameters.addAll(range.lower());
+        }
+
+        if (range.upper() != null) {
+            conditions.add("%s <= (%s)".formatted(key, placeholders()));
+            parameters.addAll(range.upper());
+        }
+        return conditions.isEmpty() ? "true" : String.join(" AND ", conditions);
+    }
+
+    /**
+     * The key columns with a prefix, each followed by the given separator and its own name when it isn't empty.
+     */
+    private List<String> prefixed(final String prefix, final String alias) {
+        List<String> names = new ArrayList<>();
+
+        for (String keyColumn : keyColumns) {
+            names.add(prefix + keyColumn + (alias.isEmpty() ? "" : alias + keyColumn));
+        }
+        return names;
+    }
+
+    private List<String> castKey(final String prefix) {
+        List<String> names = new ArrayList<>();
+
+        for (int i = 0; i < keyColumns.size(); i++) {
+            names.add("%s%s::%s".formatted(prefix, keyColumns.get(i), keyTypes.get(i)));
+        }
+        return names;
+    }
+
+    /**
+     * The text of each key column. The results are renamed so that ORDER BY still refers to the key columns
+     * themselves, rather than to their text.
+     */
+    private String keyText() {
+        List<String> names = new ArrayList<>();
+
+        for (int i = 0; i < keyColumns.size(); i++) {
+            names.add("%s::text AS key_%d".formatted(keyColumns.get(i), i + 1));
+        }
+        return String.join(", ", names);
+    }
+
+    private String placeholders() {
+        List<String> placeholders = new ArrayList<>();
+
+        for (String keyType : keyTypes) {
+            placeholders.add("?::" + keyType);
+        }
+        return String.join(", ", placeholders);
+    }
+
+    private List<String> readKey(final ResultSet resultSet, final int first) throws SQLException {
+        List<String> key = new ArrayList<>();
+
+        for (int i = 0; i < keyColumns.size(); i++) {
+            key.add(resultSet.getString(first + i));
+        }
+        return key;
+    }
+
+    private static PreparedStatement prepare(final Connection connection, final String sql,
+                                             final List<String> parameters) throws SQLException {
+        PreparedStatement statement = connection.prepareStatement(sql);
+
+        for (int i = 0; i < parameters.size(); i++) {
+            statement.setString(i + 1, parameters.get(i));
+        }
+        return statement;
+    }
+
+    /**
+     * Wait until the rows read by every connection so far are within --max-rows-per-second of the time since
+     * verification started. Each range is read by a single statement, so the rate is kept over whole ranges.
+     */
+    private void throttle(final long rows) throws InterruptedException {
+        long total = rowsRead.addAndGet(rows);
+
+        if (config.getMaxRowsPerSecond() > 0) {
+            long due = started + total * 1_000_000_000L / config.getMaxRowsPerSecond();
+            long wait = due - System.nanoTime();
+
+            if (wait > 0) {
+                Thread.sleep(wait / 1_000_000L, (int) (wait % 1_000_000L));
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package org.voidzero.pgauditor;
+
+import org.voidzero.influx.jdbc.InfluxConnection;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Discovers audited tables by the names which {@link PgAuditor} gives to their triggers and functions. This is used by
+ * the commands which operate on every audited table rather than on the table passed to --table.
+ */
+final class AuditedTables {
+    /**
+     * Matches a source table, aliased as src in namespace n, which has an insert audit trigger or an update audit
+     * function.
+     */
+    static final String PREDICATE = """
+                EXISTS (SELECT 1 FROM pg_trigger t WHERE t.tgrelid = src.oid AND t.tgname = 'ati_aud_' || src.relname)
+                OR EXISTS (SELECT 1 FROM pg_proc p WHERE p.pronamespace = n.oid AND p.proname = 'afu_' || src.relname)
+            """;
+
+    private AuditedTables() {
+    }
+
+    /**
+     * Restrict a query to the table passed to --table or, failing that, to the schema passed to --schema.
+     *
+     * @param sql The query, which must alias the source table as src and its namespace as n
+     * @param parameters The parameters of the query, to which the filter's parameters are appended
+     * @param config User supplied parameters
+     */
+    static void appendFilter(final StringBuilder sql, final List<Object> parameters, final Configuration config) {
+        if (config.getRawTable() != null) {
+            sql.append("    AND n.nspname = ? AND src.relname = ?\n");
+            parameters.add(config.getSchema());
+            parameters.add(config.getTableOnly());
+        } else if (config.getRawSchema() != null) {
+            sql.append("    AND n.nspname = ?\n");
+            parameters.add(config.getRawSchema());
+        }
+    }
+
+    /**
+     * Quote an identifier which was read from the catalog so that it can be used in SQL.
+     *
+     * @param identifier The unquoted identifier
+     * @return The identifier wrapped in double quotes
+     */
+    static String quote(final String identifier) {
+        return '"' + identifier.replace("\"", "\"\"") + '"';
+    }
+
+    /**
+     * Find the audited tables selected by the user.
+     *
+     * @param connection The database connection which should be introspected
+     * @param config User supplied parameters
+     * @return One map per table containing table_schema, table_name, and audit_table
+     * @throws SQLException Thrown when something goes wrong
+     */
+    static List<Map<String, Object>> find(final InfluxConnection connection, final Configuration config)
+            throws SQLException {
+        StringBuilder sql = new StringBuilder("""
+            SELECT
+                n.nspname AS table_schema,
+                src.relname AS table_name,
+                aud.relname AS audit_table
+            FROM pg_class src
+                INNER JOIN pg_namespace n ON src.relnamespace = n.oid
+                INNER JOIN pg_class aud ON aud.relnamespace = n.oid AND aud.relname = 'aud_' || src.relname
+            WHERE src.relkind IN ('r', 'p')
+                AND (
+            """).append(PREDICATE).append("    )\n");
+        List<Object> parameters = new ArrayList<>();
+        appendFilter(sql, parameters, config);
+        sql.append("ORDER BY n.nspname, src.relname");
+
+        List<Map<String, Object>> tables = new ArrayList<>();
+
+        for (Map<String, Object> row : connection.getListMap(sql.toString(), parameters.toArray())) {
+            tables.add(new LinkedHashMap<>(row));
+        }
+        return tables;
+    }
+}
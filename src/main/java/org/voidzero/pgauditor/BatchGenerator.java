@@ -0,0 +1,158 @@
+package org.voidzero.pgauditor;
+
+import org.voidzero.influx.cli.InfluxCli;
+import org.voidzero.influx.jdbc.InfluxConnection;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Generates DDL for a stream of requests over one database connection, so that callers which audit many tables, such
+ * as migration frameworks, only pay for JVM startup and connection setup once. See --batch.
+ * <p>
+ * Each request is a JSON object on its own line whose keys are the names of command line flags. Each response is a
+ * JSON object on its own line containing either the generated DDL or an error, along with the id of the request if
+ * it had one. Responses are written in the same order as requests and are flushed immediately, so a caller may wait
+ * for each response before sending the next request.
+ */
+public class BatchGenerator {
+    /**
+     * Flags which describe the connection, or the snapshot which replaces it. The connection is shared by every
+     * request, so these are taken from the command line rather than from requests.
+     */
+    private static final Set<String> CONNECTION_FLAGS = Set.of("host", "port", "dbname", "username", "password",
+            "from-snapshot");
+
+    /**
+     * Configuration object which contains all configuration parameters which were extracted from environment variables
+     * and parsed from command line arguments.
+     */
+    private final Configuration config;
+
+    /**
+     * The database connection which should be introspected, or null when DDL is generated from a snapshot.
+     */
+    private final InfluxConnection connection;
+
+    /**
+     * Answers questions about the database.
+     */
+    private final Catalog catalog;
+
+    /**
+     * Catalog information which is shared between requests.
+     */
+    private final CatalogCache cache = new CatalogCache();
+
+    private final InfluxCli cli = new InfluxCli();
+
+    /**
+     * Construct a new instance of this class.
+     *
+     * @param connection The database connection which should be introspected
+     * @param config User supplied parameters
+     */
+    public BatchGenerator(final InfluxConnection connection, final Configuration config) {
+        this.connection = connection;
+        this.catalog = new LiveCatalog(connection);
+        this.config = config;
+    }
+
+    /**
+     * Construct a new instance of this class which generates DDL from a catalog snapshot instead of a database.
+     *
+     * @param snapshot The catalog snapshot which was read from --from-snapshot
+     * @param config User supplied parameters
+     */
+    BatchGenerator(final CatalogSnapshot snapshot, final Configuration config) {
+        this.connection = null;
+        this.catalog = snapshot;
+        this.config = config;
+    }
+
+    /**
+     * Answer requests until the end of the input is reached.
+     *
+     * @param in Where requests are read from
+     * @param out Where responses are written
+     * @throws IOException Thrown when reading requests or writing responses fails
+     */
+    public void run(final BufferedReader in, final Writer out) throws IOException {
+        String line;
+
+        while ((line = in.readLine()) != null) {
+            if (line.isBlank()) {
+                continue;
+            }
+
+            out.write(Json.write(handle(line)));
+            out.write('\n');
+            out.flush();
+        }
+    }
+
+    private Map<String, Object> handle(final String line) {
+        Map<String, Object> response = new LinkedHashMap<>();
+
+        try {
+            if (!(Json.read(line) instanceof Map<?, ?> request)) {
+                throw new IllegalArgumentException("Requests must be JSON objects");
+            }
+
+            if (request.containsKey("id")) {
+                response.put("id", request.get("id"));
+            }
+
+            Configuration requestConfig = (Configuration) cli.bind(Configuration.class, toArguments(request));
+
+            if (requestConfig.getRawTable() == null) {
+                throw new IllegalArgumentException("Table name is required");
+            }
+
+            response.put("table", requestConfig.getTableWithSchema());
+
+            // Generation only reads the catalog, so checking whether it has changed once per request is enough. A
+            // snapshot never changes and needs no cache
+            if (connection != null) {
+                cache.validate(connection, requestConfig.getSchema(), requestConfig.getTableOnly());
+            }
+
+            PgAuditor pgAuditor = new PgAuditor(catalog, requestConfig, connection != null ? cache : null);
+            pgAuditor.run();
+            response.put("ddl", pgAuditor.toString());
+        } catch (Exception e) {
+            response.put("error", e.getMessage() != null ? e.getMessage() : e.toString());
+        }
+        return response;
+    }
+
+    /**
+     * Convert a request into the command line arguments which it represents.
+     */
+    private String[] toArguments(final Map<?, ?> request) {
+        List<String> arguments = new ArrayList<>();
+
+        for (Map.Entry<?, ?> entry : request.entrySet()) {
+            String flag = String.valueOf(entry.getKey());
+            Object value = entry.getValue();
+
+            if (flag.equals("id") || flag.equals("batch") || CONNECTION_FLAGS.contains(flag)
+                    || value == null || Boolean.FALSE.equals(value)) {
+                continue;
+            }
+
+            arguments.add("--" + flag);
+
+            if (!Boolean.TRUE.equals(value)) {
+                arguments.add(String.valueOf(value));
+            }
+        }
+        return arguments.toArray(new String[0]);
+    }
+}
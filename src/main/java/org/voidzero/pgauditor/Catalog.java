@@ -0,0 +1,55 @@
+package org.voidzero.pgauditor;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The questions which {@link PgAuditor} asks about the database while generating DDL. They are answered either by
+ * querying a live database, see {@link LiveCatalog}, or from a file which was written by the snapshot command, see
+ * {@link CatalogSnapshot}, so that DDL can be generated without a database.
+ */
+interface Catalog {
+    /**
+     * The columns of a table in the order in which they were defined.
+     *
+     * @return One map per column containing its column_name, its data_type as reported by information_schema, its
+     *         full type including modifiers, such as the length of a varchar, as formatted_type, and its attribute
+     *         number as ordinal_position
+     */
+    List<Map<String, Object>> getColumns(String schema, String table) throws SQLException;
+
+    /**
+     * The names of the primary key columns of a table in key order, which is empty when it doesn't have a primary key.
+     */
+    List<String> getPrimaryKeyColumns(String schema, String table) throws SQLException;
+
+    boolean tableExists(String schema, String table) throws SQLException;
+
+    boolean indexExists(String schema, String index) throws SQLException;
+
+    /**
+     * The names of the partitions of a partitioned table in name order, which is empty when it isn't partitioned.
+     */
+    List<String> getPartitions(String schema, String table) throws SQLException;
+
+    boolean triggerExists(String schema, String table, String trigger) throws SQLException;
+
+    boolean functionExists(String schema, String function) throws SQLException;
+
+    boolean sequenceExists(String schema, String sequence) throws SQLException;
+
+    boolean enumTypeExists(String schema, String type) throws SQLException;
+
+    boolean enumValueExists(String schema, String type, String value) throws SQLException;
+
+    /**
+     * Whether an extension is installed in the database or can be installed in it.
+     */
+    boolean extensionAvailable(String extension) throws SQLException;
+
+    /**
+     * The server's version in the form of server_version_num, such as 160002, or 0 when it isn't known.
+     */
+    int getServerVersion() throws SQLException;
+}
@@ -0,0 +1,148 @@
+package org.voidzero.pgauditor;
+
+import org.voidzero.influx.jdbc.InfluxConnection;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers the results of the catalog queries which {@link PgAuditor} makes, so that a long running process which
+ * generates DDL for many tables doesn't ask the database the same questions repeatedly. Results are kept per schema
+ * and are discarded when {@link #validate(InfluxConnection, String, String)} notices that the catalog entries which
+ * they were read from have changed, for instance because the DDL generated by an earlier request has been applied.
+ */
+class CatalogCache {
+    /**
+     * Summarizes the catalog entries of one schema which are small enough to be summed on every request: relations,
+     * triggers, functions, and enum values. Any DDL which creates or drops a relation, trigger, function, or enum
+     * value in the schema inserts, updates, or deletes at least one of these rows, which changes either a row count or
+     * a sum of transaction ids.
+     */
+    private static final String SCHEMA_FINGERPRINT_QUERY = """
+        SELECT concat_ws(',',
+            (SELECT count(*) || ':' || coalesce(sum(c.xmin::text::bigint), 0)
+                FROM pg_class c
+                WHERE c.relnamespace = n.oid),
+            (SELECT count(*) || ':' || coalesce(sum(t.xmin::text::bigint), 0)
+                FROM pg_trigger t INNER JOIN pg_class c ON t.tgrelid = c.oid
+                WHERE c.relnamespace = n.oid),
+            (SELECT count(*) || ':' || coalesce(sum(p.xmin::text::bigint), 0)
+                FROM pg_proc p
+                WHERE p.pronamespace = n.oid),
+            (SELECT count(*) || ':' || coalesce(sum(e.xmin::text::bigint), 0)
+                FROM pg_enum e INNER JOIN pg_type t ON e.enumtypid = t.oid
+                WHERE t.typnamespace = n.oid)
+        )
+        FROM pg_namespace n
+        WHERE n.nspname = ?
+    """;
+
+    /**
+     * Summarizes the columns and indexes of a table, its audit table, and its history view, which are far more
+     * numerous than the entries in {@link #SCHEMA_FINGERPRINT_QUERY}, so only those of the requested table are read.
+     * Columns can be dropped without touching pg_class, so they have to be checked separately.
+     */
+    private static final String TABLE_FINGERPRINT_QUERY = """
+        SELECT concat_ws(',',
+            (SELECT count(*) || ':' || coalesce(sum(a.xmin::text::bigint), 0)
+                FROM pg_attribute a
+                WHERE a.attrelid = ANY (r.oids)),
+            (SELECT count(*) || ':' || coalesce(sum(i.xmin::text::bigint), 0)
+                FROM pg_index i
+                WHERE i.indrelid = ANY (r.oids))
+        )
+        FROM (
+            SELECT array_agg(c.oid) AS oids
+            FROM pg_class c INNER JOIN pg_namespace n ON c.relnamespace = n.oid
+            WHERE n.nspname = ? AND c.relname IN (?, 'aud_' || ?, 'aud_' || ? || '_history')
+        ) r
+    """;
+
+    /**
+     * The fingerprint of each schema at the time its cached results were collected.
+     */
+    private final Map<String, String> fingerprints = new HashMap<>();
+
+    /**
+     * The fingerprint of each table, keyed by schema and then by table, at the time its cached results were collected.
+     */
+    private final Map<String, Map<String, String>> tableFingerprints = new HashMap<>();
+
+    /**
+     * Cached query results, keyed by schema and then by the name and parameters of the query.
+     */
+    private final Map<String, Map<List<Object>, Object>> results = new HashMap<>();
+
+    /**
+     * Discard the cached results for a schema if its catalog entries have changed since they were collected, and the
+     * cached results for a table if its columns or indexes have. This should be called before generating DDL for a
+     * table in the schema.
+     *
+     * @param connection The database connection which should be introspected
+     * @param schema The schema which is about to be used
+     * @param table The table which is about to be audited
+     * @return True if the cached results for the schema and the table are still valid
+     * @throws SQLException Thrown when something goes wrong
+     */
+    boolean validate(final InfluxConnection connection, final String schema, final String table) throws SQLException {
+        boolean valid = true;
+
+        // A schema which doesn't exist yet has no fingerprint
+        String fingerprint = String.valueOf(connection.getString(SCHEMA_FINGERPRINT_QUERY, schema));
+
+        if (!fingerprint.equals(fingerprints.get(schema))) {
+            fingerprints.put(schema, fingerprint);
+            tableFingerprints.remove(schema);
+            results.remove(schema);
+            valid = false;
+        }
+
+        String tableFingerprint = String.valueOf(connection.getString(TABLE_FINGERPRINT_QUERY, schema, table, table,
+                table));
+        Map<String, String> schemaTables = tableFingerprints.computeIfAbsent(schema, k -> new HashMap<>());
+
+        if (!tableFingerprint.equals(schemaTables.get(table))) {
+            schemaTables.put(table, tableFingerprint);
+            List<String> relations = List.of(table, "aud_" + table, "aud_" + table + "_history");
+            Map<List<Object>, Object> schemaResults = results.get(schema);
+
+            if (schemaResults != null) {
+                schemaResults.keySet().removeIf(key -> key.stream().anyMatch(relations::contains));
+            }
+            valid = false;
+        }
+        return valid;
+    }
+
+    /**
+     * Return the cached result of a query or run it and cache its result.
+     *
+     * @param schema The schema which the query introspects
+     * @param name Short name which identifies the purpose of the query
+     * @param query The query which should be run when its result isn't cached
+     * @param parameters Everything which, along with the name, distinguishes the query from others
+     * @return The result of the query
+     * @throws SQLException Thrown when the query fails
+     */
+    @SuppressWarnings("unchecked")
+    <T> T get(final String schema, final String name, final Profiler.SqlQuery<T> query, final Object... parameters)
+            throws SQLException {
+        Map<List<Object>, Object> schemaResults = results.computeIfAbsent(schema, k -> new HashMap<>());
+        List<Object> key = new ArrayList<>(parameters.length + 1);
+        key.add(name);
+        key.addAll(Arrays.asList(parameters));
+
+        // Results may legitimately be null, so containsKey() is needed to tell them apart from missing entries
+        if (schemaResults.containsKey(key)) {
+            return (T) schemaResults.get(key);
+        }
+
+        T result = query.run();
+        schemaResults.put(key, result);
+        return result;
+    }
+}
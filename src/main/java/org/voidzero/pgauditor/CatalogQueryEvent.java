@@ -0,0 +1,22 @@
+package org.voidzero.pgauditor;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Java Flight Recorder event which covers one round trip to the database while the catalog is being introspected.
+ */
+@Name("org.voidzero.pgauditor.CatalogQuery")
+@Label("Catalog Query")
+@Category("PgAuditor")
+@Description("A catalog query issued during audit DDL generation")
+class CatalogQueryEvent extends jdk.jfr.Event {
+    @Label("Query")
+    @Description("Short name which identifies the purpose of the query")
+    String query;
+
+    @Label("Phase")
+    String phase;
+}
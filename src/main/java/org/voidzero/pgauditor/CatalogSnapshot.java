@@ -0,0 +1,450 @@
+package org.voidzero.pgauditor;
+
+import org.voidzero.influx.jdbc.InfluxConnection;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The catalog facts which {@link PgAuditor} reads about one schema, captured by the snapshot command so that DDL can be
+ * generated later without a database. See --from-snapshot.
+ * <p>
+ * Snapshots are written as a single line of JSON. Everything is sorted so that a snapshot of an unchanged schema is
+ * byte-identical to the previous one, which makes snapshots suitable for committing or for use as a cache key. The
+ * version is incremented whenever the format changes in a way which older versions of PgAuditor cannot read.
+ */
+class CatalogSnapshot implements Catalog {
+    static final int VERSION = 1;
+
+    private static final String RELATION_QUERY = """
+        SELECT c.relname
+        FROM pg_class c
+            INNER JOIN pg_namespace n ON c.relnamespace = n.oid
+        WHERE n.nspname = ?
+            AND c.relkind IN ('r', 'p', 'v', 'm', 'f')
+        ORDER BY c.relname
+    """;
+
+    private static final String INDEX_QUERY = """
+        SELECT c.relname
+        FROM pg_class c
+            INNER JOIN pg_namespace n ON c.relnamespace = n.oid
+        WHERE n.nspname = ?
+            AND c.relkind IN ('i', 'I')
+        ORDER BY c.relname
+    """;
+
+    private static final String COLUMN_QUERY = """
+        SELECT
+            col.table_name,
+            col.column_name,
+            col.data_type,
+            format_type(a.atttypid, a.atttypmod) AS formatted_type,
+            col.ordinal_position
+        FROM information_schema.columns col
+            INNER JOIN pg_namespace n ON n.nspname = col.table_schema
+            INNER JOIN pg_class c ON c.relnamespace = n.oid AND c.relname = col.table_name
+            INNER JOIN pg_attribute a ON a.attrelid = c.oid AND a.attname = col.column_name
+        WHERE col.table_schema = ?
+            AND c.relkind IN ('r', 'p', 'v')
+        ORDER BY col.table_name, col.ordinal_position
+    """;
+
+    private static final String PRIMARY_KEY_QUERY = """
+        SELECT c.relname AS table_name, a.attname AS column_name
+        FROM pg_index i
+            INNER JOIN pg_class c ON i.indrelid = c.oid
+            INNER JOIN pg_namespace n ON c.relnamespace = n.oid
+            INNER JOIN pg_attribute a ON a.attrelid = c.oid AND a.attnum = ANY(i.indkey)
+        WHERE i.indisprimary
+            AND n.nspname = ?
+        ORDER BY c.relname, array_position(i.indkey::int2[], a.attnum)
+    """;
+
+    private static final String PARTITION_QUERY = """
+        SELECT p.relname AS table_name, c.relname AS partition_name
+        FROM pg_inherits i
+            INNER JOIN pg_class c ON i.inhrelid = c.oid
+            INNER JOIN pg_class p ON i.inhparent = p.oid
+            INNER JOIN pg_namespace n ON p.relnamespace = n.oid
+        WHERE p.relkind = 'p'
+            AND n.nspname = ?
+        ORDER BY p.relname, c.relname
+    """;
+
+    private static final String TRIGGER_QUERY = """
+        SELECT tbl.relname AS table_name, trg.tgname AS trigger_name
+        FROM pg_trigger trg
+            INNER JOIN pg_class tbl ON trg.tgrelid = tbl.oid
+            INNER JOIN pg_namespace n ON tbl.relnamespace = n.oid
+        WHERE n.nspname = ?
+        ORDER BY tbl.relname, trg.tgname
+    """;
+
+    private static final String FUNCTION_QUERY = """
+        SELECT DISTINCT p.proname
+        FROM pg_proc p
+            INNER JOIN pg_namespace n ON p.pronamespace = n.oid
+        WHERE n.nspname = ?
+        ORDER BY p.proname
+    """;
+
+    private static final String SEQUENCE_QUERY = """
+        SELECT sequencename
+        FROM pg_sequences
+        WHERE schemaname = ?
+        ORDER BY sequencename
+    """;
+
+    private static final String EXTENSION_QUERY = """
+        SELECT name
+        FROM pg_available_extensions
+        ORDER BY name
+    """;
+
+    private static final String ENUM_QUERY = """
+        SELECT pt.typname, pe.enumlabel
+        FROM pg_type pt
+            INNER JOIN pg_namespace pn ON pt.typnamespace = pn.oid
+            LEFT JOIN pg_enum pe ON pe.enumtypid = pt.oid
+        WHERE pt.typtype = 'e'
+            AND pn.nspname = ?
+        ORDER BY pt.typname, pe.enumsortorder
+    """;
+
+    private final String schema;
+    private final int serverVersion;
+    private final Set<String> relations = new HashSet<>();
+    private final Set<String> indexes = new HashSet<>();
+    private final Set<String> functions = new HashSet<>();
+    private final Set<String> sequences = new HashSet<>();
+    private final Set<String> extensions = new HashSet<>();
+    private final Map<String, Set<String>> enums = new HashMap<>();
+    private final Map<String, List<Map<String, Object>>> columns = new HashMap<>();
+    private final Map<String, List<String>> primaryKeys = new HashMap<>();
+    private final Map<String, Set<String>> triggers = new HashMap<>();
+    private final Map<String, List<String>> partitions = new HashMap<>();
+
+    /**
+     * The snapshot in the form in which it is written.
+     */
+    private final Map<String, Object> json;
+
+    private CatalogSnapshot(final Map<?, ?> json) {
+        this.json = new LinkedHashMap<>();
+        json.forEach((key, value) -> this.json.put(String.valueOf(key), value));
+
+        if (!Long.valueOf(VERSION).equals(json.get("version"))) {
+            throw new RuntimeException("Unsupported catalog snapshot version %s. This version of PgAuditor reads version %d"
+                    .formatted(json.get("version"), VERSION));
+        }
+
+        this.schema = (String) json.get("schema");
+
+        // The server version was added later, so older snapshots don't have it
+        this.serverVersion = json.get("server_version_num") instanceof Number number ? number.intValue() : 0;
+        addAll(relations, json.get("relations"));
+
+        // Indexes were added later, so older snapshots behave as if there were none
+        if (json.get("indexes") != null) {
+            addAll(indexes, json.get("indexes"));
+        }
+
+        addAll(functions, json.get("functions"));
+        addAll(sequences, json.get("sequences"));
+
+        // Available extensions were added later, so older snapshots behave as if there were none
+        if (json.get("extensions") != null) {
+            addAll(extensions, json.get("extensions"));
+        }
+
+        for (Map.Entry<?, ?> entry : ((Map<?, ?>) json.get("enums")).entrySet()) {
+            addAll(enums.computeIfAbsent((String) entry.getKey(), k -> new HashSet<>()), entry.getValue());
+        }
+
+        for (Map.Entry<?, ?> entry : ((Map<?, ?>) json.get("tables")).entrySet()) {
+            String table = (String) entry.getKey();
+            Map<?, ?> details = (Map<?, ?>) entry.getValue();
+            List<Map<String, Object>> tableColumns = new ArrayList<>();
+
+            // Columns are stored as [column_name, data_type, formatted_type, ordinal_position] to keep snapshots
+            // small. The ordinal position was added later, so older snapshots don't have it
+            for (Object column : (List<?>) details.get("columns")) {
+                List<?> values = (List<?>) column;
+                Map<String, Object> map = new LinkedHashMap<>();
+                map.put("column_name", values.get(0));
+                map.put("data_type", values.get(1));
+                map.put("formatted_type", values.get(2));
+                map.put("ordinal_position", values.size() > 3 ? values.get(3) : null);
+                tableColumns.add(map);
+            }
+
+            List<String> primaryKey = new ArrayList<>();
+            addAll(primaryKey, details.get("primary_key"));
+            columns.put(table, tableColumns);
+            primaryKeys.put(table, primaryKey);
+            addAll(triggers.computeIfAbsent(table, k -> new HashSet<>()), details.get("triggers"));
+
+            // Partitions were added later, so older snapshots behave as if no table were partitioned
+            if (details.get("partitions") != null) {
+                addAll(partitions.computeIfAbsent(table, k -> new ArrayList<>()), details.get("partitions"));
+            }
+        }
+    }
+
+    private static void addAll(final Collection<String> target, final Object values) {
+        for (Object value : (List<?>) values) {
+            target.add((String) value);
+        }
+    }
+
+    /**
+     * Read the catalog of a schema from a live database.
+     *
+     * @param connection The database connection which should be introspected
+     * @param schema The schema which should be captured
+     * @return The snapshot
+     * @throws SQLException Thrown when something goes wrong
+     */
+    static CatalogSnapshot capture(final InfluxConnection connection, final String schema) throws SQLException {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("version", (long) VERSION);
+        json.put("schema", schema);
+        json.put("server_version_num", Long.parseLong(connection.getString("SHOW server_version_num")));
+        json.put("relations", column(connection.getListMap(RELATION_QUERY, schema), "relname"));
+        json.put("indexes", column(connection.getListMap(INDEX_QUERY, schema), "relname"));
+        json.put("functions", column(connection.getListMap(FUNCTION_QUERY, schema), "proname"));
+        json.put("sequences", column(connection.getListMap(SEQUENCE_QUERY, schema), "sequencename"));
+        json.put("extensions", column(connection.getListMap(EXTENSION_QUERY), "name"));
+
+        Map<String, List<Object>> enums = new LinkedHashMap<>();
+
+        for (Map<String, Object> row : connection.getListMap(ENUM_QUERY, schema)) {
+            List<Object> labels = enums.computeIfAbsent((String) row.get("typname"), k -> new ArrayList<>());
+
+            // An enum type without any values is returned once with a null label
+            if (row.get("enumlabel") != null) {
+                labels.add(row.get("enumlabel"));
+            }
+        }
+        json.put("enums", enums);
+
+        Map<String, Map<String, List<Object>>> tables = new LinkedHashMap<>();
+
+        for (Map<String, Object> row : connection.getListMap(COLUMN_QUERY, schema)) {
+            tableDetails(tables, row).get("columns")
+                    .add(List.of(row.get("column_name"), row.get("data_type"), row.get("formatted_type"),
+                            ((Number) row.get("ordinal_position")).longValue()));
+        }
+
+        for (Map<String, Object> row : connection.getListMap(PRIMARY_KEY_QUERY, schema)) {
+            tableDetails(tables, row).get("primary_key").add(row.get("column_name"));
+        }
+
+        for (Map<String, Object> row : connection.getListMap(PARTITION_QUERY, schema)) {
+            tableDetails(tables, row).get("partitions").add(row.get("partition_name"));
+        }
+
+        for (Map<String, Object> row : connection.getListMap(TRIGGER_QUERY, schema)) {
+            // Triggers on views and foreign tables aren't interesting because those can't be audited
+            if (tables.containsKey((String) row.get("table_name"))) {
+                tableDetails(tables, row).get("triggers").add(row.get("trigger_name"));
+            }
+        }
+        json.put("tables", tables);
+        return new CatalogSnapshot(json);
+    }
+
+    private static Map<String, List<Object>> tableDetails(final Map<String, Map<String, List<Object>>> tables,
+                                                          final Map<String, Object> row) {
+        return tables.computeIfAbsent((String) row.get("table_name"), k -> {
+            Map<String, List<Object>> details = new LinkedHashMap<>();
+            details.put("columns", new ArrayList<>());
+            details.put("primary_key", new ArrayList<>());
+            details.put("triggers", new ArrayList<>());
+            details.put("partitions", new ArrayList<>());
+            return details;
+        });
+    }
+
+    private static List<Object> column(final List<Map<String, Object>> rows, final String name) {
+        List<Object> values = new ArrayList<>();
+
+        for (Map<String, Object> row : rows) {
+            values.add(row.get(name));
+        }
+        return values;
+    }
+
+    /**
+     * Read a snapshot which was written by the snapshot command.
+     *
+     * @param path The snapshot file
+     * @return The snapshot
+     * @throws IOException Thrown when the file cannot be read
+     */
+    static CatalogSnapshot read(final Path path) throws IOException {
+        Object json;
+
+        try {
+            json = Json.read(Files.readString(path, StandardCharsets.UTF_8));
+        } catch (IllegalArgumentException e) {
+            throw new RuntimeException("%s is not a catalog snapshot: %s".formatted(path, e.getMessage()));
+        }
+
+        if (!(json instanceof Map<?, ?> map) || !map.containsKey("version")) {
+            throw new RuntimeException("%s is not a catalog snapshot".formatted(path));
+        }
+        return new CatalogSnapshot(map);
+    }
+
+    /**
+     * The schema which this snapshot describes.
+     */
+    String getSchema() {
+        return schema;
+    }
+
+    /**
+     * Describe how this snapshot differs from another, at the level of detail needed to find the cause: each table
+     * which was added, removed, or changed is named along with what changed about it, and other catalog entries are
+     * named by their kind.
+     *
+     * @param other The snapshot which this one should be compared to
+     * @return Paths such as "tables.inventory.columns" or "functions", in order, or an empty list when the snapshots
+     *         are identical
+     */
+    List<String> differences(final CatalogSnapshot other) {
+        List<String> differences = new ArrayList<>();
+
+        for (String key : json.keySet()) {
+            if (key.equals("tables") || Objects.equals(json.get(key), other.json.get(key))) {
+                continue;
+            }
+            differences.add(key);
+        }
+
+        Map<?, ?> tables = (Map<?, ?>) json.get("tables");
+        Map<?, ?> otherTables = (Map<?, ?>) other.json.get("tables");
+        Set<Object> names = new TreeSet<>(Comparator.comparing(String::valueOf));
+        names.addAll(tables.keySet());
+        names.addAll(otherTables.keySet());
+
+        for (Object name : names) {
+            Map<?, ?> table = (Map<?, ?>) tables.get(name);
+            Map<?, ?> otherTable = (Map<?, ?>) otherTables.get(name);
+
+            if (table == null || otherTable == null) {
+                differences.add("tables." + name);
+                continue;
+            }
+
+            for (Object key : table.keySet()) {
+                if (!Objects.equals(table.get(key), otherTable.get(key))) {
+                    differences.add("tables." + name + "." + key);
+                }
+            }
+        }
+        return differences;
+    }
+
+    @Override
+    public String toString() {
+        return Json.write(json) + "\n";
+    }
+
+    /**
+     * Every question which the generator asks is about the schema of the audited table, so a snapshot of any other
+     * schema would give wrong answers rather than no answers.
+     */
+    private void checkSchema(final String schema) {
+        if (!this.schema.equals(schema)) {
+            throw new RuntimeException("The catalog snapshot describes the %s schema, not the %s schema"
+                    .formatted(this.schema, schema));
+        }
+    }
+
+    @Override
+    public List<Map<String, Object>> getColumns(final String schema, final String table) {
+        checkSchema(schema);
+        return columns.getOrDefault(table, List.of());
+    }
+
+    @Override
+    public List<String> getPrimaryKeyColumns(final String schema, final String table) {
+        checkSchema(schema);
+        return primaryKeys.getOrDefault(table, List.of());
+    }
+
+    @Override
+    public boolean tableExists(final String schema, final String table) {
+        checkSchema(schema);
+        return relations.contains(table);
+    }
+
+    @Override
+    public boolean indexExists(final String schema, final String index) {
+        checkSchema(schema);
+        return indexes.contains(index);
+    }
+
+    @Override
+    public List<String> getPartitions(final String schema, final String table) {
+        checkSchema(schema);
+        return partitions.getOrDefault(table, List.of());
+    }
+
+    @Override
+    public boolean triggerExists(final String schema, final String table, final String trigger) {
+        checkSchema(schema);
+        return triggers.getOrDefault(table, Set.of()).contains(trigger);
+    }
+
+    @Override
+    public boolean functionExists(final String schema, final String function) {
+        checkSchema(schema);
+        return functions.contains(function);
+    }
+
+    @Override
+    public boolean sequenceExists(final String schema, final String sequence) {
+        checkSchema(schema);
+        return sequences.contains(sequence);
+    }
+
+    @Override
+    public boolean enumTypeExists(final String schema, final String type) {
+        checkSchema(schema);
+        return enums.containsKey(type);
+    }
+
+    @Override
+    public boolean enumValueExists(final String schema, final String type, final String value) {
+        checkSchema(schema);
+        return enums.getOrDefault(type, Set.of()).contains(value);
+    }
+
+    @Override
+    public boolean extensionAvailable(final String extension) {
+        return extensions.contains(extension);
+    }
+
+    @Override
+    public int getServerVersion() {
+        return serverVersion;
+    }
+}
@@ -0,0 +1,117 @@
+package org.voidzero.pgauditor;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * One audit record in a form which doesn't depend upon the layout of the audit table that it was read from. The
+ * old_ and new_ prefixes are removed from column names and columns which were not captured are left out.
+ */
+public class ChangeEvent {
+    private final long auditId;
+
+    private final String table;
+
+    private final String operation;
+
+    private final String changedBy;
+
+    private final String changedAt;
+
+    private final String applicationName;
+
+    private final Map<String, Object> oldValues;
+
+    private final Map<String, Object> newValues;
+
+    private final Map<String, Object> attributes;
+
+    /**
+     * Construct a new instance of this class.
+     *
+     * @param auditId The audit id, which orders events across every audit table in a schema
+     * @param table The schema qualified name of the audited table
+     * @param operation The name of the operation which created the audit record
+     * @param changedBy The user who made the change, when known
+     * @param changedAt When the change was made, in PostgreSQL's text representation
+     * @param applicationName The application name, when it was captured
+     * @param oldValues Values of the row before the change, keyed by column name
+     * @param newValues Values of the row after the change, keyed by column name
+     * @param attributes Any other columns of the audit record, such as the row count of a bulk summary record
+     */
+    public ChangeEvent(final long auditId, final String table, final String operation, final String changedBy,
+                       final String changedAt, final String applicationName, final Map<String, Object> oldValues,
+                       final Map<String, Object> newValues, final Map<String, Object> attributes) {
+        this.auditId = auditId;
+        this.table = table;
+        this.operation = operation;
+        this.changedBy = changedBy;
+        this.changedAt = changedAt;
+        this.applicationName = applicationName;
+        this.oldValues = oldValues;
+        this.newValues = newValues;
+        this.attributes = attributes;
+    }
+
+    public long getAuditId() {
+        return auditId;
+    }
+
+    public String getTable() {
+        return table;
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    public String getChangedBy() {
+        return changedBy;
+    }
+
+    public String getChangedAt() {
+        return changedAt;
+    }
+
+    public String getApplicationName() {
+        return applicationName;
+    }
+
+    public Map<String, Object> getOldValues() {
+        return oldValues;
+    }
+
+    public Map<String, Object> getNewValues() {
+        return newValues;
+    }
+
+    public Map<String, Object> getAttributes() {
+        return attributes;
+    }
+
+    /**
+     * @return The event as a map which can be written as JSON
+     */
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("audit_id", auditId);
+        map.put("table", table);
+        map.put("operation", operation);
+        map.put("changed_by", changedBy);
+        map.put("changed_at", changedAt);
+
+        if (applicationName != null) {
+            map.put("application_name", applicationName);
+        }
+
+        map.putAll(attributes);
+        map.put("old", oldValues);
+        map.put("new", newValues);
+        return map;
+    }
+
+    @Override
+    public String toString() {
+        return Json.write(toMap());
+    }
+}
@@ -0,0 +1,368 @@
+package org.voidzero.pgauditor;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Reconstructs the order in which modifications were made across multiple audit tables. Every audit table in a schema
+ * takes its audit ids from the same sequence, so the audit tables are read concurrently, each through its own server
+ * side cursor ordered by audit_id, and merged with a heap keyed on audit_id. Nothing is sorted on the server and
+ * memory use depends upon the number of audit tables and the fetch size, not the number of audit records.
+ * <p>
+ * All cursors are read in a single repeatable read transaction so that every audit table is read as of the same
+ * snapshot. {@link #close()} must be called to release them.
+ */
+public class ChangeLog implements Iterator<ChangeEvent>, AutoCloseable {
+    /**
+     * The number of rows which are fetched from each cursor at a time.
+     */
+    public static final int DEFAULT_FETCH_SIZE = 256;
+
+    /**
+     * Name of the table which receives bulk summary records. It shares the audit sequence, so its records are merged
+     * into the change log along with those of the audit tables.
+     */
+    private static final String BULK_TABLE_NAME = "pgauditor_bulk_audit";
+
+    /**
+     * One audit table and the cursor which reads it.
+     */
+    private static class Source {
+        private final String table;
+        private final boolean bulk;
+        private final PreparedStatement statement;
+        private final ResultSet resultSet;
+        private final String[] columns;
+
+        private Source(final String table, final boolean bulk, final PreparedStatement statement,
+                       final ResultSet resultSet) throws SQLException {
+            this.table = table;
+            this.bulk = bulk;
+            this.statement = statement;
+            this.resultSet = resultSet;
+
+            ResultSetMetaData metaData = resultSet.getMetaData();
+            this.columns = new String[metaData.getColumnCount() + 1];
+
+            for (int i = 1; i < columns.length; i++) {
+                columns[i] = metaData.getColumnLabel(i);
+            }
+        }
+    }
+
+    private final Connection connection;
+
+    private final boolean autoCommit;
+
+    private final boolean readOnly;
+
+    private final int isolation;
+
+    private final List<Source> sources = new ArrayList<>();
+
+    /**
+     * The audit id of the current row of each source, indexed like {@link #sources}.
+     */
+    private long[] keys;
+
+    /**
+     * A binary min heap of indexes into {@link #sources}, ordered by {@link #keys}.
+     */
+    private int[] heap;
+
+    private int heapSize;
+
+    /**
+     * Open a cursor on each audit table.
+     *
+     * @param connection The connection which should be read. It is switched to a read only repeatable read
+     *                   transaction until the change log is closed
+     * @param schema The schema which contains the audit tables
+     * @param auditTables Unqualified names of the audit tables which should be merged
+     * @param since When not null, only audit records after this point are returned. A number is compared with
+     *              audit_id and anything else is treated as a timestamp and compared with changed_at
+     * @param until When not null, only audit records up to and including this point are returned. It is interpreted
+     *              in the same way as since
+     * @param fetchSize The number of rows which are fetched from each cursor at a time
+     * @throws SQLException Thrown when something goes wrong
+     */
+    public ChangeLog(final Connection connection, final String schema, final List<String> auditTables,
+                     final String since, final String until, final int fetchSize) throws SQLException {
+        this.connection = connection;
+        this.autoCommit = connection.getAutoCommit();
+        this.readOnly = connection.isReadOnly();
+        this.isolation = connection.getTransactionIsolation();
+
+        // Cursors only remain open within a transaction
+        connection.setAutoCommit(false);
+        connection.setReadOnly(true);
+        connection.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+
+        try {
+            List<String> tables = new ArrayList<>(auditTables);
+
+            if (bulkTableExists(schema)) {
+                tables.add(BULK_TABLE_NAME);
+            }
+
+            for (String auditTable : tables) {
+                open(schema, auditTable, since, until, fetchSize);
+            }
+
+            keys = new long[sources.size()];
+            heap = new int[sources.size()];
+
+            for (int i = 0; i < sources.size(); i++) {
+                advance(i);
+            }
+        } catch (SQLException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private boolean bulkTableExists(final String schema) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement("SELECT to_regclass(?) IS NOT NULL")) {
+            statement.setString(1, AuditedTables.quote(schema) + "." + BULK_TABLE_NAME);
+
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() && resultSet.getBoolean(1);
+            }
+        }
+    }
+
+    private void open(final String schema, final String auditTable, final String since, final String until,
+                      final int fetchSize) throws SQLException {
+        StringBuilder sql = new StringBuilder("SELECT * FROM ")
+                .append(AuditedTables.quote(schema)).append('.').append(AuditedTables.quote(auditTable))
+                .append(" WHERE true");
+        List<Object> parameters = new ArrayList<>();
+        appendBound(sql, parameters, since, ">");
+        appendBound(sql, parameters, until, "<=");
+        sql.append(" ORDER BY audit_id");
+
+        PreparedStatement statement = connection.prepareStatement(sql.toString());
+
+        try {
+            statement.setFetchSize(fetchSize);
+
+            for (int i = 0; i < parameters.size(); i++) {
+                statement.setObject(i + 1, parameters.get(i));
+            }
+
+            String table = auditTable.equals(BULK_TABLE_NAME) ? null : schema + "." + auditTable.substring(4);
+            sources.add(new Source(table, table == null, statement, statement.executeQuery()));
+        } catch (SQLException e) {
+            statement.close();
+            throw e;
+        }
+    }
+
+    private static void appendBound(final StringBuilder sql, final List<Object> parameters, final String bound,
+                                    final String operator) {
+        if (bound == null) {
+            return;
+        }
+
+        try {
+            parameters.add(Long.parseLong(bound.trim()));
+            sql.append(" AND audit_id ").append(operator).append(" ?");
+        } catch (NumberFormatException e) {
+            // There is no index on changed_at, so the audit_id index is still used for ordering and the timestamp is
+            // applied as a filter
+            parameters.add(bound);
+            sql.append(" AND changed_at ").append(operator).append(" ?::timestamptz");
+        }
+    }
+
+    /**
+     * Move a source to its next row and, if it has one, push it onto the heap.
+     */
+    private void advance(final int source) throws SQLException {
+        ResultSet resultSet = sources.get(source).resultSet;
+
+        if (!resultSet.next()) {
+            return;
+        }
+
+        keys[source] = resultSet.getLong("audit_id");
+        int position = heapSize++;
+        heap[position] = source;
+
+        // Sift up
+        while (position > 0) {
+            int parent = (position - 1) >>> 1;
+
+            if (keys[heap[parent]] <= keys[heap[position]]) {
+                break;
+            }
+            swap(parent, position);
+            position = parent;
+        }
+    }
+
+    private int pop() {
+        int top = heap[0];
+        heap[0] = heap[--heapSize];
+        int position = 0;
+
+        // Sift down
+        while (true) {
+            int left = 2 * position + 1;
+            int right = left + 1;
+            int smallest = position;
+
+            if (left < heapSize && keys[heap[left]] < keys[heap[smallest]]) {
+                smallest = left;
+            }
+
+            if (right < heapSize && keys[heap[right]] < keys[heap[smallest]]) {
+                smallest = right;
+            }
+
+            if (smallest == position) {
+                return top;
+            }
+            swap(position, smallest);
+            position = smallest;
+        }
+    }
+
+    private void swap(final int a, final int b) {
+        int temporary = heap[a];
+        heap[a] = heap[b];
+        heap[b] = temporary;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return heapSize > 0;
+    }
+
+    @Override
+    public ChangeEvent next() {
+        if (heapSize == 0) {
+            throw new NoSuchElementException();
+        }
+
+        int source = pop();
+
+        try {
+            ChangeEvent event = read(sources.get(source));
+            advance(source);
+            return event;
+        } catch (SQLException e) {
+            throw new RuntimeException("Failed to read the change log", e);
+        }
+    }
+
+    private static ChangeEvent read(final Source source) throws SQLException {
+        ResultSet resultSet = source.resultSet;
+        String table = source.table;
+        String operation = resultSet.getString("operation");
+        String applicationName = null;
+        String schema = null;
+        Map<String, Object> oldValues = new LinkedHashMap<>();
+        Map<String, Object> newValues = new LinkedHashMap<>();
+        Map<String, Object> attributes = new LinkedHashMap<>();
+        boolean update = "UPDATE".equals(operation);
+
+        for (int i = 1; i < source.columns.length; i++) {
+            String column = source.columns[i];
+
+            switch (column) {
+                case "audit_id", "operation", "changed_by", "changed_at" -> {
+                    continue;
+                }
+                case "application_name" -> {
+                    applicationName = resultSet.getString(i);
+                    continue;
+                }
+                default -> {
+                }
+            }
+
+            if (source.bulk && column.equals("table_schema")) {
+                schema = resultSet.getString(i);
+            } else if (source.bulk && column.equals("table_name")) {
+                table = resultSet.getString(i);
+            } else if (!source.bulk && column.startsWith("old_")) {
+                Object value = Json.value(resultSet, i);
+
+                // Unchanged columns of an update are not captured, so their nulls carry no information
+                if (!update || value != null) {
+                    oldValues.put(column.substring(4), value);
+                }
+            } else if (!source.bulk && column.startsWith("new_")) {
+                Object value = Json.value(resultSet, i);
+
+                if (!update || value != null) {
+                    newValues.put(column.substring(4), value);
+                }
+            } else {
+                attributes.put(column, Json.value(resultSet, i));
+            }
+        }
+
+        if (source.bulk) {
+            table = schema + "." + table;
+        } else if (!update) {
+            // Inserts only have a new image and deletes and truncates only have an old image
+            if ("INSERT".equals(operation)) {
+                oldValues.clear();
+            } else {
+                newValues.clear();
+            }
+        }
+
+        return new ChangeEvent(
+                resultSet.getLong("audit_id"),
+                table,
+                operation,
+                resultSet.getString("changed_by"),
+                resultSet.getString("changed_at"),
+                applicationName,
+                oldValues,
+                newValues,
+                attributes
+        );
+    }
+
+    @Override
+    public void close() throws SQLException {
+        SQLException failure = null;
+
+        for (Source source : sources) {
+            try {
+                source.resultSet.close();
+                source.statement.close();
+            } catch (SQLException e) {
+                failure = e;
+            }
+        }
+        sources.clear();
+        heapSize = 0;
+
+        try {
+            connection.rollback();
+            connection.setTransactionIsolation(isolation);
+            connection.setReadOnly(readOnly);
+            connection.setAutoCommit(autoCommit);
+        } catch (SQLException e) {
+            failure = e;
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
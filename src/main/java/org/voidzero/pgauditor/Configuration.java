@@ -9,12 +9,13 @@ import org.voidzero.influx.cli.annotation.Ignore;
         
         IMPORTANT: PgAuditor will not modify your database in any way regardless of the selected options. You can have \
         confidence in this because PgAuditor passes readOnly=true to the PostgreSQL JDBC driver when establishing a \
-        database connection. If additional safety is required, you may provide read-only database credentials. Once \
-        connected, the specified table is introspected and DDL is printed to the console; Nothing more. If you want \
-        to execute the generated DDL, you must do so manually. This workflow is intended to give a human being the \
-        opportunity to sanity check the generated DDL prior to it being executed. Generated DDL will not drop audit \
-        tables or their columns under any circumstances. If previously captured data is no longer required, it must \
-        be purged manually.
+        database connection. If additional safety is required, you may provide read-only database credentials. The \
+        restore command is the one exception: it turns readOnly off to create and fill the table passed to --target. \
+        Once connected, the specified table is introspected and DDL is printed to the console; Nothing more. If you \
+        want to execute the generated DDL, you must do so manually. This workflow is intended to give a human being \
+        the opportunity to sanity check the generated DDL prior to it being executed. Generated DDL will not drop \
+        audit tables or their columns under any circumstances. If previously captured data is no longer required, it \
+        must be purged manually.
         
         Additional documentation:
         https://github.com/johndunlap/pgauditor
@@ -24,13 +25,31 @@ import org.voidzero.influx.cli.annotation.Ignore;
         Please report issues here:
         https://github.com/johndunlap/pgauditor/issues
         
+        The first argument may name one of the following commands. If it is omitted, "generate" is assumed:
+          generate     Print the DDL which audits the table passed to --table
+          stats        Report the overhead and growth of every audited table
+          tail         Stream new audit records from every audited table to stdout as JSON lines
+          changelog    Print the audit records of a schema as JSON lines in the order in which the changes were made
+          archive      Copy a range of the audit table of --table to compressed files in --archive-dir and verify them
+          read-archive Print archived audit records as JSON lines
+          snapshot     Print the catalog of a schema as JSON so that DDL can later be generated with --from-snapshot
+          verify       Check that the audit trail of --table describes the table as it is now
+          estimate     Project what auditing the tables of a schema would cost, ranked by daily growth
+          restore      Rebuild --table as it was at --as-of into the new table --target
+        
         The following options are accepted:""")
 public class Configuration {
-    @Arg(code = 't', flag = "table", required = true, description = """
+    @Arg(code = 't', flag = "table", description = """
             Name of the audited table. The table name may include a schema prefix. If no schema name is provided, \
-            the public schema will be assumed""")
+            the public schema will be assumed. Required by the generate command. Other commands operate on every \
+            audited table when it is omitted""")
     private String rawTable;
 
+    @Arg(code = 'S', flag = "schema", description = """
+            Restricts commands which operate on every audited table to the specified schema. Ignored when --table is \
+            passed because the schema is taken from the table name.""")
+    private String rawSchema;
+
     @Arg(code = 'a', flag = "auth", converter = AuthenticationTypeConverter.class, description = """
             Valid values: application, database, anonymous. This is the mechanism which is used to to identify the \
             user in the audit log. If "application" is passed, a custom PostgreSQL configuration parameter, which must \
@@ -62,13 +81,245 @@ public class Configuration {
             capture the application name.""")
     private Boolean applicationName;
 
+    @Arg(code = 'G', flag = "changed-columns", description = """
+            No argument required. When this flag is passed, updates record the numbers of the columns which changed \
+            in an int2[] column named changed_columns, which has a GIN index, so that every change to a column can \
+            be found with an index lookup such as changed_columns @> ARRAY[5::int2]. Unlike checking new_<column> IS \
+            NOT NULL, this also finds changes to NULL. Column numbers are attnum in pg_attribute. The default is to \
+            not record changed columns.""")
+    private Boolean changedColumns = false;
+
+    @Arg(code = 'j', flag = "single-function", description = """
+            No argument required. When this flag is passed, inserts, updates, and deletes are audited by one compact \
+            function per table, named afa_<table>, which branches on TG_OP and writes NEW and OLD directly instead of \
+            declaring two variables per column. Every backend which writes to an audited table keeps the compiled \
+            audit functions in memory until it exits, so this reduces the memory used by long lived connections, \
+            such as those of a connection pool, when many tables are audited. The default is to generate separate \
+            insert, update, and delete functions.""")
+    private Boolean singleFunction = false;
+
+    @Arg(code = 'J', flag = "jsonb-diff", description = """
+            No argument required. When this flag is passed, an update of a jsonb column is recorded as a structural \
+            diff, in a jsonb column named diff_<column>, instead of as the whole old and new documents. The diff lists \
+            the paths which changed with their old and new values. Updates also record the old primary key, so \
+            that the diffs of a row can be replayed in order with the pgauditor_jsonb_replay aggregate, and \
+            pgauditor_jsonb_patch applies one diff forwards or backwards. When --point-in-time is also passed, the new \
+            document is still recorded whole, because the as-of function needs it. The default is to record whole \
+            documents.""")
+    private Boolean jsonbDiff = false;
+
+    @Arg(code = 'K', flag = "old-values-only", description = """
+            No argument required. When this flag is passed, an update records only the old values of the columns \
+            which changed, along with changed_columns and the primary key, instead of both old and new values. New \
+            values are derived by a view named aud_<table>_history, from the next audit record of the row or from \
+            the row itself. An update which changes the primary key is still recorded whole. Requires a primary key \
+            and can't be combined with --point-in-time or --jsonb-diff. The default is to record old and new \
+            values.""")
+    private Boolean oldValuesOnly = false;
+
+    @Arg(code = 'y', flag = "rollup", description = """
+            No argument required. When this flag is passed, the number of audited changes to the table is also \
+            counted per day, user, application_name, and operation in a compact table named pgauditor_rollup, which \
+            is shared by all audited tables in a schema. Counters are maintained by statement level triggers, with one \
+            upsert per statement, so that reports can read the counters instead of scanning audit tables. Days are \
+            in UTC. Statements which are summarized because of --bulk-role are not counted; their row counts are in \
+            the bulk summary table instead.""")
+    private Boolean rollup = false;
+
+    @Arg(code = 'Q', flag = "bloom-index", description = """
+            No argument required. When this flag is passed, the old_ and new_ columns of the audit table are covered \
+            by a multi-column bloom index, named aib_<audit table>, so that equality searches on any combination of \
+            them don't scan the whole audit table. The index uses the bloom extension, which the generated DDL \
+            creates if it isn't installed. When the extension isn't available, a generated int4[] column named \
+            search_signature, which holds a hash of the text of every covered value, is added instead and indexed \
+            with GIN. Only integer and text columns can be covered. The default is to create no such index.""")
+    private Boolean bloomIndex = false;
+
+    @Arg(code = 'q', flag = "bloom-columns", description = """
+            Comma separated names of the columns of the audited table whose old_ and new_ columns are covered by \
+            --bloom-index. The default is every integer and text column.""")
+    private String bloomColumns;
+
+    @Arg(code = 'x', flag = "txid", description = """
+            No argument required. When this flag is passed, every audit record stores the id of the transaction which \
+            wrote it, from pg_current_xact_id(), in an indexed xid8 column named txid. Every change made by one \
+            transaction to any audited table in the schema can then be listed with SELECT * FROM \
+            pgauditor_transaction(<txid>). The id is captured once per statement by a statement level trigger. \
+            Requires PostgreSQL 13 or later. The default is to not record transaction ids.""")
+    private Boolean txid = false;
+
+    @Arg(code = 'O', flag = "statement-ordinal", description = """
+            No argument required. When this flag is passed, every audit record stores the ordinal of the statement \
+            which wrote it within its transaction, in an integer column named statement_ordinal. Ordinals increase \
+            with each statement against an audited table, but aren't necessarily consecutive. Every row changed by \
+            one statement has the same ordinal, while rows changed by a foreign key cascade have the ordinal of the \
+            cascaded statement. The ordinal is captured once per statement by a statement level trigger. The \
+            default is to not record statement ordinals.""")
+    private Boolean statementOrdinal = false;
+
+    @Arg(code = 'b', flag = "bulk-role", description = """
+            Name of a role whose members may suppress per-row auditing for bulk loads. When set, members of this role \
+            can run SET [LOCAL] "pgauditor.bulk_load"='on' before a large INSERT, UPDATE, or DELETE. The per-row \
+            audit triggers are then skipped and a single summary record containing the operation, row count, user, \
+            application name, and timestamp is written to the pgauditor_bulk_audit table for each statement. The \
+            setting is ignored for sessions whose user is not a member of this role. The summary triggers use \
+            transition tables, so every statement against the audited table pays a small cost to collect them. The \
+            default is to not allow per-row auditing to be suppressed.""")
+    private String bulkRole;
+
+    @Arg(code = 'N', flag = "notify", description = """
+            No argument required. When this flag is passed, a statement level trigger is created which sends a \
+            notification on the "pgauditor" channel after each statement which modifies the audited table. The \
+            payload is the schema qualified name of the audit table. This allows the tail command to pick up new \
+            audit records as soon as they are committed instead of waiting for --poll-interval to elapse.""")
+    private Boolean notify = false;
+
+    @Arg(code = 'T', flag = "point-in-time", description = """
+            No argument required. When this flag is passed, updates record every new_ column and the old_ primary \
+            key columns instead of only the columns which changed, and a function named aud_<table>_as_of is \
+            created which returns the contents of the audited table as of a timestamp, along with the indexes which \
+            it uses. The audited table must have a primary key. Updates recorded before this flag was passed do not \
+            contain enough information to be reconstructed. The default is to only record the columns which changed.""")
+    private Boolean pointInTime = false;
+
+    @Arg(code = 'B', flag = "batch", description = """
+            No argument required. When this flag is passed, the generate command reads requests from stdin, one JSON \
+            object per line, and writes one JSON object per line to stdout containing the DDL for each request. The \
+            keys of each request are the names of the flags which would otherwise be passed on the command line, \
+            without the leading dashes, such as {"table": "public.inventory", "auth": "application"}. Flags which \
+            take no argument are passed when their value is true. A single database connection is used for every \
+            request and catalog information is cached until the schema which it describes changes. Connection \
+            parameters are taken from the command line and are ignored in requests.""")
+    private Boolean batch = false;
+
+    @Arg(code = 'F', flag = "from-snapshot", description = """
+            Path of a file written by the snapshot command. When this flag is passed, the generate command reads the \
+            catalog from the file instead of connecting to PostgreSQL, so no database is needed and connection \
+            parameters are ignored. The generated DDL is identical to the DDL which would have been generated from the \
+            database at the time the snapshot was taken. The table must be in the schema which the snapshot \
+            describes.""")
+    private String fromSnapshot;
+
+    @Arg(code = 'H', flag = "partitions", description = """
+            The number of hash partitions into which a new audit table is divided. When this is greater than zero, \
+            the audit table records the backend_pid of the connection which made each change and is partitioned by \
+            it, so that concurrent writers insert into different partitions and indexes instead of contending for the \
+            last page of a single audit_id index. Audit ids are still taken from the shared sequence, so they still \
+            order changes across partitions. Existing audit tables are not repartitioned, so it is an error to \
+            pass a different number of partitions than an existing audit table has. The default is 0, which creates \
+            an ordinary table.""")
+    private Integer partitions = 0;
+
+    @Arg(code = 'L', flag = "databases", description = """
+            A LIKE pattern, such as tenant_%, which selects the databases of the cluster that the generate command \
+            should generate DDL for. Databases are listed from pg_database using the database passed to --dbname. DDL \
+            is written to one file per database in --output-dir and a summary of failures and of the differences \
+            between the schemas of the databases is printed. Databases with identical schemas share the DDL which was \
+            generated for the first of them.""")
+    private String databases;
+
+    @Arg(code = 'l', flag = "database-file", description = """
+            Path of a file which names the databases that the generate command should generate DDL for, one per line. \
+            Blank lines and lines which start with # are ignored. This behaves like --databases otherwise.""")
+    private String databaseFile;
+
+    @Arg(code = 'C', flag = "max-connections", description = """
+            The maximum number of databases which are introspected concurrently, and therefore the maximum number of \
+            connections which are opened, when --databases or --database-file is passed. Also the number of \
+            connections on which the verify and restore commands work on ranges concurrently. The default is 8.""")
+    private Integer maxConnections = 8;
+
+    @Arg(code = 'r', flag = "ranges", description = """
+            The number of primary key ranges into which the verify and restore commands divide the table. Ranges \
+            whose audit trail doesn't match are divided further by the verify command. The default is 256.""")
+    private Integer ranges = 256;
+
+    @Arg(code = 'R', flag = "max-rows-per-second", description = """
+            The maximum number of rows per second, summed over every connection, which the verify command reads from \
+            the audited table and its audit table, so that verification of a large table can run alongside normal \
+            traffic. Each range is read by one statement, so the rate is kept over whole ranges. The default is 0, \
+            which means no limit.""")
+    private Long maxRowsPerSecond = 0L;
+
+    @Arg(code = 'e', flag = "as-of", description = """
+            The point in time, as a timestamp, at which the restore command reconstructs the table. Changes made up to \
+            and including this point are applied. Required by the restore command.""")
+    private String asOf;
+
+    @Arg(code = 'g', flag = "target", description = """
+            Name of the table which the restore command creates and fills. The table name may include a schema \
+            prefix. If no schema name is provided, the schema of --table is assumed. The table must not exist. \
+            Required by the restore command.""")
+    private String target;
+
+    @Arg(code = 'M', flag = "max-rows-in-memory", description = """
+            The maximum number of rows which each connection of the restore command holds in memory. The rows of a \
+            range which has more are divided into temporary files, which are restored one at a time. The default is \
+            1000000.""")
+    private Integer maxRowsInMemory = 1_000_000;
+
+    @Arg(code = 'o', flag = "output-dir", description = """
+            The directory to which the DDL for each database is written when --databases or --database-file is \
+            passed. It is created if it doesn't exist and the files in it are named after the databases. Databases \
+            whose names contain a path separator are reported as failures instead of being written.""")
+    private String outputDir;
+
+    @Arg(code = 'f', flag = "format", converter = OutputFormatTypeConverter.class, description = """
+            Valid values: human, json, prometheus. The output format of the stats and estimate commands. The \
+            "prometheus" format follows the Prometheus text exposition format so that it can be served to a scraper. \
+            The default is "human".""")
+    private OutputFormat format = OutputFormat.HUMAN;
+
+    @Arg(code = 'i', flag = "interval", description = """
+            The number of seconds that the stats and estimate commands should wait between two samples when measuring \
+            the growth rate of audit tables or the write rate of tables. When zero, rates are averaged over the period \
+            since statistics were last reset, or since the server was last started when they never have been, in \
+            which case they are an upper bound. The default is 0.""")
+    private Integer interval = 0;
+
+    @Arg(code = 'k', flag = "checkpoint", description = """
+            Path of the file in which the tail command records the last audit record that it has written for each \
+            audit table. When the file exists, tail resumes after the recorded audit records. Otherwise tail starts \
+            from the first audit record. The default is to not keep a checkpoint.""")
+    private String checkpoint;
+
+    @Arg(code = 'I', flag = "poll-interval", description = """
+            The maximum number of seconds that the tail command waits for a notification before checking every audit \
+            table for new audit records. The default is 5.""")
+    private Integer pollInterval = 5;
+
+    @Arg(code = 's', flag = "since", description = """
+            Only select changes made after this point. A number is compared with the audit id and anything else is \
+            interpreted as a timestamp, which must be in ISO-8601 form for the read-archive command. Used by the \
+            changelog, archive, and read-archive commands. The default is the first change.""")
+    private String since;
+
+    @Arg(code = 'u', flag = "until", description = """
+            Only select changes made up to and including this point. It is interpreted in the same way as --since. \
+            Used by the changelog, archive, and read-archive commands, and required by the archive command. The \
+            default is the last change.""")
+    private String until;
+
+    @Arg(code = 'A', flag = "archive-dir", description = """
+            The directory in which the archive command writes segment files and from which the read-archive command \
+            reads them. It is created if it doesn't exist. Required by both commands.""")
+    private String archiveDir;
+
     @Arg(code = 'v', flag = "version", description = """
             Prints the version of PgAuditor and the version of its bundled JDBC driver""")
     private Boolean version = false;
 
     @Arg(code = 'V', flag = "verbose", description = """
-            When specified, diagnostic information will be written to stderr""")
-    private Boolean verbose;
+            When specified, diagnostic information will be written to stderr. This includes the time taken by each \
+            phase of DDL generation and by each catalog query as soon as it completes""")
+    private Boolean verbose = false;
+
+    @Arg(code = 'P', flag = "profile", description = """
+            No argument required. When specified, a summary of the time spent in each phase of DDL generation, the \
+            latency and number of catalog queries, and the number of bytes of DDL generated is written to stderr. \
+            The same measurements are always emitted as Java Flight Recorder events in the "PgAuditor" category, so \
+            they can be recorded without this flag by running the jar with -XX:StartFlightRecording.""")
+    private Boolean profile = false;
 
     // The codes, flags, and environment variable names below this line should match what is accepted by psql. This
     // should, in theory, reduce the learning curve for people who are already familiar with psql
@@ -78,10 +329,11 @@ public class Configuration {
             flag will take precedence over the environment variable.""")
     private String hostname = "localhost";
 
-    @Arg(code = 'U', flag = "username", required = true, environmentVariable = "PGUSER", description = """
+    @Arg(code = 'U', flag = "username", environmentVariable = "PGUSER", description = """
             The username which should be used to authenticate against PostgreSQL. Alternatively, the PGUSER \
             environment variable can be used to pass this value. If both the flag and the environment variable have \
-            been set, the flag will take precedence over the environment variable.""")
+            been set, the flag will take precedence over the environment variable. Required unless --from-snapshot is \
+            passed.""")
     private String username;
 
     @Arg(code = 'd', flag = "dbname", environmentVariable = "PGDATABASE", description = """
@@ -137,6 +389,130 @@ public class Configuration {
         tableWithSchema = schema + "." + tableOnly;
     }
 
+    public String getRawSchema() {
+        return rawSchema;
+    }
+
+    public OutputFormat getFormat() {
+        return format;
+    }
+
+    public Integer getInterval() {
+        return interval;
+    }
+
+    public Boolean getNotify() {
+        return notify;
+    }
+
+    public Boolean getChangedColumns() {
+        return changedColumns;
+    }
+
+    public Boolean getSingleFunction() {
+        return singleFunction;
+    }
+
+    public Boolean getJsonbDiff() {
+        return jsonbDiff;
+    }
+
+    public Boolean getOldValuesOnly() {
+        return oldValuesOnly;
+    }
+
+    public Boolean getRollup() {
+        return rollup;
+    }
+
+    public Boolean getBloomIndex() {
+        return bloomIndex;
+    }
+
+    public String getBloomColumns() {
+        return bloomColumns;
+    }
+
+    public Boolean getTxid() {
+        return txid;
+    }
+
+    public Boolean getStatementOrdinal() {
+        return statementOrdinal;
+    }
+
+    public Boolean getPointInTime() {
+        return pointInTime;
+    }
+
+    public Boolean getBatch() {
+        return batch;
+    }
+
+    public String getArchiveDir() {
+        return archiveDir;
+    }
+
+    public String getFromSnapshot() {
+        return fromSnapshot;
+    }
+
+    public Integer getPartitions() {
+        return partitions;
+    }
+
+    public String getDatabases() {
+        return databases;
+    }
+
+    public String getDatabaseFile() {
+        return databaseFile;
+    }
+
+    public Integer getRanges() {
+        return ranges;
+    }
+
+    public String getAsOf() {
+        return asOf;
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    public Integer getMaxRowsInMemory() {
+        return maxRowsInMemory;
+    }
+
+    public Long getMaxRowsPerSecond() {
+        return maxRowsPerSecond;
+    }
+
+    public Integer getMaxConnections() {
+        return maxConnections;
+    }
+
+    public String getOutputDir() {
+        return outputDir;
+    }
+
+    public String getCheckpoint() {
+        return checkpoint;
+    }
+
+    public Integer getPollInterval() {
+        return pollInterval;
+    }
+
+    public String getSince() {
+        return since;
+    }
+
+    public String getUntil() {
+        return until;
+    }
+
     public String getConfigProperty() {
         return configProperty;
     }
@@ -149,6 +525,10 @@ public class Configuration {
         return applicationName;
     }
 
+    public String getBulkRole() {
+        return bulkRole;
+    }
+
     public Boolean getVersion() {
         return version;
     }
@@ -178,7 +558,10 @@ public class Configuration {
     }
 
     public String getSchema() {
-        return schema;
+        if (schema != null) {
+            return schema;
+        }
+        return rawSchema == null ? "public" : rawSchema;
     }
 
     public String getTableOnly() {
@@ -193,29 +576,74 @@ public class Configuration {
         return verbose;
     }
 
+    public Boolean getProfile() {
+        return profile;
+    }
+
     public String getConnectionString() {
         if(connectionString == null) {
-            connectionString = "jdbc:postgresql://" +
-                    (hostname == null ? "localhost" : hostname) +
-                    ":" +
-                    (port == null ? "5432" : port) +
-                    "/" +
-                    database +
-                    "?readOnly=true&currentSchema=" +
-                    schema;
+            connectionString = getConnectionString(database);
         }
         return connectionString;
     }
 
+    /**
+     * The connection string of another database on the same server.
+     */
+    public String getConnectionString(final String database) {
+        return "jdbc:postgresql://" +
+                (hostname == null ? "localhost" : hostname) +
+                ":" +
+                (port == null ? "5432" : port) +
+                "/" +
+                database +
+                "?readOnly=true&currentSchema=" +
+                getSchema();
+    }
+
     @Override
     public String toString() {
         return "Configuration{" +
                 "table='" + rawTable + '\'' +
+                ", schema='" + rawSchema + '\'' +
+                ", format=" + format +
+                ", interval=" + interval +
+                ", checkpoint='" + checkpoint + '\'' +
+                ", pollInterval=" + pollInterval +
+                ", since='" + since + '\'' +
+                ", until='" + until + '\'' +
                 ", authentication=" + authentication +
                 ", configProperty='" + configProperty + '\'' +
                 ", drop=" + drop +
                 ", applicationName='" + applicationName + '\'' +
+                ", bulkRole='" + bulkRole + '\'' +
+                ", notify=" + notify +
+                ", changedColumns=" + changedColumns +
+                ", singleFunction=" + singleFunction +
+                ", jsonbDiff=" + jsonbDiff +
+                ", oldValuesOnly=" + oldValuesOnly +
+                ", rollup=" + rollup +
+                ", bloomIndex=" + bloomIndex +
+                ", bloomColumns='" + bloomColumns + '\'' +
+                ", txid=" + txid +
+                ", statementOrdinal=" + statementOrdinal +
+                ", pointInTime=" + pointInTime +
+                ", batch=" + batch +
+                ", fromSnapshot='" + fromSnapshot + '\'' +
+                ", archiveDir='" + archiveDir + '\'' +
+                ", partitions=" + partitions +
+                ", databases='" + databases + '\'' +
+                ", databaseFile='" + databaseFile + '\'' +
+                ", maxConnections=" + maxConnections +
+                ", ranges=" + ranges +
+                ", maxRowsPerSecond=" + maxRowsPerSecond +
+                ", asOf='" + asOf + '\'' +
+                ", target='" + target + '\'' +
+                ", maxRowsInMemory=" + maxRowsInMemory +
+                ", outputDir='" + outputDir + '\'' +
                 ", version=" + version +
+                ", verbose=" + verbose +
+                ", profile=" + profile +
                 ", hostname='" + hostname + '\'' +
                 ", username='" + username + '\'' +
                 ", database='" + database + '\'' +
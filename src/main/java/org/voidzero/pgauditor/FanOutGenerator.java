@@ -0,0 +1,243 @@
+package org.voidzero.pgauditor;
+
+import org.voidzero.influx.jdbc.InfluxConnection;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Generates DDL for the same table in many databases of one cluster, such as a database per tenant. See --databases
+ * and --database-file.
+ * <p>
+ * Each database is introspected over its own connection by taking a {@link CatalogSnapshot} of the table's schema and
+ * the DDL is then generated from the snapshot. Databases whose snapshots are identical would produce identical DDL, so
+ * it is only generated once for each distinct snapshot and the result is shared. Snapshots also make the summary
+ * possible: databases are grouped by snapshot and every group other than the largest one is described by how it
+ * differs from the largest one.
+ */
+class FanOutGenerator {
+    /**
+     * Lists the databases which match --databases, using the database passed to --dbname. Templates and databases
+     * which don't accept connections can't be introspected.
+     */
+    private static final String DATABASE_QUERY = """
+        SELECT datname
+        FROM pg_database
+        WHERE datallowconn
+            AND NOT datistemplate
+            AND datname LIKE ?
+        ORDER BY datname
+    """;
+
+    /**
+     * The number of databases which are named in each group of the summary before the rest are counted instead.
+     */
+    private static final int NAMES_PER_GROUP = 10;
+
+    /**
+     * Configuration object which contains all configuration parameters which were extracted from environment variables
+     * and parsed from command line arguments.
+     */
+    private final Configuration config;
+
+    /**
+     * The generated DDL of each distinct snapshot.
+     */
+    private final Map<String, String> scripts = new ConcurrentHashMap<>();
+
+    /**
+     * The outcome of generating DDL for one database.
+     */
+    private static class Result {
+        private final String database;
+        private CatalogSnapshot snapshot;
+        private String error;
+
+        private Result(final String database) {
+            this.database = database;
+        }
+    }
+
+    /**
+     * Construct a new instance of this class.
+     *
+     * @param config User supplied parameters
+     */
+    FanOutGenerator(final Configuration config) {
+        this.config = config;
+    }
+
+    /**
+     * Generate DDL for every target database, write it to one file per database in --output-dir, and print a summary.
+     *
+     * @return True if DDL was generated for every database
+     * @throws SQLException Thrown when the databases cannot be listed
+     * @throws IOException Thrown when --database-file cannot be read or the output directory cannot be created
+     * @throws InterruptedException Thrown when interrupted while waiting for databases to be processed
+     */
+    boolean run() throws SQLException, IOException, InterruptedException {
+        List<String> databases = listDatabases();
+        Path outputDir = Path.of(config.getOutputDir());
+        Files.createDirectories(outputDir);
+
+        // Java 17 has no virtual threads, so a fixed pool of platform threads is used. Each task spends nearly all of
+        // its time waiting on its connection, so the pool is sized by the connection limit rather than by the CPUs
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, config.getMaxConnections()));
+        List<Future<Result>> futures = new ArrayList<>();
+
+        try {
+            for (String database : databases) {
+                futures.add(executor.submit(() -> generate(database, outputDir)));
+            }
+
+            List<Result> results = new ArrayList<>();
+
+            for (Future<Result> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+
+            System.out.print(summarize(results));
+            return results.stream().allMatch(result -> result.error == null);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private List<String> listDatabases() throws SQLException, IOException {
+        List<String> databases = new ArrayList<>();
+
+        if (config.getDatabaseFile() != null) {
+            // One database per line. Blank lines and lines which start with # are ignored
+            for (String line : Files.readAllLines(Path.of(config.getDatabaseFile()), StandardCharsets.UTF_8)) {
+                if (!line.isBlank() && !line.strip().startsWith("#")) {
+                    databases.add(line.strip());
+                }
+            }
+        } else {
+            try (Connection jdbcConnection = DriverManager.getConnection(config.getConnectionString(),
+                    config.getUsername(), config.getPassword());
+                 InfluxConnection connection = new InfluxConnection(jdbcConnection)) {
+                for (Map<String, Object> row : connection.getListMap(DATABASE_QUERY, config.getDatabases())) {
+                    databases.add((String) row.get("datname"));
+                }
+            }
+        }
+        return databases;
+    }
+
+    /**
+     * Introspect one database and write its DDL. Failures are recorded in the result rather than thrown so that one
+     * database can't prevent the others from being processed.
+     */
+    private Result generate(final String database, final Path outputDir) {
+        Result result = new Result(database);
+
+        try {
+            // Database names may contain any character, so a name which would place the file anywhere other than
+            // directly inside the output directory is refused rather than written
+            Path file = outputDir.resolve(database + ".sql");
+
+            if (database.indexOf('/') >= 0 || database.indexOf('\\') >= 0 || !outputDir.equals(file.getParent())) {
+                throw new IllegalArgumentException("The database name can't be used as a file name in --output-dir");
+            }
+
+            try (Connection jdbcConnection = DriverManager.getConnection(config.getConnectionString(database),
+                    config.getUsername(), config.getPassword());
+                 InfluxConnection connection = new InfluxConnection(jdbcConnection)) {
+                result.snapshot = CatalogSnapshot.capture(connection, config.getSchema());
+            }
+
+            // DDL is generated outside of the map, so that other databases aren't blocked while it is generated. Two
+            // databases with the same snapshot may both generate it, in which case the first result is kept
+            String key = result.snapshot.toString();
+            String ddl = scripts.get(key);
+
+            if (ddl == null) {
+                PgAuditor pgAuditor = new PgAuditor(result.snapshot, config, null);
+                pgAuditor.run();
+                String generated = pgAuditor.toString();
+                String existing = scripts.putIfAbsent(key, generated);
+                ddl = existing != null ? existing : generated;
+            }
+
+            Files.writeString(file, ddl + "\n", StandardCharsets.UTF_8);
+        } catch (Exception e) {
+            result.error = e.getMessage() != null ? e.getMessage() : e.toString();
+        }
+        return result;
+    }
+
+    private String summarize(final List<Result> results) {
+        Map<String, List<Result>> groups = new LinkedHashMap<>();
+        List<Result> failures = new ArrayList<>();
+
+        for (Result result : results) {
+            if (result.error != null) {
+                failures.add(result);
+            } else {
+                groups.computeIfAbsent(result.snapshot.toString(), k -> new ArrayList<>()).add(result);
+            }
+        }
+
+        StringBuilder summary = new StringBuilder();
+        summary.append("%d databases, %d succeeded, %d failed, %d distinct schemas\n".formatted(
+                results.size(),
+                results.size() - failures.size(),
+                failures.size(),
+                groups.size()
+        ));
+
+        List<List<Result>> ordered = new ArrayList<>(groups.values());
+        ordered.sort((a, b) -> Integer.compare(b.size(), a.size()));
+
+        for (int i = 0; i < ordered.size(); i++) {
+            List<Result> group = ordered.get(i);
+            summary.append("\nSchema %d (%d databases): %s\n".formatted(i + 1, group.size(), names(group)));
+
+            if (i > 0) {
+                summary.append("  Differs from schema 1 in: %s\n".formatted(
+                        String.join(", ", group.get(0).snapshot.differences(ordered.get(0).get(0).snapshot))));
+            }
+        }
+
+        if (!failures.isEmpty()) {
+            summary.append("\nFailed:\n");
+
+            for (Result failure : failures) {
+                summary.append("  %s: %s\n".formatted(failure.database, failure.error));
+            }
+        }
+        return summary.toString();
+    }
+
+    private String names(final List<Result> group) {
+        List<String> names = new ArrayList<>();
+
+        for (int i = 0; i < group.size() && i < NAMES_PER_GROUP; i++) {
+            names.add(group.get(i).database);
+        }
+
+        if (group.size() > NAMES_PER_GROUP) {
+            names.add("and %d more".formatted(group.size() - NAMES_PER_GROUP));
+        }
+        return String.join(", ", names);
+    }
+}
@@ -0,0 +1,31 @@
+package org.voidzero.pgauditor;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Java Flight Recorder event which covers one phase of DDL generation, such as probing for triggers which must be
+ * dropped or generating one of the audit functions.
+ */
+@Name("org.voidzero.pgauditor.GenerationPhase")
+@Label("Generation Phase")
+@Category("PgAuditor")
+@Description("A phase of audit DDL generation")
+class GenerationPhaseEvent extends jdk.jfr.Event {
+    @Label("Phase")
+    String phase;
+
+    @Label("Table")
+    String table;
+
+    @Label("Round Trips")
+    @Description("Number of catalog queries sent to the database during the phase")
+    int roundTrips;
+
+    @Label("Bytes Generated")
+    @DataAmount
+    long bytesGenerated;
+}
@@ -0,0 +1,325 @@
+package org.voidzero.pgauditor;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal JSON support for machine readable output and batch requests. PgAuditor only needs maps, lists, strings,
+ * numbers, and booleans, which isn't enough to justify another dependency in the shaded jar.
+ */
+final class Json {
+    private Json() {
+    }
+
+    /**
+     * Serialize a value as compact JSON on a single line. Maps become objects, collections become arrays, numbers and
+     * booleans are written as-is, and everything else is written as a string.
+     *
+     * @param value The value which should be serialized
+     * @return The JSON representation of the value
+     */
+    static String write(final Object value) {
+        StringBuilder builder = new StringBuilder();
+        write(builder, value);
+        return builder.toString();
+    }
+
+    static void write(final StringBuilder builder, final Object value) {
+        if (value == null) {
+            builder.append("null");
+        } else if (value instanceof Map<?, ?> map) {
+            builder.append('{');
+            boolean first = true;
+
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                if (!first) {
+                    builder.append(',');
+                }
+                first = false;
+                quote(builder, String.valueOf(entry.getKey()));
+                builder.append(':');
+                write(builder, entry.getValue());
+            }
+            builder.append('}');
+        } else if (value instanceof Collection<?> collection) {
+            builder.append('[');
+            boolean first = true;
+
+            for (Object element : collection) {
+                if (!first) {
+                    builder.append(',');
+                }
+                first = false;
+                write(builder, element);
+            }
+            builder.append(']');
+        } else if (value instanceof Double number && (number.isNaN() || number.isInfinite())) {
+            // JSON has no representation for these
+            builder.append("null");
+        } else if (value instanceof Number || value instanceof Boolean) {
+            builder.append(value);
+        } else {
+            quote(builder, value.toString());
+        }
+    }
+
+    /**
+     * Read a column in the form in which it should be written to JSON. Numbers and booleans are returned as-is so
+     * that they are written as JSON numbers and booleans. Everything else is returned in PostgreSQL's text
+     * representation so that, for example, timestamps keep their time zone.
+     *
+     * @param resultSet The result set which is positioned on a row
+     * @param column The index of the column which should be read
+     * @return The value of the column
+     * @throws SQLException Thrown when the column cannot be read
+     */
+    static Object value(final ResultSet resultSet, final int column) throws SQLException {
+        Object value = resultSet.getObject(column);
+
+        if (value == null || value instanceof Number || value instanceof Boolean) {
+            return value;
+        }
+        return resultSet.getString(column);
+    }
+
+    /**
+     * Parse a single JSON value. Objects become {@link LinkedHashMap}s, arrays become {@link ArrayList}s, integers
+     * become {@link Long}s, other numbers become {@link Double}s, and strings, booleans, and null are returned as-is.
+     *
+     * @param json The JSON which should be parsed
+     * @return The parsed value
+     * @throws IllegalArgumentException Thrown when the input isn't valid JSON
+     */
+    static Object read(final String json) {
+        Reader reader = new Reader(json);
+        Object value = reader.readValue();
+        reader.skipWhitespace();
+
+        if (reader.position < json.length()) {
+            throw reader.error("Unexpected trailing characters");
+        }
+        return value;
+    }
+
+    /**
+     * A recursive descent parser over a string.
+     */
+    private static class Reader {
+        private final String json;
+        private int position;
+
+        private Reader(final String json) {
+            this.json = json;
+        }
+
+        private Object readValue() {
+            skipWhitespace();
+
+            if (position >= json.length()) {
+                throw error("Unexpected end of input");
+            }
+
+            char c = json.charAt(position);
+
+            switch (c) {
+                case '{' -> {
+                    return readObject();
+                }
+                case '[' -> {
+                    return readArray();
+                }
+                case '"' -> {
+                    return readString();
+                }
+                default -> {
+                    if (json.startsWith("true", position)) {
+                        position += 4;
+                        return Boolean.TRUE;
+                    } else if (json.startsWith("false", position)) {
+                        position += 5;
+                        return Boolean.FALSE;
+                    } else if (json.startsWith("null", position)) {
+                        position += 4;
+                        return null;
+                    }
+                    return readNumber();
+                }
+            }
+        }
+
+        private Map<String, Object> readObject() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            position++;
+            skipWhitespace();
+
+            if (peek() == '}') {
+                position++;
+                return map;
+            }
+
+            while (true) {
+                skipWhitespace();
+
+                if (peek() != '"') {
+                    throw error("Expected a string");
+                }
+
+                String key = readString();
+                skipWhitespace();
+                expect(':');
+                map.put(key, readValue());
+                skipWhitespace();
+
+                if (peek() == ',') {
+                    position++;
+                } else {
+                    expect('}');
+                    return map;
+                }
+            }
+        }
+
+        private List<Object> readArray() {
+            List<Object> list = new ArrayList<>();
+            position++;
+            skipWhitespace();
+
+            if (peek() == ']') {
+                position++;
+                return list;
+            }
+
+            while (true) {
+                list.add(readValue());
+                skipWhitespace();
+
+                if (peek() == ',') {
+                    position++;
+                } else {
+                    expect(']');
+                    return list;
+                }
+            }
+        }
+
+        private String readString() {
+            StringBuilder builder = new StringBuilder();
+            position++;
+
+            while (true) {
+                if (position >= json.length()) {
+                    throw error("Unterminated string");
+                }
+
+                char c = json.charAt(position++);
+
+                if (c == '"') {
+                    return builder.toString();
+                } else if (c != '\\') {
+                    builder.append(c);
+                    continue;
+                }
+
+                if (position >= json.length()) {
+                    throw error("Unterminated string");
+                }
+
+                char escaped = json.charAt(position++);
+
+                switch (escaped) {
+                    case '"', '\\', '/' -> builder.append(escaped);
+                    case 'n' -> builder.append('\n');
+                    case 'r' -> builder.append('\r');
+                    case 't' -> builder.append('\t');
+                    case 'b' -> builder.append('\b');
+                    case 'f' -> builder.append('\f');
+                    case 'u' -> {
+                        if (position + 4 > json.length()) {
+                            throw error("Invalid unicode escape");
+                        }
+
+                        try {
+                            builder.append((char) Integer.parseInt(json.substring(position, position + 4), 16));
+                        } catch (NumberFormatException e) {
+                            throw error("Invalid unicode escape");
+                        }
+                        position += 4;
+                    }
+                    default -> throw error("Invalid escape");
+                }
+            }
+        }
+
+        private Number readNumber() {
+            int start = position;
+
+            while (position < json.length() && "+-0123456789.eE".indexOf(json.charAt(position)) >= 0) {
+                position++;
+            }
+
+            String number = json.substring(start, position);
+
+            try {
+                if (number.contains(".") || number.contains("e") || number.contains("E")) {
+                    return Double.parseDouble(number);
+                }
+                return Long.parseLong(number);
+            } catch (NumberFormatException e) {
+                position = start;
+                throw error("Unexpected character");
+            }
+        }
+
+        private void skipWhitespace() {
+            while (position < json.length() && Character.isWhitespace(json.charAt(position))) {
+                position++;
+            }
+        }
+
+        private char peek() {
+            return position < json.length() ? json.charAt(position) : 0;
+        }
+
+        private void expect(final char c) {
+            if (peek() != c) {
+                throw error("Expected '" + c + "'");
+            }
+            position++;
+        }
+
+        private IllegalArgumentException error(final String message) {
+            return new IllegalArgumentException(message + " at position " + position);
+        }
+    }
+
+    static void quote(final StringBuilder builder, final String value) {
+        builder.append('"');
+
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+
+            switch (c) {
+                case '"' -> builder.append("\\\"");
+                case '\\' -> builder.append("\\\\");
+                case '\n' -> builder.append("\\n");
+                case '\r' -> builder.append("\\r");
+                case '\t' -> builder.append("\\t");
+                case '\b' -> builder.append("\\b");
+                case '\f' -> builder.append("\\f");
+                default -> {
+                    if (c < 0x20) {
+                        builder.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        builder.append(c);
+                    }
+                }
+            }
+        }
+        builder.append('"');
+    }
+}
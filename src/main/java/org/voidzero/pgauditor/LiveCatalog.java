@@ -0,0 +1,187 @@
+package org.voidzero.pgauditor;
+
+import org.voidzero.influx.jdbc.InfluxConnection;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Answers catalog questions by querying the database.
+ */
+class LiveCatalog implements Catalog {
+    /**
+     * The database connection which should be introspected.
+     */
+    private final InfluxConnection connection;
+
+    LiveCatalog(final InfluxConnection connection) {
+        this.connection = connection;
+    }
+
+    @Override
+    public List<Map<String, Object>> getColumns(final String schema, final String table) throws SQLException {
+        // information_schema doesn't include type modifiers, such as the length of a varchar, so the full types are
+        // read from pg_attribute
+        String sql = """
+            SELECT
+                col.column_name,
+                col.data_type,
+                format_type(a.atttypid, a.atttypmod) AS formatted_type,
+                col.ordinal_position
+            FROM information_schema.columns col
+                INNER JOIN pg_namespace n ON n.nspname = col.table_schema
+                INNER JOIN pg_class c ON c.relnamespace = n.oid AND c.relname = col.table_name
+                INNER JOIN pg_attribute a ON a.attrelid = c.oid AND a.attname = col.column_name
+            WHERE col.table_name = ?
+              AND col.table_schema = ?
+            ORDER BY col.ordinal_position
+        """;
+
+        return connection.getListMap(sql, table, schema);
+    }
+
+    @Override
+    public List<String> getPrimaryKeyColumns(final String schema, final String table) throws SQLException {
+        String sql = """
+            SELECT a.attname AS column_name
+            FROM pg_index i
+                INNER JOIN pg_class c ON i.indrelid = c.oid
+                INNER JOIN pg_namespace n ON c.relnamespace = n.oid
+                INNER JOIN pg_attribute a ON a.attrelid = c.oid AND a.attnum = ANY(i.indkey)
+            WHERE i.indisprimary
+                AND c.relname = ?
+                AND n.nspname = ?
+            ORDER BY array_position(i.indkey::int2[], a.attnum)
+        """;
+
+        List<String> columns = new ArrayList<>();
+
+        for (Map<String, Object> row : connection.getListMap(sql, table, schema)) {
+            columns.add((String) row.get("column_name"));
+        }
+        return columns;
+    }
+
+    @Override
+    public boolean tableExists(final String schema, final String table) throws SQLException {
+        return connection.getMetaData().getTable(schema, table) != null;
+    }
+
+    @Override
+    public boolean indexExists(final String schema, final String index) throws SQLException {
+        String query = "SELECT EXISTS ( " +
+                "      SELECT 1 " +
+                "      FROM pg_class c " +
+                "        INNER JOIN pg_namespace n ON c.relnamespace = n.oid " +
+                "      WHERE c.relname = ? " +
+                "        AND c.relkind IN ('i', 'I') " +
+                "        AND n.nspname = ?" +
+                "  );";
+
+        return connection.getBoolean(query, index, schema);
+    }
+
+    @Override
+    public List<String> getPartitions(final String schema, final String table) throws SQLException {
+        String sql = """
+            SELECT c.relname
+            FROM pg_inherits i
+                INNER JOIN pg_class c ON i.inhrelid = c.oid
+                INNER JOIN pg_class p ON i.inhparent = p.oid
+                INNER JOIN pg_namespace n ON p.relnamespace = n.oid
+            WHERE p.relkind = 'p'
+                AND p.relname = ?
+                AND n.nspname = ?
+            ORDER BY c.relname
+        """;
+
+        List<String> partitions = new ArrayList<>();
+
+        for (Map<String, Object> row : connection.getListMap(sql, table, schema)) {
+            partitions.add((String) row.get("relname"));
+        }
+        return partitions;
+    }
+
+    @Override
+    public boolean triggerExists(final String schema, final String table, final String trigger) throws SQLException {
+        String query = "SELECT EXISTS ( " +
+                "      SELECT 1 " +
+                "      FROM pg_trigger trg " +
+                "        INNER JOIN pg_class tbl ON trg.tgrelid = tbl.oid " +
+                "        INNER JOIN pg_namespace n ON tbl.relnamespace = n.oid " +
+                "      WHERE trg.tgname = ? " +
+                "        AND tbl.relname = ? " +
+                "        AND n.nspname = ?" +
+                "  );";
+
+        return connection.getBoolean(query, trigger, table, schema);
+    }
+
+    @Override
+    public boolean functionExists(final String schema, final String function) throws SQLException {
+        String query = "SELECT EXISTS ( " +
+                "    select 1 " +
+                "    from pg_proc p " +
+                "        inner join pg_namespace n ON p.pronamespace = n.oid " +
+                "    where p.proname = ? " +
+                "        and n.nspname = ? " +
+                "  );";
+
+        return connection.getBoolean(query, function, schema);
+    }
+
+    @Override
+    public boolean sequenceExists(final String schema, final String sequence) throws SQLException {
+        String query = "SELECT EXISTS ( " +
+                "        SELECT 1 " +
+                "        FROM pg_sequences " +
+                "        WHERE sequencename = ? " +
+                "            AND schemaname = ? " +
+                "    );";
+
+        return connection.getBoolean(query, sequence, schema);
+    }
+
+    @Override
+    public boolean enumTypeExists(final String schema, final String type) throws SQLException {
+        String query = "SELECT EXISTS ( " +
+                "      SELECT 1 " +
+                "    FROM pg_type pt " +
+                "        INNER JOIN pg_namespace pn ON pt.typnamespace = pn.oid " +
+                "    WHERE pt.typname = ? " +
+                "        AND pt.typtype = 'e' " +
+                "        AND pn.nspname = ? " +
+                "  );";
+
+        return connection.getBoolean(query, type, schema);
+    }
+
+    @Override
+    public boolean enumValueExists(final String schema, final String type, final String value) throws SQLException {
+        String query = "SELECT EXISTS ( " +
+                "      SELECT 1 " +
+                "    FROM pg_enum pe " +
+                "        INNER JOIN pg_type pt ON pe.enumtypid = pt.oid " +
+                "        INNER JOIN pg_namespace pn ON pt.typnamespace = pn.oid " +
+                "    WHERE pt.typname = ? " +
+                "        AND pe.enumlabel = ? " +
+                "        AND pn.nspname = ? " +
+                "  );";
+
+        return connection.getBoolean(query, type, value, schema);
+    }
+
+    @Override
+    public boolean extensionAvailable(final String extension) throws SQLException {
+        return connection.getBoolean("SELECT EXISTS (SELECT 1 FROM pg_available_extensions WHERE name = ?)",
+                extension);
+    }
+
+    @Override
+    public int getServerVersion() throws SQLException {
+        return Integer.parseInt(connection.getString("SHOW server_version_num"));
+    }
+}
@@ -3,18 +3,168 @@ package org.voidzero.pgauditor;
 import org.voidzero.influx.cli.InfluxCli;
 import org.voidzero.influx.jdbc.InfluxConnection;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 
 public class Main {
-    public static void main(String[] args) throws SQLException {
+    /**
+     * The commands which may be passed as the first argument. The generate command is assumed when none is passed.
+     */
+    private static final List<String> COMMANDS = List.of("generate", "stats", "tail", "changelog", "snapshot", "archive",
+            "read-archive", "verify", "estimate", "restore");
+
+    public static void main(String[] args) throws SQLException, InterruptedException, IOException {
+        String command = "generate";
+
+        if (args.length > 0 && !args[0].startsWith("-")) {
+            command = args[0];
+            args = Arrays.copyOfRange(args, 1, args.length);
+
+            if (!COMMANDS.contains(command)) {
+                exit("Unknown command: " + command + ". Supported commands are: " + COMMANDS);
+            }
+        }
+
         InfluxCli cli = new InfluxCli();
         Configuration config = (Configuration) cli.bindOrExit(Configuration.class, args);
 
-        try (InfluxConnection connection = new InfluxConnection(DriverManager.getConnection(config.getConnectionString(), config.getUsername(), config.getPassword()))) {
-            PgAuditor pgAuditor = new PgAuditor(connection, config);
+        // Generating from a snapshot is the only mode which doesn't connect to PostgreSQL
+        if (config.getUsername() == null && !(command.equals("generate") && config.getFromSnapshot() != null)) {
+            exit("--username or PGUSER is required");
+        }
+
+        if (command.equals("generate") && !config.getBatch() && config.getRawTable() == null) {
+            exit("Table name is required");
+        }
+
+        if ((command.equals("archive") || command.equals("read-archive")) && config.getArchiveDir() == null) {
+            exit("--archive-dir is required by the " + command + " command");
+        }
+
+        if (command.equals("archive") && (config.getRawTable() == null || config.getUntil() == null)) {
+            exit("--table and --until are required by the archive command");
+        }
+
+        if (command.equals("verify") && config.getRawTable() == null) {
+            exit("--table is required by the verify command");
+        }
+
+        if (command.equals("restore")
+                && (config.getRawTable() == null || config.getAsOf() == null || config.getTarget() == null)) {
+            exit("--table, --as-of, and --target are required by the restore command");
+        }
+
+        if (command.equals("read-archive")) {
+            // Archives are read without a database
+            AuditArchive.read(config, new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8)));
+            return;
+        }
+
+        if (command.equals("generate") && config.getFromSnapshot() != null) {
+            CatalogSnapshot snapshot = CatalogSnapshot.read(Path.of(config.getFromSnapshot()));
+
+            if (config.getBatch()) {
+                BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+                Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+                new BatchGenerator(snapshot, config).run(in, out);
+                return;
+            }
+
+            PgAuditor pgAuditor = new PgAuditor(snapshot, config, null);
             pgAuditor.run();
             System.out.println(pgAuditor);
+            return;
+        }
+
+        if (command.equals("generate") && (config.getDatabases() != null || config.getDatabaseFile() != null)) {
+            if (config.getOutputDir() == null) {
+                exit("--output-dir is required when --databases or --database-file is passed");
+            }
+
+            if (!new FanOutGenerator(config).run()) {
+                System.exit(1);
+            }
+            return;
+        }
+
+        Connection jdbcConnection = DriverManager.getConnection(config.getConnectionString(), config.getUsername(), config.getPassword());
+
+        try (InfluxConnection connection = new InfluxConnection(jdbcConnection)) {
+            switch (command) {
+                case "stats" -> {
+                    AuditStats stats = new AuditStats(connection, config);
+                    stats.run();
+                    System.out.print(stats);
+                }
+                case "estimate" -> {
+                    AuditEstimate estimate = new AuditEstimate(connection, config);
+                    estimate.run();
+                    System.out.print(estimate);
+                }
+                case "tail" -> {
+                    Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+                    new AuditTail(jdbcConnection, connection, config, out).run();
+                }
+                case "changelog" -> {
+                    // Audit ids are only ordered within a schema, because each schema has its own audit sequence
+                    List<String> auditTables = new ArrayList<>();
+
+                    for (Map<String, Object> table : AuditedTables.find(connection, config)) {
+                        if (config.getSchema().equals(table.get("table_schema"))) {
+                            auditTables.add((String) table.get("audit_table"));
+                        }
+                    }
+
+                    Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+
+                    try (ChangeLog changeLog = new ChangeLog(jdbcConnection, config.getSchema(), auditTables,
+                            config.getSince(), config.getUntil(), ChangeLog.DEFAULT_FETCH_SIZE)) {
+                        while (changeLog.hasNext()) {
+                            out.write(changeLog.next().toString());
+                            out.write('\n');
+                        }
+                    }
+                    out.flush();
+                }
+                case "archive" -> new AuditArchive(jdbcConnection, config).run();
+                case "snapshot" -> System.out.print(CatalogSnapshot.capture(connection, config.getSchema()));
+                case "verify" -> {
+                    if (!new AuditVerify(config).run(jdbcConnection, connection)) {
+                        System.exit(1);
+                    }
+                }
+                case "restore" -> new AuditRestore(config).run(jdbcConnection, connection);
+                default -> {
+                    if (config.getBatch()) {
+                        BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+                        Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+                        new BatchGenerator(connection, config).run(in, out);
+                        return;
+                    }
+
+                    PgAuditor pgAuditor = new PgAuditor(connection, config);
+                    pgAuditor.run();
+                    System.out.println(pgAuditor);
+                }
+            }
         }
     }
+
+    private static void exit(final String message) {
+        System.err.println(message);
+        System.exit(2);
+    }
 }
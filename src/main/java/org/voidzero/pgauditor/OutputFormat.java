@@ -0,0 +1,7 @@
+package org.voidzero.pgauditor;
+
+public enum OutputFormat {
+    HUMAN,
+    JSON,
+    PROMETHEUS
+}
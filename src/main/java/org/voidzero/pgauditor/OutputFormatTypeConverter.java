@@ -0,0 +1,28 @@
+package org.voidzero.pgauditor;
+
+import org.voidzero.influx.cli.TypeConverter;
+import org.voidzero.influx.cli.exception.ParseException;
+
+public class OutputFormatTypeConverter implements TypeConverter<OutputFormat> {
+
+    @Override
+    public Class<OutputFormat> getType() {
+        return OutputFormat.class;
+    }
+
+    @Override
+    public OutputFormat read(String value) throws ParseException {
+        if (value == null) {
+            return null;
+        }
+        return OutputFormat.valueOf(value.trim().toUpperCase());
+    }
+
+    @Override
+    public String write(OutputFormat value) throws ParseException {
+        if (value == null) {
+            return null;
+        }
+        return value.name().toLowerCase();
+    }
+}
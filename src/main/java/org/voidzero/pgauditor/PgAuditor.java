@@ -1,11 +1,13 @@
 package org.voidzero.pgauditor;
 
 import org.voidzero.influx.jdbc.InfluxConnection;
-import org.voidzero.influx.jdbc.TableMetadata;
 
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import static org.voidzero.pgauditor.Authentication.ANONYMOUS;
 import static org.voidzero.pgauditor.Authentication.APPLICATION;
@@ -31,10 +33,118 @@ public class PgAuditor {
     private static final String SETTINGS_FUNCTION_NAME = "pgauditor_get_setting";
 
     /**
-     * The current user who has modified the database. This is only applicable in {@link Authentication} mode
-     * APPLICATION.
+     * When set to "on" by a member of the role passed to --bulk-role, per-row auditing is suppressed and a single
+     * summary record is written for each statement instead.
      */
-    private static final String AUTH_PROPERTY_NAME = "pgauditor.current_user";
+    private static final String BULK_PROPERTY_NAME = "pgauditor.bulk_load";
+
+    /**
+     * The name of the table which receives one summary record per statement while per-row auditing is suppressed. It
+     * is shared by all audited tables in a schema so that bulk operations can be reviewed in one place.
+     */
+    private static final String BULK_TABLE_NAME = "pgauditor_bulk_audit";
+
+    /**
+     * The name of the statement level trigger function which writes bulk summary records. It is shared by all audited
+     * tables in a schema because it only depends upon the trigger arguments and transition tables.
+     */
+    private static final String BULK_FUNCTION_NAME = "pgauditor_bulk_summary";
+
+    /**
+     * The channel on which audited tables announce that new audit records have been written. The payload of each
+     * notification is the schema qualified name of the audit table.
+     */
+    static final String NOTIFY_CHANNEL = "pgauditor";
+
+    /**
+     * The name of the statement level trigger function which sends notifications to {@link #NOTIFY_CHANNEL}. It is
+     * shared by all audited tables in a schema.
+     */
+    private static final String NOTIFY_FUNCTION_NAME = "pgauditor_notify";
+
+    /**
+     * Transaction local setting in which the statement triggers record the id of the current transaction. See --txid.
+     */
+    private static final String TXID_PROPERTY_NAME = "pgauditor.txid";
+
+    /**
+     * Prefix of the transaction local settings in which the statement trigger records the ordinal of the latest
+     * statement against each audited table. The prefix is followed by the schema and name of the table. See
+     * --statement-ordinal.
+     */
+    private static final String STATEMENT_PROPERTY_PREFIX = "pgauditor_statement";
+
+    /**
+     * Transaction local setting which counts the statements which have been run against audited tables.
+     */
+    private static final String STATEMENT_COUNT_PROPERTY_NAME = "pgauditor.statement_count";
+
+    /**
+     * The name of the statement level trigger function which maintains {@link #TXID_PROPERTY_NAME} and the settings
+     * named by {@link #STATEMENT_PROPERTY_PREFIX}. It is shared by all audited tables in a schema.
+     */
+    private static final String STATEMENT_FUNCTION_NAME = "pgauditor_statement";
+
+    /**
+     * The name of the function which returns every audit record written by one transaction, from every audit table in
+     * a schema which records transaction ids.
+     */
+    private static final String TRANSACTION_FUNCTION_NAME = "pgauditor_transaction";
+
+    /**
+     * The name of the table which counts audited changes per table, day, user, application_name, and operation. It is
+     * shared by all audited tables in a schema so that reports can cover every table with one small query.
+     */
+    private static final String ROLLUP_TABLE_NAME = "pgauditor_rollup";
+
+    /**
+     * The name of the statement level trigger function which adds the rows changed by a statement to
+     * {@link #ROLLUP_TABLE_NAME}. It is shared by all audited tables in a schema.
+     */
+    private static final String ROLLUP_FUNCTION_NAME = "pgauditor_rollup_count";
+
+    /**
+     * The number of counters which each combination of table, day, user, application_name, and operation is spread
+     * over. Each backend always updates the same one, so concurrent transactions rarely wait for each other's row
+     * locks on the same counter.
+     */
+    private static final int ROLLUP_SLOTS = 16;
+
+    /**
+     * The name of the function which computes the structural diff of two jsonb values, which is recorded in place of
+     * both values when --jsonb-diff is passed. It is shared by all audited tables in a schema.
+     */
+    private static final String JSONB_DIFF_FUNCTION_NAME = "pgauditor_jsonb_diff";
+
+    /**
+     * The name of the function which applies a structural diff to a jsonb value, forwards or backwards.
+     */
+    private static final String JSONB_PATCH_FUNCTION_NAME = "pgauditor_jsonb_patch";
+
+    /**
+     * The name of the aggregate which replays the audit records of a jsonb column, in audit id order, into the value
+     * which the column had after each one, and of its transition function.
+     */
+    private static final String JSONB_REPLAY_AGGREGATE_NAME = "pgauditor_jsonb_replay";
+    private static final String JSONB_REPLAY_FUNCTION_NAME = "pgauditor_jsonb_replay_step";
+
+    /**
+     * The name of the aggregate which returns the last value that it was given, including null, and of its transition
+     * function. The history view uses it to find the next recorded value of each column.
+     */
+    private static final String LAST_AGGREGATE_NAME = "pgauditor_last";
+    private static final String LAST_FUNCTION_NAME = "pgauditor_last_step";
+
+    /**
+     * The column types which the bloom extension has operator classes for, and which are therefore covered by
+     * --bloom-index. Values of the same types are hashed when the search signature is used instead.
+     */
+    static final List<String> BLOOM_TYPES = List.of("integer", "text", "character varying");
+
+    /**
+     * The maximum number of columns in an index. Wider sets of columns are covered by several bloom indexes.
+     */
+    static final int MAX_INDEX_COLUMNS = 32;
 
     /**
      * Configuration object which contains all configuration parameters which were extracted from environment variables
@@ -74,6 +184,17 @@ public class PgAuditor {
      */
     private final String deleteAuditFunctionName;
 
+    /**
+     * The name of the function which is invoked by the audit triggers in response to sql insert, update, and delete
+     * statements when --single-function is passed.
+     */
+    private final String singleAuditFunctionName;
+
+    /**
+     * The name of the function which is invoked by the audit triggers in response to sql truncate statements.
+     */
+    private final String truncateAuditFunctionName;
+
     /**
      * The name of the trigger which will fire when a record is inserted into the specified table.
      */
@@ -90,23 +211,144 @@ public class PgAuditor {
     private final String deleteTriggerName;
 
     /**
-     * The database connection which should be introspected.
+     * The name of the trigger which will fire when the specified table is truncated.
+     */
+    private final String truncateTriggerName;
+
+    /**
+     * The name of the statement level trigger which summarizes bulk inserts into the specified table.
+     */
+    private final String bulkInsertTriggerName;
+
+    /**
+     * The name of the statement level trigger which summarizes bulk updates to the specified table.
+     */
+    private final String bulkUpdateTriggerName;
+
+    /**
+     * The name of the statement level trigger which summarizes bulk deletes from the specified table.
+     */
+    private final String bulkDeleteTriggerName;
+
+    /**
+     * The name of the statement level trigger which announces changes to the specified table.
+     */
+    private final String notifyTriggerName;
+
+    /**
+     * The name of the statement level trigger which fires before each statement against the specified table.
+     */
+    private final String statementTriggerName;
+
+    /**
+     * The name of the statement level trigger which counts inserts into the specified table.
+     */
+    private final String rollupInsertTriggerName;
+
+    /**
+     * The name of the statement level trigger which counts updates to the specified table.
+     */
+    private final String rollupUpdateTriggerName;
+
+    /**
+     * The name of the statement level trigger which counts deletes from the specified table.
+     */
+    private final String rollupDeleteTriggerName;
+
+    /**
+     * The name of the statement level trigger which counts the rows removed from the specified table by truncation.
+     */
+    private final String rollupTruncateTriggerName;
+
+    /**
+     * The name of the function which returns the contents of the specified table as of a point in time.
+     */
+    private final String asOfFunctionName;
+
+    /**
+     * The name of the view which adds the new values of updates to audit records made with --old-values-only.
+     */
+    private final String historyViewName;
+
+    /**
+     * The name of the index on the new primary key columns of the audit table, which is used by the as-of function.
      */
-    private final InfluxConnection connection;
+    private final String newKeyIndexName;
+
+    /**
+     * The name of the index on the old primary key columns of the audit table, which is used by the as-of function.
+     */
+    private final String oldKeyIndexName;
+
+    /**
+     * The name of the GIN index on the changed_columns column of the audit table.
+     */
+    private final String changedColumnsIndexName;
+
+    /**
+     * The name of the index on the txid and statement_ordinal columns of the audit table.
+     */
+    private final String transactionIndexName;
+
+    /**
+     * The name of the bloom index on the old_ and new_ columns of the audit table, or of the GIN index on its search
+     * signature when the bloom extension isn't available.
+     */
+    private final String bloomIndexName;
+
+    /**
+     * Answers questions about the database, either by querying it or from a snapshot.
+     */
+    private final Catalog catalog;
 
     /**
      * This is used to capture the DDL output.
      */
     private final StringBuilder ddl = new StringBuilder();
 
+    /**
+     * Statements which must be committed before the main transaction starts, because it uses what they create.
+     */
+    private final StringBuilder beforeTransaction = new StringBuilder();
+
+    /**
+     * Statements which can't run inside a transaction block, or which shouldn't hold their locks for the whole of the
+     * main transaction, and which therefore follow it.
+     */
+    private final StringBuilder afterTransaction = new StringBuilder();
+
+    /**
+     * Times each phase of generation and each catalog query. See --verbose and --profile.
+     */
+    private final Profiler profiler;
+
+    /**
+     * Results of earlier catalog queries, which are reused when DDL is generated for many tables by one process. This
+     * is null when every query should go to the database.
+     */
+    private final CatalogCache cache;
+
     /**
      * Construct a new instance of this class.
      *
      * @param config User supplied parameters which are used to generate DDL
      */
     public PgAuditor(final InfluxConnection connection, final Configuration config) {
-        this.connection = connection;
+        this(new LiveCatalog(connection), config, null);
+    }
+
+    /**
+     * Construct a new instance of this class which takes catalog information from a cache when it can.
+     *
+     * @param catalog Answers questions about the database
+     * @param config User supplied parameters which are used to generate DDL
+     * @param cache Results of earlier catalog questions, which must have been validated for the schema of the table,
+     *              or null
+     */
+    PgAuditor(final Catalog catalog, final Configuration config, final CatalogCache cache) {
+        this.catalog = catalog;
         this.config = config;
+        this.cache = cache;
         this.table = config.getTableOnly();
         this.schema = config.getSchema();
         this.auditTableName = "aud_" + this.table;
@@ -118,132 +360,725 @@ public class PgAuditor {
          ati = Audit Trigger Insert
          atu = Audit Trigger Update
          atd = Audit Trigger Delete
+         att = Audit Trigger Truncate
          afi = Audit Function Insert
          afu = Audit Function Update
          afd = Audit Function Delete
+         aft = Audit Function Truncate
+         afa = Audit Function All
+         asi = Audit Statement trigger Insert
+         asu = Audit Statement trigger Update
+         asd = Audit Statement trigger Delete
+         atn = Audit Trigger Notify
+         ats = Audit Trigger Statement
+         ari = Audit Rollup Insert
+         aru = Audit Rollup Update
+         ard = Audit Rollup Delete
+         art = Audit Rollup Truncate
+         ain = Audit Index New key
+         aio = Audit Index Old key
+         aic = Audit Index Changed columns
+         aix = Audit Index transaction (Xact)
         */
         // TODO: Conditionally use readable names when the table name is sufficiently short
         this.insertTriggerName = "ati_" + this.auditTableName;
         this.updateTriggerName = "atu_" + this.auditTableName;
         this.deleteTriggerName = "atd_" + this.auditTableName;
+        this.truncateTriggerName = "att_" + this.auditTableName;
         this.insertAuditFunctionName = "afi_" + this.table;
         this.updateAuditFunctionName = "afu_" + this.table;
         this.deleteAuditFunctionName = "afd_" + this.table;
+        this.truncateAuditFunctionName = "aft_" + this.table;
+        this.singleAuditFunctionName = "afa_" + this.table;
+        this.bulkInsertTriggerName = "asi_" + this.auditTableName;
+        this.bulkUpdateTriggerName = "asu_" + this.auditTableName;
+        this.bulkDeleteTriggerName = "asd_" + this.auditTableName;
+        this.notifyTriggerName = "atn_" + this.auditTableName;
+        this.statementTriggerName = "ats_" + this.auditTableName;
+        this.rollupInsertTriggerName = "ari_" + this.auditTableName;
+        this.rollupUpdateTriggerName = "aru_" + this.auditTableName;
+        this.rollupDeleteTriggerName = "ard_" + this.auditTableName;
+        this.rollupTruncateTriggerName = "art_" + this.auditTableName;
+        this.newKeyIndexName = "ain_" + this.auditTableName;
+        this.oldKeyIndexName = "aio_" + this.auditTableName;
+        this.changedColumnsIndexName = "aic_" + this.auditTableName;
+        this.transactionIndexName = "aix_" + this.auditTableName;
+        this.bloomIndexName = "aib_" + this.auditTableName;
+        this.asOfFunctionName = this.auditTableName + "_as_of";
+        this.historyViewName = this.auditTableName + "_history";
+        this.profiler = new Profiler(config.getTableWithSchema(), config.getVerbose(), config.getProfile());
     }
 
     public void run() throws SQLException {
-        dropTriggers();
-        dropFunctions();
+        try {
+            generate();
+        } finally {
+            profiler.report();
+        }
+
+        // A value added to an enum type can't be used until the transaction which added it has committed, so the enum
+        // type is upgraded in a transaction of its own
+        if (!beforeTransaction.isEmpty()) {
+            ddl.insert(0, "BEGIN;\n" + beforeTransaction + "COMMIT;\n");
+        }
+        ddl.append(afterTransaction);
+    }
+
+    private void generate() throws SQLException {
+        // Everything is applied in one transaction, so the table is never visible without its triggers and a failure
+        // part of the way through leaves the previous triggers in place. The only exceptions are an upgrade of the
+        // enum type, which precedes it, and indexes on an existing audit table, which follow it. See run()
+        ddl.append("BEGIN;\n");
 
         if (config.getDrop()) {
-            // We don't need to drop anything here because the triggers have already been dropped and tables, once
-            // created, are never dropped for safety reasons. The sequence and enum type are never dropped because they
-            // very little space and leaving avoids the complexity of determining if they are still in use.
+            // Tables, once created, are never dropped for safety reasons. The sequence and enum type are never dropped
+            // because they take very little space and leaving them avoids the complexity of determining if they are
+            // still in use
+            profiler.phase("drop triggers", ddl, this::dropTriggers);
+            profiler.phase("drop functions", ddl, this::dropFunctions);
+            ddl.append("COMMIT;\n");
             return;
         }
 
-        createPgAuditorSettingFunction();
-        createSequence();
-        createEnumType();
-        createAuditTable();
+        if (config.getOldValuesOnly() && (config.getPointInTime() || config.getJsonbDiff())) {
+            throw new RuntimeException("--old-values-only can't be combined with --point-in-time or --jsonb-diff, "
+                    + "which record new values of updates");
+        }
+
+        profiler.phase("settings function", ddl, this::createPgAuditorSettingFunction);
+        profiler.phase("sequence", ddl, this::createSequence);
+        profiler.phase("enum type", ddl, this::createEnumType);
+        profiler.phase("audit table", ddl, this::createAuditTable);
+
+        if (config.getPointInTime()) {
+            profiler.phase("as-of indexes", ddl, this::createAsOfIndexes);
+        }
+
+        if (recordsChangedColumns()) {
+            profiler.phase("changed columns index", ddl, this::createChangedColumnsIndex);
+        }
+
+        if (config.getBloomIndex()) {
+            profiler.phase("bloom index", ddl, this::createBloomIndex);
+        }
+
+        if (config.getTxid()) {
+            profiler.phase("transaction index", ddl, this::createTransactionIndex);
+        }
+
+        if (config.getTxid() || config.getStatementOrdinal()) {
+            profiler.phase("statement function", ddl, this::createStatementFunction);
+        }
+
+        if (config.getTxid()) {
+            profiler.phase("transaction function", ddl, this::createTransactionFunction);
+        }
+
+        if (config.getBulkRole() != null) {
+            profiler.phase("bulk audit table", ddl, this::createBulkAuditTable);
+            profiler.phase("bulk summary function", ddl, this::createBulkSummaryFunction);
+        }
+
+        if (config.getRollup()) {
+            profiler.phase("rollup table", ddl, this::createRollupTable);
+            profiler.phase("rollup function", ddl, this::createRollupFunction);
+        }
+
+        if (config.getJsonbDiff()) {
+            profiler.phase("jsonb diff functions", ddl, this::createJsonbDiffFunctions);
+        }
+
         createAuditFunctions();
-        createTriggers();
+
+        if (config.getPointInTime()) {
+            profiler.phase("as-of function", ddl, this::createAsOfFunction);
+        }
+
+        if (config.getOldValuesOnly()) {
+            profiler.phase("last aggregate", ddl, this::createLastAggregate);
+            profiler.phase("history view", ddl, this::createHistoryView);
+        }
+
+        profiler.phase("triggers", ddl, this::createTriggers);
+
+        if (config.getTxid() || config.getStatementOrdinal()) {
+            profiler.phase("statement trigger", ddl, this::createStatementTrigger);
+        }
+
+        if (config.getBulkRole() != null) {
+            profiler.phase("bulk summary triggers", ddl, this::createBulkSummaryTriggers);
+        }
+
+        if (config.getRollup()) {
+            profiler.phase("rollup triggers", ddl, this::createRollupTriggers);
+        }
+
+        if (config.getNotify()) {
+            profiler.phase("notify function", ddl, this::createNotifyFunction);
+            profiler.phase("notify trigger", ddl, this::createNotifyTrigger);
+        }
+
+        // Triggers and functions which were replaced above are left alone. Only those which belong to options that are
+        // no longer enabled are dropped, and functions only after the triggers which used them have been repointed
+        profiler.phase("drop obsolete triggers", ddl, this::dropObsoleteTriggers);
+        profiler.phase("drop obsolete functions", ddl, this::dropObsoleteFunctions);
+        ddl.append("COMMIT;\n");
     }
 
-    private void createTriggers() {
+    private void createTriggers() throws SQLException {
+        // Per-row auditing is skipped by the trigger itself, rather than by the audit function, so that bulk loads
+        // don't pay for a plpgsql function call on every row. current_setting() is used instead of
+        // pgauditor_get_setting() for the same reason
+        String rowCondition = "";
+
+        if (config.getBulkRole() != null) {
+            rowCondition = " WHEN (current_setting('%s', true) IS DISTINCT FROM 'on' OR NOT pg_has_role('%s', 'MEMBER'))"
+                    .formatted(BULK_PROPERTY_NAME, config.getBulkRole().replace("'", "''"));
+        }
+
+        boolean single = config.getSingleFunction();
+        String create = createTriggerCommand(insertTriggerName, updateTriggerName, deleteTriggerName,
+                truncateTriggerName);
+
         ddl.append("""
-        CREATE TRIGGER %s AFTER INSERT ON %s.%s FOR EACH ROW EXECUTE PROCEDURE %s.%s();
-        CREATE TRIGGER %s AFTER UPDATE ON %s.%s FOR EACH ROW EXECUTE PROCEDURE %s.%s();
-        CREATE TRIGGER %s AFTER DELETE ON %s.%s FOR EACH ROW EXECUTE PROCEDURE %s.%s();
+        %s %s AFTER INSERT ON %s.%s FOR EACH ROW%s EXECUTE PROCEDURE %s.%s();
+        %s %s AFTER UPDATE ON %s.%s FOR EACH ROW%s EXECUTE PROCEDURE %s.%s();
+        %s %s AFTER DELETE ON %s.%s FOR EACH ROW%s EXECUTE PROCEDURE %s.%s();
+        %s %s BEFORE TRUNCATE ON %s.%s FOR EACH STATEMENT EXECUTE PROCEDURE %s.%s();
         """.formatted(
+                create,
                 insertTriggerName,
                 schema,
                 table,
+                rowCondition,
                 schema,
-                insertAuditFunctionName,
+                single ? singleAuditFunctionName : insertAuditFunctionName,
+                create,
                 updateTriggerName,
                 schema,
                 table,
+                rowCondition,
                 schema,
-                updateAuditFunctionName,
+                single ? singleAuditFunctionName : updateAuditFunctionName,
+                create,
                 deleteTriggerName,
                 schema,
                 table,
+                rowCondition,
+                schema,
+                single ? singleAuditFunctionName : deleteAuditFunctionName,
+                create,
+                truncateTriggerName,
+                schema,
+                table,
                 schema,
-                deleteAuditFunctionName
+                truncateAuditFunctionName
         ));
     }
 
-    private List<Map<String, Object>> getColumns(final String schema, final String table) throws SQLException {
-        String sql = """
-            SELECT
-                column_name,
-                data_type as column_type
-            FROM information_schema.columns
-            WHERE table_name = ?
-              AND table_schema = ?
-            ORDER BY ordinal_position
-        """;
+    private void createBulkSummaryTriggers() throws SQLException {
+        // Transition tables cannot be declared on triggers which handle more than one event, so each operation needs
+        // its own trigger. The trigger arguments tell the shared function how the current user should be identified
+        String statementCondition = "WHEN (current_setting('%s', true) = 'on' AND pg_has_role('%s', 'MEMBER'))"
+                .formatted(BULK_PROPERTY_NAME, config.getBulkRole().replace("'", "''"));
+        String arguments = "'%s', '%s'".formatted(config.getAuthentication().name(),
+                config.getConfigProperty().replace("'", "''"));
+        String create = createTriggerCommand(bulkInsertTriggerName, bulkUpdateTriggerName, bulkDeleteTriggerName);
 
-        return connection.getListMap(sql, table, schema);
+        ddl.append("""
+        %s %s AFTER INSERT ON %s.%s REFERENCING NEW TABLE AS pgauditor_new_rows FOR EACH STATEMENT %s EXECUTE PROCEDURE %s.%s(%s);
+        %s %s AFTER UPDATE ON %s.%s REFERENCING NEW TABLE AS pgauditor_new_rows FOR EACH STATEMENT %s EXECUTE PROCEDURE %s.%s(%s);
+        %s %s AFTER DELETE ON %s.%s REFERENCING OLD TABLE AS pgauditor_old_rows FOR EACH STATEMENT %s EXECUTE PROCEDURE %s.%s(%s);
+        """.formatted(
+                create,
+                bulkInsertTriggerName,
+                schema,
+                table,
+                statementCondition,
+                schema,
+                BULK_FUNCTION_NAME,
+                arguments,
+                create,
+                bulkUpdateTriggerName,
+                schema,
+                table,
+                statementCondition,
+                schema,
+                BULK_FUNCTION_NAME,
+                arguments,
+                create,
+                bulkDeleteTriggerName,
+                schema,
+                table,
+                statementCondition,
+                schema,
+                BULK_FUNCTION_NAME,
+                arguments
+        ));
     }
 
-    private void createInsertAuditFunction() throws SQLException {
-
-        String authenticationCheck;
+    private void createNotifyTrigger() throws SQLException {
+        // A statement level trigger sends at most one notification per statement, no matter how many rows it changes.
+        // PostgreSQL also folds identical notifications within a transaction into one
+        ddl.append("""
+        %s %s AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON %s.%s FOR EACH STATEMENT EXECUTE PROCEDURE %s.%s();
+        """.formatted(
+                createTriggerCommand(notifyTriggerName),
+                notifyTriggerName,
+                schema,
+                table,
+                schema,
+                NOTIFY_FUNCTION_NAME
+        ));
+    }
 
-        Authentication authentication = config.getAuthentication();
+    private void createNotifyFunction() throws SQLException {
+        ddl.append("""
+        \nCREATE OR REPLACE FUNCTION %s.%s() RETURNS TRIGGER
+        AS
+        $BODY$
+        BEGIN
+            PERFORM pg_notify('%s', TG_TABLE_SCHEMA || '.aud_' || TG_TABLE_NAME);
+            RETURN NULL;
+        END
+        $BODY$
+        LANGUAGE plpgsql VOLATILE;
+        """.formatted(schema, NOTIFY_FUNCTION_NAME, NOTIFY_CHANNEL));
+    }
 
-        if (authentication.equals(APPLICATION)) {
-            // This fragment is only necessary for APPLICATION authentication where the current user must be
-            // identified by the client application prior to modifying the database
-            authenticationCheck = """
-                            SELECT INTO changed_by_var pgauditor_get_setting('%s');
-                            IF changed_by_var is null or trim(changed_by_var) = '' THEN
-                                RAISE EXCEPTION 'Anonymous updates are not permitted for audited table %s.%s. To identify the user making the change, pass a user id or username to the following query: SET [LOCAL] "%s"=<user>';
-                            END IF;
-                    """.formatted(
-                    AUTH_PROPERTY_NAME,
-                    schema,
-                    table,
-                    AUTH_PROPERTY_NAME
+    private void createBulkAuditTable() throws SQLException {
+        if (!tableExists(BULK_TABLE_NAME)) {
+            ddl.append("""
+            \nCREATE TABLE IF NOT EXISTS %s.%s(
+                audit_id bigint UNIQUE NOT NULL DEFAULT nextval('%s.%s')
+                ,operation %s.%s
+                ,table_schema text
+                ,table_name text
+                ,row_count bigint
+                ,changed_by text
+                ,application_name text
+                ,changed_at timestamp with time zone
             );
-        } else if (authentication.equals(DATABASE)) {
-            authenticationCheck = "select into changed_by_var current_user;";
-        } else if (authentication.equals(ANONYMOUS)) {
-            authenticationCheck = "";
-        } else {
-            throw new RuntimeException("Unsupported authentication type: " + authentication);
+            """.formatted(schema, BULK_TABLE_NAME, schema, SEQUENCE_NAME, schema, ENUM_TYPE_NAME));
         }
+    }
 
-        StringBuilder columnDeclarations = new StringBuilder();
-        StringBuilder captureInserts = new StringBuilder();
-        StringBuilder insertColumnNames = new StringBuilder();
-        StringBuilder insertColumnValues = new StringBuilder();
-
-        Boolean applicationName = config.getApplicationName();
-
-        for (Map<String, Object> column : getColumns(schema, table)) {
-            String columnName = (String) column.get("column_name");
-            String columnType = (String) column.get("column_type");
-
-            columnDeclarations.append("""
-                old_%s_var %s := NULL;
-                new_%s_var %s := NULL;
-            """.formatted(
-                    columnName,
-                    columnType,
-                    columnName,
-                    columnType
-            ));
+    private void createBulkSummaryFunction() throws SQLException {
+        // I'm not using a string builder here because it would make the audit function unreadable
+        ddl.append("""
+        \nCREATE OR REPLACE FUNCTION %s.%s() RETURNS TRIGGER
+        AS
+        $BODY$
+        DECLARE
+            changed_by_var text := NULL;
+            row_count_var bigint := 0;
+            new_key_var text;
+            old_key_var text;
+        BEGIN
+            IF TG_ARGV[0] = 'APPLICATION' THEN
+                SELECT INTO changed_by_var %s.%s(TG_ARGV[1]);
+            ELSIF TG_ARGV[0] = 'DATABASE' THEN
+                SELECT INTO changed_by_var current_user;
+            END IF;
 
-            captureInserts.append("""
-                new_%s_var := NEW.%s;
-            """.replaceAll("%s", columnName));
+            IF TG_OP = 'DELETE' THEN
+                SELECT INTO row_count_var count(*) FROM pgauditor_old_rows;
+            ELSE
+                SELECT INTO row_count_var count(*) FROM pgauditor_new_rows;
+            END IF;
 
-            insertColumnNames.append("""
-                    ,old_%s
-                    ,new_%s
+            INSERT INTO %s.%s(
+                audit_id
+                ,operation
+                ,table_schema
+                ,table_name
+                ,row_count
+                ,changed_by
+                ,application_name
+                ,changed_at
+            ) values(
+                nextval('%s.%s')
+                ,TG_OP::%s.%s
+                ,TG_TABLE_SCHEMA
+                ,TG_TABLE_NAME
+                ,row_count_var
+                ,changed_by_var
+                ,%s.%s('application_name')
+                ,current_timestamp
+            );
+            RETURN NULL;
+        END
+        $BODY$
+        LANGUAGE plpgsql VOLATILE;
+        """.formatted(
+                schema,
+                BULK_FUNCTION_NAME,
+                schema,
+                SETTINGS_FUNCTION_NAME,
+                schema,
+                BULK_TABLE_NAME,
+                schema,
+                SEQUENCE_NAME,
+                schema,
+                ENUM_TYPE_NAME,
+                schema,
+                SETTINGS_FUNCTION_NAME
+        ));
+    }
+
+    private void createRollupTriggers() throws SQLException {
+        // Rows which are skipped by the row level triggers, because they were bulk loaded, aren't counted either. The
+        // trigger arguments tell the shared function how the current user should be identified
+        String statementCondition = "";
+
+        if (config.getBulkRole() != null) {
+            statementCondition = "WHEN (current_setting('%s', true) IS DISTINCT FROM 'on' OR NOT pg_has_role('%s', 'MEMBER')) "
+                    .formatted(BULK_PROPERTY_NAME, config.getBulkRole().replace("'", "''"));
+        }
+
+        String arguments = "'%s', '%s'".formatted(config.getAuthentication().name(),
+                config.getConfigProperty().replace("'", "''"));
+
+        // The remaining arguments are the primary key columns, which pair the old and new rows of an update
+        for (String keyColumn : lookup("primary key", () -> catalog.getPrimaryKeyColumns(schema, table), table)) {
+            arguments += ", '%s'".formatted(keyColumn.replace("'", "''"));
+        }
+
+        String create = createTriggerCommand(rollupInsertTriggerName, rollupUpdateTriggerName, rollupDeleteTriggerName,
+                rollupTruncateTriggerName);
+
+        ddl.append("""
+        %s %s AFTER INSERT ON %s.%s REFERENCING NEW TABLE AS pgauditor_new_rows FOR EACH STATEMENT %sEXECUTE PROCEDURE %s.%s(%s);
+        %s %s AFTER UPDATE ON %s.%s REFERENCING OLD TABLE AS pgauditor_old_rows NEW TABLE AS pgauditor_new_rows FOR EACH STATEMENT %sEXECUTE PROCEDURE %s.%s(%s);
+        %s %s AFTER DELETE ON %s.%s REFERENCING OLD TABLE AS pgauditor_old_rows FOR EACH STATEMENT %sEXECUTE PROCEDURE %s.%s(%s);
+        %s %s BEFORE TRUNCATE ON %s.%s FOR EACH STATEMENT EXECUTE PROCEDURE %s.%s(%s);
+        """.formatted(
+                create,
+                rollupInsertTriggerName,
+                schema,
+                table,
+                statementCondition,
+                schema,
+                ROLLUP_FUNCTION_NAME,
+                arguments,
+                create,
+                rollupUpdateTriggerName,
+                schema,
+                table,
+                statementCondition,
+                schema,
+                ROLLUP_FUNCTION_NAME,
+                arguments,
+                create,
+                rollupDeleteTriggerName,
+                schema,
+                table,
+                statementCondition,
+                schema,
+                ROLLUP_FUNCTION_NAME,
+                arguments,
+                create,
+                rollupTruncateTriggerName,
+                schema,
+                table,
+                schema,
+                ROLLUP_FUNCTION_NAME,
+                arguments
+        ));
+    }
+
+    private void createRollupTable() throws SQLException {
+        // Key columns can't be null, so changed_by and application_name are empty strings when they are unknown
+        if (!tableExists(ROLLUP_TABLE_NAME)) {
+            ddl.append("""
+            \nCREATE TABLE IF NOT EXISTS %s.%s(
+                table_schema text NOT NULL
+                ,table_name text NOT NULL
+                ,day date NOT NULL
+                ,changed_by text NOT NULL
+                ,application_name text NOT NULL
+                ,operation %s.%s NOT NULL
+                ,slot smallint NOT NULL
+                ,row_count bigint NOT NULL
+                ,PRIMARY KEY (table_schema, table_name, day, changed_by, application_name, operation, slot)
+            );
+            """.formatted(schema, ROLLUP_TABLE_NAME, schema, ENUM_TYPE_NAME));
+        }
+    }
+
+    private void createRollupFunction() throws SQLException {
+        // Updates which don't change anything aren't audited, so an updated row is only counted when it differs from
+        // the old row with the same primary key, or when no old row has its key. Rows are compared as jsonb because
+        // some column types, such as json, have no equality operator. The old and new rows of a table without a
+        // primary key can't be paired, so every row which its updates touch is counted
+        ddl.append("""
+        \nCREATE OR REPLACE FUNCTION %s.%s() RETURNS TRIGGER
+        AS
+        $BODY$
+        DECLARE
+            changed_by_var text := NULL;
+            row_count_var bigint := 0;
+            new_key_var text;
+            old_key_var text;
+        BEGIN
+            IF TG_ARGV[0] = 'APPLICATION' THEN
+                SELECT INTO changed_by_var %s.%s(TG_ARGV[1]);
+            ELSIF TG_ARGV[0] = 'DATABASE' THEN
+                SELECT INTO changed_by_var current_user;
+            END IF;
+
+            IF TG_OP = 'INSERT' THEN
+                SELECT INTO row_count_var count(*) FROM pgauditor_new_rows;
+            ELSIF TG_OP = 'UPDATE' AND TG_NARGS > 2 THEN
+                SELECT INTO new_key_var, old_key_var
+                    string_agg(format('n.%%I', k), ', '), string_agg(format('o.%%I', k), ', ')
+                FROM unnest(TG_ARGV[2:]) k;
+
+                EXECUTE format('SELECT count(*) FROM pgauditor_new_rows n '
+                    'LEFT JOIN pgauditor_old_rows o ON (%%s) = (%%s) '
+                    'WHERE to_jsonb(n) IS DISTINCT FROM to_jsonb(o)', new_key_var, old_key_var) INTO row_count_var;
+            ELSIF TG_OP = 'UPDATE' THEN
+                SELECT INTO row_count_var count(*) FROM pgauditor_new_rows;
+            ELSIF TG_OP = 'DELETE' THEN
+                SELECT INTO row_count_var count(*) FROM pgauditor_old_rows;
+            ELSE
+                EXECUTE format('SELECT count(*) FROM %%I.%%I', TG_TABLE_SCHEMA, TG_TABLE_NAME) INTO row_count_var;
+            END IF;
+
+            IF row_count_var > 0 THEN
+                INSERT INTO %s.%s AS r(
+                    table_schema
+                    ,table_name
+                    ,day
+                    ,changed_by
+                    ,application_name
+                    ,operation
+                    ,slot
+                    ,row_count
+                ) values(
+                    TG_TABLE_SCHEMA
+                    ,TG_TABLE_NAME
+                    ,(current_timestamp AT TIME ZONE 'UTC')::date
+                    ,coalesce(changed_by_var, '')
+                    ,coalesce(%s.%s('application_name'), '')
+                    ,TG_OP::%s.%s
+                    ,pg_backend_pid() %% %d
+                    ,row_count_var
+                ) ON CONFLICT (table_schema, table_name, day, changed_by, application_name, operation, slot)
+                DO UPDATE SET row_count = r.row_count + excluded.row_count;
+            END IF;
+            RETURN NULL;
+        END
+        $BODY$
+        LANGUAGE plpgsql VOLATILE;
+        """.formatted(
+                schema,
+                ROLLUP_FUNCTION_NAME,
+                schema,
+                SETTINGS_FUNCTION_NAME,
+                schema,
+                ROLLUP_TABLE_NAME,
+                schema,
+                SETTINGS_FUNCTION_NAME,
+                schema,
+                ENUM_TYPE_NAME,
+                ROLLUP_SLOTS
+        ));
+    }
+
+    private void createJsonbDiffFunctions() throws SQLException {
+        // Objects are compared key by key and arrays of the same length element by element, so that a change deep
+        // inside a large document is recorded as one small change. Anything else is replaced whole. A change has no
+        // "old" or "new" when the value is missing on that side, which is how a removed key differs from a JSON null
+        ddl.append("""
+        \nCREATE OR REPLACE FUNCTION %s.%s(old_value jsonb, new_value jsonb, at_path text[] DEFAULT '{}')
+        RETURNS jsonb
+        AS
+        $BODY$
+        DECLARE
+            changes jsonb := '[]';
+            member text;
+        BEGIN
+            IF old_value IS NOT DISTINCT FROM new_value THEN
+                RETURN changes;
+            ELSIF jsonb_typeof(old_value) = 'object' AND jsonb_typeof(new_value) = 'object' THEN
+                FOR member IN SELECT jsonb_object_keys(old_value) UNION SELECT jsonb_object_keys(new_value) LOOP
+                    changes := changes || %s.%s(old_value -> member, new_value -> member, at_path || member);
+                END LOOP;
+                RETURN changes;
+            ELSIF jsonb_typeof(old_value) = 'array' AND jsonb_typeof(new_value) = 'array'
+                    AND jsonb_array_length(old_value) = jsonb_array_length(new_value) THEN
+                FOR i IN 0 .. jsonb_array_length(old_value) - 1 LOOP
+                    changes := changes || %s.%s(old_value -> i, new_value -> i, at_path || i::text);
+                END LOOP;
+                RETURN changes;
+            END IF;
+
+            RETURN jsonb_build_array(jsonb_build_object('path', to_jsonb(at_path))
+                || CASE WHEN old_value IS NULL THEN '{}' ELSE jsonb_build_object('old', old_value) END
+                || CASE WHEN new_value IS NULL THEN '{}' ELSE jsonb_build_object('new', new_value) END);
+        END
+        $BODY$
+        LANGUAGE plpgsql IMMUTABLE;
+
+        CREATE OR REPLACE FUNCTION %s.%s(document jsonb, changes jsonb, reverse boolean DEFAULT false)
+        RETURNS jsonb
+        AS
+        $BODY$
+        DECLARE
+            change jsonb;
+            side text := CASE WHEN reverse THEN 'old' ELSE 'new' END;
+            at_path text[];
+        BEGIN
+            FOR change IN SELECT jsonb_array_elements(changes) LOOP
+                at_path := ARRAY(SELECT jsonb_array_elements_text(change -> 'path'));
+
+                IF cardinality(at_path) = 0 THEN
+                    document := change -> side;
+                ELSIF change ? side THEN
+                    document := jsonb_set(document, at_path, change -> side);
+                ELSE
+                    document := document #- at_path;
+                END IF;
+            END LOOP;
+            RETURN document;
+        END
+        $BODY$
+        LANGUAGE plpgsql IMMUTABLE;
+
+        CREATE OR REPLACE FUNCTION %s.%s(document jsonb, operation %s.%s, whole jsonb, changes jsonb)
+        RETURNS jsonb
+        AS
+        $BODY$
+            SELECT CASE operation
+                WHEN 'INSERT' THEN whole
+                WHEN 'UPDATE' THEN coalesce(whole, %s.%s(document, changes))
+            END
+        $BODY$
+        LANGUAGE sql IMMUTABLE;
+        """.formatted(
+                schema,
+                JSONB_DIFF_FUNCTION_NAME,
+                schema,
+                JSONB_DIFF_FUNCTION_NAME,
+                schema,
+                JSONB_DIFF_FUNCTION_NAME,
+                schema,
+                JSONB_PATCH_FUNCTION_NAME,
+                schema,
+                JSONB_REPLAY_FUNCTION_NAME,
+                schema,
+                ENUM_TYPE_NAME,
+                schema,
+                JSONB_PATCH_FUNCTION_NAME
+        ));
+
+        createAggregate(JSONB_REPLAY_AGGREGATE_NAME, "%s.%s, jsonb, jsonb".formatted(schema, ENUM_TYPE_NAME),
+                JSONB_REPLAY_FUNCTION_NAME, "jsonb");
+    }
+
+    /**
+     * Whether updates of a column are recorded as a structural diff rather than as its old and new values.
+     */
+    private boolean isDiffed(final Map<String, Object> column) {
+        return config.getJsonbDiff() && "jsonb".equals(column.get("data_type"));
+    }
+
+    /**
+     * The primary key columns whose old and new values every update records. The as-of function needs them, and so
+     * does replaying the diffs of a row in order, but when only diffs need them a table without a primary key is
+     * allowed. The new key is recorded too, even when it didn't change, because an update which records only its old
+     * key would look like one which changed the key, and therefore removed the row, to the verify command.
+     */
+    private List<String> getUpdateKeyColumns() throws SQLException {
+        if (config.getPointInTime()) {
+            return getPrimaryKeyColumns();
+        }
+
+        if (config.getOldValuesOnly()) {
+            List<String> columns = lookup("primary key", () -> catalog.getPrimaryKeyColumns(schema, table), table);
+
+            if (columns.isEmpty()) {
+                throw new RuntimeException("--old-values-only requires a primary key but %s.%s does not have one"
+                        .formatted(schema, table));
+            }
+            return columns;
+        }
+
+        for (Map<String, Object> column : getColumns()) {
+            if (isDiffed(column)) {
+                return lookup("primary key", () -> catalog.getPrimaryKeyColumns(schema, table), table);
+            }
+        }
+        return List.of();
+    }
+
+    private List<Map<String, Object>> getColumns() throws SQLException {
+        return lookup("columns", () -> catalog.getColumns(schema, table), table);
+    }
+
+    /**
+     * Creates the fragment of an audit function which populates changed_by_var according to the configured
+     * {@link Authentication} mode.
+     */
+    private String createAuthenticationCheck() {
+        Authentication authentication = config.getAuthentication();
+
+        if (authentication.equals(APPLICATION)) {
+            // This fragment is only necessary for APPLICATION authentication where the current user must be
+            // identified by the client application prior to modifying the database
+            return """
+                            SELECT INTO changed_by_var pgauditor_get_setting('%s');
+                            IF changed_by_var is null or trim(changed_by_var) = '' THEN
+                                RAISE EXCEPTION 'Anonymous updates are not permitted for audited table %s.%s. To identify the user making the change, pass a user id or username to the following query: SET [LOCAL] "%s"=<user>';
+                            END IF;
+                    """.formatted(
+                    config.getConfigProperty().replace("'", "''"),
+                    schema,
+                    table,
+                    config.getConfigProperty().replace("'", "''")
+            );
+        } else if (authentication.equals(DATABASE)) {
+            return "select into changed_by_var current_user;";
+        } else if (authentication.equals(ANONYMOUS)) {
+            return "";
+        } else {
+            throw new RuntimeException("Unsupported authentication type: " + authentication);
+        }
+    }
+
+    private void createInsertAuditFunction() throws SQLException {
+
+        String authenticationCheck = createAuthenticationCheck();
+
+        StringBuilder columnDeclarations = new StringBuilder();
+        StringBuilder captureInserts = new StringBuilder();
+        StringBuilder insertColumnNames = new StringBuilder();
+        StringBuilder insertColumnValues = new StringBuilder();
+
+        Boolean applicationName = config.getApplicationName();
+
+        for (Map<String, Object> column : getColumns()) {
+            String columnName = (String) column.get("column_name");
+            String columnType = (String) column.get("data_type");
+
+            columnDeclarations.append("""
+                old_%s_var %s := NULL;
+                new_%s_var %s := NULL;
+            """.formatted(
+                    columnName,
+                    columnType,
+                    columnName,
+                    columnType
+            ));
+
+            captureInserts.append("""
+                new_%s_var := NEW.%s;
+            """.replaceAll("%s", columnName));
+
+            insertColumnNames.append("""
+                    ,old_%s
+                    ,new_%s
             """.replaceAll("%s", columnName));
 
             insertColumnValues.append("""
@@ -264,6 +1099,8 @@ public class PgAuditor {
             auditTableInsert.append("            ,application_name\n");
         }
 
+        auditTableInsert.append(transactionColumnNames());
+
         auditTableInsert.append(insertColumnNames).append("""
             ) values(
                 nextval('%s.%s')
@@ -276,6 +1113,8 @@ public class PgAuditor {
             auditTableInsert.append("            ,pgauditor_get_setting('application_name')\n");
         }
 
+        auditTableInsert.append(transactionColumnValues());
+
         auditTableInsert.append(insertColumnValues).append("    );\n");
 
         // I'm not using a string builder here because it would make the audit function unreadable
@@ -307,31 +1146,7 @@ public class PgAuditor {
 
     private void createUpdateAuditFunction() throws SQLException {
 
-        String authenticationCheck;
-
-        Authentication authentication = config.getAuthentication();
-
-        if (authentication.equals(APPLICATION)) {
-            // This fragment is only necessary for APPLICATION authentication where the current user must be
-            // identified by the client application prior to modifying the database
-            authenticationCheck = """
-                            SELECT INTO changed_by_var pgauditor_get_setting('%s');
-                            IF changed_by_var is null or trim(changed_by_var) = '' THEN
-                                RAISE EXCEPTION 'Anonymous updates are not permitted for audited table %s.%s. To identify the user making the change, pass a user id or username to the following query: SET [LOCAL] "%s"=<user>';
-                            END IF;
-                    """.formatted(
-                    AUTH_PROPERTY_NAME,
-                    schema,
-                    table,
-                    AUTH_PROPERTY_NAME
-            );
-        } else if (authentication.equals(DATABASE)) {
-            authenticationCheck = "select into changed_by_var current_user;";
-        } else if (authentication.equals(ANONYMOUS)) {
-            authenticationCheck = "";
-        } else {
-            throw new RuntimeException("Unsupported authentication type: " + authentication);
-        }
+        String authenticationCheck = createAuthenticationCheck();
 
         StringBuilder columnDeclarations = new StringBuilder();
         StringBuilder captureUpdates = new StringBuilder();
@@ -340,9 +1155,9 @@ public class PgAuditor {
 
         Boolean applicationName = config.getApplicationName();
 
-        for (Map<String, Object> column : getColumns(schema, table)) {
+        for (Map<String, Object> column : getColumns()) {
             String columnName = (String) column.get("column_name");
-            String columnType = (String) column.get("column_type");
+            String columnType = (String) column.get("data_type");
 
             columnDeclarations.append("""
                 old_%s_var %s := NULL;
@@ -356,13 +1171,49 @@ public class PgAuditor {
 
             // TODO: Use pg_version_num() to use "is distinct from" from PostgreSQL 9.1 onwards and the more verbose
             //  backwards compatible way prior to 9.1
+            if (isDiffed(column)) {
+                columnDeclarations.append("""
+                    diff_%s_var jsonb := NULL;
+                """.formatted(columnName));
+
+                captureUpdates.append("""
+                    IF (OLD.%s is distinct from NEW.%s) THEN
+                        diff_%s_var := %s.%s(OLD.%s, NEW.%s);
+                        change_count := change_count + 1;
+                """.formatted(columnName, columnName, columnName, schema, JSONB_DIFF_FUNCTION_NAME, columnName,
+                        columnName));
+
+                insertColumnNames.append("""
+                            ,diff_%s
+                """.formatted(columnName));
+
+                insertColumnValues.append("""
+                            ,diff_%s_var
+                """.formatted(columnName));
+            } else if (config.getOldValuesOnly()) {
+                captureUpdates.append("""
+                    IF (OLD.%s is distinct from NEW.%s) THEN
+                        old_%s_var := OLD.%s;
+                        change_count := change_count + 1;
+                """.replaceAll("%s", columnName));
+            } else {
+                captureUpdates.append("""
+                    IF (OLD.%s is distinct from NEW.%s) THEN
+                        old_%s_var := OLD.%s;
+                        new_%s_var := NEW.%s;
+                        change_count := change_count + 1;
+                """.replaceAll("%s", columnName));
+            }
+
+            if (recordsChangedColumns()) {
+                captureUpdates.append("""
+                        changed_columns_var := changed_columns_var || %d::int2;
+                """.formatted(getColumnNumber(column)));
+            }
+
             captureUpdates.append("""
-                IF (OLD.%s is distinct from NEW.%s) THEN
-                    old_%s_var := OLD.%s;
-                    new_%s_var := NEW.%s;
-                    change_count := change_count + 1;
                 END IF;
-            """.replaceAll("%s", columnName));
+            """);
 
             insertColumnNames.append("""
                         ,old_%s
@@ -375,6 +1226,46 @@ public class PgAuditor {
             """.replaceAll("%s", columnName));
         }
 
+        if (config.getPointInTime()) {
+            // The as-of function needs the whole row after every update and the key which the row had before it, so
+            // that each audit record is enough to reconstruct the row without reading the records which preceded it
+            for (Map<String, Object> column : getColumns()) {
+                captureUpdates.append("""
+                    new_%s_var := NEW.%s;
+                """.replaceAll("%s", (String) column.get("column_name")));
+            }
+        }
+
+        for (String columnName : getUpdateKeyColumns()) {
+            captureUpdates.append("""
+                old_%s_var := OLD.%s;
+            """.replaceAll("%s", columnName));
+
+            if (!config.getPointInTime()) {
+                captureUpdates.append("""
+                    new_%s_var := NEW.%s;
+                """.replaceAll("%s", columnName));
+            }
+        }
+
+        if (config.getOldValuesOnly()) {
+            // Later audit records of a row are found by its key, so an update which changes the key is recorded whole,
+            // like a delete followed by an insert
+            StringBuilder wholeRow = new StringBuilder();
+
+            for (Map<String, Object> column : getColumns()) {
+                wholeRow.append("""
+                        old_%s_var := OLD.%s;
+                        new_%s_var := NEW.%s;
+                """.replaceAll("%s", (String) column.get("column_name")));
+            }
+
+            captureUpdates.append("""
+                IF %s THEN
+            %s    END IF;
+            """.formatted(createKeyChangedCondition(getUpdateKeyColumns()), wholeRow));
+        }
+
         StringBuilder auditTableInsert = new StringBuilder("""
                 INSERT INTO %s.%s(
                     audit_id
@@ -387,6 +1278,12 @@ public class PgAuditor {
             auditTableInsert.append("            ,application_name\n");
         }
 
+        auditTableInsert.append(transactionColumnNames());
+
+        if (recordsChangedColumns()) {
+            auditTableInsert.append("            ,changed_columns\n");
+        }
+
         auditTableInsert.append(insertColumnNames).append("""
                 ) values(
                     nextval('%s.%s')
@@ -399,6 +1296,12 @@ public class PgAuditor {
             auditTableInsert.append("            ,pgauditor_get_setting('application_name')\n");
         }
 
+        auditTableInsert.append(transactionColumnValues());
+
+        if (recordsChangedColumns()) {
+            auditTableInsert.append("            ,changed_columns_var\n");
+        }
+
         auditTableInsert.append(insertColumnValues).append("        );\n");
 
         // I'm not using a string builder here because it would make the audit function unreadable
@@ -410,7 +1313,7 @@ public class PgAuditor {
             changed_by_var text := NULL;
             changed_at_var timestamp with time zone := current_timestamp;
             change_count INT := 0;
-        %sBEGIN
+        %s%sBEGIN
             %s
         
         %s
@@ -423,6 +1326,7 @@ public class PgAuditor {
         LANGUAGE plpgsql VOLATILE;
         """.formatted(
                 updateAuditFunctionName,
+                recordsChangedColumns() ? "    changed_columns_var int2[] := '{}';\n" : "",
                 columnDeclarations.toString(),
                 authenticationCheck,
                 captureUpdates.toString(),
@@ -434,31 +1338,7 @@ public class PgAuditor {
 
     private void createDeleteAuditFunction() throws SQLException {
 
-        String authenticationCheck;
-
-        Authentication authentication = config.getAuthentication();
-
-        if (authentication.equals(APPLICATION)) {
-            // This fragment is only necessary for APPLICATION authentication where the current user must be
-            // identified by the client application prior to modifying the database
-            authenticationCheck = """
-                            SELECT INTO changed_by_var pgauditor_get_setting('%s');
-                            IF changed_by_var is null or trim(changed_by_var) = '' THEN
-                                RAISE EXCEPTION 'Anonymous updates are not permitted for audited table %s.%s. To identify the user making the change, pass a user id or username to the following query: SET [LOCAL] "%s"=<user>';
-                            END IF;
-                    """.formatted(
-                    AUTH_PROPERTY_NAME,
-                    schema,
-                    table,
-                    AUTH_PROPERTY_NAME
-            );
-        } else if (authentication.equals(DATABASE)) {
-            authenticationCheck = "select into changed_by_var current_user;";
-        } else if (authentication.equals(ANONYMOUS)) {
-            authenticationCheck = "";
-        } else {
-            throw new RuntimeException("Unsupported authentication type: " + authentication);
-        }
+        String authenticationCheck = createAuthenticationCheck();
 
         StringBuilder columnDeclarations = new StringBuilder();
         StringBuilder captureDeletes = new StringBuilder();
@@ -467,9 +1347,9 @@ public class PgAuditor {
 
         Boolean applicationName = config.getApplicationName();
 
-        for (Map<String, Object> column : getColumns(schema, table)) {
+        for (Map<String, Object> column : getColumns()) {
             String columnName = (String) column.get("column_name");
-            String columnType = (String) column.get("column_type");
+            String columnType = (String) column.get("data_type");
 
             columnDeclarations.append("""
                 old_%s_var %s := NULL;
@@ -508,6 +1388,8 @@ public class PgAuditor {
             auditTableInsert.append("            ,application_name\n");
         }
 
+        auditTableInsert.append(transactionColumnNames());
+
         auditTableInsert.append(insertColumnNames).append("""
             ) values(
                 nextval('%s.%s')
@@ -520,6 +1402,8 @@ public class PgAuditor {
             auditTableInsert.append("            ,pgauditor_get_setting('application_name')\n");
         }
 
+        auditTableInsert.append(transactionColumnValues());
+
         auditTableInsert.append(insertColumnValues).append("    );\n");
 
         // I'm not using a string builder here because it would make the audit function unreadable
@@ -549,74 +1433,947 @@ public class PgAuditor {
         ddl.append(createTriggerFunction);
     }
 
-    private void createAuditFunctions() throws SQLException {
-        createInsertAuditFunction();
-        createUpdateAuditFunction();
-        createDeleteAuditFunction();
-    }
+    /**
+     * Creates one function which audits inserts, updates, and deletes. PL/pgSQL compiles a function the first time a
+     * backend calls it and keeps the result until the backend exits, so the function is kept small: it has one
+     * variable instead of two for every column, NEW and OLD are written to the audit table directly, and an update
+     * which changes nothing is detected with a single row comparison.
+     */
+    private void createSingleAuditFunction() throws SQLException {
+        List<Map<String, Object>> columns = getColumns();
+        List<String> keyColumns = getUpdateKeyColumns();
+
+        StringBuilder insertNames = new StringBuilder();
+        StringBuilder insertValues = new StringBuilder();
+        StringBuilder updateNames = new StringBuilder();
+        StringBuilder updateValues = new StringBuilder();
+        StringBuilder deleteNames = new StringBuilder();
+        StringBuilder deleteValues = new StringBuilder();
+        List<String> changedColumns = new ArrayList<>();
 
-    private void createAuditTable() throws SQLException {
-        // Abort if the table already exists
-        if (tableExists(connection, schema, auditTableName)) {
-            // TODO: Replace this query with data taken from table metadata
-            String missingColumnQuery = """
-            SELECT
-                replace(column_name, 'new_', '') as column_name,
-                data_type
-            FROM information_schema.columns
-            WHERE table_name = '%s'
-                AND table_schema = '%s'
-                AND column_name not like 'old_%%'
-                AND column_name not in(
-                    'audit_id',
-                    'changed_by',
-                    'changed_at',
-                    'operation'
-                )
-            ORDER BY ordinal_position
-        """.formatted(auditTableName, schema);
-            // TODO: Add missing columns
-            throw new RuntimeException("IMPLEMENT ME");
-        }
-
-        // TODO: Replace this query with data taken from table metadata
-        String columnQuery = """
-            SELECT
-                column_name,
-                data_type
-            FROM information_schema.columns
-            WHERE table_name = '%s'
-              AND table_schema = '%s'
-            ORDER BY ordinal_position
-        """.formatted(table, schema);
+        for (Map<String, Object> column : columns) {
+            String columnName = (String) column.get("column_name");
+            String changed = "OLD.%s IS DISTINCT FROM NEW.%s".formatted(columnName, columnName);
+
+            insertNames.append("            ,new_%s\n".formatted(columnName));
+            insertValues.append("            ,NEW.%s\n".formatted(columnName));
+            deleteNames.append("            ,old_%s\n".formatted(columnName));
+            deleteValues.append("            ,OLD.%s\n".formatted(columnName));
+            updateNames.append("            ,old_%s\n            ,new_%s\n".formatted(columnName, columnName));
+
+            // The as-of function needs the whole row after every update and the key which the row had before it
+            // An update which changes the key is recorded whole when only old values are recorded otherwise, because
+            // later audit records of the row are found by its key
+            String keyChanged = createKeyChangedCondition(keyColumns);
+            String recorded = config.getOldValuesOnly() ? changed + " OR " + keyChanged : changed;
+            updateValues.append("            ,%s\n".formatted(keyColumns.contains(columnName)
+                    ? "OLD." + columnName
+                    : isDiffed(column) ? "NULL" : "CASE WHEN %s THEN OLD.%s END".formatted(recorded, columnName)));
+            updateValues.append("            ,%s\n".formatted(config.getPointInTime() || keyColumns.contains(columnName)
+                    ? "NEW." + columnName
+                    : isDiffed(column) ? "NULL" : config.getOldValuesOnly()
+                    ? "CASE WHEN %s THEN NEW.%s END".formatted(keyChanged, columnName)
+                    : "CASE WHEN %s THEN NEW.%s END".formatted(changed, columnName)));
+
+            if (isDiffed(column)) {
+                updateNames.append("            ,diff_%s\n".formatted(columnName));
+                updateValues.append("            ,CASE WHEN %s THEN %s.%s(OLD.%s, NEW.%s) END\n".formatted(changed,
+                        schema, JSONB_DIFF_FUNCTION_NAME, columnName, columnName));
+            }
+
+            if (recordsChangedColumns()) {
+                changedColumns.add("CASE WHEN %s THEN %d::int2 END".formatted(changed, getColumnNumber(column)));
+            }
+        }
 
-        List<Map<String, Object>> columns = connection.getListMap(columnQuery);
+        if (recordsChangedColumns()) {
+            updateNames.insert(0, "            ,changed_columns\n");
+            updateValues.insert(0, "            ,array_remove(ARRAY[\n                %s\n            ], NULL)\n"
+                    .formatted(String.join(",\n                ", changedColumns)));
+        }
 
-        // Create audit table
         ddl.append("""
-        \nCREATE TABLE IF NOT EXISTS %s.%s(
-            audit_id bigint UNIQUE NOT NULL DEFAULT nextval('%s.%s')
-            ,operation %s.%s
-            ,changed_by text
-            ,changed_at timestamp with time zone
-        """.formatted(schema, auditTableName, schema, SEQUENCE_NAME, schema, ENUM_TYPE_NAME));
+        \nCREATE OR REPLACE FUNCTION %s() RETURNS TRIGGER
+        AS
+        $BODY$
+        DECLARE
+            changed_by_var text := NULL;
+        BEGIN
+            %s
+            IF TG_OP = 'INSERT' THEN
+        %s
+            ELSIF TG_OP = 'UPDATE' THEN
+                IF OLD IS NOT DISTINCT FROM NEW THEN
+                    RETURN NULL;
+                END IF;
+        %s
+            ELSE
+        %s
+            END IF;
+            RETURN NULL;
+        END
+        $BODY$
+        LANGUAGE plpgsql VOLATILE;
+        """.formatted(
+                singleAuditFunctionName,
+                createAuthenticationCheck(),
+                createSingleAuditInsert("INSERT", insertNames, insertValues),
+                createSingleAuditInsert("UPDATE", updateNames, updateValues),
+                createSingleAuditInsert("DELETE", deleteNames, deleteValues)
+        ));
+    }
+
+    private String createSingleAuditInsert(final String operation, final StringBuilder columnNames,
+                                           final StringBuilder columnValues) {
+        StringBuilder auditTableInsert = new StringBuilder("""
+                INSERT INTO %s.%s(
+                    audit_id
+                    ,operation
+                    ,changed_by
+                    ,changed_at
+        """.formatted(schema, auditTableName));
+
+        if (config.getApplicationName()) {
+            auditTableInsert.append("            ,application_name\n");
+        }
+
+        auditTableInsert.append(transactionColumnNames()).append(columnNames).append("""
+                ) values(
+                    nextval('%s.%s')
+                    ,'%s'
+                    ,changed_by_var
+                    ,current_timestamp
+        """.formatted(schema, SEQUENCE_NAME, operation));
+
+        if (config.getApplicationName()) {
+            auditTableInsert.append("            ,pgauditor_get_setting('application_name')\n");
+        }
+
+        return auditTableInsert.append(transactionColumnValues()).append(columnValues).append("        );").toString();
+    }
+
+    private void createTruncateAuditFunction() throws SQLException {
+
+        String authenticationCheck = createAuthenticationCheck();
+
+        StringBuilder insertColumnNames = new StringBuilder();
+        StringBuilder selectColumnValues = new StringBuilder();
+
+        Boolean applicationName = config.getApplicationName();
+
+        // A truncate removes every row at once, so the whole table is copied into the audit table with a single
+        // set based statement, rather than one row at a time, before it is emptied. Each row is recorded in the same
+        // way as a deleted row
+        for (Map<String, Object> column : getColumns()) {
+            String columnName = (String) column.get("column_name");
+
+            insertColumnNames.append("""
+                    ,old_%s
+            """.replaceAll("%s", columnName));
+
+            selectColumnValues.append("""
+                    ,%s
+            """.replaceAll("%s", columnName));
+        }
+
+        StringBuilder auditTableInsert = new StringBuilder("""
+            INSERT INTO %s.%s(
+                audit_id
+                ,operation
+                ,changed_by
+                ,changed_at
+        """.formatted(schema, auditTableName));
+
+        if (applicationName) {
+            auditTableInsert.append("            ,application_name\n");
+        }
+
+        auditTableInsert.append(transactionColumnNames());
+
+        auditTableInsert.append(insertColumnNames).append("""
+            ) SELECT
+                nextval('%s.%s')
+                ,'TRUNCATE'
+                ,changed_by_var
+                ,changed_at_var
+        """.formatted(schema, SEQUENCE_NAME));
+
+        if (applicationName) {
+            auditTableInsert.append("            ,pgauditor_get_setting('application_name')\n");
+        }
+
+        auditTableInsert.append(transactionColumnValues());
+
+        auditTableInsert.append(selectColumnValues).append("""
+            FROM %s.%s;
+        """.formatted(schema, table));
+
+        // I'm not using a string builder here because it would make the audit function unreadable
+        String createTriggerFunction = """
+        \nCREATE OR REPLACE FUNCTION %s() RETURNS TRIGGER
+        AS
+        $BODY$
+        DECLARE
+            changed_by_var text := NULL;
+            changed_at_var timestamp with time zone := current_timestamp;
+        BEGIN
+            %s
+        %s
+            RETURN NULL;
+        END
+        $BODY$
+        LANGUAGE plpgsql VOLATILE;
+        """.formatted(
+                truncateAuditFunctionName,
+                authenticationCheck,
+                auditTableInsert
+        );
+
+        ddl.append(createTriggerFunction);
+    }
+
+    private List<String> getPrimaryKeyColumns() throws SQLException {
+        List<String> columns = lookup("primary key", () -> catalog.getPrimaryKeyColumns(schema, table), table);
+
+        if (columns.isEmpty()) {
+            throw new RuntimeException("--point-in-time requires a primary key but %s.%s does not have one"
+                    .formatted(schema, table));
+        }
+        return columns;
+    }
+
+    /**
+     * Creates a condition which matches the audit records which remove a row from the audited table as far as the
+     * as-of function is concerned: deletes, truncates, and updates which change the primary key.
+     */
+    static String createKeyRemovedCondition(final List<String> keyColumns) {
+        List<String> oldKey = new ArrayList<>();
+        List<String> newKey = new ArrayList<>();
+
+        for (String columnName : keyColumns) {
+            oldKey.add("old_" + columnName);
+            newKey.add("new_" + columnName);
+        }
+
+        return "operation IN ('DELETE', 'TRUNCATE') OR (operation = 'UPDATE' AND (%s) IS DISTINCT FROM (%s))"
+                .formatted(String.join(", ", oldKey), String.join(", ", newKey));
+    }
+
+    /**
+     * The definition of the index which finds the audit records that insert or update a key, which the as-of function
+     * and the verify command read.
+     */
+    static String createNewKeyIndexDefinition(final List<String> keyColumns) {
+        StringBuilder newKey = new StringBuilder();
+
+        for (String columnName : keyColumns) {
+            newKey.append("new_").append(columnName).append(", ");
+        }
+        return "(%schanged_at, audit_id) WHERE operation IN ('INSERT', 'UPDATE')".formatted(newKey);
+    }
+
+    /**
+     * The definition of the index which finds the audit records that remove a key, which the as-of function and the
+     * verify command read.
+     */
+    static String createOldKeyIndexDefinition(final List<String> keyColumns) {
+        StringBuilder oldKey = new StringBuilder();
+
+        for (String columnName : keyColumns) {
+            oldKey.append("old_").append(columnName).append(", ");
+        }
+        return "(%schanged_at, audit_id) WHERE %s".formatted(oldKey, createKeyRemovedCondition(keyColumns));
+    }
+
+    private void createAsOfIndexes() throws SQLException {
+        List<String> keyColumns = getPrimaryKeyColumns();
+
+        // Both indexes are partial so that each one only contains the records which the corresponding half of the
+        // as-of function reads
+        ddl.append("\n");
+        createAuditIndex(newKeyIndexName, createNewKeyIndexDefinition(keyColumns));
+        createAuditIndex(oldKeyIndexName, createOldKeyIndexDefinition(keyColumns));
+    }
+
+    private void createAsOfFunction() throws SQLException {
+        List<String> keyColumns = getPrimaryKeyColumns();
+
+        StringBuilder selectColumns = new StringBuilder();
+
+        // The full types are used, rather than those reported by information_schema, in order to return exactly the
+        // same types as the audited table
+        for (Map<String, Object> column : getColumns()) {
+            selectColumns.append(selectColumns.isEmpty() ? "" : "\n        ,")
+                    .append("a.new_%s::%s".formatted(column.get("column_name"), column.get("formatted_type")));
+        }
+
+        List<String> newKey = new ArrayList<>();
+        List<String> oldKey = new ArrayList<>();
+        List<String> eventKey = new ArrayList<>();
+
+        for (String columnName : keyColumns) {
+            newKey.add("new_" + columnName + " AS " + columnName);
+            oldKey.add("old_" + columnName);
+            eventKey.add("e." + columnName);
+        }
+
+        // The most recent audit record for each key as of the requested time determines whether the row existed and,
+        // if it did, its contents. Inserts and updates are read through the new key index and records which removed
+        // a key are read through the old key index, so an update which changes the primary key counts against both
+        ddl.append("""
+        \nCREATE OR REPLACE FUNCTION %s.%s(point_in_time timestamp with time zone) RETURNS SETOF %s.%s
+        AS
+        $BODY$
+            SELECT
+                %s
+            FROM (
+                SELECT DISTINCT ON (%s) e.audit_id, e.present
+                FROM (
+                    SELECT %s, audit_id, true AS present
+                    FROM %s.%s
+                    WHERE changed_at <= point_in_time
+                        AND operation IN ('INSERT', 'UPDATE')
+                    UNION ALL
+                    SELECT %s, audit_id, false
+                    FROM %s.%s
+                    WHERE changed_at <= point_in_time
+                        AND (%s)
+                ) e
+                ORDER BY %s, e.audit_id DESC
+            ) latest
+                INNER JOIN %s.%s a ON a.audit_id = latest.audit_id
+            WHERE latest.present
+        $BODY$
+        LANGUAGE sql STABLE;
+        """.formatted(
+                schema,
+                asOfFunctionName,
+                schema,
+                table,
+                selectColumns,
+                String.join(", ", eventKey),
+                String.join(", ", newKey),
+                schema,
+                auditTableName,
+                String.join(", ", oldKey),
+                schema,
+                auditTableName,
+                createKeyRemovedCondition(keyColumns),
+                String.join(", ", eventKey),
+                schema,
+                auditTableName
+        ));
+    }
+
+    /**
+     * Creates a condition, for use in an update trigger, which is true when the update changes the primary key.
+     */
+    private static String createKeyChangedCondition(final List<String> keyColumns) {
+        List<String> oldKey = new ArrayList<>();
+        List<String> newKey = new ArrayList<>();
+
+        for (String columnName : keyColumns) {
+            oldKey.add("OLD." + columnName);
+            newKey.add("NEW." + columnName);
+        }
+
+        return "(%s) IS DISTINCT FROM (%s)".formatted(String.join(", ", oldKey), String.join(", ", newKey));
+    }
+
+    /**
+     * Whether updates record the numbers of the columns which they changed. The history view needs them to tell a
+     * change to null apart from no change.
+     */
+    private boolean recordsChangedColumns() {
+        return config.getChangedColumns() || config.getOldValuesOnly();
+    }
+
+    private void createLastAggregate() throws SQLException {
+        // The transition function isn't strict, so that a null value replaces the previous one rather than being
+        // skipped
+        ddl.append("""
+        \nCREATE OR REPLACE FUNCTION %s.%s(previous anyelement, value anyelement) RETURNS anyelement
+        AS
+        $BODY$
+            SELECT value
+        $BODY$
+        LANGUAGE sql IMMUTABLE;
+        """.formatted(
+                schema,
+                LAST_FUNCTION_NAME
+        ));
+
+        createAggregate(LAST_AGGREGATE_NAME, "anyelement", LAST_FUNCTION_NAME, "anyelement");
+    }
+
+    /**
+     * Create or replace an aggregate which is shared by every audited table in the schema. CREATE OR REPLACE AGGREGATE
+     * requires PostgreSQL 12. Older servers only create the aggregate when it is missing, because it can't be dropped
+     * while views depend upon it. Its behaviour lives in its transition function, which is replaced either way.
+     *
+     * @param aggregateName The name of the aggregate
+     * @param argumentTypes The argument types of the aggregate, separated by commas
+     * @param functionName The name of the transition function
+     * @param stateType The type of the aggregate's state
+     */
+    private void createAggregate(final String aggregateName, final String argumentTypes, final String functionName,
+                                 final String stateType) throws SQLException {
+        String command = "CREATE OR REPLACE AGGREGATE";
+
+        if (lookup("server version", catalog::getServerVersion) < 120000) {
+            if (functionExists(aggregateName)) {
+                return;
+            }
+            command = "CREATE AGGREGATE";
+        }
+
+        ddl.append("""
+        \n%s %s.%s(%s) (
+            SFUNC = %s.%s,
+            STYPE = %s
+        );
+        """.formatted(command, schema, aggregateName, argumentTypes, schema, functionName, stateType));
+    }
+
+    private void createHistoryView() throws SQLException {
+        List<String> keyColumns = getUpdateKeyColumns();
+        List<String> rowKey = new ArrayList<>();
+        List<String> liveKey = new ArrayList<>();
+        List<String> historyKey = new ArrayList<>();
+        List<String> partitionKey = new ArrayList<>();
+        List<String> oldKey = new ArrayList<>();
+        List<String> newKey = new ArrayList<>();
+        List<String> recordOldKey = new ArrayList<>();
+        List<String> recordNewKey = new ArrayList<>();
+
+        for (String columnName : keyColumns) {
+            rowKey.add("CASE WHEN a.operation = 'INSERT' THEN a.new_%s ELSE a.old_%s END AS %s"
+                    .formatted(columnName, columnName, columnName));
+            liveKey.add("live." + columnName);
+            historyKey.add("h." + columnName);
+            partitionKey.add("r." + columnName);
+            oldKey.add("r.old_" + columnName);
+            newKey.add("r.new_" + columnName);
+            recordOldKey.add("h.old_" + columnName);
+            recordNewKey.add("h.new_" + columnName);
+        }
+
+        List<String> selectColumns = new ArrayList<>(historyKey);
+        selectColumns.addAll(List.of("h.audit_id", "h.operation", "h.changed_by", "h.changed_at"));
+
+        if (config.getApplicationName()) {
+            selectColumns.add("h.application_name");
+        }
+
+        if (config.getTxid()) {
+            selectColumns.add("h.txid");
+        }
+
+        if (config.getStatementOrdinal()) {
+            selectColumns.add("h.statement_ordinal");
+        }
+
+        selectColumns.add("h.changed_columns");
+        List<String> windowColumns = new ArrayList<>();
+        String wholeOldRow = "r.operation IN ('DELETE', 'TRUNCATE') "
+                + "OR (r.operation = 'UPDATE' AND (%s) IS DISTINCT FROM (%s))".formatted(String.join(", ", oldKey),
+                String.join(", ", newKey));
+        String keyChanged = "(%s) IS DISTINCT FROM (%s)".formatted(String.join(", ", recordOldKey),
+                String.join(", ", recordNewKey));
+
+        for (Map<String, Object> column : getColumns()) {
+            String columnName = (String) column.get("column_name");
+            int number = getColumnNumber(column);
+
+            // The next audit record of the row which recorded the old value of the column holds the value which this
+            // update set: a later update of the column, an update which changed the key, a delete, or a truncate. When
+            // there is none, the row still has the value
+            String recordsOldValue = "(r.operation = 'UPDATE' AND r.changed_columns @> '{%d}') OR %s"
+                    .formatted(number, wholeOldRow);
+            windowColumns.add("count(*) FILTER (WHERE %s) OVER later AS later_%s".formatted(recordsOldValue,
+                    columnName));
+            windowColumns.add("%s.%s(r.old_%s) FILTER (WHERE %s) OVER later AS next_%s".formatted(schema,
+                    LAST_AGGREGATE_NAME, columnName, recordsOldValue, columnName));
+
+            // An update which changed the key recorded its new values, which may be NULL, so only the new values of
+            // other updates are derived
+            selectColumns.add("h.old_" + columnName);
+            selectColumns.add(("CASE WHEN h.operation = 'UPDATE' AND h.changed_columns @> '{%d}' AND NOT %s "
+                    + "THEN CASE WHEN h.later_%s > 0 THEN h.next_%s ELSE live.%s END "
+                    + "ELSE h.new_%s END AS new_%s").formatted(number, keyChanged, columnName, columnName, columnName,
+                    columnName, columnName));
+        }
+
+        List<String> viewColumns = new ArrayList<>();
+
+        for (String selectColumn : selectColumns) {
+            viewColumns.add(selectColumn.substring(Math.max(selectColumn.lastIndexOf(' '),
+                    selectColumn.lastIndexOf('.')) + 1));
+        }
+
+        // Each audit record is assigned to the row which it belongs to by the key which the row had before it, and the
+        // records of a row are read newest first, so that each window only grows and every aggregate is updated once
+        // per record
+        ddl.append("\n");
+        String create = replaceViewCommand(historyViewName, viewColumns);
+        ddl.append("""
+        %s %s.%s AS
+        SELECT
+            %s
+        FROM (
+            SELECT
+                r.*
+                ,%s
+            FROM (
+                SELECT %s, a.*
+                FROM %s.%s a
+            ) r
+            WINDOW later AS (PARTITION BY %s ORDER BY r.audit_id DESC ROWS BETWEEN UNBOUNDED PRECEDING AND 1 PRECEDING)
+        ) h
+            LEFT JOIN %s.%s live ON (%s) = (%s);
+        """.formatted(
+                create,
+                schema,
+                historyViewName,
+                String.join("\n    ,", selectColumns),
+                String.join("\n        ,", windowColumns),
+                String.join(", ", rowKey),
+                schema,
+                auditTableName,
+                String.join(", ", partitionKey),
+                schema,
+                table,
+                String.join(", ", liveKey),
+                String.join(", ", historyKey)
+        ));
+    }
+
+    /**
+     * The number of a column in the audited table, which is what changed_columns records. Column numbers never change
+     * and aren't reused, even when columns are dropped.
+     */
+    private int getColumnNumber(final Map<String, Object> column) {
+        Object number = column.get("ordinal_position");
+
+        if (number == null) {
+            throw new RuntimeException("--changed-columns requires column numbers, which catalog snapshots taken by "
+                    + "older versions of PgAuditor don't include. Take a new snapshot");
+        }
+        return ((Number) number).intValue();
+    }
+
+    private void createChangedColumnsIndex() throws SQLException {
+        // Updates are the only operation which records changed columns, so other audit records are left out
+        ddl.append("\n");
+        createAuditIndex(changedColumnsIndexName, "USING gin (changed_columns) WHERE operation = 'UPDATE'");
+    }
+
+    private void createBloomIndex() throws SQLException {
+        List<String> columns = getBloomColumns();
+
+        if (!bloomAvailable()) {
+            ddl.append("\n");
+            createAuditIndex(bloomIndexName, "USING gin (search_signature)");
+            return;
+        }
+
+        ddl.append("\nCREATE EXTENSION IF NOT EXISTS bloom;\n");
+
+        for (int i = 0; i < columns.size(); i += MAX_INDEX_COLUMNS) {
+            List<String> part = columns.subList(i, Math.min(columns.size(), i + MAX_INDEX_COLUMNS));
+
+            createAuditIndex(i == 0 ? bloomIndexName : bloomIndexName + "_" + (i / MAX_INDEX_COLUMNS + 1),
+                    "USING bloom (%s) WITH (length = %d)".formatted(String.join(", ", part),
+                            getBloomLength(part.size())));
+        }
+    }
+
+    /**
+     * The length in bits of the signature of a bloom index on the given number of columns. Each value sets two bits of
+     * the signature, and a signature which is eight times longer than the number of bits set keeps false positives
+     * near one percent for a search on a single column.
+     */
+    static int getBloomLength(final int columns) {
+        return Math.min(4096, Math.max(80, columns * 16));
+    }
+
+    /**
+     * The old_ and new_ columns of the audit table which --bloom-index covers.
+     */
+    private List<String> getBloomColumns() throws SQLException {
+        List<String> names = config.getBloomColumns() == null ? null
+                : List.of(config.getBloomColumns().trim().split("\\s*,\\s*"));
+        List<String> columns = new ArrayList<>();
+        Set<String> found = new HashSet<>();
+
+        for (Map<String, Object> column : getColumns()) {
+            String columnName = (String) column.get("column_name");
+
+            if (names != null && !names.contains(columnName)) {
+                continue;
+            }
+
+            if (!BLOOM_TYPES.contains((String) column.get("data_type"))) {
+                if (names != null) {
+                    throw new RuntimeException(("--bloom-columns can only name integer and text columns, but %s.%s.%s "
+                            + "is %s").formatted(schema, table, columnName, column.get("data_type")));
+                }
+                continue;
+            }
+
+            found.add(columnName);
+            columns.add("old_" + columnName);
+            columns.add("new_" + columnName);
+        }
+
+        if (names != null && !found.containsAll(names)) {
+            List<String> missing = new ArrayList<>(names);
+            missing.removeAll(found);
+            throw new RuntimeException("--bloom-columns names columns which %s.%s doesn't have: %s"
+                    .formatted(schema, table, String.join(", ", missing)));
+        }
+
+        if (columns.isEmpty()) {
+            throw new RuntimeException("--bloom-index requires an integer or text column but %s.%s has none"
+                    .formatted(schema, table));
+        }
+        return columns;
+    }
+
+    private boolean bloomAvailable() throws SQLException {
+        return lookup("extension available", () -> catalog.extensionAvailable("bloom"), "bloom");
+    }
+
+    private void createTransactionIndex() throws SQLException {
+        // Ordering by statement within a transaction comes for free when both columns are recorded. Ordinals restart in
+        // every transaction, so they aren't indexed on their own
+        List<String> columns = new ArrayList<>();
+        columns.add("txid");
+
+        if (config.getStatementOrdinal()) {
+            columns.add("statement_ordinal");
+        }
+
+        ddl.append("\n");
+        createAuditIndex(transactionIndexName, "(%s)".formatted(String.join(", ", columns)));
+    }
+
+    /**
+     * Create an index on the audit table. When this script creates the audit table, the index is built inside the
+     * transaction while the table is still empty. Building an index on an existing audit table would block audited
+     * writes until the end of the transaction, so it is built concurrently after the transaction instead. Partitioned
+     * indexes can't be built concurrently, so each partition is indexed concurrently and then attached to an index
+     * which is created on the partitioned table alone. Indexes which the audit table already has are left as they are,
+     * because the indexes of its partitions may have been named by PostgreSQL and would otherwise be built again.
+     *
+     * @param indexName The name of the index
+     * @param definition Everything which follows the name of the table, such as the method, columns, and predicate
+     */
+    private void createAuditIndex(final String indexName, final String definition) throws SQLException {
+        if (!tableExists(auditTableName)) {
+            ddl.append("CREATE INDEX IF NOT EXISTS %s ON %s.%s %s;\n".formatted(indexName, schema, auditTableName,
+                    definition));
+            return;
+        }
+
+        if (lookup("index exists", () -> catalog.indexExists(schema, indexName), indexName)) {
+            return;
+        }
+
+        List<String> partitions = lookup("partitions", () -> catalog.getPartitions(schema, auditTableName),
+                auditTableName);
+
+        if (partitions.isEmpty()) {
+            afterTransaction.append("CREATE INDEX CONCURRENTLY IF NOT EXISTS %s ON %s.%s %s;\n".formatted(indexName,
+                    schema, auditTableName, definition));
+            return;
+        }
+
+        afterTransaction.append("CREATE INDEX IF NOT EXISTS %s ON ONLY %s.%s %s;\n".formatted(indexName, schema,
+                auditTableName, definition));
+
+        for (int i = 0; i < partitions.size(); i++) {
+            afterTransaction.append("""
+            CREATE INDEX CONCURRENTLY IF NOT EXISTS %s_p%d ON %s.%s %s;
+            ALTER INDEX %s.%s ATTACH PARTITION %s.%s_p%d;
+            """.formatted(indexName, i, schema, partitions.get(i), definition, schema, indexName, schema, indexName,
+                    i));
+        }
+    }
+
+    /**
+     * The audit table columns which are filled from the settings maintained by the statement triggers, in the form
+     * used by the column lists of the audit functions.
+     */
+    private String transactionColumnNames() {
+        StringBuilder names = new StringBuilder();
+
+        if (config.getTxid()) {
+            names.append("            ,txid\n");
+        }
+
+        if (config.getStatementOrdinal()) {
+            names.append("            ,statement_ordinal\n");
+        }
+        return names.toString();
+    }
+
+    /**
+     * The values of {@link #transactionColumnNames()}. The settings are read rather than computed because the
+     * statement trigger has already computed them once for the whole statement. NULL is recorded when the statement
+     * trigger didn't fire, for instance because it was disabled.
+     */
+    private String transactionColumnValues() {
+        StringBuilder values = new StringBuilder();
+
+        if (config.getTxid()) {
+            values.append("            ,nullif(current_setting('%s', true), '')::xid8\n".formatted(TXID_PROPERTY_NAME));
+        }
+
+        if (config.getStatementOrdinal()) {
+            values.append("            ,nullif(current_setting('%s.%s.%s', true), '')::integer\n"
+                    .formatted(STATEMENT_PROPERTY_PREFIX, schema, table));
+        }
+        return values.toString();
+    }
+
+    private void createStatementTrigger() throws SQLException {
+        // Trigger names decide the order in which triggers for the same event fire, so ats runs before the truncate
+        // trigger, att, and records the settings first
+        ddl.append("""
+        %s %s BEFORE INSERT OR UPDATE OR DELETE OR TRUNCATE ON %s.%s FOR EACH STATEMENT EXECUTE PROCEDURE %s.%s();
+        """.formatted(
+                createTriggerCommand(statementTriggerName),
+                statementTriggerName,
+                schema,
+                table,
+                schema,
+                STATEMENT_FUNCTION_NAME
+        ));
+    }
+
+    private void createStatementFunction() throws SQLException {
+        // Row level audit triggers fire after the statement has changed every row, and other statements may start in
+        // the meantime, such as foreign key cascades, whose triggers fire even later. Each table therefore has its own
+        // setting, which only statements against that table overwrite. Every setting is transaction local, so it is
+        // discarded at the end of the transaction and rolled back along with a rolled back savepoint
+        ddl.append("""
+        \nCREATE OR REPLACE FUNCTION %s.%s() RETURNS TRIGGER
+        AS
+        $BODY$
+        DECLARE
+            statement_var text := (coalesce(nullif(current_setting('%s', true), ''), '0')::integer + 1)::text;
+        BEGIN
+            PERFORM set_config('%s', statement_var, true);
+            PERFORM set_config('%s.' || TG_TABLE_SCHEMA || '.' || TG_TABLE_NAME, statement_var, true);
+            PERFORM set_config('%s', pg_current_xact_id()::text, true);
+            RETURN NULL;
+        END
+        $BODY$
+        LANGUAGE plpgsql VOLATILE;
+        """.formatted(
+                schema,
+                STATEMENT_FUNCTION_NAME,
+                STATEMENT_COUNT_PROPERTY_NAME,
+                STATEMENT_COUNT_PROPERTY_NAME,
+                STATEMENT_PROPERTY_PREFIX,
+                TXID_PROPERTY_NAME
+        ));
+    }
+
+    private void createTransactionFunction() throws SQLException {
+        // Audit tables are found when the function is called, rather than listed when it is created, so that it covers
+        // tables which are audited later. Each audit table is searched with its own index on txid. Partitions are left
+        // out because their rows are already returned by their parent
+        ddl.append("""
+        \nCREATE OR REPLACE FUNCTION %s.%s(transaction_id xid8)
+        RETURNS TABLE(audit_table text, audit_id bigint, record jsonb)
+        AS
+        $BODY$
+        DECLARE
+            audit_table_var text;
+        BEGIN
+            FOR audit_table_var IN
+                SELECT c.relname
+                FROM pg_attribute a
+                    INNER JOIN pg_class c ON a.attrelid = c.oid
+                    INNER JOIN pg_namespace n ON c.relnamespace = n.oid
+                WHERE n.nspname = '%s'
+                    AND c.relname LIKE 'aud\\_%%'
+                    AND c.relkind IN ('r', 'p')
+                    AND NOT c.relispartition
+                    AND a.attname = 'txid'
+                    AND NOT a.attisdropped
+            LOOP
+                RETURN QUERY EXECUTE format(
+                    'SELECT %%L::text, a.audit_id, to_jsonb(a) FROM %%I.%%I a WHERE a.txid = $1',
+                    audit_table_var, '%s', audit_table_var
+                ) USING transaction_id;
+            END LOOP;
+        END
+        $BODY$
+        LANGUAGE plpgsql STABLE;
+        """.formatted(
+                schema,
+                TRANSACTION_FUNCTION_NAME,
+                schema,
+                schema
+        ));
+    }
+
+    private void createAuditFunctions() throws SQLException {
+        if (config.getSingleFunction()) {
+            profiler.phase("single function", ddl, this::createSingleAuditFunction);
+        } else {
+            profiler.phase("insert function", ddl, this::createInsertAuditFunction);
+            profiler.phase("update function", ddl, this::createUpdateAuditFunction);
+            profiler.phase("delete function", ddl, this::createDeleteAuditFunction);
+        }
+        profiler.phase("truncate function", ddl, this::createTruncateAuditFunction);
+    }
+
+    private void createAuditTable() throws SQLException {
+        boolean partitioned = config.getPartitions() > 0;
+        List<String> columns = new ArrayList<>();
+        columns.add("operation %s.%s".formatted(schema, ENUM_TYPE_NAME));
+        columns.add("changed_by text");
+        columns.add("changed_at timestamp with time zone");
 
         if (config.getApplicationName()) {
-            ddl.append("    ,application_name text\n");
+            columns.add("application_name text");
+        }
+
+        if (config.getTxid()) {
+            columns.add("txid xid8");
+        }
+
+        if (config.getStatementOrdinal()) {
+            columns.add("statement_ordinal integer");
+        }
+
+        if (recordsChangedColumns()) {
+            columns.add("changed_columns int2[]");
         }
 
         // TODO: Support capturing the entire row when it changes as opposed to just the values that changed
-        for (Map<String, Object> column : columns) {
-            ddl.append("    ,old_%s %s\n".formatted(column.get("column_name"), column.get("data_type")));
-            ddl.append("    ,new_%s %s\n".formatted(column.get("column_name"), column.get("data_type")));
+        for (Map<String, Object> column : getColumns()) {
+            columns.add("old_%s %s".formatted(column.get("column_name"), column.get("data_type")));
+            columns.add("new_%s %s".formatted(column.get("column_name"), column.get("data_type")));
+
+            if (isDiffed(column)) {
+                columns.add("diff_%s jsonb".formatted(column.get("column_name")));
+            }
+        }
+
+        String searchSignature = null;
+
+        if (config.getBloomIndex() && !bloomAvailable()) {
+            List<String> hashes = new ArrayList<>();
+
+            for (String column : getBloomColumns()) {
+                hashes.add("hashtext(%s::text)".formatted(column));
+            }
+
+            searchSignature = "search_signature int4[] GENERATED ALWAYS AS (array_remove(ARRAY[%s], NULL)) STORED"
+                    .formatted(String.join(", ", hashes));
+        }
+
+        if (tableExists(auditTableName)) {
+            // An existing audit table can't be repartitioned without copying its history, so rather than silently
+            // generating something other than what was asked for, a different number of partitions is refused
+            if (partitioned) {
+                List<String> partitions = lookup("partitions", () -> catalog.getPartitions(schema, auditTableName),
+                        auditTableName);
+
+                if (partitions.size() != config.getPartitions()) {
+                    throw new RuntimeException(("--partitions %d can't be applied to %s.%s, which already exists with "
+                            + "%d partitions. Existing audit tables are not repartitioned").formatted(
+                            config.getPartitions(), schema, auditTableName, partitions.size()));
+                }
+            }
+
+            // Columns which were added to the table, or options which were enabled, since the audit table was created
+            // are added to it. Adding a nullable column without a default doesn't rewrite the table. Columns which are
+            // no longer needed are kept because they hold history
+            Set<String> existing = new HashSet<>();
+
+            for (Map<String, Object> column : lookup("columns", () -> catalog.getColumns(schema, auditTableName),
+                    auditTableName)) {
+                existing.add((String) column.get("column_name"));
+            }
+
+            for (String column : columns) {
+                if (!existing.contains(column.substring(0, column.indexOf(' ')))) {
+                    ddl.append("ALTER TABLE %s.%s ADD COLUMN IF NOT EXISTS %s;\n".formatted(schema, auditTableName,
+                            column));
+                }
+            }
+
+            if (searchSignature != null && !existing.contains("search_signature")) {
+                // Adding a stored generated column rewrites the whole audit table under an ACCESS EXCLUSIVE lock, which
+                // would block audited writes until the end of the transaction, so it is left out of the transaction.
+                // The index on the column follows it
+                afterTransaction.append("""
+                -- Offline step: adding search_signature rewrites %s.%s and blocks writes to %s.%s until it finishes
+                ALTER TABLE %s.%s ADD COLUMN IF NOT EXISTS %s;
+                """.formatted(schema, auditTableName, schema, table, schema, auditTableName, searchSignature));
+            }
+            return;
+        }
+
+        if (searchSignature != null) {
+            columns.add(searchSignature);
+        }
+
+        // Create audit table. A unique constraint on a partitioned table must include the partition key, so audit_id
+        // is only unique together with backend_pid. It is still unique on its own because it comes from the sequence
+        ddl.append("""
+        \nCREATE TABLE IF NOT EXISTS %s.%s(
+            audit_id bigint %sNOT NULL DEFAULT nextval('%s.%s')
+        """.formatted(schema, auditTableName, partitioned ? "" : "UNIQUE ", schema, SEQUENCE_NAME));
+
+        if (partitioned) {
+            ddl.append("    ,backend_pid integer NOT NULL DEFAULT pg_backend_pid()\n");
+        }
+
+        for (String column : columns) {
+            ddl.append("    ,%s\n".formatted(column));
+        }
+
+        if (!partitioned) {
+            ddl.append(");\n");
+            return;
         }
 
-        ddl.append(");\n");
+        // Each connection writes to a single partition, so concurrent writers are spread over as many audit_id
+        // indexes, each with its own right edge, and as many heaps, each with its own extension lock
+        ddl.append("    ,UNIQUE (audit_id, backend_pid)\n) PARTITION BY HASH (backend_pid);\n");
+
+        for (int i = 0; i < config.getPartitions(); i++) {
+            ddl.append("CREATE TABLE IF NOT EXISTS %s.%s_p%d PARTITION OF %s.%s FOR VALUES WITH (MODULUS %d, REMAINDER %d);\n"
+                    .formatted(schema, auditTableName, i, schema, auditTableName, config.getPartitions(), i));
+        }
     }
 
-    private boolean tableExists(final InfluxConnection connection, final String schema, final String table) throws SQLException {
-        TableMetadata tableMetaData = connection.getMetaData().getTable(schema, table);
-        return tableMetaData != null;
+    /**
+     * Ask the catalog a question, or take its answer from the cache when one was provided.
+     *
+     * @param name Short name which identifies the question
+     * @param query Asks the question
+     * @param parameters Everything other than the schema which, along with the name, distinguishes the question from
+     *                   others
+     * @return The answer
+     */
+    private <T> T lookup(final String name, final Profiler.SqlQuery<T> query, final Object... parameters)
+            throws SQLException {
+        if (cache == null) {
+            return profiler.query(name, query);
+        }
+        return cache.get(schema, name, () -> profiler.query(name, query), parameters);
+    }
+
+    private boolean tableExists(final String tableName) throws SQLException {
+        return lookup("table exists", () -> catalog.tableExists(schema, tableName), tableName);
     }
 
     private void createEnumType() throws SQLException {
@@ -625,7 +2382,14 @@ public class PgAuditor {
                     .append(schema)
                     .append(".")
                     .append(ENUM_TYPE_NAME)
-                    .append(" AS ENUM ('INSERT', 'UPDATE', 'DELETE');\n");
+                    .append(" AS ENUM ('INSERT', 'UPDATE', 'DELETE', 'TRUNCATE');\n");
+        } else if (!enumValueExists("TRUNCATE")) {
+            // Enum types created by earlier versions of PgAuditor did not include TRUNCATE
+            beforeTransaction.append("ALTER TYPE ")
+                    .append(schema)
+                    .append(".")
+                    .append(ENUM_TYPE_NAME)
+                    .append(" ADD VALUE IF NOT EXISTS 'TRUNCATE';\n");
         }
     }
 
@@ -643,53 +2407,112 @@ public class PgAuditor {
         dropTriggerIfExists(insertTriggerName);
         dropTriggerIfExists(updateTriggerName);
         dropTriggerIfExists(deleteTriggerName);
+        dropTriggerIfExists(truncateTriggerName);
+        dropTriggerIfExists(bulkInsertTriggerName);
+        dropTriggerIfExists(bulkUpdateTriggerName);
+        dropTriggerIfExists(bulkDeleteTriggerName);
+        dropTriggerIfExists(notifyTriggerName);
+        dropTriggerIfExists(statementTriggerName);
+        dropTriggerIfExists(rollupInsertTriggerName);
+        dropTriggerIfExists(rollupUpdateTriggerName);
+        dropTriggerIfExists(rollupDeleteTriggerName);
+        dropTriggerIfExists(rollupTruncateTriggerName);
     }
 
     private void dropFunctions() throws SQLException {
         dropFunctionIfExists(insertAuditFunctionName);
         dropFunctionIfExists(updateAuditFunctionName);
         dropFunctionIfExists(deleteAuditFunctionName);
+        dropFunctionIfExists(truncateAuditFunctionName);
+        dropFunctionIfExists(singleAuditFunctionName);
+        dropFunctionIfExists(asOfFunctionName);
+        dropViewIfExists(historyViewName);
     }
 
-    private void createPgAuditorSettingFunction() throws SQLException {
-        if (!functionExists(connection, schema, SETTINGS_FUNCTION_NAME)) {
-            ddl.append("CREATE OR REPLACE FUNCTION ")
-                    .append(schema)
-                    .append(".")
-                    .append(SETTINGS_FUNCTION_NAME)
-                    .append("(")
-                    .append("name text) RETURNS TEXT\n")
-                    .append("LANGUAGE plpgsql\n")
-                    .append("  AS $BODY$\n")
-                    .append("  DECLARE\n")
-                    .append("      value text;\n")
-                    .append("  BEGIN\n")
-                    .append("      SELECT INTO value current_setting(NAME);\n")
-                    .append("          RETURN value;\n")
-                    .append("  EXCEPTION WHEN OTHERS THEN\n")
-                    .append("      RETURN NULL;\n")
-                    .append("  END;\n")
-                    .append("  $BODY$ VOLATILE;\n");
+    private void dropObsoleteTriggers() throws SQLException {
+        if (config.getBulkRole() == null) {
+            dropTriggerIfExists(bulkInsertTriggerName);
+            dropTriggerIfExists(bulkUpdateTriggerName);
+            dropTriggerIfExists(bulkDeleteTriggerName);
+        }
+
+        if (!config.getNotify()) {
+            dropTriggerIfExists(notifyTriggerName);
+        }
+
+        if (!config.getTxid() && !config.getStatementOrdinal()) {
+            dropTriggerIfExists(statementTriggerName);
+        }
+
+        if (!config.getRollup()) {
+            dropTriggerIfExists(rollupInsertTriggerName);
+            dropTriggerIfExists(rollupUpdateTriggerName);
+            dropTriggerIfExists(rollupDeleteTriggerName);
+            dropTriggerIfExists(rollupTruncateTriggerName);
+        }
+    }
+
+    private void dropObsoleteFunctions() throws SQLException {
+        if (config.getSingleFunction()) {
+            dropFunctionIfExists(insertAuditFunctionName);
+            dropFunctionIfExists(updateAuditFunctionName);
+            dropFunctionIfExists(deleteAuditFunctionName);
+        } else {
+            dropFunctionIfExists(singleAuditFunctionName);
+        }
+
+        if (!config.getPointInTime()) {
+            dropFunctionIfExists(asOfFunctionName);
+        }
+
+        if (!config.getOldValuesOnly()) {
+            dropViewIfExists(historyViewName);
         }
     }
 
+    /**
+     * Decide how a group of triggers should be created so that existing triggers are replaced in place. CREATE OR
+     * REPLACE TRIGGER, which PostgreSQL 14 introduced, takes a SHARE ROW EXCLUSIVE lock, which doesn't block readers.
+     * Older servers have to drop the triggers first, which takes an ACCESS EXCLUSIVE lock until the end of the
+     * transaction.
+     *
+     * @param triggerNames The triggers which will be created
+     * @return The command which creates them
+     */
+    private String createTriggerCommand(final String... triggerNames) throws SQLException {
+        if (lookup("server version", catalog::getServerVersion) >= 140000) {
+            return "CREATE OR REPLACE TRIGGER";
+        }
+
+        for (String triggerName : triggerNames) {
+            dropTriggerIfExists(triggerName);
+        }
+        return "CREATE TRIGGER";
+    }
+
+    private void createPgAuditorSettingFunction() throws SQLException {
+        ddl.append("CREATE OR REPLACE FUNCTION ")
+                .append(schema)
+                .append(".")
+                .append(SETTINGS_FUNCTION_NAME)
+                .append("(")
+                .append("name text) RETURNS TEXT\n")
+                .append("LANGUAGE plpgsql\n")
+                .append("  AS $BODY$\n")
+                .append("  DECLARE\n")
+                .append("      value text;\n")
+                .append("  BEGIN\n")
+                .append("      SELECT INTO value current_setting(NAME);\n")
+                .append("          RETURN value;\n")
+                .append("  EXCEPTION WHEN OTHERS THEN\n")
+                .append("      RETURN NULL;\n")
+                .append("  END;\n")
+                .append("  $BODY$ VOLATILE;\n");
+    }
+
     private void dropTriggerIfExists(final String triggerName) throws SQLException {
-        String query = "SELECT EXISTS ( " +
-                "      SELECT 1 " +
-                "      FROM pg_trigger trg " +
-                "        INNER JOIN pg_class tbl ON trg.tgrelid = tbl.oid " +
-                "        INNER JOIN pg_namespace n ON tbl.relnamespace = n.oid " +
-                "      WHERE trg.tgname = ? " +
-                "        AND trg.tgrelid::text = ? " +
-                "        AND n.nspname = ?" +
-                "  );";
-
-        boolean exists = connection.getBoolean(
-                query,
-                triggerName,
-                table,
-                schema
-        );
+        boolean exists = lookup("trigger exists", () -> catalog.triggerExists(schema, table, triggerName),
+                triggerName, table);
 
         if (exists) {
             ddl.append("DROP TRIGGER IF EXISTS ")
@@ -703,7 +2526,7 @@ public class PgAuditor {
     }
 
     private void dropFunctionIfExists(final String functionName) throws SQLException {
-        if (functionExists(connection, schema, functionName)) {
+        if (functionExists(functionName)) {
             ddl.append("DROP FUNCTION IF EXISTS ")
                     .append(schema)
                     .append(".")
@@ -712,52 +2535,56 @@ public class PgAuditor {
         }
     }
 
-    private boolean functionExists(final InfluxConnection connection, final String schemaName, final String functionName) throws SQLException {
-        String query = "SELECT EXISTS ( " +
-                "    select 1 " +
-                "    from pg_proc p " +
-                "        inner join pg_namespace n ON p.pronamespace = n.oid " +
-                "    where p.proname = ? " +
-                "        and n.nspname = ? " +
-                "  );";
+    private void dropViewIfExists(final String viewName) throws SQLException {
+        if (tableExists(viewName)) {
+            ddl.append("DROP VIEW IF EXISTS %s.%s;\n".formatted(schema, viewName));
+        }
+    }
 
-        return connection.getBoolean(
-                query,
-                functionName,
-                schemaName
-        );
+    /**
+     * Decide how a view should be created so that an existing view is replaced in place, which keeps the views which
+     * depend upon it. CREATE OR REPLACE VIEW can only add columns after the existing ones, so an existing view with
+     * other columns has to be dropped first.
+     *
+     * @param viewName The view which will be created
+     * @param columnNames The names of the columns which the view will have, in order
+     * @return The command which creates it
+     */
+    private String replaceViewCommand(final String viewName, final List<String> columnNames) throws SQLException {
+        if (!tableExists(viewName)) {
+            return "CREATE VIEW";
+        }
+
+        List<String> existing = new ArrayList<>();
+
+        for (Map<String, Object> column : lookup("columns", () -> catalog.getColumns(schema, viewName), viewName)) {
+            existing.add((String) column.get("column_name"));
+        }
+
+        // A view always has columns, so none means that they aren't known, as in snapshots taken before the columns
+        // of views were captured. The view is then recreated rather than assumed to be compatible
+        if (existing.isEmpty() || existing.size() > columnNames.size()
+                || !columnNames.subList(0, existing.size()).equals(existing)) {
+            ddl.append("DROP VIEW IF EXISTS %s.%s;\n".formatted(schema, viewName));
+            return "CREATE VIEW";
+        }
+        return "CREATE OR REPLACE VIEW";
+    }
+
+    private boolean functionExists(final String functionName) throws SQLException {
+        return lookup("function exists", () -> catalog.functionExists(schema, functionName), functionName);
     }
 
     private boolean sequenceExists() throws SQLException {
-        String query = "SELECT EXISTS ( " +
-                "        SELECT 1 " +
-                "        FROM pg_sequences " +
-                "        WHERE sequencename = ? " +
-                "            AND schemaname = ? " +
-                "    );";
-
-        return connection.getBoolean(
-                query,
-                SEQUENCE_NAME,
-                schema
-        );
+        return lookup("sequence exists", () -> catalog.sequenceExists(schema, SEQUENCE_NAME));
     }
 
     private boolean enumTypeExists() throws SQLException {
-        String query = "SELECT EXISTS ( " +
-                "      SELECT 1 " +
-                "    FROM pg_type pt " +
-                "        INNER JOIN pg_namespace pn ON pt.typnamespace = pn.oid " +
-                "    WHERE pt.typname = ? " +
-                "        AND pt.typtype = 'e' " +
-                "        AND pn.nspname = ? " +
-                "  );";
-
-        return connection.getBoolean(
-                query,
-                ENUM_TYPE_NAME,
-                schema
-        );
+        return lookup("enum type exists", () -> catalog.enumTypeExists(schema, ENUM_TYPE_NAME));
+    }
+
+    private boolean enumValueExists(final String value) throws SQLException {
+        return lookup("enum value exists", () -> catalog.enumValueExists(schema, ENUM_TYPE_NAME, value), value);
     }
 
     @Override
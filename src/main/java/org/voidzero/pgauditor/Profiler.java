@@ -0,0 +1,205 @@
+package org.voidzero.pgauditor;
+
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Measures where time goes while DDL is being generated. Every phase and every catalog query is emitted as a Java
+ * Flight Recorder event, which costs next to nothing unless a recording is running. Timings are also collected so
+ * that they can be written to stderr when --verbose or --profile is passed.
+ */
+class Profiler {
+    /**
+     * Work which is timed by the profiler and may fail with an {@link SQLException}.
+     */
+    interface SqlAction {
+        void run() throws SQLException;
+    }
+
+    /**
+     * A catalog query which is timed by the profiler and may fail with an {@link SQLException}.
+     */
+    interface SqlQuery<T> {
+        T run() throws SQLException;
+    }
+
+    /**
+     * Totals which are collected for each phase and for each kind of catalog query.
+     */
+    private static class Totals {
+        private int count;
+        private int roundTrips;
+        private long nanos;
+        private long maxNanos;
+        private long bytes;
+
+        private void add(final long elapsed) {
+            count++;
+            nanos += elapsed;
+            maxNanos = Math.max(maxNanos, elapsed);
+        }
+    }
+
+    /**
+     * When true, every phase and query is written to stderr as soon as it completes.
+     */
+    private final boolean verbose;
+
+    /**
+     * When true, a summary is written to stderr by {@link #report()}.
+     */
+    private final boolean summary;
+
+    /**
+     * The table whose DDL is being generated. This is attached to phase events.
+     */
+    private final String table;
+
+    private final Map<String, Totals> phases = new LinkedHashMap<>();
+
+    private final Map<String, Totals> queries = new LinkedHashMap<>();
+
+    private final List<String> phaseOrder = new ArrayList<>();
+
+    private final PrintStream err = System.err;
+
+    private String currentPhase = "";
+
+    private int phaseRoundTrips;
+
+    private final long startNanos = System.nanoTime();
+
+    Profiler(final String table, final boolean verbose, final boolean summary) {
+        this.table = table;
+        this.verbose = verbose;
+        this.summary = summary;
+    }
+
+    /**
+     * Run one phase of DDL generation.
+     *
+     * @param name Name of the phase which is used in the summary and in JFR events
+     * @param ddl The DDL being generated. It is used to count the bytes that the phase generates
+     * @param action The work which should be performed
+     * @throws SQLException Thrown when the action fails
+     */
+    void phase(final String name, final StringBuilder ddl, final SqlAction action) throws SQLException {
+        GenerationPhaseEvent event = new GenerationPhaseEvent();
+        int start = ddl.length();
+        String previousPhase = currentPhase;
+        int previousRoundTrips = phaseRoundTrips;
+        currentPhase = name;
+        phaseRoundTrips = 0;
+        event.begin();
+        long before = System.nanoTime();
+
+        try {
+            action.run();
+        } finally {
+            long elapsed = System.nanoTime() - before;
+            event.end();
+            long bytes = ddl.substring(start).getBytes(StandardCharsets.UTF_8).length;
+
+            if (event.shouldCommit()) {
+                event.phase = name;
+                event.table = table;
+                event.roundTrips = phaseRoundTrips;
+                event.bytesGenerated = bytes;
+                event.commit();
+            }
+
+            Totals totals = phases.computeIfAbsent(name, k -> {
+                phaseOrder.add(k);
+                return new Totals();
+            });
+            totals.add(elapsed);
+            totals.roundTrips += phaseRoundTrips;
+            totals.bytes += bytes;
+
+            if (verbose) {
+                err.printf("phase %-24s %9.3f ms %3d round trips %7d bytes%n",
+                        name, elapsed / 1e6, phaseRoundTrips, bytes);
+            }
+
+            currentPhase = previousPhase;
+            phaseRoundTrips = previousRoundTrips + phaseRoundTrips;
+        }
+    }
+
+    /**
+     * Run one catalog query. Each query is assumed to be a single round trip to the database.
+     *
+     * @param name Short name which identifies the purpose of the query
+     * @param query The query which should be run
+     * @return The result of the query
+     * @throws SQLException Thrown when the query fails
+     */
+    <T> T query(final String name, final SqlQuery<T> query) throws SQLException {
+        CatalogQueryEvent event = new CatalogQueryEvent();
+        event.begin();
+        long before = System.nanoTime();
+
+        try {
+            return query.run();
+        } finally {
+            long elapsed = System.nanoTime() - before;
+            event.end();
+
+            if (event.shouldCommit()) {
+                event.query = name;
+                event.phase = currentPhase;
+                event.commit();
+            }
+
+            queries.computeIfAbsent(name, k -> new Totals()).add(elapsed);
+            phaseRoundTrips++;
+
+            if (verbose) {
+                err.printf("  query %-22s %9.3f ms%n", name, elapsed / 1e6);
+            }
+        }
+    }
+
+    /**
+     * Write a summary of all phases and queries to stderr if it was requested.
+     */
+    void report() {
+        if (!summary) {
+            return;
+        }
+
+        long total = System.nanoTime() - startNanos;
+        long queryNanos = 0;
+        int roundTrips = 0;
+        long bytes = 0;
+
+        err.printf("PgAuditor profile for %s%n", table);
+        err.printf("%-26s %6s %12s %12s %12s%n", "phase", "calls", "time ms", "round trips", "bytes");
+
+        for (String name : phaseOrder) {
+            Totals totals = phases.get(name);
+            bytes += totals.bytes;
+            err.printf("%-26s %6d %12.3f %12d %12d%n",
+                    name, totals.count, totals.nanos / 1e6, totals.roundTrips, totals.bytes);
+        }
+
+        err.printf("%n%-26s %6s %12s %12s %12s%n", "query", "calls", "total ms", "mean ms", "max ms");
+
+        for (Map.Entry<String, Totals> entry : queries.entrySet()) {
+            Totals totals = entry.getValue();
+            queryNanos += totals.nanos;
+            roundTrips += totals.count;
+            err.printf("%-26s %6d %12.3f %12.3f %12.3f%n",
+                    entry.getKey(), totals.count, totals.nanos / 1e6, totals.nanos / 1e6 / totals.count,
+                    totals.maxNanos / 1e6);
+        }
+
+        err.printf("%nTotal %.3f ms, of which %.3f ms was spent in %d round trips. %d bytes of DDL were generated.%n",
+                total / 1e6, queryNanos / 1e6, roundTrips, bytes);
+    }
+}
@@ -0,0 +1,257 @@
+package org.voidzero;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.testcontainers.containers.PostgreSQLContainer;
+import org.voidzero.influx.cli.InfluxCli;
+import org.voidzero.influx.cli.exception.HelpException;
+import org.voidzero.influx.cli.exception.ParseException;
+import org.voidzero.influx.jdbc.InfluxConnection;
+import org.voidzero.pgauditor.AuditArchive;
+import org.voidzero.pgauditor.Configuration;
+import org.voidzero.pgauditor.PgAuditor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.voidzero.influx.jdbc.InfluxConnection.connect;
+
+/**
+ * Verifies that the archive command copies a range of an audit table to segment files which the read-archive command
+ * reads back, and that it waits for transactions which could still add records to the range. See
+ * {@link BaselineAuditTest} for Docker requirements.
+ */
+public class ArchiveAuditTest {
+    /**
+     * Use TestContainers to spin up a Docker image of PostgreSQL to run the tests against.
+     */
+    private static final PostgreSQLContainer<?> POSTGRES = new PostgreSQLContainer<>("postgres:16-alpine");
+
+    /**
+     * The SQL statement for creating the table which will be audited in tests. It has a column of each kind of type
+     * which segments encode differently.
+     */
+    private static final String CREATE_TABLE = """
+        create table public.inventory(
+            id bigint primary key,
+            name text not null,
+            quantity integer not null,
+            price numeric(10, 2),
+            active boolean,
+            received timestamp with time zone,
+            profile jsonb
+        );
+     """;
+
+    /**
+     * Holds the segment files of each test.
+     */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void beforeClass() throws SQLException, HelpException, ParseException {
+        // Start the database
+        POSTGRES.start();
+
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            // Create the table which should be audited
+            assertFalse(connection.execute(CREATE_TABLE));
+            connection.execute(generate(connection, "--table", "public.inventory"));
+        }
+    }
+
+    @AfterClass
+    public static void afterClass() {
+        POSTGRES.stop();
+    }
+
+    private static Configuration configure(final String... options) throws HelpException, ParseException {
+        List<String> args = new ArrayList<>(List.of(
+                "--username", POSTGRES.getUsername(),
+                "--password", POSTGRES.getPassword(),
+                "--dbname", POSTGRES.getDatabaseName(),
+                "--host", POSTGRES.getHost(),
+                "--port", POSTGRES.getMappedPort(5432).toString()
+        ));
+        args.addAll(List.of(options));
+
+        InfluxCli cli = new InfluxCli();
+        return (Configuration) cli.bind(Configuration.class, args.toArray(new String[0]));
+    }
+
+    private static String generate(final InfluxConnection connection, final String... options)
+            throws SQLException, HelpException, ParseException {
+        // Execute PgAuditor
+        PgAuditor pgAuditor = new PgAuditor(connection, configure(options));
+        pgAuditor.run();
+
+        String ddl = pgAuditor.toString();
+        System.err.println(ddl);
+        return ddl;
+    }
+
+    /**
+     * Archive a range of public.aud_inventory into the given directory and return the summary which was printed.
+     */
+    private static String archive(final String directory, final String until) throws Exception {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(buffer, true, StandardCharsets.UTF_8));
+
+        try (Connection connection = DriverManager.getConnection(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(),
+                POSTGRES.getPassword())) {
+            new AuditArchive(connection, configure("--table", "public.inventory", "--until", until,
+                    "--archive-dir", directory)).run();
+        } finally {
+            System.setOut(stdout);
+        }
+
+        String output = buffer.toString(StandardCharsets.UTF_8);
+        System.err.println(output);
+        return output;
+    }
+
+    /**
+     * Read the segments in the given directory back as JSON lines.
+     */
+    private static List<String> readArchive(final String directory, final String... options) throws Exception {
+        List<String> args = new ArrayList<>(List.of("--archive-dir", directory));
+        args.addAll(List.of(options));
+
+        StringWriter out = new StringWriter();
+        AuditArchive.read(configure(args.toArray(new String[0])), out);
+        return out.toString().lines().toList();
+    }
+
+    /**
+     * Verify that every archived record reads back with the values which the audit table holds, that records after
+     * --until are left out, and that the printed count query matches what was archived.
+     *
+     * @throws Exception Thrown when something goes wrong
+     */
+    @Test
+    public void testArchiveAndReadBack() throws Exception {
+        String directory = folder.newFolder().toString();
+
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            connection.execute("""
+                insert into public.inventory
+                select g, 'item ' || g, g, g * 1.25, g % 2 = 0, '2024-01-01 00:00+00'::timestamptz + g * interval '1 hour',
+                    jsonb_build_object('colour', 'red', 'size', g)
+                from generate_series(1, 20) g
+            """);
+            connection.execute("update public.inventory set price = null, profile = '{\"colour\": \"blue\"}' where id <= 5");
+            connection.execute("delete from public.inventory where id > 18");
+
+            long until = connection.getInteger("select min(audit_id) + 21 from public.aud_inventory");
+            String output = archive(directory, Long.toString(until));
+
+            assertTrue(output.startsWith("Archived 22 audit records from \"public\".\"aud_inventory\" into 1 segment(s)"));
+            assertTrue(output.contains("Before detaching them, check that this still returns 22:"));
+
+            // The printed query selects exactly the archived records
+            String countQuery = output.substring(output.lastIndexOf("SELECT count(*)")).trim();
+            assertEquals(Integer.valueOf(22), connection.getInteger(countQuery));
+
+            List<String> records = readArchive(directory);
+            assertEquals(22, records.size());
+
+            // Each record is compared with its row in the audit table by the database, which parses the JSON
+            for (String record : records) {
+                assertTrue(record, connection.getBoolean("""
+                    select r ->> 'table' = 'public.inventory'
+                        and a.operation::text = r ->> 'operation'
+                        and a.changed_by = r ->> 'changed_by'
+                        and a.changed_at = (r ->> 'changed_at')::timestamptz
+                        and a.old_name is not distinct from r ->> 'old_name'
+                        and a.new_name is not distinct from r ->> 'new_name'
+                        and a.new_quantity is not distinct from (r ->> 'new_quantity')::integer
+                        and a.old_price is not distinct from (r ->> 'old_price')::numeric
+                        and a.new_price is not distinct from (r ->> 'new_price')::numeric
+                        and a.new_active is not distinct from (r ->> 'new_active')::boolean
+                        and a.new_received is not distinct from (r ->> 'new_received')::timestamptz
+                        and a.old_profile is not distinct from (r ->> 'old_profile')::jsonb
+                        and a.new_profile is not distinct from (r ->> 'new_profile')::jsonb
+                    from (select ?::jsonb as r) j
+                        inner join public.aud_inventory a on a.audit_id = (r ->> 'audit_id')::bigint
+                """, record));
+            }
+
+            // Records can be selected by audit id without reading the database
+            List<String> selected = readArchive(directory, "--table", "public.inventory",
+                    "--since", Long.toString(until - 3), "--until", Long.toString(until - 1));
+            assertEquals(2, selected.size());
+            assertTrue(selected.get(0).contains("\"audit_id\":" + (until - 2) + ","));
+
+            // Clean up after ourselves
+            connection.execute("delete from public.inventory");
+            connection.execute("delete from public.aud_inventory");
+        }
+    }
+
+    /**
+     * Verify that the archive waits for a transaction which took an audit id before it started, and includes that
+     * transaction's record once it commits.
+     *
+     * @throws Exception Thrown when something goes wrong
+     */
+    @Test
+    public void testWaitsForRunningTransactions() throws Exception {
+        String directory = folder.newFolder().toString();
+
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword());
+            Connection slow = DriverManager.getConnection(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(),
+                    POSTGRES.getPassword())) {
+            slow.setAutoCommit(false);
+            slow.createStatement().execute("insert into public.inventory values(100, 'slow', 1)");
+            connection.execute("insert into public.inventory values(101, 'fast', 1)");
+
+            StringBuilder output = new StringBuilder();
+            AtomicReference<Exception> failure = new AtomicReference<>();
+            Thread thread = new Thread(() -> {
+                try {
+                    output.append(archive(directory, "9223372036854775807"));
+                } catch (Exception e) {
+                    failure.set(e);
+                }
+            });
+            thread.start();
+
+            // The archive can't read anything while the slow transaction could still add a record to the range
+            Thread.sleep(2500);
+            assertTrue(thread.isAlive());
+
+            slow.commit();
+            thread.join(10000);
+            assertFalse(thread.isAlive());
+
+            if (failure.get() != null) {
+                throw failure.get();
+            }
+            assertTrue(output.toString(), output.toString().startsWith("Archived 2 audit records"));
+
+            List<String> records = readArchive(directory);
+            assertEquals(2, records.size());
+            assertTrue(records.stream().anyMatch(record -> record.contains("\"new_name\":\"slow\"")));
+
+            // Clean up after ourselves
+            connection.execute("delete from public.inventory");
+            connection.execute("delete from public.aud_inventory");
+        }
+    }
+}
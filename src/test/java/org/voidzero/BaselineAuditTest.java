@@ -276,4 +276,41 @@ public class BaselineAuditTest {
             connection.execute("delete from public.aud_user");
         }
     }
+
+    /**
+     * Verify that truncating the audited table copies every row into the audit table before it is removed.
+     *
+     * @throws SQLException Thrown when something goes wrong
+     */
+    @Test
+    public void testTruncateAudit() throws SQLException {
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            // Insert into and truncate the newly audited table
+            connection.execute("insert into public.user(id, username) values(?, ?)", 1, "myuser");
+            connection.execute("insert into public.user(id, username) values(?, ?)", 2, "otheruser");
+            connection.execute("truncate public.user");
+
+            // Verify that the records have been removed
+            assertEquals(connection.getInteger("select count(*) from public.user"), Integer.valueOf(0));
+
+            // Verify the number of rows in the audit table
+            assertEquals(connection.getInteger("select count(*) from public.aud_user"), Integer.valueOf(4));
+            assertEquals(connection.getInteger("select count(*) from public.aud_user where operation = 'TRUNCATE'"), Integer.valueOf(2));
+
+            Map<String, Object> values = connection.getMap(
+                    "select * from public.aud_user where operation = 'TRUNCATE' and old_id = 2");
+            assertNotNull(values);
+            assertEquals(8, values.size());
+            assertNotNull(values.get("audit_id"));
+            assertEquals("test", values.get("changed_by"));
+            assertNotNull(values.get("changed_at"));
+            assertNull(values.get("new_id"));
+            assertEquals(2L, values.get("old_id"));
+            assertNull(values.get("new_username"));
+            assertEquals("otheruser", values.get("old_username"));
+
+            // Clean up after ourselves
+            connection.execute("delete from public.aud_user");
+        }
+    }
 }
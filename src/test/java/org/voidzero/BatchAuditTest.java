@@ -0,0 +1,208 @@
+package org.voidzero;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.testcontainers.containers.PostgreSQLContainer;
+import org.voidzero.influx.cli.InfluxCli;
+import org.voidzero.influx.cli.exception.HelpException;
+import org.voidzero.influx.cli.exception.ParseException;
+import org.voidzero.influx.jdbc.InfluxConnection;
+import org.voidzero.pgauditor.BatchGenerator;
+import org.voidzero.pgauditor.Configuration;
+import org.voidzero.pgauditor.PgAuditor;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.voidzero.influx.jdbc.InfluxConnection.connect;
+
+/**
+ * Verifies that --batch answers a stream of requests over one connection with the same DDL as separate runs, reports
+ * errors per request, and notices catalog changes between requests. See {@link BaselineAuditTest} for Docker
+ * requirements.
+ */
+public class BatchAuditTest {
+    /**
+     * Use TestContainers to spin up a Docker image of PostgreSQL to run the tests against.
+     */
+    private static final PostgreSQLContainer<?> POSTGRES = new PostgreSQLContainer<>("postgres:16-alpine");
+
+    /**
+     * The SQL statement for creating the tables which will be audited in tests.
+     */
+    private static final String CREATE_TABLES = """
+        create table public.inventory(
+            id bigint primary key,
+            name text not null,
+            quantity integer not null
+        );
+        create table public.orders(
+            id bigint primary key,
+            inventory_id bigint not null
+        );
+     """;
+
+    @BeforeClass
+    public static void beforeClass() throws SQLException, HelpException, ParseException {
+        // Start the database
+        POSTGRES.start();
+
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            // Create the tables which should be audited
+            assertFalse(connection.execute(CREATE_TABLES));
+        }
+    }
+
+    @AfterClass
+    public static void afterClass() {
+        POSTGRES.stop();
+    }
+
+    private static Configuration configure(final String... options) throws HelpException, ParseException {
+        List<String> args = new ArrayList<>(List.of(
+                "--username", POSTGRES.getUsername(),
+                "--password", POSTGRES.getPassword(),
+                "--dbname", POSTGRES.getDatabaseName(),
+                "--host", POSTGRES.getHost(),
+                "--port", POSTGRES.getMappedPort(5432).toString()
+        ));
+        args.addAll(List.of(options));
+
+        InfluxCli cli = new InfluxCli();
+        return (Configuration) cli.bind(Configuration.class, args.toArray(new String[0]));
+    }
+
+    private static String generate(final InfluxConnection connection, final String... options)
+            throws SQLException, HelpException, ParseException {
+        // Execute PgAuditor
+        PgAuditor pgAuditor = new PgAuditor(connection, configure(options));
+        pgAuditor.run();
+
+        String ddl = pgAuditor.toString();
+        System.err.println(ddl);
+        return ddl;
+    }
+
+    /**
+     * Answer the given requests, one per line, over a single connection.
+     */
+    private static List<String> batch(final BufferedReader in)
+            throws SQLException, IOException, HelpException, ParseException {
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            StringWriter out = new StringWriter();
+            new BatchGenerator(connection, configure("--batch")).run(in, out);
+            System.err.println(out);
+            return out.toString().lines().toList();
+        }
+    }
+
+    /**
+     * Read a member of a response. The response is parsed by the database, which is already at hand.
+     */
+    private static String member(final InfluxConnection connection, final String response, final String name)
+            throws SQLException {
+        return connection.getString("select ?::jsonb ->> ?", response, name);
+    }
+
+    /**
+     * Verify that every request gets a response in order, that the DDL is the same as a separate run generates and
+     * audits changes when applied, and that a failed request doesn't stop the ones after it.
+     *
+     * @throws Exception Thrown when something goes wrong
+     */
+    @Test
+    public void testRequestsAnswered() throws Exception {
+        List<String> responses = batch(new BufferedReader(new StringReader("""
+            {"id": 1, "table": "public.inventory"}
+            {"id": "second", "table": "public.orders", "txid": true}
+
+            {"id": 3}
+            [1, 2]
+            {"id": 5, "table": "public.inventory", "bloom-index": true, "bloom-columns": "missing"}
+            """)));
+
+        assertEquals(5, responses.size());
+
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            assertEquals("1", member(connection, responses.get(0), "id"));
+            assertEquals("public.inventory", member(connection, responses.get(0), "table"));
+            assertNull(member(connection, responses.get(0), "error"));
+            assertEquals("second", member(connection, responses.get(1), "id"));
+            assertNull(member(connection, responses.get(1), "error"));
+
+            assertEquals("3", member(connection, responses.get(2), "id"));
+            assertEquals("Table name is required", member(connection, responses.get(2), "error"));
+            assertEquals("Requests must be JSON objects", member(connection, responses.get(3), "error"));
+            assertEquals("5", member(connection, responses.get(4), "id"));
+            assertNull(member(connection, responses.get(4), "ddl"));
+            assertEquals("--bloom-columns names columns which public.inventory doesn't have: missing",
+                    member(connection, responses.get(4), "error"));
+
+            // The DDL is what a separate run generates
+            String inventoryDdl = member(connection, responses.get(0), "ddl");
+            String ordersDdl = member(connection, responses.get(1), "ddl");
+            assertEquals(generate(connection, "--table", "public.inventory"), inventoryDdl);
+            assertEquals(generate(connection, "--table", "public.orders", "--txid"), ordersDdl);
+
+            assertTrue(ordersDdl.contains(",txid xid8"));
+
+            // Both were generated before either was applied, so only one of them can be applied as it is
+            connection.execute(inventoryDdl);
+            connection.execute("insert into public.inventory values(1, 'apple', 10)");
+            assertEquals("apple", connection.getString("select new_name from public.aud_inventory"));
+
+            // Clean up after ourselves
+            connection.execute("delete from public.inventory");
+        }
+    }
+
+    /**
+     * Verify that a column which is added between two requests for the same table is in the DDL of the second one,
+     * even though catalog information is cached between requests.
+     *
+     * @throws Exception Thrown when something goes wrong
+     */
+    @Test
+    public void testCatalogChangeNoticed() throws Exception {
+        String request = "{\"table\": \"public.orders\"}";
+
+        // The column is added after the first response has been written, while the batch is waiting for a request
+        BufferedReader in = new BufferedReader(new StringReader(request + "\n" + request + "\n")) {
+            private int read = 0;
+
+            @Override
+            public String readLine() throws IOException {
+                if (read++ == 1) {
+                    try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(),
+                            POSTGRES.getPassword())) {
+                        connection.execute("alter table public.orders add column note text");
+                    } catch (SQLException e) {
+                        throw new IOException(e);
+                    }
+                }
+                return super.readLine();
+            }
+        };
+
+        List<String> responses = batch(in);
+        assertEquals(2, responses.size());
+
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            assertFalse(member(connection, responses.get(0), "ddl").contains("new_note"));
+            assertTrue(member(connection, responses.get(1), "ddl").contains("new_note"));
+
+            // Clean up after ourselves
+            connection.execute("alter table public.orders drop column note");
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package org.voidzero;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.testcontainers.containers.PostgreSQLContainer;
+import org.voidzero.influx.cli.InfluxCli;
+import org.voidzero.influx.cli.exception.HelpException;
+import org.voidzero.influx.cli.exception.ParseException;
+import org.voidzero.influx.jdbc.InfluxConnection;
+import org.voidzero.pgauditor.Configuration;
+import org.voidzero.pgauditor.PgAuditor;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.voidzero.influx.jdbc.InfluxConnection.connect;
+
+/**
+ * Verifies that tables audited with --bloom-index can be searched by the value of any covered column through the
+ * bloom index. See {@link BaselineAuditTest} for Docker requirements.
+ */
+public class BloomIndexAuditTest {
+    /**
+     * Use TestContainers to spin up a Docker image of PostgreSQL to run the tests against.
+     */
+    private static final PostgreSQLContainer<?> POSTGRES = new PostgreSQLContainer<>("postgres:16-alpine");
+
+    /**
+     * The SQL statement for creating the table which will be audited in tests.
+     */
+    private static final String CREATE_TABLE = """
+        create table public.customer(
+            id bigint primary key,
+            email text not null,
+            backup_email varchar(100),
+            age integer,
+            profile jsonb
+        );
+     """;
+
+    @BeforeClass
+    public static void beforeClass() throws SQLException, HelpException, ParseException {
+        // Start the database
+        POSTGRES.start();
+
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            // Create the table which should be audited
+            assertFalse(connection.execute(CREATE_TABLE));
+
+            // Execute PgAuditor
+            InfluxCli cli = new InfluxCli();
+            String[] args = {
+                    "--table", "public.customer",
+                    "--bloom-index",
+                    "--username", POSTGRES.getUsername(),
+                    "--password", POSTGRES.getPassword(),
+                    "--dbname", POSTGRES.getDatabaseName(),
+                    "--host", POSTGRES.getHost(),
+                    "--port", POSTGRES.getMappedPort(5432).toString()
+            };
+            Configuration configuration = (Configuration) cli.bind(Configuration.class, args);
+            PgAuditor pgAuditor = new PgAuditor(connection, configuration);
+            pgAuditor.run();
+
+            // Create the audit table and triggers
+            String ddl = pgAuditor.toString();
+            System.err.println(ddl);
+            connection.execute(ddl);
+        }
+    }
+
+    @AfterClass
+    public static void afterClass() {
+        POSTGRES.stop();
+    }
+
+    /**
+     * Verify that the bloom index covers the old_ and new_ columns of the integer and text columns only.
+     *
+     * @throws SQLException Thrown when something goes wrong
+     */
+    @Test
+    public void testIndexCoversColumns() throws SQLException {
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            assertEquals("CREATE INDEX aib_aud_customer ON public.aud_customer USING bloom (old_email, new_email, "
+                    + "old_backup_email, new_backup_email, old_age, new_age) WITH (length='96')",
+                    connection.getString("select pg_get_indexdef('public.aib_aud_customer'::regclass)"));
+        }
+    }
+
+    /**
+     * Verify that an equality search on a covered column finds its audit records through the bloom index.
+     *
+     * @throws SQLException Thrown when something goes wrong
+     */
+    @Test
+    public void testSearchByValue() throws SQLException {
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            connection.execute("""
+                insert into public.customer
+                select g, 'user' || g || '@example.com', null, g % 90, null from generate_series(1, 5000) g
+            """);
+            connection.execute("update public.customer set backup_email = 'user42@example.com' where id = 4242");
+            connection.execute("analyze public.aud_customer");
+
+            String query = """
+                select count(*) from public.aud_customer
+                where old_email = 'user42@example.com' or new_email = 'user42@example.com'
+                    or old_backup_email = 'user42@example.com' or new_backup_email = 'user42@example.com'
+            """;
+
+            // The insert of user 42 and the update of user 4242
+            assertEquals(Integer.valueOf(2), connection.getInteger(query));
+
+            // The planner would rather scan a small table, so sequential scans are ruled out to check that the index
+            // can answer the query
+            connection.execute("set enable_seqscan = off");
+            List<Map<String, Object>> plan = connection.getListMap("explain (costs off) " + query);
+            assertTrue(plan.stream().anyMatch(row -> row.get("QUERY PLAN").toString().contains("aib_aud_customer")));
+            assertEquals(Integer.valueOf(2), connection.getInteger(query));
+            connection.execute("reset enable_seqscan");
+
+            // Clean up after ourselves
+            connection.execute("delete from public.customer");
+            connection.execute("delete from public.aud_customer");
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package org.voidzero;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.testcontainers.containers.PostgreSQLContainer;
+import org.voidzero.influx.cli.InfluxCli;
+import org.voidzero.influx.cli.exception.HelpException;
+import org.voidzero.influx.cli.exception.ParseException;
+import org.voidzero.influx.jdbc.InfluxConnection;
+import org.voidzero.pgauditor.Configuration;
+import org.voidzero.pgauditor.PgAuditor;
+
+import java.sql.SQLException;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.voidzero.influx.jdbc.InfluxConnection.connect;
+
+/**
+ * Verifies that members of the role passed to --bulk-role can suppress per-row auditing and that a summary record is
+ * written for each statement instead. See {@link BaselineAuditTest} for Docker requirements.
+ */
+public class BulkLoadAuditTest {
+    /**
+     * Use TestContainers to spin up a Docker image of PostgreSQL to run the tests against.
+     */
+    private static final PostgreSQLContainer<?> POSTGRES = new PostgreSQLContainer<>("postgres:16-alpine");
+
+    /**
+     * The SQL statement for creating the table which will be audited in tests.
+     */
+    private static final String CREATE_TABLE = """
+        create table public.inventory(
+            id bigserial primary key,
+            name text not null,
+            quantity integer not null
+        );
+     """;
+
+    @BeforeClass
+    public static void beforeClass() throws SQLException, HelpException, ParseException {
+        // Start the database
+        POSTGRES.start();
+
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            // Create the table which should be audited and the role which is allowed to bypass per-row auditing
+            assertFalse(connection.execute(CREATE_TABLE));
+            connection.execute("create role etl");
+            connection.execute("create role outsider");
+            connection.execute("grant etl to " + POSTGRES.getUsername());
+
+            // Execute PgAuditor
+            InfluxCli cli = new InfluxCli();
+            String[] args = {
+                    "--table", "public.inventory",
+                    "--bulk-role", "etl",
+                    "--username", POSTGRES.getUsername(),
+                    "--password", POSTGRES.getPassword(),
+                    "--dbname", POSTGRES.getDatabaseName(),
+                    "--host", POSTGRES.getHost(),
+                    "--port", POSTGRES.getMappedPort(5432).toString()
+            };
+            Configuration configuration = (Configuration) cli.bind(Configuration.class, args);
+            PgAuditor pgAuditor = new PgAuditor(connection, configuration);
+            pgAuditor.run();
+
+            // Create the audit table and triggers
+            String ddl = pgAuditor.toString();
+            System.err.println(ddl);
+            connection.execute(ddl);
+        }
+    }
+
+    @AfterClass
+    public static void afterClass() {
+        POSTGRES.stop();
+    }
+
+    /**
+     * Verify that rows are still audited individually when the bulk load setting has not been enabled.
+     *
+     * @throws SQLException Thrown when something goes wrong
+     */
+    @Test
+    public void testRowsAreAuditedWithoutBulkLoad() throws SQLException {
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            connection.execute("insert into public.inventory(name, quantity) values('apple', 10), ('banana', 20)");
+
+            assertEquals(Integer.valueOf(2), connection.getInteger("select count(*) from public.aud_inventory"));
+            assertEquals(Integer.valueOf(0), connection.getInteger("select count(*) from public.pgauditor_bulk_audit"));
+
+            // Clean up after ourselves
+            connection.execute("delete from public.inventory");
+            connection.execute("delete from public.aud_inventory");
+        }
+    }
+
+    /**
+     * Verify that a bulk load writes exactly one summary record per statement and no per-row audit records.
+     *
+     * @throws SQLException Thrown when something goes wrong
+     */
+    @Test
+    public void testBulkLoadWritesSummaryRecords() throws SQLException {
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            connection.execute("set \"pgauditor.bulk_load\" = 'on'");
+            connection.execute("insert into public.inventory(name, quantity) select 'item' || g, g from generate_series(1, 100) g");
+            connection.execute("update public.inventory set quantity = quantity + 1 where quantity <= 40");
+            connection.execute("reset \"pgauditor.bulk_load\"");
+
+            assertEquals(Integer.valueOf(0), connection.getInteger("select count(*) from public.aud_inventory"));
+            assertEquals(Integer.valueOf(2), connection.getInteger("select count(*) from public.pgauditor_bulk_audit"));
+
+            Map<String, Object> insert = connection.getMap(
+                    "select * from public.pgauditor_bulk_audit where operation = 'INSERT'");
+            assertNotNull(insert);
+            assertEquals("public", insert.get("table_schema"));
+            assertEquals("inventory", insert.get("table_name"));
+            assertEquals(100L, insert.get("row_count"));
+            assertEquals("test", insert.get("changed_by"));
+            assertNotNull(insert.get("changed_at"));
+
+            Map<String, Object> update = connection.getMap(
+                    "select * from public.pgauditor_bulk_audit where operation = 'UPDATE'");
+            assertNotNull(update);
+            assertEquals(40L, update.get("row_count"));
+
+            // Clean up after ourselves
+            connection.execute("delete from public.inventory");
+            connection.execute("delete from public.aud_inventory");
+            connection.execute("delete from public.pgauditor_bulk_audit");
+        }
+    }
+
+    /**
+     * Verify that the bulk load setting is ignored for users who are not members of the bulk role.
+     *
+     * @throws SQLException Thrown when something goes wrong
+     */
+    @Test
+    public void testBulkLoadIgnoredForUnauthorizedRole() throws SQLException {
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            // The audit functions run with the privileges of the user who modifies the audited table
+            connection.execute("grant insert, select on public.inventory to outsider");
+            connection.execute("grant usage on sequence public.inventory_id_seq, public.pgauditor_audit_seq to outsider");
+            connection.execute("grant insert on public.aud_inventory to outsider");
+
+            connection.execute("set role outsider");
+            connection.execute("set \"pgauditor.bulk_load\" = 'on'");
+            connection.execute("insert into public.inventory(name, quantity) values('cherry', 30)");
+            connection.execute("reset \"pgauditor.bulk_load\"");
+            connection.execute("reset role");
+
+            assertEquals(Integer.valueOf(1), connection.getInteger("select count(*) from public.aud_inventory"));
+            assertEquals(Integer.valueOf(0), connection.getInteger("select count(*) from public.pgauditor_bulk_audit"));
+
+            // Clean up after ourselves
+            connection.execute("delete from public.inventory");
+            connection.execute("delete from public.aud_inventory");
+        }
+    }
+}
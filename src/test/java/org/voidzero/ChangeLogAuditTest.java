@@ -0,0 +1,183 @@
+package org.voidzero;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.testcontainers.containers.PostgreSQLContainer;
+import org.voidzero.influx.cli.InfluxCli;
+import org.voidzero.influx.cli.exception.HelpException;
+import org.voidzero.influx.cli.exception.ParseException;
+import org.voidzero.influx.jdbc.InfluxConnection;
+import org.voidzero.pgauditor.ChangeEvent;
+import org.voidzero.pgauditor.ChangeLog;
+import org.voidzero.pgauditor.Configuration;
+import org.voidzero.pgauditor.PgAuditor;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.voidzero.influx.jdbc.InfluxConnection.connect;
+
+/**
+ * Verifies that the changelog command merges the audit records of several audit tables in the order in which the
+ * changes were made. See {@link BaselineAuditTest} for Docker requirements.
+ */
+public class ChangeLogAuditTest {
+    /**
+     * Use TestContainers to spin up a Docker image of PostgreSQL to run the tests against.
+     */
+    private static final PostgreSQLContainer<?> POSTGRES = new PostgreSQLContainer<>("postgres:16-alpine");
+
+    /**
+     * The SQL statement for creating the tables which will be audited in tests.
+     */
+    private static final String CREATE_TABLES = """
+        create table public.inventory(
+            id bigint primary key,
+            name text not null,
+            quantity integer not null
+        );
+        create table public.orders(
+            id bigint primary key,
+            inventory_id bigint not null
+        );
+     """;
+
+    @BeforeClass
+    public static void beforeClass() throws SQLException, HelpException, ParseException {
+        // Start the database
+        POSTGRES.start();
+
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            // Create the tables which should be audited
+            assertFalse(connection.execute(CREATE_TABLES));
+            connection.execute(generate(connection, "--table", "public.inventory"));
+            connection.execute(generate(connection, "--table", "public.orders"));
+
+            connection.execute("insert into public.inventory values(1, 'apple', 10)");
+            connection.execute("insert into public.orders values(100, 1)");
+            connection.execute("update public.inventory set quantity = 9 where id = 1");
+            connection.execute("insert into public.inventory values(2, 'banana', 20)");
+            connection.execute("delete from public.orders where id = 100");
+            connection.execute("update public.inventory set name = 'green apple' where id = 1");
+        }
+    }
+
+    @AfterClass
+    public static void afterClass() {
+        POSTGRES.stop();
+    }
+
+    private static Configuration configure(final String... options) throws HelpException, ParseException {
+        List<String> args = new ArrayList<>(List.of(
+                "--username", POSTGRES.getUsername(),
+                "--password", POSTGRES.getPassword(),
+                "--dbname", POSTGRES.getDatabaseName(),
+                "--host", POSTGRES.getHost(),
+                "--port", POSTGRES.getMappedPort(5432).toString()
+        ));
+        args.addAll(List.of(options));
+
+        InfluxCli cli = new InfluxCli();
+        return (Configuration) cli.bind(Configuration.class, args.toArray(new String[0]));
+    }
+
+    private static String generate(final InfluxConnection connection, final String... options)
+            throws SQLException, HelpException, ParseException {
+        // Execute PgAuditor
+        PgAuditor pgAuditor = new PgAuditor(connection, configure(options));
+        pgAuditor.run();
+
+        String ddl = pgAuditor.toString();
+        System.err.println(ddl);
+        return ddl;
+    }
+
+    /**
+     * Read the change log of both audit tables, bounded by the given audit ids.
+     */
+    private static List<ChangeEvent> read(final String since, final String until) throws SQLException {
+        try (Connection connection = DriverManager.getConnection(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(),
+                POSTGRES.getPassword())) {
+            List<ChangeEvent> events = new ArrayList<>();
+
+            // A small fetch size makes each cursor be read several times while the others are part way through
+            try (ChangeLog changeLog = new ChangeLog(connection, "public", List.of("aud_inventory", "aud_orders"),
+                    since, until, 2)) {
+                while (changeLog.hasNext()) {
+                    events.add(changeLog.next());
+                }
+            }
+
+            // The connection is handed back as it was
+            assertTrue(connection.getAutoCommit());
+            assertFalse(connection.isReadOnly());
+            return events;
+        }
+    }
+
+    /**
+     * Verify that the changes to both tables are returned in the order in which they were made, with the values which
+     * each of them recorded.
+     *
+     * @throws SQLException Thrown when something goes wrong
+     */
+    @Test
+    public void testMergedInOrder() throws SQLException {
+        List<ChangeEvent> events = read(null, null);
+
+        assertEquals(6, events.size());
+
+        for (int i = 1; i < events.size(); i++) {
+            assertTrue(events.get(i - 1).getAuditId() < events.get(i).getAuditId());
+        }
+
+        assertEquals("public.inventory", events.get(0).getTable());
+        assertEquals("INSERT", events.get(0).getOperation());
+        assertEquals(Map.of("id", 1L, "name", "apple", "quantity", 10), events.get(0).getNewValues());
+        assertTrue(events.get(0).getOldValues().isEmpty());
+
+        assertEquals("public.orders", events.get(1).getTable());
+        assertEquals("INSERT", events.get(1).getOperation());
+
+        // Only the columns which an update changed are returned
+        assertEquals("public.inventory", events.get(2).getTable());
+        assertEquals("UPDATE", events.get(2).getOperation());
+        assertEquals(Map.of("quantity", 10), events.get(2).getOldValues());
+        assertEquals(Map.of("quantity", 9), events.get(2).getNewValues());
+
+        assertEquals("public.inventory", events.get(3).getTable());
+        assertEquals("INSERT", events.get(3).getOperation());
+
+        assertEquals("public.orders", events.get(4).getTable());
+        assertEquals("DELETE", events.get(4).getOperation());
+        assertEquals(Map.of("id", 100L, "inventory_id", 1L), events.get(4).getOldValues());
+        assertTrue(events.get(4).getNewValues().isEmpty());
+
+        assertEquals("public.inventory", events.get(5).getTable());
+        assertEquals("UPDATE", events.get(5).getOperation());
+        assertEquals(POSTGRES.getUsername(), events.get(5).getChangedBy());
+    }
+
+    /**
+     * Verify that --since and --until bound the change log by audit id, leaving out the first and including the last.
+     *
+     * @throws SQLException Thrown when something goes wrong
+     */
+    @Test
+    public void testBoundedByAuditId() throws SQLException {
+        List<ChangeEvent> all = read(null, null);
+        List<ChangeEvent> events = read(Long.toString(all.get(1).getAuditId()), Long.toString(all.get(4).getAuditId()));
+
+        assertEquals(3, events.size());
+        assertEquals(all.get(2).getAuditId(), events.get(0).getAuditId());
+        assertEquals(all.get(4).getAuditId(), events.get(2).getAuditId());
+    }
+}
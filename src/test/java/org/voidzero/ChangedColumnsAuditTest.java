@@ -0,0 +1,159 @@
+package org.voidzero;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.testcontainers.containers.PostgreSQLContainer;
+import org.voidzero.influx.cli.InfluxCli;
+import org.voidzero.influx.cli.exception.HelpException;
+import org.voidzero.influx.cli.exception.ParseException;
+import org.voidzero.influx.jdbc.InfluxConnection;
+import org.voidzero.pgauditor.Configuration;
+import org.voidzero.pgauditor.PgAuditor;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.voidzero.influx.jdbc.InfluxConnection.connect;
+
+/**
+ * Verifies that tables audited with --changed-columns record the numbers of the columns which each update changed and
+ * that audit records can be found by column through the GIN index. See {@link BaselineAuditTest} for Docker
+ * requirements.
+ */
+public class ChangedColumnsAuditTest {
+    /**
+     * Use TestContainers to spin up a Docker image of PostgreSQL to run the tests against.
+     */
+    private static final PostgreSQLContainer<?> POSTGRES = new PostgreSQLContainer<>("postgres:16-alpine");
+
+    /**
+     * The SQL statement for creating the table which will be audited in tests.
+     */
+    private static final String CREATE_TABLE = """
+        create table public.inventory(
+            id bigint primary key,
+            name text not null,
+            quantity integer not null,
+            price numeric(10, 2)
+        );
+     """;
+
+    @BeforeClass
+    public static void beforeClass() throws SQLException, HelpException, ParseException {
+        // Start the database
+        POSTGRES.start();
+
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            // Create the table which should be audited
+            assertFalse(connection.execute(CREATE_TABLE));
+
+            // Execute PgAuditor
+            InfluxCli cli = new InfluxCli();
+            String[] args = {
+                    "--table", "public.inventory",
+                    "--changed-columns",
+                    "--username", POSTGRES.getUsername(),
+                    "--password", POSTGRES.getPassword(),
+                    "--dbname", POSTGRES.getDatabaseName(),
+                    "--host", POSTGRES.getHost(),
+                    "--port", POSTGRES.getMappedPort(5432).toString()
+            };
+            Configuration configuration = (Configuration) cli.bind(Configuration.class, args);
+            PgAuditor pgAuditor = new PgAuditor(connection, configuration);
+            pgAuditor.run();
+
+            // Create the audit table and triggers
+            String ddl = pgAuditor.toString();
+            System.err.println(ddl);
+            connection.execute(ddl);
+        }
+    }
+
+    @AfterClass
+    public static void afterClass() {
+        POSTGRES.stop();
+    }
+
+    /**
+     * Verify that updates record the numbers of the columns which they changed, and that inserts and deletes don't.
+     *
+     * @throws SQLException Thrown when something goes wrong
+     */
+    @Test
+    public void testChangedColumnsRecorded() throws SQLException {
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            connection.execute("insert into public.inventory values(1, 'apple', 10, 1.50)");
+            connection.execute("update public.inventory set quantity = 15 where id = 1");
+            connection.execute("update public.inventory set name = 'green apple', price = null where id = 1");
+            connection.execute("delete from public.inventory where id = 1");
+
+            List<Map<String, Object>> rows = connection.getListMap("""
+                select operation::text, changed_columns::text, old_name, new_name, old_quantity, new_quantity
+                from public.aud_inventory
+                order by audit_id
+            """);
+
+            assertEquals(4, rows.size());
+            assertEquals("INSERT", rows.get(0).get("operation"));
+            assertNull(rows.get(0).get("changed_columns"));
+
+            // Columns which weren't changed aren't recorded
+            assertEquals("UPDATE", rows.get(1).get("operation"));
+            assertEquals("{3}", rows.get(1).get("changed_columns"));
+            assertEquals(10, rows.get(1).get("old_quantity"));
+            assertEquals(15, rows.get(1).get("new_quantity"));
+            assertNull(rows.get(1).get("old_name"));
+
+            // A change to null is recorded even though the new value is null
+            assertEquals("UPDATE", rows.get(2).get("operation"));
+            assertEquals("{2,4}", rows.get(2).get("changed_columns"));
+            assertEquals("apple", rows.get(2).get("old_name"));
+            assertEquals("green apple", rows.get(2).get("new_name"));
+
+            assertEquals("DELETE", rows.get(3).get("operation"));
+            assertNull(rows.get(3).get("changed_columns"));
+
+            // Clean up after ourselves
+            connection.execute("delete from public.aud_inventory");
+        }
+    }
+
+    /**
+     * Verify that the updates which changed a column can be found with the partial GIN index on changed_columns.
+     *
+     * @throws SQLException Thrown when something goes wrong
+     */
+    @Test
+    public void testFindChangesToColumn() throws SQLException {
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            connection.execute("insert into public.inventory select g, 'item ' || g, g, g from generate_series(1, 2000) g");
+            connection.execute("update public.inventory set quantity = quantity + 1 where id <= 1000");
+            connection.execute("update public.inventory set price = 0 where id = 1500");
+            connection.execute("analyze public.aud_inventory");
+
+            String query = """
+                select count(*) from public.aud_inventory
+                where operation = 'UPDATE' and changed_columns @> '{4}'
+            """;
+
+            assertEquals(Integer.valueOf(1), connection.getInteger(query));
+
+            // The planner would rather scan a small table, so sequential scans are ruled out to check that the index
+            // can answer the query
+            connection.execute("set enable_seqscan = off");
+            List<Map<String, Object>> plan = connection.getListMap("explain (costs off) " + query);
+            assertTrue(plan.stream().anyMatch(row -> row.get("QUERY PLAN").toString().contains("aic_aud_inventory")));
+            connection.execute("reset enable_seqscan");
+
+            // Clean up after ourselves
+            connection.execute("delete from public.inventory");
+            connection.execute("delete from public.aud_inventory");
+        }
+    }
+}
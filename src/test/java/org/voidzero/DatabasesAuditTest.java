@@ -0,0 +1,209 @@
+package org.voidzero;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.testcontainers.containers.PostgreSQLContainer;
+import org.voidzero.influx.cli.exception.HelpException;
+import org.voidzero.influx.cli.exception.ParseException;
+import org.voidzero.influx.jdbc.InfluxConnection;
+import org.voidzero.pgauditor.Main;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.voidzero.influx.jdbc.InfluxConnection.connect;
+
+/**
+ * Verifies that --databases and --database-file generate DDL for the same table in many databases of one cluster,
+ * writing one file per database, and summarize the databases by the schemas which they share. See
+ * {@link BaselineAuditTest} for Docker requirements.
+ */
+public class DatabasesAuditTest {
+    /**
+     * Use TestContainers to spin up a Docker image of PostgreSQL to run the tests against.
+     */
+    private static final PostgreSQLContainer<?> POSTGRES = new PostgreSQLContainer<>("postgres:16-alpine");
+
+    /**
+     * The SQL statement for creating the table which will be audited in every tenant database.
+     */
+    private static final String CREATE_TABLE = """
+        create table public.inventory(
+            id bigint primary key,
+            name text not null,
+            quantity integer not null
+        );
+     """;
+
+    /**
+     * The tenant databases. The last one has a column which the others don't.
+     */
+    private static final List<String> TENANTS = List.of("tenant_a", "tenant_b", "tenant_c");
+
+    /**
+     * Holds the DDL files of each test.
+     */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void beforeClass() throws SQLException, HelpException, ParseException {
+        // Start the database
+        POSTGRES.start();
+
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            for (String tenant : TENANTS) {
+                connection.execute("create database " + tenant);
+            }
+        }
+
+        // Create the table which should be audited in each tenant database
+        for (String tenant : TENANTS) {
+            try(InfluxConnection connection = connect(url(tenant), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+                assertFalse(connection.execute(CREATE_TABLE));
+            }
+        }
+
+        try(InfluxConnection connection = connect(url("tenant_c"), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            connection.execute("alter table public.inventory add column price numeric(10, 2)");
+        }
+    }
+
+    @AfterClass
+    public static void afterClass() throws SQLException {
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            for (String tenant : TENANTS) {
+                connection.execute("drop database " + tenant + " with (force)");
+            }
+        }
+
+        POSTGRES.stop();
+    }
+
+    /**
+     * The JDBC URL of another database of the cluster.
+     */
+    private static String url(final String database) {
+        return "jdbc:postgresql://%s:%d/%s".formatted(POSTGRES.getHost(), POSTGRES.getMappedPort(5432), database);
+    }
+
+    /**
+     * Run a command the way it is run from the command line and return what it printed.
+     */
+    private static String main(final List<String> args) throws Exception {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(buffer, true, StandardCharsets.UTF_8));
+
+        try {
+            Main.main(args.toArray(new String[0]));
+        } finally {
+            System.out.flush();
+            System.setOut(stdout);
+        }
+        return buffer.toString(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The arguments which connect to the database.
+     */
+    private static List<String> connection() {
+        return List.of(
+                "--username", POSTGRES.getUsername(),
+                "--password", POSTGRES.getPassword(),
+                "--dbname", POSTGRES.getDatabaseName(),
+                "--host", POSTGRES.getHost(),
+                "--port", POSTGRES.getMappedPort(5432).toString()
+        );
+    }
+
+    /**
+     * Generate DDL for the databases selected by the given options into the output directory.
+     */
+    private static String generate(final Path outputDir, final String... options) throws Exception {
+        List<String> args = new ArrayList<>(List.of("generate", "--table", "public.inventory",
+                "--output-dir", outputDir.toString()));
+        args.addAll(List.of(options));
+        args.addAll(connection());
+
+        String output = main(args);
+        System.err.println(output);
+        return output;
+    }
+
+    /**
+     * Verify that the databases which match --databases are grouped by schema, that databases with the same schema
+     * get the same DDL, and that the DDL of each database audits its table.
+     *
+     * @throws Exception Thrown when something goes wrong
+     */
+    @Test
+    public void testDatabasesPattern() throws Exception {
+        Path outputDir = folder.getRoot().toPath().resolve("ddl");
+        String output = generate(outputDir, "--databases", "tenant\\_%");
+
+        assertEquals("""
+            3 databases, 3 succeeded, 0 failed, 2 distinct schemas
+
+            Schema 1 (2 databases): tenant_a, tenant_b
+
+            Schema 2 (1 databases): tenant_c
+              Differs from schema 1 in: tables.inventory.columns
+            """, output);
+
+        String a = Files.readString(outputDir.resolve("tenant_a.sql"));
+        String c = Files.readString(outputDir.resolve("tenant_c.sql"));
+        assertEquals(a, Files.readString(outputDir.resolve("tenant_b.sql")));
+        assertFalse(a.contains("new_price"));
+        assertTrue(c.contains("new_price"));
+
+        try(InfluxConnection connection = connect(url("tenant_a"), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            connection.execute(a);
+            connection.execute("insert into public.inventory values(1, 'apple', 10)");
+            assertEquals(Integer.valueOf(1), connection.getInteger("select count(*) from public.aud_inventory"));
+
+            // Clean up after ourselves
+            connection.execute("delete from public.inventory");
+            connection.execute("delete from public.aud_inventory");
+        }
+    }
+
+    /**
+     * Verify that --database-file selects the databases which it names, skipping blank lines and comments.
+     *
+     * @throws Exception Thrown when something goes wrong
+     */
+    @Test
+    public void testDatabaseFile() throws Exception {
+        Path file = folder.newFile().toPath();
+        Files.writeString(file, """
+            # Tenants which are being migrated
+
+            tenant_b
+              tenant_c
+            """);
+
+        Path outputDir = folder.getRoot().toPath().resolve("ddl");
+        String output = generate(outputDir, "--database-file", file.toString(), "--max-connections", "1");
+
+        assertTrue(output.startsWith("2 databases, 2 succeeded, 0 failed, 2 distinct schemas\n"));
+
+        try (Stream<Path> files = Files.list(outputDir)) {
+            assertEquals(List.of("tenant_b.sql", "tenant_c.sql"),
+                    files.map(path -> path.getFileName().toString()).sorted().toList());
+        }
+    }
+}
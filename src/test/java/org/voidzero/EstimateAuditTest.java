@@ -0,0 +1,245 @@
+package org.voidzero;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.testcontainers.containers.PostgreSQLContainer;
+import org.voidzero.influx.cli.InfluxCli;
+import org.voidzero.influx.cli.exception.HelpException;
+import org.voidzero.influx.cli.exception.ParseException;
+import org.voidzero.influx.jdbc.InfluxConnection;
+import org.voidzero.pgauditor.AuditEstimate;
+import org.voidzero.pgauditor.Configuration;
+import org.voidzero.pgauditor.PgAuditor;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.voidzero.influx.jdbc.InfluxConnection.connect;
+
+/**
+ * Verifies that the estimate command ranks tables by projected audit growth, and that its projection of the size of
+ * each audit record is close to the size of the audit records which are written once the table is audited. See
+ * {@link BaselineAuditTest} for Docker requirements.
+ */
+public class EstimateAuditTest {
+    /**
+     * Use TestContainers to spin up a Docker image of PostgreSQL to run the tests against.
+     */
+    private static final PostgreSQLContainer<?> POSTGRES = new PostgreSQLContainer<>("postgres:16-alpine");
+
+    /**
+     * The SQL statement for creating the tables which will be estimated in tests.
+     */
+    private static final String CREATE_TABLES = """
+        create table public.inventory(
+            id bigint primary key,
+            name text not null,
+            quantity integer not null,
+            price numeric(10, 2),
+            received timestamp with time zone
+        );
+        create table public.idle(
+            id bigint primary key
+        );
+     """;
+
+    @BeforeClass
+    public static void beforeClass() throws SQLException, HelpException, ParseException {
+        // Start the database
+        POSTGRES.start();
+
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            // Create the tables whose audit growth should be estimated
+            assertFalse(connection.execute(CREATE_TABLES));
+            write(connection);
+
+            // Widths are taken from the statistics which ANALYZE collects
+            connection.execute("analyze public.inventory");
+            connection.execute("select pg_stat_force_next_flush()");
+            connection.execute("select 1");
+        }
+    }
+
+    @AfterClass
+    public static void afterClass() {
+        POSTGRES.stop();
+    }
+
+    private static Configuration configure(final String... options) throws HelpException, ParseException {
+        List<String> args = new ArrayList<>(List.of(
+                "--username", POSTGRES.getUsername(),
+                "--password", POSTGRES.getPassword(),
+                "--dbname", POSTGRES.getDatabaseName(),
+                "--host", POSTGRES.getHost(),
+                "--port", POSTGRES.getMappedPort(5432).toString()
+        ));
+        args.addAll(List.of(options));
+
+        InfluxCli cli = new InfluxCli();
+        return (Configuration) cli.bind(Configuration.class, args.toArray(new String[0]));
+    }
+
+    private static String generate(final InfluxConnection connection, final String... options)
+            throws SQLException, HelpException, ParseException {
+        // Execute PgAuditor
+        PgAuditor pgAuditor = new PgAuditor(connection, configure(options));
+        pgAuditor.run();
+
+        String ddl = pgAuditor.toString();
+        System.err.println(ddl);
+        return ddl;
+    }
+
+    /**
+     * The workload whose audit records are projected and then measured.
+     */
+    private static void write(final InfluxConnection connection) throws SQLException {
+        connection.execute("""
+            insert into public.inventory
+            select g, 'item number ' || g, g, g * 1.25, now() from generate_series(1, 20000) g
+        """);
+        connection.execute("update public.inventory set quantity = quantity + 1 where id % 4 = 0");
+        connection.execute("delete from public.inventory where id % 10 = 0");
+    }
+
+    private static String estimate(final String... options)
+            throws SQLException, InterruptedException, HelpException, ParseException {
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            AuditEstimate auditEstimate = new AuditEstimate(connection, configure(options));
+            auditEstimate.run();
+
+            String output = auditEstimate.toString();
+            System.err.println(output);
+            return output;
+        }
+    }
+
+    /**
+     * The value of a field of the first table in a JSON report, divided by its audit rows per day.
+     */
+    private static double perRow(final String output, final String field) throws SQLException {
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            return Double.parseDouble(connection.getString("""
+                select ((?::jsonb -> 0 ->> ?)::float8 / (?::jsonb -> 0 ->> 'audit_rows_per_day')::float8)::text
+            """, output, field, output));
+        }
+    }
+
+    /**
+     * Verify that the table which is written to is ranked first, that a table without writes is projected to write
+     * nothing, and that the report says whether its rates are an upper bound.
+     *
+     * @throws Exception Thrown when something goes wrong
+     */
+    @Test
+    public void testRanking() throws Exception {
+        String output = estimate("--schema", "public", "--format", "json");
+
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            // The report is parsed by the database, which is already at hand
+            String query = "select ?::jsonb -> ? ->> ?";
+            assertEquals("inventory", connection.getString(query, output, 0, "table_name"));
+            assertEquals("1", connection.getString(query, output, 0, "rank"));
+            assertEquals("idle", connection.getString(query, output, 1, "table_name"));
+            assertEquals(0.0, Double.parseDouble(connection.getString(query, output, 1, "audit_rows_per_day")), 0);
+            assertTrue(Double.parseDouble(connection.getString(query, output, 0, "audit_rows_per_day")) > 0);
+            assertTrue(Double.parseDouble(connection.getString(query, output, 0, "wal_amplification")) > 1);
+            assertEquals(connection.getString("""
+                select (stats_reset is null)::text from pg_stat_database where datname = current_database()
+            """), connection.getString(query, output, 0, "rates_are_upper_bound"));
+        }
+    }
+
+    /**
+     * Verify that the projected heap and index bytes of each audit record are within a third of those of the audit
+     * records which are written by the same workload once the table is audited.
+     *
+     * @throws Exception Thrown when something goes wrong
+     */
+    @Test
+    public void testProjectionMatchesAuditTable() throws Exception {
+        String output = estimate("--table", "public.inventory", "--format", "json");
+
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            String query = "select (?::jsonb -> 0 ->> ?)::float8";
+            double heapBytes = Double.parseDouble(connection.getString(query, output, "bytes_per_audit_row"));
+            double indexBytes = Double.parseDouble(connection.getString(query, output, "index_bytes_per_audit_row"));
+
+            // Audit the table and repeat the workload on it
+            connection.execute(generate(connection, "--table", "public.inventory"));
+            connection.execute("""
+                set session_replication_role = replica;
+                delete from public.inventory;
+                set session_replication_role = origin;
+            """);
+            write(connection);
+            connection.execute("vacuum analyze public.aud_inventory");
+
+            double rows = connection.getInteger("select count(*) from public.aud_inventory");
+            double actualHeap = Double.parseDouble(
+                    connection.getString("select pg_relation_size('public.aud_inventory')::text")) / rows;
+            double actualIndex = Double.parseDouble(
+                    connection.getString("select pg_indexes_size('public.aud_inventory')::text")) / rows;
+            System.err.printf("heap %.1f projected, %.1f actual; index %.1f projected, %.1f actual%n",
+                    heapBytes, actualHeap, indexBytes, actualIndex);
+
+            assertEquals(actualHeap, heapBytes, actualHeap / 3);
+            assertEquals(actualIndex, indexBytes, actualIndex / 3);
+
+            // The table is now marked as audited
+            assertTrue(estimate("--table", "public.inventory").contains("public.inventory *"));
+        }
+    }
+
+    /**
+     * Verify that the flags which change the cost of each audit record change the projection.
+     *
+     * @throws Exception Thrown when something goes wrong
+     */
+    @Test
+    public void testCaptureFlagsModelled() throws Exception {
+        String plain = estimate("--table", "public.inventory", "--format", "json");
+
+        // The counter which each statement updates only costs WAL
+        String rollup = estimate("--table", "public.inventory", "--format", "json", "--rollup");
+        assertTrue(perRow(rollup, "wal_bytes_per_day") > perRow(plain, "wal_bytes_per_day"));
+        assertEquals(perRow(plain, "growth_bytes_per_day"), perRow(rollup, "growth_bytes_per_day"), 0.001);
+
+        // Every audit record has an entry in the bloom index
+        String bloom = estimate("--table", "public.inventory", "--format", "json", "--bloom-index");
+        assertTrue(perRow(bloom, "index_bytes_per_day") > perRow(plain, "index_bytes_per_day"));
+        assertEquals(perRow(plain, "heap_bytes_per_day"), perRow(bloom, "heap_bytes_per_day"), 0.001);
+
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            // An update of a large document records a small diff rather than two copies of it, or only the old copy
+            connection.execute("""
+                create table public.profiles(id bigint primary key, profile jsonb not null);
+                insert into public.profiles select g, jsonb_build_object('name', repeat('x', 200), 'visits', g)
+                    from generate_series(1, 1000) g;
+                update public.profiles set profile = jsonb_set(profile, '{visits}', '0');
+                analyze public.profiles;
+                select pg_stat_force_next_flush();
+            """);
+            connection.execute("select 1");
+
+            double copies = perRow(estimate("--table", "public.profiles", "--format", "json"), "growth_bytes_per_day");
+            double diffs = perRow(estimate("--table", "public.profiles", "--format", "json", "--jsonb-diff"),
+                    "growth_bytes_per_day");
+            assertTrue(diffs < copies);
+
+            // Updates which only record old values are narrower, despite recording the key, and changed columns
+            String changed = estimate("--table", "public.profiles", "--format", "json", "--changed-columns");
+            String oldValues = estimate("--table", "public.profiles", "--format", "json", "--old-values-only");
+            assertTrue(perRow(oldValues, "heap_bytes_per_day") < perRow(changed, "heap_bytes_per_day"));
+            assertEquals(perRow(changed, "index_bytes_per_day"), perRow(oldValues, "index_bytes_per_day"), 0.001);
+
+            // Clean up after ourselves
+            connection.execute("drop table public.profiles");
+        }
+    }
+}
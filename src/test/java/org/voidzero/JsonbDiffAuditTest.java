@@ -0,0 +1,198 @@
+package org.voidzero;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.testcontainers.containers.PostgreSQLContainer;
+import org.voidzero.influx.cli.InfluxCli;
+import org.voidzero.influx.cli.exception.HelpException;
+import org.voidzero.influx.cli.exception.ParseException;
+import org.voidzero.influx.jdbc.InfluxConnection;
+import org.voidzero.pgauditor.Configuration;
+import org.voidzero.pgauditor.PgAuditor;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.voidzero.influx.jdbc.InfluxConnection.connect;
+
+/**
+ * Verifies that tables audited with --jsonb-diff record updates of jsonb columns as structural diffs, and that the
+ * shared functions can apply, undo, and replay them. See {@link BaselineAuditTest} for Docker requirements.
+ */
+public class JsonbDiffAuditTest {
+    /**
+     * Use TestContainers to spin up a Docker image of PostgreSQL to run the tests against.
+     */
+    private static final PostgreSQLContainer<?> POSTGRES = new PostgreSQLContainer<>("postgres:16-alpine");
+
+    /**
+     * The SQL statement for creating the table which will be audited in tests.
+     */
+    private static final String CREATE_TABLE = """
+        create table public.customer(
+            id bigint primary key,
+            name text not null,
+            profile jsonb
+        );
+     """;
+
+    @BeforeClass
+    public static void beforeClass() throws SQLException, HelpException, ParseException {
+        // Start the database
+        POSTGRES.start();
+
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            // Create the table which should be audited
+            assertFalse(connection.execute(CREATE_TABLE));
+
+            // Execute PgAuditor
+            InfluxCli cli = new InfluxCli();
+            String[] args = {
+                    "--table", "public.customer",
+                    "--jsonb-diff",
+                    "--username", POSTGRES.getUsername(),
+                    "--password", POSTGRES.getPassword(),
+                    "--dbname", POSTGRES.getDatabaseName(),
+                    "--host", POSTGRES.getHost(),
+                    "--port", POSTGRES.getMappedPort(5432).toString()
+            };
+            Configuration configuration = (Configuration) cli.bind(Configuration.class, args);
+            PgAuditor pgAuditor = new PgAuditor(connection, configuration);
+            pgAuditor.run();
+
+            // Create the audit table and triggers
+            String ddl = pgAuditor.toString();
+            System.err.println(ddl);
+            connection.execute(ddl);
+        }
+    }
+
+    @AfterClass
+    public static void afterClass() {
+        POSTGRES.stop();
+    }
+
+    /**
+     * Verify that an update of a jsonb column records only the paths which changed, and that inserts and deletes
+     * still record whole documents.
+     *
+     * @throws SQLException Thrown when something goes wrong
+     */
+    @Test
+    public void testDiffRecorded() throws SQLException {
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            connection.execute("""
+                insert into public.customer values(1, 'alice',
+                    '{"address": {"city": "Lyon", "zip": "69001"}, "tags": ["a", "b"]}')
+            """);
+            connection.execute("""
+                update public.customer
+                set profile = jsonb_set(profile, '{address,city}', '"Paris"') - 'tags'
+                where id = 1
+            """);
+            connection.execute("delete from public.customer where id = 1");
+
+            List<Map<String, Object>> rows = connection.getListMap("""
+                select operation::text, old_id, old_profile::text, new_profile::text, diff_profile
+                from public.aud_customer
+                order by audit_id
+            """);
+
+            assertEquals(3, rows.size());
+            assertEquals("INSERT", rows.get(0).get("operation"));
+            assertEquals("{\"tags\": [\"a\", \"b\"], \"address\": {\"zip\": \"69001\", \"city\": \"Lyon\"}}",
+                    rows.get(0).get("new_profile"));
+
+            // The update records the diff and the old key instead of the documents
+            assertEquals("UPDATE", rows.get(1).get("operation"));
+            assertEquals(1L, rows.get(1).get("old_id"));
+            assertNull(rows.get(1).get("old_profile"));
+            assertNull(rows.get(1).get("new_profile"));
+            assertTrue(connection.getBoolean("""
+                select diff_profile @> '[{"path": ["address", "city"], "old": "Lyon", "new": "Paris"}]'
+                    and diff_profile @> '[{"path": ["tags"], "old": ["a", "b"]}]'
+                    and jsonb_array_length(diff_profile) = 2
+                from public.aud_customer
+                where operation = 'UPDATE'
+            """));
+
+            assertEquals("DELETE", rows.get(2).get("operation"));
+            assertEquals("{\"address\": {\"zip\": \"69001\", \"city\": \"Paris\"}}",
+                    rows.get(2).get("old_profile"));
+
+            // Clean up after ourselves
+            connection.execute("delete from public.aud_customer");
+        }
+    }
+
+    /**
+     * Verify that pgauditor_jsonb_patch turns the old document into the new one and back.
+     *
+     * @throws SQLException Thrown when something goes wrong
+     */
+    @Test
+    public void testPatchForwardsAndBackwards() throws SQLException {
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            List<Map<String, Object>> results = connection.getListMap("""
+                with documents(old_document, new_document) as (
+                    values('{"a": {"b": [1, 2, 3]}, "c": null, "d": "removed"}'::jsonb,
+                           '{"a": {"b": [1, 5, 3]}, "c": {"e": true}, "f": "added"}'::jsonb)
+                ), diffs as (
+                    select old_document, new_document, public.pgauditor_jsonb_diff(old_document, new_document) as diff
+                    from documents
+                )
+                select public.pgauditor_jsonb_patch(old_document, diff) = new_document as forwards,
+                       public.pgauditor_jsonb_patch(new_document, diff, true) = old_document as backwards,
+                       public.pgauditor_jsonb_diff(new_document, new_document) = '[]' as unchanged
+                from diffs
+            """);
+
+            assertEquals(1, results.size());
+            assertEquals(true, results.get(0).get("forwards"));
+            assertEquals(true, results.get(0).get("backwards"));
+            assertEquals(true, results.get(0).get("unchanged"));
+        }
+    }
+
+    /**
+     * Verify that replaying the audit records of a row from its insert gives the document after each of them, which
+     * ends with the live document.
+     *
+     * @throws SQLException Thrown when something goes wrong
+     */
+    @Test
+    public void testReplay() throws SQLException {
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            connection.execute("insert into public.customer values(2, 'bob', '{\"visits\": 1, \"tags\": [\"x\"]}')");
+            connection.execute("update public.customer set profile = '{\"visits\": 2, \"tags\": [\"y\"]}' where id = 2");
+            connection.execute("update public.customer set name = 'robert' where id = 2");
+            connection.execute("update public.customer set profile = profile || '{\"vip\": true}' where id = 2");
+
+            List<Map<String, Object>> history = connection.getListMap("""
+                select operation::text,
+                       public.pgauditor_jsonb_replay(operation, new_profile, diff_profile)
+                           over (partition by coalesce(old_id, new_id) order by audit_id)::text as profile
+                from public.aud_customer
+                where coalesce(old_id, new_id) = 2
+                order by audit_id
+            """);
+
+            assertEquals(4, history.size());
+            assertEquals("{\"tags\": [\"x\"], \"visits\": 1}", history.get(0).get("profile"));
+            assertEquals("{\"tags\": [\"y\"], \"visits\": 2}", history.get(1).get("profile"));
+            assertEquals("{\"tags\": [\"y\"], \"visits\": 2}", history.get(2).get("profile"));
+            assertEquals(connection.getString("select profile::text from public.customer where id = 2"),
+                    history.get(3).get("profile"));
+
+            // Clean up after ourselves
+            connection.execute("delete from public.customer");
+            connection.execute("delete from public.aud_customer");
+        }
+    }
+}
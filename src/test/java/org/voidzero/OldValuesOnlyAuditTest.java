@@ -0,0 +1,228 @@
+package org.voidzero;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.testcontainers.containers.PostgreSQLContainer;
+import org.voidzero.influx.cli.InfluxCli;
+import org.voidzero.influx.cli.exception.HelpException;
+import org.voidzero.influx.cli.exception.ParseException;
+import org.voidzero.influx.jdbc.InfluxConnection;
+import org.voidzero.pgauditor.Configuration;
+import org.voidzero.pgauditor.PgAuditor;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.voidzero.influx.jdbc.InfluxConnection.connect;
+
+/**
+ * Verifies that tables audited with --old-values-only record only the old values of updated columns, and that the
+ * history view derives the new values from later audit records and the live table. See {@link BaselineAuditTest} for
+ * Docker requirements.
+ */
+public class OldValuesOnlyAuditTest {
+    /**
+     * Use TestContainers to spin up a Docker image of PostgreSQL to run the tests against.
+     */
+    private static final PostgreSQLContainer<?> POSTGRES = new PostgreSQLContainer<>("postgres:16-alpine");
+
+    /**
+     * The SQL statement for creating the table which will be audited in tests.
+     */
+    private static final String CREATE_TABLE = """
+        create table public.orders(
+            id bigint primary key,
+            status text not null,
+            quantity integer not null
+        );
+     """;
+
+    @BeforeClass
+    public static void beforeClass() throws SQLException, HelpException, ParseException {
+        // Start the database
+        POSTGRES.start();
+
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            // Create the table which should be audited
+            assertFalse(connection.execute(CREATE_TABLE));
+            apply(connection, generate(connection, "--old-values-only"));
+        }
+    }
+
+    @AfterClass
+    public static void afterClass() {
+        POSTGRES.stop();
+    }
+
+    private static String generate(final InfluxConnection connection, final String... options)
+            throws SQLException, HelpException, ParseException {
+        List<String> args = new ArrayList<>(List.of(
+                "--table", "public.orders",
+                "--username", POSTGRES.getUsername(),
+                "--password", POSTGRES.getPassword(),
+                "--dbname", POSTGRES.getDatabaseName(),
+                "--host", POSTGRES.getHost(),
+                "--port", POSTGRES.getMappedPort(5432).toString()
+        ));
+        args.addAll(List.of(options));
+
+        // Execute PgAuditor
+        InfluxCli cli = new InfluxCli();
+        Configuration configuration = (Configuration) cli.bind(Configuration.class, args.toArray(new String[0]));
+        PgAuditor pgAuditor = new PgAuditor(connection, configuration);
+        pgAuditor.run();
+
+        String ddl = pgAuditor.toString();
+        System.err.println(ddl);
+        return ddl;
+    }
+
+    /**
+     * Apply generated DDL the way psql would. The statements which follow the main transaction, such as CREATE INDEX
+     * CONCURRENTLY, can't be sent along with other statements, so each of them is run on its own.
+     */
+    private static void apply(final InfluxConnection connection, final String ddl) throws SQLException {
+        int end = ddl.lastIndexOf("COMMIT;\n") + "COMMIT;\n".length();
+        connection.execute(ddl.substring(0, end));
+
+        for (String statement : ddl.substring(end).split("\n")) {
+            if (!statement.isBlank()) {
+                connection.execute(statement);
+            }
+        }
+    }
+
+    /**
+     * Verify that updates record only the old values of the columns which changed, and that the history view fills
+     * in each new value from the next audit record which changed the column, or from the live row.
+     *
+     * @throws SQLException Thrown when something goes wrong
+     */
+    @Test
+    public void testHistoryDerivesNewValues() throws SQLException {
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            connection.execute("insert into public.orders values(1, 'new', 1)");
+            connection.execute("update public.orders set status = 'paid' where id = 1");
+            connection.execute("update public.orders set quantity = 2 where id = 1");
+            connection.execute("update public.orders set status = 'shipped' where id = 1");
+
+            // The audit table holds no new values of updates
+            assertEquals(Integer.valueOf(0), connection.getInteger("""
+                select count(*) from public.aud_orders
+                where operation = 'UPDATE' and (new_status is not null or new_quantity is not null)
+            """));
+
+            List<Map<String, Object>> history = connection.getListMap("""
+                select operation::text, changed_columns::text, old_status, new_status, old_quantity, new_quantity
+                from public.aud_orders_history
+                where id = 1
+                order by audit_id
+            """);
+
+            assertEquals(4, history.size());
+            assertEquals("INSERT", history.get(0).get("operation"));
+            assertEquals("new", history.get(0).get("new_status"));
+
+            // The next update of the status recorded the value which this one wrote
+            assertEquals("{2}", history.get(1).get("changed_columns"));
+            assertEquals("new", history.get(1).get("old_status"));
+            assertEquals("paid", history.get(1).get("new_status"));
+
+            // No later update changed the quantity, so the new value is the live one
+            assertEquals("{3}", history.get(2).get("changed_columns"));
+            assertEquals(1, history.get(2).get("old_quantity"));
+            assertEquals(2, history.get(2).get("new_quantity"));
+
+            assertEquals("paid", history.get(3).get("old_status"));
+            assertEquals("shipped", history.get(3).get("new_status"));
+
+            // Clean up after ourselves
+            connection.execute("delete from public.orders");
+            connection.execute("delete from public.aud_orders");
+        }
+    }
+
+    /**
+     * Verify that an update of the primary key is recorded whole, and that the history of the row continues under
+     * its new key.
+     *
+     * @throws SQLException Thrown when something goes wrong
+     */
+    @Test
+    public void testKeyChangeRecordedWhole() throws SQLException {
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            connection.execute("insert into public.orders values(10, 'new', 5)");
+            connection.execute("update public.orders set id = 11, status = 'moved' where id = 10");
+            connection.execute("update public.orders set status = 'done' where id = 11");
+            connection.execute("delete from public.orders where id = 11");
+
+            List<Map<String, Object>> keyChange = connection.getListMap("""
+                select old_id, new_id, old_status, new_status, old_quantity, new_quantity
+                from public.aud_orders
+                where operation = 'UPDATE' and old_id = 10
+            """);
+
+            assertEquals(1, keyChange.size());
+            assertEquals(11L, keyChange.get(0).get("new_id"));
+            assertEquals("moved", keyChange.get(0).get("new_status"));
+            assertEquals(5, keyChange.get(0).get("old_quantity"));
+            assertEquals(5, keyChange.get(0).get("new_quantity"));
+
+            List<Map<String, Object>> history = connection.getListMap("""
+                select operation::text, old_status, new_status
+                from public.aud_orders_history
+                where id = 11
+                order by audit_id
+            """);
+
+            // The row was deleted, so the last update gets its new value from the delete
+            assertEquals(2, history.size());
+            assertEquals("UPDATE", history.get(0).get("operation"));
+            assertEquals("moved", history.get(0).get("old_status"));
+            assertEquals("done", history.get(0).get("new_status"));
+            assertEquals("DELETE", history.get(1).get("operation"));
+            assertEquals("done", history.get(1).get("old_status"));
+            assertNull(history.get(1).get("new_status"));
+
+            // Clean up after ourselves
+            connection.execute("delete from public.aud_orders");
+        }
+    }
+
+    /**
+     * Verify that generating again after a column was added replaces the history view in place, so that views built
+     * on it are kept, and that the new column is added at its end.
+     *
+     * @throws SQLException Thrown when something goes wrong
+     */
+    @Test
+    public void testViewReplacedInPlace() throws SQLException, HelpException, ParseException {
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            connection.execute("create view public.order_status_changes as "
+                    + "select id, audit_id, old_status, new_status from public.aud_orders_history");
+            connection.execute("alter table public.orders add column note text");
+
+            String ddl = generate(connection, "--old-values-only");
+            assertTrue(ddl.contains("CREATE OR REPLACE VIEW public.aud_orders_history"));
+            apply(connection, ddl);
+
+            assertTrue(connection.getBoolean("select to_regclass('public.order_status_changes') is not null"));
+            assertEquals("new_note", connection.getString("""
+                select attname::text from pg_attribute
+                where attrelid = 'public.aud_orders_history'::regclass and attnum > 0
+                order by attnum desc
+                limit 1
+            """));
+
+            // Clean up after ourselves
+            connection.execute("drop view public.order_status_changes");
+        }
+    }
+}
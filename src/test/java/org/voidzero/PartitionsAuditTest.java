@@ -0,0 +1,234 @@
+package org.voidzero;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.testcontainers.containers.PostgreSQLContainer;
+import org.voidzero.influx.cli.InfluxCli;
+import org.voidzero.influx.cli.exception.HelpException;
+import org.voidzero.influx.cli.exception.ParseException;
+import org.voidzero.influx.jdbc.InfluxConnection;
+import org.voidzero.pgauditor.Configuration;
+import org.voidzero.pgauditor.PgAuditor;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.voidzero.influx.jdbc.InfluxConnection.connect;
+
+/**
+ * Verifies that audit tables created with --partitions are hash partitioned by the backend pid of the connection which
+ * made each change, that audit ids still order changes across partitions, and that existing audit tables are not
+ * repartitioned. See {@link BaselineAuditTest} for Docker requirements.
+ */
+public class PartitionsAuditTest {
+    /**
+     * Use TestContainers to spin up a Docker image of PostgreSQL to run the tests against.
+     */
+    private static final PostgreSQLContainer<?> POSTGRES = new PostgreSQLContainer<>("postgres:16-alpine");
+
+    /**
+     * The SQL statement for creating the table which will be audited in tests.
+     */
+    private static final String CREATE_TABLE = """
+        create table public.inventory(
+            id bigint primary key,
+            name text not null,
+            quantity integer not null
+        );
+     """;
+
+    /**
+     * The number of connections which write to the table concurrently.
+     */
+    private static final int WRITERS = 8;
+
+    @BeforeClass
+    public static void beforeClass() throws SQLException, HelpException, ParseException {
+        // Start the database
+        POSTGRES.start();
+
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            // Create the table which should be audited
+            assertFalse(connection.execute(CREATE_TABLE));
+            connection.execute(generate(connection, "--table", "public.inventory", "--partitions", "4", "--point-in-time"));
+        }
+    }
+
+    @AfterClass
+    public static void afterClass() {
+        POSTGRES.stop();
+    }
+
+    private static Configuration configure(final String... options) throws HelpException, ParseException {
+        List<String> args = new ArrayList<>(List.of(
+                "--username", POSTGRES.getUsername(),
+                "--password", POSTGRES.getPassword(),
+                "--dbname", POSTGRES.getDatabaseName(),
+                "--host", POSTGRES.getHost(),
+                "--port", POSTGRES.getMappedPort(5432).toString()
+        ));
+        args.addAll(List.of(options));
+
+        InfluxCli cli = new InfluxCli();
+        return (Configuration) cli.bind(Configuration.class, args.toArray(new String[0]));
+    }
+
+    private static String generate(final InfluxConnection connection, final String... options)
+            throws SQLException, HelpException, ParseException {
+        // Execute PgAuditor
+        PgAuditor pgAuditor = new PgAuditor(connection, configure(options));
+        pgAuditor.run();
+
+        String ddl = pgAuditor.toString();
+        System.err.println(ddl);
+        return ddl;
+    }
+
+    /**
+     * Apply generated DDL the way psql would. The statements which follow the main transaction, such as CREATE INDEX
+     * CONCURRENTLY, can't be sent along with other statements, so each of them is run on its own.
+     */
+    private static void apply(final InfluxConnection connection, final String ddl) throws SQLException {
+        int end = ddl.lastIndexOf("COMMIT;\n") + "COMMIT;\n".length();
+        connection.execute(ddl.substring(0, end));
+
+        for (String statement : ddl.substring(end).split("\n")) {
+            if (!statement.isBlank()) {
+                connection.execute(statement);
+            }
+        }
+    }
+
+    /**
+     * Verify that the audit table is divided into the requested number of hash partitions of backend_pid.
+     *
+     * @throws SQLException Thrown when something goes wrong
+     */
+    @Test
+    public void testPartitionsCreated() throws SQLException {
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            assertEquals("HASH (backend_pid)",
+                    connection.getString("select pg_get_partkeydef('public.aud_inventory'::regclass)"));
+
+            List<Map<String, Object>> partitions = connection.getListMap("""
+                select c.relname::text as name, pg_get_expr(c.relpartbound, c.oid) as bound
+                from pg_inherits i
+                join pg_class c on c.oid = i.inhrelid
+                where i.inhparent = 'public.aud_inventory'::regclass
+                order by c.relname
+            """);
+
+            assertEquals(4, partitions.size());
+
+            for (int i = 0; i < partitions.size(); i++) {
+                assertEquals("aud_inventory_p" + i, partitions.get(i).get("name"));
+                assertEquals("FOR VALUES WITH (modulus 4, remainder %d)".formatted(i), partitions.get(i).get("bound"));
+            }
+        }
+    }
+
+    /**
+     * Verify that each connection's changes are recorded with its backend pid in a single partition, that audit ids
+     * order the changes of every connection across partitions, and that the as-of function reads every partition.
+     *
+     * @throws SQLException Thrown when something goes wrong
+     */
+    @Test
+    public void testWritersSpreadOverPartitions() throws SQLException {
+        List<InfluxConnection> writers = new ArrayList<>();
+
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            for (int i = 0; i < WRITERS; i++) {
+                writers.add(connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword()));
+            }
+
+            // The writers take turns, so that the audit ids of their changes interleave
+            for (int round = 0; round < 3; round++) {
+                for (int i = 0; i < WRITERS; i++) {
+                    int id = round * WRITERS + i;
+                    writers.get(i).execute("insert into public.inventory values(%d, 'item %d', %d)".formatted(id, id, id));
+                }
+            }
+
+            List<Map<String, Object>> rows = connection.getListMap("""
+                select backend_pid, count(distinct tableoid) as partitions, count(*) as changes
+                from public.aud_inventory
+                group by backend_pid
+            """);
+
+            assertEquals(WRITERS, rows.size());
+
+            for (Map<String, Object> row : rows) {
+                assertEquals(1L, row.get("partitions"));
+                assertEquals(3L, row.get("changes"));
+            }
+
+            // Each writer's changes are in the order in which it made them, as are the rounds across writers
+            assertEquals(Integer.valueOf(0), connection.getInteger("""
+                select count(*) from (
+                    select new_id, lag(new_id) over (order by audit_id) as previous
+                    from public.aud_inventory
+                ) a
+                where new_id < previous
+            """));
+
+            assertEquals(Integer.valueOf(WRITERS * 3),
+                    connection.getInteger("select count(*) from public.aud_inventory_as_of(now())"));
+
+            // Clean up after ourselves
+            connection.execute("""
+                set session_replication_role = replica;
+                delete from public.inventory;
+                set session_replication_role = origin;
+                delete from public.aud_inventory;
+            """);
+        } finally {
+            for (InfluxConnection writer : writers) {
+                writer.close();
+            }
+        }
+    }
+
+    /**
+     * Verify that a different number of partitions is refused for an existing audit table, and that generating
+     * without --partitions leaves the partitioned audit table as it is.
+     *
+     * @throws Exception Thrown when something goes wrong
+     */
+    @Test
+    public void testNotRepartitioned() throws Exception {
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            try {
+                generate(connection, "--table", "public.inventory", "--partitions", "8", "--point-in-time");
+                fail("The audit table was repartitioned");
+            } catch (RuntimeException e) {
+                assertEquals("--partitions 8 can't be applied to public.aud_inventory, which already exists with 4 "
+                        + "partitions. Existing audit tables are not repartitioned", e.getMessage());
+            }
+
+            apply(connection, generate(connection, "--table", "public.inventory", "--point-in-time"));
+            assertEquals(Integer.valueOf(4), connection.getInteger(
+                    "select count(*) from pg_inherits where inhparent = 'public.aud_inventory'::regclass"));
+
+            // Changes are still recorded by the regenerated triggers
+            connection.execute("insert into public.inventory values(1000, 'regenerated', 1)");
+            assertEquals(Integer.valueOf(1),
+                    connection.getInteger("select count(*) from public.aud_inventory where new_id = 1000"));
+
+            // Clean up after ourselves
+            connection.execute("""
+                set session_replication_role = replica;
+                delete from public.inventory;
+                set session_replication_role = origin;
+                delete from public.aud_inventory;
+            """);
+        }
+    }
+}
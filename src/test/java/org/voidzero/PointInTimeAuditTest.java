@@ -0,0 +1,125 @@
+package org.voidzero;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.testcontainers.containers.PostgreSQLContainer;
+import org.voidzero.influx.cli.InfluxCli;
+import org.voidzero.influx.cli.exception.HelpException;
+import org.voidzero.influx.cli.exception.ParseException;
+import org.voidzero.influx.jdbc.InfluxConnection;
+import org.voidzero.pgauditor.Configuration;
+import org.voidzero.pgauditor.PgAuditor;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.voidzero.influx.jdbc.InfluxConnection.connect;
+
+/**
+ * Verifies that tables audited with --point-in-time can be reconstructed as of an earlier time with the generated
+ * aud_<table>_as_of function. See {@link BaselineAuditTest} for Docker requirements.
+ */
+public class PointInTimeAuditTest {
+    /**
+     * Use TestContainers to spin up a Docker image of PostgreSQL to run the tests against.
+     */
+    private static final PostgreSQLContainer<?> POSTGRES = new PostgreSQLContainer<>("postgres:16-alpine");
+
+    /**
+     * The SQL statement for creating the table which will be audited in tests.
+     */
+    private static final String CREATE_TABLE = """
+        create table public.inventory(
+            id bigint primary key,
+            name varchar(20) not null,
+            quantity integer not null
+        );
+     """;
+
+    @BeforeClass
+    public static void beforeClass() throws SQLException, HelpException, ParseException {
+        // Start the database
+        POSTGRES.start();
+
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            // Create the table which should be audited
+            assertFalse(connection.execute(CREATE_TABLE));
+
+            // Execute PgAuditor
+            InfluxCli cli = new InfluxCli();
+            String[] args = {
+                    "--table", "public.inventory",
+                    "--point-in-time",
+                    "--username", POSTGRES.getUsername(),
+                    "--password", POSTGRES.getPassword(),
+                    "--dbname", POSTGRES.getDatabaseName(),
+                    "--host", POSTGRES.getHost(),
+                    "--port", POSTGRES.getMappedPort(5432).toString()
+            };
+            Configuration configuration = (Configuration) cli.bind(Configuration.class, args);
+            PgAuditor pgAuditor = new PgAuditor(connection, configuration);
+            pgAuditor.run();
+
+            // Create the audit table and triggers
+            String ddl = pgAuditor.toString();
+            System.err.println(ddl);
+            connection.execute(ddl);
+        }
+    }
+
+    @AfterClass
+    public static void afterClass() {
+        POSTGRES.stop();
+    }
+
+    /**
+     * Verify that inserts, updates, primary key changes, and deletes are reflected in the state returned for each point
+     * in time.
+     *
+     * @throws SQLException Thrown when something goes wrong
+     */
+    @Test
+    public void testAsOf() throws SQLException {
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            connection.execute("insert into public.inventory values(1, 'apple', 10), (2, 'banana', 20)");
+            String afterInsert = connection.getString("select clock_timestamp()::text");
+
+            connection.execute("update public.inventory set quantity = 15 where id = 1");
+            connection.execute("update public.inventory set id = 3 where id = 2");
+            String afterUpdate = connection.getString("select clock_timestamp()::text");
+
+            connection.execute("delete from public.inventory where id = 1");
+            String afterDelete = connection.getString("select clock_timestamp()::text");
+
+            String query = "select * from public.aud_inventory_as_of(?::timestamptz) order by id";
+
+            List<Map<String, Object>> rows = connection.getListMap(query, afterInsert);
+            assertEquals(2, rows.size());
+            assertEquals(1L, rows.get(0).get("id"));
+            assertEquals(10, rows.get(0).get("quantity"));
+            assertEquals(2L, rows.get(1).get("id"));
+
+            // The update of id 1 only changed the quantity but the whole row must still be returned
+            rows = connection.getListMap(query, afterUpdate);
+            assertEquals(2, rows.size());
+            assertEquals(1L, rows.get(0).get("id"));
+            assertEquals("apple", rows.get(0).get("name"));
+            assertEquals(15, rows.get(0).get("quantity"));
+            assertEquals(3L, rows.get(1).get("id"));
+            assertEquals("banana", rows.get(1).get("name"));
+
+            rows = connection.getListMap(query, afterDelete);
+            assertEquals(1, rows.size());
+            assertEquals(3L, rows.get(0).get("id"));
+            assertEquals(20, rows.get(0).get("quantity"));
+
+            // Clean up after ourselves
+            connection.execute("delete from public.inventory");
+            connection.execute("delete from public.aud_inventory");
+        }
+    }
+}
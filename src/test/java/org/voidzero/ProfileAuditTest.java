@@ -0,0 +1,190 @@
+package org.voidzero;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.testcontainers.containers.PostgreSQLContainer;
+import org.voidzero.influx.cli.InfluxCli;
+import org.voidzero.influx.cli.exception.HelpException;
+import org.voidzero.influx.cli.exception.ParseException;
+import org.voidzero.influx.jdbc.InfluxConnection;
+import org.voidzero.pgauditor.Configuration;
+import org.voidzero.pgauditor.PgAuditor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.voidzero.influx.jdbc.InfluxConnection.connect;
+
+/**
+ * Verifies that --verbose and --profile report the phases and catalog queries of DDL generation on stderr, and that the
+ * same measurements are emitted as Java Flight Recorder events without either flag. See {@link BaselineAuditTest} for
+ * Docker requirements.
+ */
+public class ProfileAuditTest {
+    /**
+     * Use TestContainers to spin up a Docker image of PostgreSQL to run the tests against.
+     */
+    private static final PostgreSQLContainer<?> POSTGRES = new PostgreSQLContainer<>("postgres:16-alpine");
+
+    /**
+     * The SQL statement for creating the table which will be audited in tests.
+     */
+    private static final String CREATE_TABLE = """
+        create table public.inventory(
+            id bigint primary key,
+            name text not null,
+            quantity integer not null
+        );
+     """;
+
+    /**
+     * Holds the recording of each test.
+     */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void beforeClass() throws SQLException, HelpException, ParseException {
+        // Start the database
+        POSTGRES.start();
+
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            // Create the table which should be audited
+            assertFalse(connection.execute(CREATE_TABLE));
+        }
+    }
+
+    @AfterClass
+    public static void afterClass() {
+        POSTGRES.stop();
+    }
+
+    private static Configuration configure(final String... options) throws HelpException, ParseException {
+        List<String> args = new ArrayList<>(List.of(
+                "--username", POSTGRES.getUsername(),
+                "--password", POSTGRES.getPassword(),
+                "--dbname", POSTGRES.getDatabaseName(),
+                "--host", POSTGRES.getHost(),
+                "--port", POSTGRES.getMappedPort(5432).toString()
+        ));
+        args.addAll(List.of(options));
+
+        InfluxCli cli = new InfluxCli();
+        return (Configuration) cli.bind(Configuration.class, args.toArray(new String[0]));
+    }
+
+    /**
+     * Generate DDL for the table and return what was written to stderr while it was generated.
+     */
+    private static String generate(final String... options) throws SQLException, HelpException, ParseException {
+        List<String> args = new ArrayList<>(List.of("--table", "public.inventory", "--point-in-time"));
+        args.addAll(List.of(options));
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        PrintStream stderr = System.err;
+        System.setErr(new PrintStream(buffer, true, StandardCharsets.UTF_8));
+
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            // Execute PgAuditor
+            PgAuditor pgAuditor = new PgAuditor(connection, configure(args.toArray(new String[0])));
+            pgAuditor.run();
+        } finally {
+            System.setErr(stderr);
+        }
+
+        String output = buffer.toString(StandardCharsets.UTF_8);
+        System.err.println(output);
+        return output;
+    }
+
+    private static List<String> lines(final String output, final String prefix) {
+        return output.lines().filter(line -> line.startsWith(prefix)).toList();
+    }
+
+    /**
+     * Verify that nothing is written to stderr unless it is asked for.
+     *
+     * @throws Exception Thrown when something goes wrong
+     */
+    @Test
+    public void testQuietByDefault() throws Exception {
+        assertEquals("", generate());
+    }
+
+    /**
+     * Verify that the summary of --profile agrees with the phases and queries which --verbose writes as they complete.
+     *
+     * @throws Exception Thrown when something goes wrong
+     */
+    @Test
+    public void testProfileMatchesVerbose() throws Exception {
+        String output = generate("--verbose", "--profile");
+        int start = output.indexOf("PgAuditor profile for public.inventory\n");
+        String summary = output.substring(start);
+        List<String> phases = lines(output.substring(0, start), "phase ");
+        List<String> queries = lines(output.substring(0, start), "  query ");
+        assertTrue(phases.stream().anyMatch(line -> line.startsWith("phase audit table ")));
+        assertTrue(phases.stream().anyMatch(line -> line.startsWith("phase as-of function ")));
+
+        long bytes = 0;
+
+        for (String phase : phases) {
+            Matcher matcher = Pattern.compile(" (\\d+) bytes$").matcher(phase);
+            assertTrue(phase, matcher.find());
+            bytes += Long.parseLong(matcher.group(1));
+        }
+
+        assertTrue(summary.contains("%d round trips. %d bytes of DDL were generated.".formatted(queries.size(), bytes)));
+    }
+
+    /**
+     * Verify that every phase and catalog query is recorded as a Java Flight Recorder event.
+     *
+     * @throws Exception Thrown when something goes wrong
+     */
+    @Test
+    public void testFlightRecorderEvents() throws Exception {
+        Path file = folder.newFile("generate.jfr").toPath();
+        String output;
+
+        try (Recording recording = new Recording()) {
+            recording.enable("org.voidzero.pgauditor.GenerationPhase");
+            recording.enable("org.voidzero.pgauditor.CatalogQuery");
+            recording.start();
+            output = generate("--verbose");
+            recording.stop();
+            recording.dump(file);
+        }
+
+        int phases = 0;
+        int queries = 0;
+
+        for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+            if (event.getEventType().getName().equals("org.voidzero.pgauditor.GenerationPhase")) {
+                phases++;
+                assertEquals("public.inventory", event.getString("table"));
+            } else if (event.getEventType().getName().equals("org.voidzero.pgauditor.CatalogQuery")) {
+                queries++;
+            }
+        }
+
+        assertEquals(lines(output, "phase ").size(), phases);
+        assertEquals(lines(output, "  query ").size(), queries);
+    }
+}
@@ -0,0 +1,261 @@
+package org.voidzero;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.testcontainers.containers.PostgreSQLContainer;
+import org.voidzero.influx.cli.InfluxCli;
+import org.voidzero.influx.cli.exception.HelpException;
+import org.voidzero.influx.cli.exception.ParseException;
+import org.voidzero.influx.jdbc.InfluxConnection;
+import org.voidzero.pgauditor.Configuration;
+import org.voidzero.pgauditor.PgAuditor;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.voidzero.influx.jdbc.InfluxConnection.connect;
+
+/**
+ * Verifies that DDL can be generated again over an audited table with different options: the enum type of an earlier
+ * version is upgraded, missing audit columns are added, indexes on the existing audit table are built concurrently,
+ * and the triggers and functions of options which are no longer enabled are dropped. See {@link BaselineAuditTest}
+ * for Docker requirements.
+ */
+public class RegenerationAuditTest {
+    /**
+     * Use TestContainers to spin up a Docker image of PostgreSQL to run the tests against.
+     */
+    private static final PostgreSQLContainer<?> POSTGRES = new PostgreSQLContainer<>("postgres:16-alpine");
+
+    /**
+     * The SQL statement for creating the table which will be audited in tests.
+     */
+    private static final String CREATE_TABLE = """
+        create table public.inventory(
+            id bigint primary key,
+            name text not null,
+            quantity integer not null
+        );
+     """;
+
+    /**
+     * The enum type as it was created by versions of PgAuditor which didn't audit truncation.
+     */
+    private static final String CREATE_OLD_ENUM_TYPE = """
+        create type public.pgauditor_operation as enum ('INSERT', 'UPDATE', 'DELETE');
+     """;
+
+    /**
+     * The DDL which was generated the second time.
+     */
+    private static String regenerated;
+
+    @BeforeClass
+    public static void beforeClass() throws SQLException, HelpException, ParseException {
+        // Start the database
+        POSTGRES.start();
+
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            assertFalse(connection.execute(CREATE_OLD_ENUM_TYPE));
+            assertFalse(connection.execute(CREATE_TABLE));
+
+            // The as-of indexes and function use TRUNCATE, which the enum type doesn't have yet
+            apply(connection, generate(connection, "--point-in-time", "--notify", "--txid"));
+
+            connection.execute("insert into public.inventory values(1, 'apple', 10), (2, 'banana', 20)");
+            connection.execute("update public.inventory set quantity = 15 where id = 1");
+
+            // Generate again with a different set of options over the populated audit table
+            regenerated = generate(connection, "--single-function", "--changed-columns");
+            apply(connection, regenerated);
+        }
+    }
+
+    @AfterClass
+    public static void afterClass() {
+        POSTGRES.stop();
+    }
+
+    private static String generate(final InfluxConnection connection, final String... options)
+            throws SQLException, HelpException, ParseException {
+        List<String> args = new ArrayList<>(List.of(
+                "--table", "public.inventory",
+                "--username", POSTGRES.getUsername(),
+                "--password", POSTGRES.getPassword(),
+                "--dbname", POSTGRES.getDatabaseName(),
+                "--host", POSTGRES.getHost(),
+                "--port", POSTGRES.getMappedPort(5432).toString()
+        ));
+        args.addAll(List.of(options));
+
+        // Execute PgAuditor
+        InfluxCli cli = new InfluxCli();
+        Configuration configuration = (Configuration) cli.bind(Configuration.class, args.toArray(new String[0]));
+        PgAuditor pgAuditor = new PgAuditor(connection, configuration);
+        pgAuditor.run();
+
+        String ddl = pgAuditor.toString();
+        System.err.println(ddl);
+        return ddl;
+    }
+
+    /**
+     * Apply generated DDL the way psql would. The statements which follow the main transaction, such as CREATE INDEX
+     * CONCURRENTLY, can't be sent along with other statements, so each of them is run on its own.
+     */
+    private static void apply(final InfluxConnection connection, final String ddl) throws SQLException {
+        int end = ddl.lastIndexOf("COMMIT;\n") + "COMMIT;\n".length();
+        connection.execute(ddl.substring(0, end));
+
+        for (String statement : ddl.substring(end).split("\n")) {
+            if (!statement.isBlank()) {
+                connection.execute(statement);
+            }
+        }
+    }
+
+    /**
+     * Verify that TRUNCATE was added to the enum type of the earlier version.
+     *
+     * @throws SQLException Thrown when something goes wrong
+     */
+    @Test
+    public void testEnumTypeUpgraded() throws SQLException {
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            assertEquals("{INSERT,UPDATE,DELETE,TRUNCATE}",
+                    connection.getString("select enum_range(null::public.pgauditor_operation)::text"));
+        }
+    }
+
+    /**
+     * Verify that the triggers of options which are no longer enabled were dropped and the others were replaced.
+     *
+     * @throws SQLException Thrown when something goes wrong
+     */
+    @Test
+    public void testObsoleteTriggersDropped() throws SQLException {
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            List<Map<String, Object>> triggers = connection.getListMap("""
+                select tgname::text as name, tgfoid::regproc::text as function
+                from pg_trigger
+                where tgrelid = 'public.inventory'::regclass and not tgisinternal
+                order by tgname
+            """);
+
+            assertEquals(4, triggers.size());
+            assertEquals("atd_aud_inventory", triggers.get(0).get("name"));
+            assertEquals("afa_inventory", triggers.get(0).get("function"));
+            assertEquals("ati_aud_inventory", triggers.get(1).get("name"));
+            assertEquals("afa_inventory", triggers.get(1).get("function"));
+            assertEquals("att_aud_inventory", triggers.get(2).get("name"));
+            assertEquals("aft_inventory", triggers.get(2).get("function"));
+            assertEquals("atu_aud_inventory", triggers.get(3).get("name"));
+            assertEquals("afa_inventory", triggers.get(3).get("function"));
+        }
+    }
+
+    /**
+     * Verify that the functions of options which are no longer enabled were dropped.
+     *
+     * @throws SQLException Thrown when something goes wrong
+     */
+    @Test
+    public void testObsoleteFunctionsDropped() throws SQLException {
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            String query = "select count(*) from pg_proc where proname = ?";
+
+            assertEquals(Integer.valueOf(0), connection.getInteger(query, "afi_inventory"));
+            assertEquals(Integer.valueOf(0), connection.getInteger(query, "afu_inventory"));
+            assertEquals(Integer.valueOf(0), connection.getInteger(query, "afd_inventory"));
+            assertEquals(Integer.valueOf(0), connection.getInteger(query, "aud_inventory_as_of"));
+            assertEquals(Integer.valueOf(1), connection.getInteger(query, "afa_inventory"));
+            assertEquals(Integer.valueOf(1), connection.getInteger(query, "aft_inventory"));
+        }
+    }
+
+    /**
+     * Verify that the column of the newly enabled option was added and that columns of disabled options were kept,
+     * along with the history which they hold.
+     *
+     * @throws SQLException Thrown when something goes wrong
+     */
+    @Test
+    public void testAuditColumnsAddedAndKept() throws SQLException {
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            String query = """
+                select data_type from information_schema.columns
+                where table_schema = 'public' and table_name = 'aud_inventory' and column_name = ?
+            """;
+
+            assertEquals("ARRAY", connection.getString(query, "changed_columns"));
+            assertEquals("xid8", connection.getString(query, "txid"));
+            assertEquals(Integer.valueOf(3),
+                    connection.getInteger("select count(*) from public.aud_inventory where txid is not null"));
+        }
+    }
+
+    /**
+     * Verify that the index which the newly enabled option needs was built concurrently, after the transaction, and
+     * is usable.
+     *
+     * @throws SQLException Thrown when something goes wrong
+     */
+    @Test
+    public void testIndexBuiltConcurrently() throws SQLException {
+        String afterTransaction = regenerated.substring(regenerated.lastIndexOf("COMMIT;\n"));
+        assertTrue(afterTransaction.contains("CREATE INDEX CONCURRENTLY IF NOT EXISTS aic_aud_inventory "));
+        assertFalse(regenerated.substring(0, regenerated.lastIndexOf("COMMIT;\n")).contains("CREATE INDEX"));
+
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            assertTrue(connection.getBoolean(
+                    "select indisvalid from pg_index where indexrelid = 'public.aic_aud_inventory'::regclass"));
+        }
+    }
+
+    /**
+     * Verify that changes are audited by the replaced triggers with the newly enabled option.
+     *
+     * @throws SQLException Thrown when something goes wrong
+     */
+    @Test
+    public void testAuditingAfterRegeneration() throws SQLException {
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            connection.execute("insert into public.inventory values(3, 'cherry', 30)");
+            connection.execute("update public.inventory set quantity = 31 where id = 3");
+            connection.execute("delete from public.inventory where id = 3");
+
+            List<Map<String, Object>> rows = connection.getListMap("""
+                select * from (
+                    select audit_id, operation::text, changed_columns::text, txid, old_quantity, new_quantity
+                    from public.aud_inventory
+                    order by audit_id desc
+                    limit 3
+                ) latest
+                order by audit_id
+            """);
+
+            // The update only records what changed, so its old and new names are null
+            assertEquals(3, rows.size());
+            assertEquals("INSERT", rows.get(0).get("operation"));
+            assertEquals(30, rows.get(0).get("new_quantity"));
+            assertEquals("UPDATE", rows.get(1).get("operation"));
+            assertEquals("{3}", rows.get(1).get("changed_columns"));
+            assertEquals(30, rows.get(1).get("old_quantity"));
+            assertEquals(31, rows.get(1).get("new_quantity"));
+            assertEquals("DELETE", rows.get(2).get("operation"));
+            assertEquals(31, rows.get(2).get("old_quantity"));
+
+            // --txid is no longer enabled, so nothing fills the column which it added
+            for (Map<String, Object> row : rows) {
+                assertNull(row.get("txid"));
+            }
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package org.voidzero;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.testcontainers.containers.PostgreSQLContainer;
+import org.voidzero.influx.cli.InfluxCli;
+import org.voidzero.influx.cli.exception.HelpException;
+import org.voidzero.influx.cli.exception.ParseException;
+import org.voidzero.influx.jdbc.InfluxConnection;
+import org.voidzero.pgauditor.AuditRestore;
+import org.voidzero.pgauditor.Configuration;
+import org.voidzero.pgauditor.PgAuditor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.voidzero.influx.jdbc.InfluxConnection.connect;
+
+/**
+ * Verifies that the restore command rebuilds tables audited with --point-in-time as they were at a point in time, with
+ * single and composite primary keys and when the rows of a range don't fit in memory, and that it refuses tables whose
+ * audit records don't contain whole rows. See {@link BaselineAuditTest} for Docker requirements.
+ */
+public class RestoreAuditTest {
+    /**
+     * Use TestContainers to spin up a Docker image of PostgreSQL to run the tests against.
+     */
+    private static final PostgreSQLContainer<?> POSTGRES = new PostgreSQLContainer<>("postgres:16-alpine");
+
+    /**
+     * The SQL statement for creating the tables which will be audited in tests.
+     */
+    private static final String CREATE_TABLES = """
+        create table public.inventory(
+            id bigint primary key,
+            name text not null,
+            quantity integer not null default 0,
+            price numeric(10, 2)
+        );
+        create table public.shelf(
+            aisle text not null,
+            slot integer not null,
+            item text,
+            primary key (aisle, slot)
+        );
+        create table public.orders(
+            id bigint primary key,
+            inventory_id bigint not null
+        );
+     """;
+
+    /**
+     * The point in time which tables are restored as of.
+     */
+    private static String asOf;
+
+    @BeforeClass
+    public static void beforeClass() throws SQLException, HelpException, ParseException {
+        // Start the database
+        POSTGRES.start();
+
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            // Create the tables which should be audited. Only those audited with --point-in-time can be restored
+            assertFalse(connection.execute(CREATE_TABLES));
+            connection.execute(generate(connection, "--table", "public.inventory", "--point-in-time"));
+            connection.execute(generate(connection, "--table", "public.shelf", "--point-in-time"));
+            connection.execute(generate(connection, "--table", "public.orders"));
+
+            connection.execute("""
+                insert into public.inventory select g, 'item ' || g, g, g / 4.0 from generate_series(1, 5000) g
+            """);
+            connection.execute("update public.inventory set quantity = quantity * 2 where id % 7 = 0");
+            connection.execute("update public.inventory set price = null where id % 9 = 0");
+            connection.execute("update public.inventory set id = id + 10000 where id % 100 = 0");
+            connection.execute("delete from public.inventory where id % 11 = 0");
+            connection.execute("""
+                insert into public.shelf select chr(65 + g % 5), g, 'item ' || g from generate_series(1, 500) g
+            """);
+            connection.execute("truncate public.shelf");
+            connection.execute("""
+                insert into public.shelf select chr(65 + g % 5), g, 'item ' || g from generate_series(1, 300) g
+            """);
+            connection.execute("update public.shelf set aisle = 'Z' where slot % 10 = 0");
+            connection.execute("insert into public.orders values(1, 1)");
+
+            // The tables as they are now are what restoring them as of now should produce
+            connection.execute("create table public.inventory_expected as select * from public.inventory");
+            connection.execute("create table public.shelf_expected as select * from public.shelf");
+            asOf = connection.getString("select now()::text");
+
+            // Changes after the point in time aren't restored
+            connection.execute("update public.inventory set name = 'changed' where id % 3 = 0");
+            connection.execute("delete from public.inventory where id % 5 = 0");
+            connection.execute("insert into public.inventory values(20000, 'late', 1, 1)");
+            connection.execute("delete from public.shelf where aisle = 'A'");
+            connection.execute("update public.shelf set item = null");
+        }
+    }
+
+    @AfterClass
+    public static void afterClass() {
+        POSTGRES.stop();
+    }
+
+    private static Configuration configure(final String... options) throws HelpException, ParseException {
+        List<String> args = new ArrayList<>(List.of(
+                "--username", POSTGRES.getUsername(),
+                "--password", POSTGRES.getPassword(),
+                "--dbname", POSTGRES.getDatabaseName(),
+                "--host", POSTGRES.getHost(),
+                "--port", POSTGRES.getMappedPort(5432).toString()
+        ));
+        args.addAll(List.of(options));
+
+        InfluxCli cli = new InfluxCli();
+        return (Configuration) cli.bind(Configuration.class, args.toArray(new String[0]));
+    }
+
+    private static String generate(final InfluxConnection connection, final String... options)
+            throws SQLException, HelpException, ParseException {
+        // Execute PgAuditor
+        PgAuditor pgAuditor = new PgAuditor(connection, configure(options));
+        pgAuditor.run();
+
+        String ddl = pgAuditor.toString();
+        System.err.println(ddl);
+        return ddl;
+    }
+
+    /**
+     * Run the restore command and return what it printed.
+     */
+    private static String restore(final String... options) throws Exception {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(buffer, true, StandardCharsets.UTF_8));
+
+        try (Connection jdbcConnection = DriverManager.getConnection(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(),
+                POSTGRES.getPassword())) {
+            new AuditRestore(configure(options)).run(jdbcConnection, new InfluxConnection(jdbcConnection));
+        } finally {
+            System.setOut(stdout);
+        }
+
+        String output = buffer.toString(StandardCharsets.UTF_8);
+        System.err.println(output);
+        return output;
+    }
+
+    /**
+     * Count the rows which are in only one of two tables.
+     */
+    private static Integer difference(final InfluxConnection connection, final String table, final String other)
+            throws SQLException {
+        return connection.getInteger("""
+            select count(*) from (
+                (table %1$s except all table %2$s)
+                union all
+                (table %2$s except all table %1$s)
+            ) d
+        """.formatted(table, other));
+    }
+
+    /**
+     * Verify that a table with a single integer key is restored as it was at the point in time, with its primary key
+     * and defaults.
+     *
+     * @throws Exception Thrown when something goes wrong
+     */
+    @Test
+    public void testRestoreIntegerKey() throws Exception {
+        String output = restore("--table", "public.inventory", "--as-of", asOf, "--target", "inventory_restored",
+                "--max-connections", "4");
+        assertTrue(output.startsWith("Restoring public.inventory as of " + asOf + " into public.inventory_restored in "));
+        assertTrue(output.contains("Restored 4546 rows from "));
+        assertFalse(output.contains("spilling"));
+
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            assertEquals(Integer.valueOf(4546), connection.getInteger("select count(*) from public.inventory_expected"));
+            assertEquals(Integer.valueOf(0),
+                    difference(connection, "public.inventory_restored", "public.inventory_expected"));
+            assertEquals("PRIMARY KEY (id)", connection.getString("""
+                select pg_get_constraintdef(oid) from pg_constraint
+                where conrelid = 'public.inventory_restored'::regclass and contype = 'p'
+            """));
+            assertEquals("0", connection.getString("""
+                select column_default from information_schema.columns
+                where table_schema = 'public' and table_name = 'inventory_restored' and column_name = 'quantity'
+            """));
+
+            // Clean up after ourselves
+            connection.execute("drop table public.inventory_restored");
+        }
+    }
+
+    /**
+     * Verify that a table with a composite key, whose rows were truncated and whose keys were changed, is restored as
+     * it was at the point in time.
+     *
+     * @throws Exception Thrown when something goes wrong
+     */
+    @Test
+    public void testRestoreCompositeKey() throws Exception {
+        String output = restore("--table", "public.shelf", "--as-of", asOf, "--target", "public.shelf_restored",
+                "--ranges", "3");
+        assertTrue(output.contains("Restored 300 rows from "));
+
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            assertEquals(Integer.valueOf(0), difference(connection, "public.shelf_restored", "public.shelf_expected"));
+
+            // Clean up after ourselves
+            connection.execute("drop table public.shelf_restored");
+        }
+    }
+
+    /**
+     * Verify that the rows of ranges which don't fit in memory are divided into files and restored all the same.
+     *
+     * @throws Exception Thrown when something goes wrong
+     */
+    @Test
+    public void testRestoreSpillsToFiles() throws Exception {
+        String output = restore("--table", "public.inventory", "--as-of", asOf, "--target", "inventory_spilled",
+                "--ranges", "2", "--max-rows-in-memory", "100");
+        assertTrue(output.contains(", spilling to "));
+
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            assertEquals(Integer.valueOf(0),
+                    difference(connection, "public.inventory_spilled", "public.inventory_expected"));
+
+            // Clean up after ourselves
+            connection.execute("drop table public.inventory_spilled");
+        }
+    }
+
+    /**
+     * Verify that tables which weren't audited with --point-in-time can't be restored, and that an existing table
+     * isn't written to.
+     *
+     * @throws Exception Thrown when something goes wrong
+     */
+    @Test
+    public void testRestoreRefused() throws Exception {
+        try {
+            restore("--table", "public.orders", "--as-of", asOf, "--target", "orders_restored");
+            fail("A table which wasn't audited with --point-in-time was restored");
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage()
+                    .startsWith("public.orders can only be restored when it was audited with --point-in-time"));
+        }
+
+        try {
+            restore("--table", "public.inventory", "--as-of", asOf, "--target", "inventory_expected");
+            fail("An existing table was restored into");
+        } catch (RuntimeException e) {
+            assertEquals("public.inventory_expected already exists. The restore command only writes to a new table",
+                    e.getMessage());
+        }
+
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            assertEquals(Integer.valueOf(0),
+                    connection.getInteger("select count(*) from pg_class where relname = 'orders_restored'"));
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package org.voidzero;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.testcontainers.containers.PostgreSQLContainer;
+import org.voidzero.influx.cli.InfluxCli;
+import org.voidzero.influx.cli.exception.HelpException;
+import org.voidzero.influx.cli.exception.ParseException;
+import org.voidzero.influx.jdbc.InfluxConnection;
+import org.voidzero.pgauditor.Configuration;
+import org.voidzero.pgauditor.PgAuditor;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.voidzero.influx.jdbc.InfluxConnection.connect;
+
+/**
+ * Verifies that tables audited with --rollup count their audited changes per day, user, application_name, and
+ * operation in pgauditor_rollup. See {@link BaselineAuditTest} for Docker requirements.
+ */
+public class RollupAuditTest {
+    /**
+     * Use TestContainers to spin up a Docker image of PostgreSQL to run the tests against.
+     */
+    private static final PostgreSQLContainer<?> POSTGRES = new PostgreSQLContainer<>("postgres:16-alpine");
+
+    /**
+     * The SQL statement for creating the table which will be audited in tests.
+     */
+    private static final String CREATE_TABLE = """
+        create table public.inventory(
+            id bigint primary key,
+            name text not null,
+            quantity integer not null,
+            price numeric(10, 2)
+        );
+     """;
+
+    @BeforeClass
+    public static void beforeClass() throws SQLException, HelpException, ParseException {
+        // Start the database
+        POSTGRES.start();
+
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            // Create the table which should be audited
+            assertFalse(connection.execute(CREATE_TABLE));
+
+            // Execute PgAuditor
+            InfluxCli cli = new InfluxCli();
+            String[] args = {
+                    "--table", "public.inventory",
+                    "--rollup",
+                    "--username", POSTGRES.getUsername(),
+                    "--password", POSTGRES.getPassword(),
+                    "--dbname", POSTGRES.getDatabaseName(),
+                    "--host", POSTGRES.getHost(),
+                    "--port", POSTGRES.getMappedPort(5432).toString()
+            };
+            Configuration configuration = (Configuration) cli.bind(Configuration.class, args);
+            PgAuditor pgAuditor = new PgAuditor(connection, configuration);
+            pgAuditor.run();
+
+            // Create the audit table and triggers
+            String ddl = pgAuditor.toString();
+            System.err.println(ddl);
+            connection.execute(ddl);
+        }
+    }
+
+    @AfterClass
+    public static void afterClass() {
+        POSTGRES.stop();
+    }
+
+    /**
+     * Verify that each operation is counted once per audited row, that updates which change nothing aren't counted,
+     * and that the counters agree with the audit table.
+     *
+     * @throws SQLException Thrown when something goes wrong
+     */
+    @Test
+    public void testChangesCounted() throws SQLException {
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            connection.execute("set application_name = 'rollup-test'");
+            connection.execute("insert into public.inventory values(1, 'apple', 10, 1.50), (2, 'banana', 20, 0.25), "
+                    + "(3, 'cherry', 30, 4.00)");
+
+            // Only the first row is changed, so only it is audited and counted
+            connection.execute("update public.inventory set quantity = case when id = 1 then 11 else quantity end");
+
+            // Rows which swap values are paired by key, so both are counted
+            connection.execute("update public.inventory set quantity = 50 - quantity where id in (2, 3)");
+            connection.execute("insert into public.inventory values(4, 'date', 40, 2.00)");
+            connection.execute("delete from public.inventory where id = 4");
+            connection.execute("truncate public.inventory");
+
+            List<Map<String, Object>> counts = connection.getListMap("""
+                select r.operation::text, changed_by, application_name, day = (now() at time zone 'UTC')::date as today,
+                    sum(row_count)::integer as row_count
+                from public.pgauditor_rollup r
+                where table_schema = 'public' and table_name = 'inventory'
+                group by r.operation, changed_by, application_name, day
+                order by r.operation
+            """);
+
+            assertEquals(4, counts.size());
+            assertEquals("INSERT", counts.get(0).get("operation"));
+            assertEquals(4, counts.get(0).get("row_count"));
+            assertEquals("UPDATE", counts.get(1).get("operation"));
+            assertEquals(3, counts.get(1).get("row_count"));
+            assertEquals("DELETE", counts.get(2).get("operation"));
+            assertEquals(1, counts.get(2).get("row_count"));
+            assertEquals("TRUNCATE", counts.get(3).get("operation"));
+            assertEquals(3, counts.get(3).get("row_count"));
+
+            for (Map<String, Object> count : counts) {
+                assertEquals(POSTGRES.getUsername(), count.get("changed_by"));
+                assertEquals("rollup-test", count.get("application_name"));
+                assertEquals(true, count.get("today"));
+            }
+
+            // The counters of row operations agree with the audit table
+            assertEquals(Integer.valueOf(8), connection.getInteger("""
+                select count(*) from public.aud_inventory where operation <> 'TRUNCATE'
+            """));
+
+            // Clean up after ourselves
+            connection.execute("delete from public.aud_inventory");
+            connection.execute("delete from public.pgauditor_rollup");
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package org.voidzero;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.testcontainers.containers.PostgreSQLContainer;
+import org.voidzero.influx.cli.InfluxCli;
+import org.voidzero.influx.cli.exception.HelpException;
+import org.voidzero.influx.cli.exception.ParseException;
+import org.voidzero.influx.jdbc.InfluxConnection;
+import org.voidzero.pgauditor.AuditSession;
+import org.voidzero.pgauditor.Configuration;
+import org.voidzero.pgauditor.PgAuditor;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.voidzero.influx.jdbc.InfluxConnection.connect;
+
+/**
+ * Verifies that connections wrapped by {@link AuditSession} identify the current user of each transaction to tables
+ * audited with --auth application, without leaving the setting behind when the transaction ends. See
+ * {@link BaselineAuditTest} for Docker requirements.
+ */
+public class SessionAuditTest {
+    /**
+     * Use TestContainers to spin up a Docker image of PostgreSQL to run the tests against.
+     */
+    private static final PostgreSQLContainer<?> POSTGRES = new PostgreSQLContainer<>("postgres:16-alpine");
+
+    /**
+     * The SQL statement for creating the table which will be audited in tests.
+     */
+    private static final String CREATE_TABLE = """
+        create table public.inventory(
+            id bigint primary key,
+            name text not null,
+            quantity integer not null
+        );
+     """;
+
+    /**
+     * The setting which the audit functions read the current user from.
+     */
+    private static final String CONFIG_PROPERTY = "pgauditor.current_user";
+
+    /**
+     * The current user, which the wrapped connections read at the start of each transaction.
+     */
+    private final AtomicReference<String> user = new AtomicReference<>();
+
+    @BeforeClass
+    public static void beforeClass() throws SQLException, HelpException, ParseException {
+        // Start the database
+        POSTGRES.start();
+
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            // Create the table which should be audited
+            assertFalse(connection.execute(CREATE_TABLE));
+            connection.execute(generate(connection, "--table", "public.inventory", "--auth", "application"));
+        }
+    }
+
+    @AfterClass
+    public static void afterClass() {
+        POSTGRES.stop();
+    }
+
+    private static Configuration configure(final String... options) throws HelpException, ParseException {
+        List<String> args = new ArrayList<>(List.of(
+                "--username", POSTGRES.getUsername(),
+                "--password", POSTGRES.getPassword(),
+                "--dbname", POSTGRES.getDatabaseName(),
+                "--host", POSTGRES.getHost(),
+                "--port", POSTGRES.getMappedPort(5432).toString()
+        ));
+        args.addAll(List.of(options));
+
+        InfluxCli cli = new InfluxCli();
+        return (Configuration) cli.bind(Configuration.class, args.toArray(new String[0]));
+    }
+
+    private static String generate(final InfluxConnection connection, final String... options)
+            throws SQLException, HelpException, ParseException {
+        // Execute PgAuditor
+        PgAuditor pgAuditor = new PgAuditor(connection, configure(options));
+        pgAuditor.run();
+
+        String ddl = pgAuditor.toString();
+        System.err.println(ddl);
+        return ddl;
+    }
+
+    private Connection wrap(final Connection connection) {
+        return AuditSession.wrap(connection, CONFIG_PROPERTY, user::get, () -> "inventory-service");
+    }
+
+    /**
+     * The operation and user of each audit record, in the order in which they were recorded.
+     */
+    private static List<String> changes(final Connection connection) throws SQLException {
+        List<String> changes = new ArrayList<>();
+
+        for (Map<String, Object> row : new InfluxConnection(connection).getListMap(
+                "select operation::text || ' ' || changed_by as change from public.aud_inventory order by audit_id")) {
+            changes.add((String) row.get("change"));
+        }
+        return changes;
+    }
+
+    /**
+     * Verify that in auto-commit mode every statement is identified by the user at the time it was executed, and that
+     * the results of statements aren't affected by the settings which are sent along with them.
+     *
+     * @throws SQLException Thrown when something goes wrong
+     */
+    @Test
+    public void testAutoCommit() throws SQLException {
+        try (Connection jdbcConnection = DriverManager.getConnection(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(),
+                POSTGRES.getPassword())) {
+            Connection connection = wrap(jdbcConnection);
+
+            user.set("alice");
+
+            try (Statement statement = connection.createStatement()) {
+                assertEquals(1, statement.executeUpdate("insert into public.inventory values(1, 'apple', 10)"));
+            }
+
+            user.set("bob");
+
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "update public.inventory set quantity = ? where id = ?")) {
+                statement.setInt(1, 15);
+                statement.setLong(2, 1);
+                assertEquals(1, statement.executeUpdate());
+            }
+
+            // The first result, which belongs to the settings, is skipped
+            try (Statement statement = connection.createStatement();
+                 ResultSet resultSet = statement.executeQuery(
+                         "select current_setting('application_name'), current_setting('%s')".formatted(CONFIG_PROPERTY))) {
+                assertTrue(resultSet.next());
+                assertEquals("inventory-service", resultSet.getString(1));
+                assertEquals("bob", resultSet.getString(2));
+                assertFalse(resultSet.next());
+            }
+
+            assertEquals(List.of("INSERT alice", "UPDATE bob"), changes(jdbcConnection));
+
+            // Nothing outlives the statement which carried it
+            assertEquals("", new InfluxConnection(jdbcConnection).getString(
+                    "select coalesce(current_setting('%s', true), '')".formatted(CONFIG_PROPERTY)));
+
+            // Clean up after ourselves
+            new InfluxConnection(jdbcConnection).execute("""
+                set session_replication_role = replica;
+                delete from public.inventory;
+                set session_replication_role = origin;
+                delete from public.aud_inventory;
+            """);
+        }
+    }
+
+    /**
+     * Verify that every statement of a transaction, including batches, is identified by the user at the start of the
+     * transaction, and that the next transaction reads the user again.
+     *
+     * @throws SQLException Thrown when something goes wrong
+     */
+    @Test
+    public void testTransactions() throws SQLException {
+        try (Connection jdbcConnection = DriverManager.getConnection(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(),
+                POSTGRES.getPassword())) {
+            Connection connection = wrap(jdbcConnection);
+            connection.setAutoCommit(false);
+
+            user.set("carol");
+
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "insert into public.inventory values(?, ?, ?)")) {
+                for (int id = 2; id <= 3; id++) {
+                    statement.setLong(1, id);
+                    statement.setString(2, "item " + id);
+                    statement.setInt(3, id);
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+            }
+
+            // Changing the user in the middle of a transaction doesn't affect it
+            user.set("dave");
+
+            try (Statement statement = connection.createStatement()) {
+                statement.executeUpdate("update public.inventory set quantity = 0 where id = 2");
+            }
+
+            connection.commit();
+
+            try (Statement statement = connection.createStatement()) {
+                statement.executeUpdate("delete from public.inventory where id = 3");
+            }
+
+            connection.rollback();
+
+            try (Statement statement = connection.createStatement()) {
+                statement.executeUpdate("delete from public.inventory where id = 2");
+            }
+
+            connection.commit();
+
+            // The rolled back delete left no audit record
+            assertEquals(List.of("INSERT carol", "INSERT carol", "UPDATE carol", "DELETE dave"), changes(jdbcConnection));
+
+            // Clean up after ourselves
+            connection.setAutoCommit(true);
+            new InfluxConnection(jdbcConnection).execute("""
+                set session_replication_role = replica;
+                delete from public.inventory;
+                set session_replication_role = origin;
+                delete from public.aud_inventory;
+            """);
+        }
+    }
+
+    /**
+     * Verify that nothing is set when the user isn't known, so the audit functions refuse the change.
+     *
+     * @throws SQLException Thrown when something goes wrong
+     */
+    @Test
+    public void testAnonymousChangeRefused() throws SQLException {
+        try (Connection jdbcConnection = DriverManager.getConnection(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(),
+                POSTGRES.getPassword())) {
+            Connection connection = wrap(jdbcConnection);
+            user.set(null);
+
+            try (Statement statement = connection.createStatement()) {
+                statement.executeUpdate("insert into public.inventory values(4, 'anonymous', 1)");
+                fail("An anonymous change was accepted");
+            } catch (SQLException e) {
+                assertTrue(e.getMessage()
+                        .contains("Anonymous updates are not permitted for audited table public.inventory"));
+            }
+            assertEquals(Integer.valueOf(0), new InfluxConnection(jdbcConnection)
+                    .getInteger("select count(*) from public.inventory"));
+        }
+    }
+}
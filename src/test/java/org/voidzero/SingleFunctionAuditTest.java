@@ -0,0 +1,154 @@
+package org.voidzero;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.testcontainers.containers.PostgreSQLContainer;
+import org.voidzero.influx.cli.InfluxCli;
+import org.voidzero.influx.cli.exception.HelpException;
+import org.voidzero.influx.cli.exception.ParseException;
+import org.voidzero.influx.jdbc.InfluxConnection;
+import org.voidzero.pgauditor.Configuration;
+import org.voidzero.pgauditor.PgAuditor;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.voidzero.influx.jdbc.InfluxConnection.connect;
+
+/**
+ * Verifies that tables audited with --single-function record inserts, updates, and deletes through one row trigger
+ * function. See {@link BaselineAuditTest} for Docker requirements.
+ */
+public class SingleFunctionAuditTest {
+    /**
+     * Use TestContainers to spin up a Docker image of PostgreSQL to run the tests against.
+     */
+    private static final PostgreSQLContainer<?> POSTGRES = new PostgreSQLContainer<>("postgres:16-alpine");
+
+    /**
+     * The SQL statement for creating the table which will be audited in tests.
+     */
+    private static final String CREATE_TABLE = """
+        create table public.inventory(
+            id bigint primary key,
+            name text not null,
+            quantity integer not null,
+            price numeric(10, 2)
+        );
+     """;
+
+    @BeforeClass
+    public static void beforeClass() throws SQLException, HelpException, ParseException {
+        // Start the database
+        POSTGRES.start();
+
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            // Create the table which should be audited
+            assertFalse(connection.execute(CREATE_TABLE));
+
+            // Execute PgAuditor
+            InfluxCli cli = new InfluxCli();
+            String[] args = {
+                    "--table", "public.inventory",
+                    "--single-function",
+                    "--username", POSTGRES.getUsername(),
+                    "--password", POSTGRES.getPassword(),
+                    "--dbname", POSTGRES.getDatabaseName(),
+                    "--host", POSTGRES.getHost(),
+                    "--port", POSTGRES.getMappedPort(5432).toString()
+            };
+            Configuration configuration = (Configuration) cli.bind(Configuration.class, args);
+            PgAuditor pgAuditor = new PgAuditor(connection, configuration);
+            pgAuditor.run();
+
+            // Create the audit table and triggers
+            String ddl = pgAuditor.toString();
+            System.err.println(ddl);
+            connection.execute(ddl);
+        }
+    }
+
+    @AfterClass
+    public static void afterClass() {
+        POSTGRES.stop();
+    }
+
+    /**
+     * Verify that every row trigger calls the single audit function and that the per-operation functions weren't
+     * created.
+     *
+     * @throws SQLException Thrown when something goes wrong
+     */
+    @Test
+    public void testTriggersUseSingleFunction() throws SQLException {
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            List<Map<String, Object>> triggers = connection.getListMap("""
+                select tgname::text as name, tgfoid::regproc::text as function
+                from pg_trigger
+                where tgrelid = 'public.inventory'::regclass and not tgisinternal
+                order by tgname
+            """);
+
+            assertEquals(4, triggers.size());
+            assertEquals("atd_aud_inventory", triggers.get(0).get("name"));
+            assertEquals("afa_inventory", triggers.get(0).get("function"));
+            assertEquals("ati_aud_inventory", triggers.get(1).get("name"));
+            assertEquals("afa_inventory", triggers.get(1).get("function"));
+            assertEquals("att_aud_inventory", triggers.get(2).get("name"));
+            assertEquals("aft_inventory", triggers.get(2).get("function"));
+            assertEquals("atu_aud_inventory", triggers.get(3).get("name"));
+            assertEquals("afa_inventory", triggers.get(3).get("function"));
+
+            String query = "select count(*) from pg_proc where proname = ?";
+            assertEquals(Integer.valueOf(0), connection.getInteger(query, "afi_inventory"));
+            assertEquals(Integer.valueOf(0), connection.getInteger(query, "afu_inventory"));
+            assertEquals(Integer.valueOf(0), connection.getInteger(query, "afd_inventory"));
+        }
+    }
+
+    /**
+     * Verify that the single function records the old and new values of each operation.
+     *
+     * @throws SQLException Thrown when something goes wrong
+     */
+    @Test
+    public void testOperationsRecorded() throws SQLException {
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            connection.execute("insert into public.inventory values(1, 'apple', 10, 1.50)");
+            connection.execute("update public.inventory set quantity = 15 where id = 1");
+            connection.execute("delete from public.inventory where id = 1");
+
+            List<Map<String, Object>> rows = connection.getListMap("""
+                select operation::text, old_name, new_name, old_quantity, new_quantity
+                from public.aud_inventory
+                order by audit_id
+            """);
+
+            assertEquals(3, rows.size());
+            assertEquals("INSERT", rows.get(0).get("operation"));
+            assertNull(rows.get(0).get("old_name"));
+            assertEquals("apple", rows.get(0).get("new_name"));
+            assertEquals(10, rows.get(0).get("new_quantity"));
+
+            // Like the per-operation functions, only the values which changed are recorded
+            assertEquals("UPDATE", rows.get(1).get("operation"));
+            assertNull(rows.get(1).get("old_name"));
+            assertNull(rows.get(1).get("new_name"));
+            assertEquals(10, rows.get(1).get("old_quantity"));
+            assertEquals(15, rows.get(1).get("new_quantity"));
+
+            assertEquals("DELETE", rows.get(2).get("operation"));
+            assertEquals("apple", rows.get(2).get("old_name"));
+            assertNull(rows.get(2).get("new_name"));
+            assertEquals(15, rows.get(2).get("old_quantity"));
+
+            // Clean up after ourselves
+            connection.execute("delete from public.aud_inventory");
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package org.voidzero;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.testcontainers.containers.PostgreSQLContainer;
+import org.voidzero.influx.cli.exception.HelpException;
+import org.voidzero.influx.cli.exception.ParseException;
+import org.voidzero.influx.jdbc.InfluxConnection;
+import org.voidzero.pgauditor.Main;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.voidzero.influx.jdbc.InfluxConnection.connect;
+
+/**
+ * Verifies that DDL generated with --from-snapshot from a file written by the snapshot command is identical to the DDL
+ * generated from the database which the snapshot was taken of. See {@link BaselineAuditTest} for Docker requirements.
+ */
+public class SnapshotAuditTest {
+    /**
+     * Use TestContainers to spin up a Docker image of PostgreSQL to run the tests against.
+     */
+    private static final PostgreSQLContainer<?> POSTGRES = new PostgreSQLContainer<>("postgres:16-alpine");
+
+    /**
+     * The SQL statement for creating the tables which will be audited in tests.
+     */
+    private static final String CREATE_TABLE = """
+        create table public.inventory(
+            id bigint primary key,
+            name text not null,
+            quantity integer not null,
+            profile jsonb
+        );
+        create table public.shelf(
+            id bigint primary key,
+            item text not null,
+            note text
+        );
+     """;
+
+    /**
+     * Holds the snapshot file of each test.
+     */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void beforeClass() throws SQLException, HelpException, ParseException {
+        // Start the database
+        POSTGRES.start();
+
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            // Create the tables which should be audited
+            assertFalse(connection.execute(CREATE_TABLE));
+        }
+    }
+
+    @AfterClass
+    public static void afterClass() {
+        POSTGRES.stop();
+    }
+
+    /**
+     * Run a command the way it is run from the command line and return what it printed.
+     */
+    private static String main(final List<String> args) throws Exception {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(buffer, true, StandardCharsets.UTF_8));
+
+        try {
+            Main.main(args.toArray(new String[0]));
+        } finally {
+            System.out.flush();
+            System.setOut(stdout);
+        }
+        return buffer.toString(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The arguments which connect to the database.
+     */
+    private static List<String> connection() {
+        return List.of(
+                "--username", POSTGRES.getUsername(),
+                "--password", POSTGRES.getPassword(),
+                "--dbname", POSTGRES.getDatabaseName(),
+                "--host", POSTGRES.getHost(),
+                "--port", POSTGRES.getMappedPort(5432).toString()
+        );
+    }
+
+    /**
+     * Take a snapshot of the public schema.
+     */
+    private Path snapshot() throws Exception {
+        List<String> args = new ArrayList<>(List.of("snapshot"));
+        args.addAll(connection());
+
+        Path snapshot = folder.newFile().toPath();
+        Files.writeString(snapshot, main(args));
+        return snapshot;
+    }
+
+    /**
+     * Generate DDL for public.inventory from the database and from the snapshot, and check that they are the same.
+     */
+    private static String assertSameDdl(final Path snapshot, final String... options) throws Exception {
+        return assertSameTableDdl(snapshot, "public.inventory", options);
+    }
+
+    /**
+     * Generate DDL for a table from the database and from the snapshot, and check that they are the same.
+     */
+    private static String assertSameTableDdl(final Path snapshot, final String table, final String... options)
+            throws Exception {
+        List<String> live = new ArrayList<>(List.of("--table", table));
+        live.addAll(List.of(options));
+        live.addAll(connection());
+
+        // No connection parameters, not even a username, are needed, and the database name would fail if a
+        // connection were made
+        List<String> offline = new ArrayList<>(List.of("--table", table));
+        offline.addAll(List.of(options));
+        offline.addAll(List.of("--from-snapshot", snapshot.toString(), "--dbname", "no_such_database"));
+
+        String ddl = main(live);
+        System.err.println(ddl);
+        assertTrue(ddl.startsWith("BEGIN;"));
+        assertEquals(ddl, main(offline));
+        return ddl;
+    }
+
+    /**
+     * Verify that the DDL for a table which isn't audited yet is the same from the snapshot, with several
+     * combinations of options.
+     *
+     * @throws Exception Thrown when something goes wrong
+     */
+    @Test
+    public void testUnauditedTable() throws Exception {
+        Path snapshot = snapshot();
+
+        assertSameDdl(snapshot);
+        assertSameDdl(snapshot, "--point-in-time", "--txid", "--notify");
+        assertSameDdl(snapshot, "--single-function", "--changed-columns", "--rollup", "--jsonb-diff");
+        assertSameDdl(snapshot, "--old-values-only", "--bloom-index", "--statement-ordinal");
+    }
+
+    /**
+     * Verify that the DDL which regenerates an audited table with different options is the same from the snapshot,
+     * which has to describe the existing audit table, triggers, and functions to get it right.
+     *
+     * @throws Exception Thrown when something goes wrong
+     */
+    @Test
+    public void testAuditedTable() throws Exception {
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            String ddl = assertSameDdl(snapshot(), "--point-in-time", "--notify");
+            connection.execute(ddl);
+            connection.execute("alter table public.inventory add column price numeric");
+
+            // Adding an audit column and dropping the triggers of the disabled options is in the DDL
+            String regenerated = assertSameDdl(snapshot(), "--single-function", "--txid");
+            assertTrue(regenerated.contains("new_price"));
+            assertTrue(regenerated.contains("atn_aud_inventory"));
+
+            // Clean up after ourselves
+            connection.execute("alter table public.inventory drop column price");
+        }
+    }
+
+    /**
+     * Verify that the history view of --old-values-only is dropped and created again from the snapshot, as it is from
+     * the database, when its columns were reordered, and is replaced in place when a column was added.
+     *
+     * @throws Exception Thrown when something goes wrong
+     */
+    @Test
+    public void testHistoryView() throws Exception {
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            connection.execute(assertSameTableDdl(snapshot(), "public.shelf", "--old-values-only"));
+
+            // The txid column is shown before the columns of the table, which CREATE OR REPLACE VIEW can't do
+            String dropped = assertSameTableDdl(snapshot(), "public.shelf", "--old-values-only", "--txid");
+            assertTrue(dropped.contains("DROP VIEW IF EXISTS public.aud_shelf_history;\nCREATE VIEW "));
+            connection.execute(dropped);
+
+            connection.execute("alter table public.shelf add column aisle text");
+            String added = assertSameTableDdl(snapshot(), "public.shelf", "--old-values-only", "--txid");
+            assertFalse(added.contains("DROP VIEW"));
+            assertTrue(added.contains("CREATE OR REPLACE VIEW public.aud_shelf_history"));
+            connection.execute(added);
+
+            connection.execute("insert into public.shelf(id, item, aisle) values(1, 'apple', 'A')");
+            assertEquals("A", connection.getString("select new_aisle from public.aud_shelf_history"));
+        }
+    }
+
+    /**
+     * Verify that a table outside the schema which the snapshot describes is refused rather than treated as missing.
+     *
+     * @throws Exception Thrown when something goes wrong
+     */
+    @Test
+    public void testOtherSchemaRefused() throws Exception {
+        Path snapshot = snapshot();
+
+        try {
+            main(List.of("--table", "other.inventory", "--from-snapshot", snapshot.toString()));
+            fail("A table in another schema was accepted");
+        } catch (RuntimeException e) {
+            assertEquals("The catalog snapshot describes the public schema, not the other schema", e.getMessage());
+        }
+    }
+}
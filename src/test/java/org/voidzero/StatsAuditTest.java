@@ -0,0 +1,151 @@
+package org.voidzero;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.testcontainers.containers.PostgreSQLContainer;
+import org.voidzero.influx.cli.InfluxCli;
+import org.voidzero.influx.cli.exception.HelpException;
+import org.voidzero.influx.cli.exception.ParseException;
+import org.voidzero.influx.jdbc.InfluxConnection;
+import org.voidzero.pgauditor.AuditStats;
+import org.voidzero.pgauditor.Configuration;
+import org.voidzero.pgauditor.PgAuditor;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.voidzero.influx.jdbc.InfluxConnection.connect;
+
+/**
+ * Verifies that the stats command reports the trigger calls, audit table sizes, and write counters of audited tables.
+ * See {@link BaselineAuditTest} for Docker requirements.
+ */
+public class StatsAuditTest {
+    /**
+     * Use TestContainers to spin up a Docker image of PostgreSQL to run the tests against.
+     */
+    private static final PostgreSQLContainer<?> POSTGRES = new PostgreSQLContainer<>("postgres:16-alpine");
+
+    /**
+     * The SQL statement for creating the tables which will be audited in tests.
+     */
+    private static final String CREATE_TABLES = """
+        create table public.inventory(
+            id bigint primary key,
+            name text not null,
+            quantity integer not null
+        );
+        create table public.orders(
+            id bigint primary key,
+            inventory_id bigint not null
+        );
+     """;
+
+    @BeforeClass
+    public static void beforeClass() throws SQLException, HelpException, ParseException {
+        // Start the database
+        POSTGRES.start();
+
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            // Create the tables which should be audited
+            assertFalse(connection.execute(CREATE_TABLES));
+            connection.execute(generate(connection, "--table", "public.inventory"));
+            connection.execute(generate(connection, "--table", "public.orders"));
+
+            // Function calls are only counted when track_functions is enabled in the session which calls them
+            connection.execute("set track_functions = 'pl'");
+            connection.execute("insert into public.inventory values(1, 'apple', 10), (2, 'banana', 20), (3, 'cherry', 30)");
+            connection.execute("update public.inventory set quantity = 11 where id = 1");
+            connection.execute("delete from public.inventory where id = 3");
+
+            // Statistics are sent to the server in the background, unless they are asked for
+            connection.execute("select pg_stat_force_next_flush()");
+            connection.execute("select 1");
+        }
+    }
+
+    @AfterClass
+    public static void afterClass() {
+        POSTGRES.stop();
+    }
+
+    private static Configuration configure(final String... options) throws HelpException, ParseException {
+        List<String> args = new ArrayList<>(List.of(
+                "--username", POSTGRES.getUsername(),
+                "--password", POSTGRES.getPassword(),
+                "--dbname", POSTGRES.getDatabaseName(),
+                "--host", POSTGRES.getHost(),
+                "--port", POSTGRES.getMappedPort(5432).toString()
+        ));
+        args.addAll(List.of(options));
+
+        InfluxCli cli = new InfluxCli();
+        return (Configuration) cli.bind(Configuration.class, args.toArray(new String[0]));
+    }
+
+    private static String generate(final InfluxConnection connection, final String... options)
+            throws SQLException, HelpException, ParseException {
+        // Execute PgAuditor
+        PgAuditor pgAuditor = new PgAuditor(connection, configure(options));
+        pgAuditor.run();
+
+        String ddl = pgAuditor.toString();
+        System.err.println(ddl);
+        return ddl;
+    }
+
+    private static String stats(final String... options)
+            throws SQLException, InterruptedException, HelpException, ParseException {
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            AuditStats auditStats = new AuditStats(connection, configure(options));
+            auditStats.run();
+
+            String output = auditStats.toString();
+            System.err.println(output);
+            return output;
+        }
+    }
+
+    /**
+     * Verify that the human readable report lists each audited table with the calls of its audit functions and the
+     * rows written to its audit table.
+     *
+     * @throws Exception Thrown when something goes wrong
+     */
+    @Test
+    public void testHumanReport() throws Exception {
+        String output = stats();
+
+        assertTrue(output.contains("public.inventory (audit table public.aud_inventory)\n"));
+        assertTrue(output.contains("public.orders (audit table public.aud_orders)\n"));
+        assertTrue(output.contains("  trigger calls        5\n"));
+        assertTrue(output.contains("  audit rows written   5 (1.00 per source write)\n"));
+        assertTrue(output.contains("  audit rows written   0 (n/a per source write)\n"));
+    }
+
+    /**
+     * Verify that the Prometheus report has a sample for every audit function which was called, and that --table
+     * leaves out the other audited tables.
+     *
+     * @throws Exception Thrown when something goes wrong
+     */
+    @Test
+    public void testPrometheusReport() throws Exception {
+        String output = stats("--table", "public.inventory", "--format", "prometheus");
+
+        assertTrue(output.contains("# TYPE pgauditor_trigger_calls_total counter\n"));
+        assertTrue(output.contains(
+                "pgauditor_trigger_calls_total{schema=\"public\",table=\"inventory\",function=\"afi_inventory\"} 3\n"));
+        assertTrue(output.contains(
+                "pgauditor_trigger_calls_total{schema=\"public\",table=\"inventory\",function=\"afu_inventory\"} 1\n"));
+        assertTrue(output.contains(
+                "pgauditor_trigger_calls_total{schema=\"public\",table=\"inventory\",function=\"afd_inventory\"} 1\n"));
+        assertTrue(output.contains("pgauditor_audit_rows_written_total{schema=\"public\",table=\"inventory\"} 5\n"));
+        assertTrue(output.contains("pgauditor_source_writes_total{schema=\"public\",table=\"inventory\"} 5\n"));
+        assertFalse(output.contains("table=\"orders\""));
+    }
+}
@@ -0,0 +1,260 @@
+package org.voidzero;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.testcontainers.containers.PostgreSQLContainer;
+import org.voidzero.influx.cli.InfluxCli;
+import org.voidzero.influx.cli.exception.HelpException;
+import org.voidzero.influx.cli.exception.ParseException;
+import org.voidzero.influx.jdbc.InfluxConnection;
+import org.voidzero.pgauditor.AuditTail;
+import org.voidzero.pgauditor.Configuration;
+import org.voidzero.pgauditor.PgAuditor;
+
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.voidzero.influx.jdbc.InfluxConnection.connect;
+
+/**
+ * Verifies that the tail command streams new audit records in audit id order, holds back records while a transaction
+ * with a lower audit id is still running, and resumes from its checkpoint. See {@link BaselineAuditTest} for Docker
+ * requirements.
+ */
+public class TailAuditTest {
+    /**
+     * Use TestContainers to spin up a Docker image of PostgreSQL to run the tests against.
+     */
+    private static final PostgreSQLContainer<?> POSTGRES = new PostgreSQLContainer<>("postgres:16-alpine");
+
+    /**
+     * The SQL statement for creating the table which will be audited in tests.
+     */
+    private static final String CREATE_TABLE = """
+        create table public.inventory(
+            id bigint primary key,
+            name text not null,
+            quantity integer not null
+        );
+     """;
+
+    /**
+     * Holds the checkpoint file of each test.
+     */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void beforeClass() throws SQLException, HelpException, ParseException {
+        // Start the database
+        POSTGRES.start();
+
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            // Create the table which should be audited
+            assertFalse(connection.execute(CREATE_TABLE));
+
+            // Execute PgAuditor
+            InfluxCli cli = new InfluxCli();
+            String[] args = {
+                    "--table", "public.inventory",
+                    "--notify",
+                    "--username", POSTGRES.getUsername(),
+                    "--password", POSTGRES.getPassword(),
+                    "--dbname", POSTGRES.getDatabaseName(),
+                    "--host", POSTGRES.getHost(),
+                    "--port", POSTGRES.getMappedPort(5432).toString()
+            };
+            Configuration configuration = (Configuration) cli.bind(Configuration.class, args);
+            PgAuditor pgAuditor = new PgAuditor(connection, configuration);
+            pgAuditor.run();
+
+            // Create the audit table and triggers
+            String ddl = pgAuditor.toString();
+            System.err.println(ddl);
+            connection.execute(ddl);
+        }
+    }
+
+    @AfterClass
+    public static void afterClass() {
+        POSTGRES.stop();
+    }
+
+    /**
+     * Runs the tail command in the background, writing to a buffer, until it is stopped.
+     */
+    private static class Tail implements AutoCloseable {
+        private final StringWriter out = new StringWriter();
+        private final Connection connection;
+        private final Thread thread;
+
+        /**
+         * The exception which stopped the tail before it was closed, which fails the test.
+         */
+        private final AtomicReference<Exception> failure = new AtomicReference<>();
+        private volatile boolean closing;
+
+        private Tail(final Path checkpoint) throws SQLException, HelpException, ParseException {
+            String[] args = {
+                    "--checkpoint", checkpoint.toString(),
+                    "--poll-interval", "1",
+                    "--username", POSTGRES.getUsername(),
+                    "--password", POSTGRES.getPassword(),
+                    "--dbname", POSTGRES.getDatabaseName(),
+                    "--host", POSTGRES.getHost(),
+                    "--port", POSTGRES.getMappedPort(5432).toString()
+            };
+            Configuration configuration = (Configuration) new InfluxCli().bind(Configuration.class, args);
+            connection = DriverManager.getConnection(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(),
+                    POSTGRES.getPassword());
+            AuditTail auditTail = new AuditTail(connection, new InfluxConnection(connection), configuration, out);
+
+            thread = new Thread(() -> {
+                try {
+                    auditTail.run();
+                } catch (Exception e) {
+                    // Closing interrupts the tail, which may be reported as an exception
+                    if (!closing) {
+                        failure.set(e);
+                    }
+                }
+            });
+            thread.start();
+        }
+
+        /**
+         * The audit ids which have been written so far, in the order in which they were written.
+         */
+        private List<Long> auditIds() {
+            List<Long> auditIds = new ArrayList<>();
+            Matcher matcher = Pattern.compile("\"audit_id\":(\\d+)").matcher(out.toString());
+
+            while (matcher.find()) {
+                auditIds.add(Long.parseLong(matcher.group(1)));
+            }
+            return auditIds;
+        }
+
+        /**
+         * Wait until the given number of records have been written, or until ten seconds have passed.
+         */
+        private List<Long> await(final int count) throws InterruptedException {
+            for (int i = 0; i < 100 && auditIds().size() < count && failure.get() == null; i++) {
+                Thread.sleep(100);
+            }
+            checkFailure();
+            return auditIds();
+        }
+
+        private void checkFailure() {
+            if (failure.get() != null) {
+                throw new AssertionError("The tail failed", failure.get());
+            }
+        }
+
+        @Override
+        public void close() throws SQLException {
+            closing = true;
+            thread.interrupt();
+
+            try {
+                thread.join(10000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            connection.close();
+            checkFailure();
+        }
+    }
+
+    /**
+     * Verify that committed changes are written as JSON lines in audit id order, and that a tail which is started
+     * again from the checkpoint only writes the records which it hasn't written yet.
+     *
+     * @throws Exception Thrown when something goes wrong
+     */
+    @Test
+    public void testStreamAndResume() throws Exception {
+        Path checkpoint = folder.getRoot().toPath().resolve("tail.properties");
+
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            long first = connection.getInteger("select coalesce(max(audit_id), 0) from public.aud_inventory") + 1;
+
+            try (Tail tail = new Tail(checkpoint)) {
+                connection.execute("insert into public.inventory values(1, 'apple', 10), (2, 'banana', 20)");
+                connection.execute("update public.inventory set quantity = 11 where id = 1");
+
+                assertEquals(List.of(first, first + 1, first + 2), tail.await(3));
+                assertTrue(tail.out.toString().startsWith("{\"table\":\"public.inventory\","));
+                assertTrue(tail.out.toString().contains("\"operation\":\"UPDATE\""));
+            }
+
+            assertTrue(Files.readString(checkpoint).contains("public.aud_inventory=" + (first + 2)));
+            connection.execute("delete from public.inventory where id = 2");
+
+            try (Tail tail = new Tail(checkpoint)) {
+                assertEquals(List.of(first + 3), tail.await(1));
+
+                // Nothing else arrives
+                Thread.sleep(1500);
+                assertEquals(List.of(first + 3), tail.auditIds());
+            }
+
+            // Clean up after ourselves
+            connection.execute("delete from public.inventory");
+        }
+    }
+
+    /**
+     * Verify that a record isn't written while a transaction which took a lower audit id is still running, so that
+     * the record of that transaction isn't skipped when it commits.
+     *
+     * @throws Exception Thrown when something goes wrong
+     */
+    @Test
+    public void testLateCommitNotSkipped() throws Exception {
+        Path checkpoint = folder.getRoot().toPath().resolve("tail.properties");
+
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword());
+            Connection slow = DriverManager.getConnection(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(),
+                    POSTGRES.getPassword());
+            Tail tail = new Tail(checkpoint)) {
+            // Let the tail catch up with earlier tests
+            Thread.sleep(1500);
+            int before = tail.auditIds().size();
+
+            slow.setAutoCommit(false);
+            slow.createStatement().execute("insert into public.inventory values(10, 'slow', 1)");
+            connection.execute("insert into public.inventory values(11, 'fast', 1)");
+
+            // The fast record has committed but is held back behind the slow transaction
+            Thread.sleep(2500);
+            assertEquals(before, tail.auditIds().size());
+
+            slow.commit();
+            List<Long> auditIds = tail.await(before + 2);
+            assertEquals(before + 2, auditIds.size());
+            assertTrue(auditIds.get(before) < auditIds.get(before + 1));
+            assertEquals(connection.getInteger("select audit_id from public.aud_inventory where new_id = 10").longValue(),
+                    (long) auditIds.get(before));
+
+            // Clean up after ourselves
+            connection.execute("delete from public.inventory");
+        }
+    }
+}
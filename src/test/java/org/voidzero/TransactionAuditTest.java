@@ -0,0 +1,208 @@
+package org.voidzero;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.testcontainers.containers.PostgreSQLContainer;
+import org.voidzero.influx.cli.InfluxCli;
+import org.voidzero.influx.cli.exception.HelpException;
+import org.voidzero.influx.cli.exception.ParseException;
+import org.voidzero.influx.jdbc.InfluxConnection;
+import org.voidzero.pgauditor.Configuration;
+import org.voidzero.pgauditor.PgAuditor;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.voidzero.influx.jdbc.InfluxConnection.connect;
+
+/**
+ * Verifies that tables audited with --txid and --statement-ordinal record the transaction and statement which wrote
+ * each audit record, and that the changes of one transaction can be listed across audited tables with
+ * pgauditor_transaction. See {@link BaselineAuditTest} for Docker requirements.
+ */
+public class TransactionAuditTest {
+    /**
+     * Use TestContainers to spin up a Docker image of PostgreSQL to run the tests against.
+     */
+    private static final PostgreSQLContainer<?> POSTGRES = new PostgreSQLContainer<>("postgres:16-alpine");
+
+    /**
+     * The SQL statement for creating the tables which will be audited in tests.
+     */
+    private static final String CREATE_TABLES = """
+        create table public.inventory(
+            id bigint primary key,
+            name text not null,
+            quantity integer not null
+        );
+        create table public.orders(
+            id bigint primary key,
+            inventory_id bigint not null,
+            quantity integer not null
+        );
+     """;
+
+    @BeforeClass
+    public static void beforeClass() throws SQLException, HelpException, ParseException {
+        // Start the database
+        POSTGRES.start();
+
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            // Create the tables which should be audited
+            assertFalse(connection.execute(CREATE_TABLES));
+
+            for (String table : List.of("public.inventory", "public.orders")) {
+                // Execute PgAuditor
+                InfluxCli cli = new InfluxCli();
+                String[] args = {
+                        "--table", table,
+                        "--txid",
+                        "--statement-ordinal",
+                        "--username", POSTGRES.getUsername(),
+                        "--password", POSTGRES.getPassword(),
+                        "--dbname", POSTGRES.getDatabaseName(),
+                        "--host", POSTGRES.getHost(),
+                        "--port", POSTGRES.getMappedPort(5432).toString()
+                };
+                Configuration configuration = (Configuration) cli.bind(Configuration.class, args);
+                PgAuditor pgAuditor = new PgAuditor(connection, configuration);
+                pgAuditor.run();
+
+                // Create the audit table and triggers
+                String ddl = pgAuditor.toString();
+                System.err.println(ddl);
+                connection.execute(ddl);
+            }
+        }
+    }
+
+    @AfterClass
+    public static void afterClass() {
+        POSTGRES.stop();
+    }
+
+    /**
+     * Verify that the rows changed by one statement share an ordinal, that later statements of the same transaction
+     * have greater ordinals, and that every record of the transaction has its id.
+     *
+     * @throws SQLException Thrown when something goes wrong
+     */
+    @Test
+    public void testTransactionAndStatementRecorded() throws SQLException {
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            connection.execute("""
+                begin;
+                insert into public.inventory values(1, 'apple', 10), (2, 'banana', 20);
+                update public.inventory set quantity = quantity - 1;
+                commit;
+            """);
+            connection.execute("insert into public.inventory values(3, 'cherry', 30)");
+
+            List<Map<String, Object>> rows = connection.getListMap("""
+                select operation::text, txid::text, statement_ordinal
+                from public.aud_inventory
+                order by audit_id
+            """);
+
+            assertEquals(5, rows.size());
+
+            for (Map<String, Object> row : rows) {
+                assertNotNull(row.get("txid"));
+                assertNotNull(row.get("statement_ordinal"));
+            }
+
+            // Both statements ran in the same transaction
+            assertEquals(rows.get(0).get("txid"), rows.get(3).get("txid"));
+            assertNotEquals(rows.get(0).get("txid"), rows.get(4).get("txid"));
+
+            // Every row of a statement has the ordinal of that statement
+            assertEquals(rows.get(0).get("statement_ordinal"), rows.get(1).get("statement_ordinal"));
+            assertEquals(rows.get(2).get("statement_ordinal"), rows.get(3).get("statement_ordinal"));
+            assertTrue((Integer) rows.get(2).get("statement_ordinal") > (Integer) rows.get(0).get("statement_ordinal"));
+
+            // Clean up after ourselves
+            connection.execute("delete from public.inventory");
+            connection.execute("delete from public.aud_inventory");
+        }
+    }
+
+    /**
+     * Verify that pgauditor_transaction lists the changes of one transaction from every audited table, and nothing
+     * from other transactions.
+     *
+     * @throws SQLException Thrown when something goes wrong
+     */
+    @Test
+    public void testListTransactionAcrossTables() throws SQLException {
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            connection.execute("insert into public.inventory values(10, 'date', 5)");
+            connection.execute("""
+                begin;
+                insert into public.orders values(100, 10, 2);
+                update public.inventory set quantity = quantity - 2 where id = 10;
+                commit;
+            """);
+
+            String txid = connection.getString("select txid::text from public.aud_orders where new_id = 100");
+            List<Map<String, Object>> changes = connection.getListMap("""
+                select audit_table, record->>'operation' as operation
+                from public.pgauditor_transaction(?::xid8)
+                order by audit_table, audit_id
+            """, txid);
+
+            assertEquals(2, changes.size());
+            assertEquals("aud_inventory", changes.get(0).get("audit_table"));
+            assertEquals("UPDATE", changes.get(0).get("operation"));
+            assertEquals("aud_orders", changes.get(1).get("audit_table"));
+            assertEquals("INSERT", changes.get(1).get("operation"));
+
+            // Clean up after ourselves
+            connection.execute("delete from public.orders");
+            connection.execute("delete from public.inventory");
+            connection.execute("delete from public.aud_orders");
+            connection.execute("delete from public.aud_inventory");
+        }
+    }
+
+    /**
+     * Verify that statement ordinals aren't indexed without transaction ids, because they restart in every
+     * transaction.
+     *
+     * @throws Exception Thrown when something goes wrong
+     */
+    @Test
+    public void testOrdinalsAloneNotIndexed() throws Exception {
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            connection.execute("create table public.shipments(id bigint primary key, order_id bigint not null)");
+
+            InfluxCli cli = new InfluxCli();
+            String[] args = {
+                    "--table", "public.shipments",
+                    "--statement-ordinal",
+                    "--username", POSTGRES.getUsername(),
+                    "--password", POSTGRES.getPassword(),
+                    "--dbname", POSTGRES.getDatabaseName(),
+                    "--host", POSTGRES.getHost(),
+                    "--port", POSTGRES.getMappedPort(5432).toString()
+            };
+            Configuration configuration = (Configuration) cli.bind(Configuration.class, args);
+            PgAuditor pgAuditor = new PgAuditor(connection, configuration);
+            pgAuditor.run();
+
+            String ddl = pgAuditor.toString();
+            System.err.println(ddl);
+            assertTrue(ddl.contains("statement_ordinal"));
+            assertFalse(ddl.contains("aix_aud_shipments"));
+
+            // Clean up after ourselves
+            connection.execute("drop table public.shipments");
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package org.voidzero;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.testcontainers.containers.PostgreSQLContainer;
+import org.voidzero.influx.cli.InfluxCli;
+import org.voidzero.influx.cli.exception.HelpException;
+import org.voidzero.influx.cli.exception.ParseException;
+import org.voidzero.influx.jdbc.InfluxConnection;
+import org.voidzero.pgauditor.AuditVerify;
+import org.voidzero.pgauditor.Configuration;
+import org.voidzero.pgauditor.PgAuditor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.voidzero.influx.jdbc.InfluxConnection.connect;
+
+/**
+ * Verifies that the verify command finds that audit trails match their tables, both when whole rows and when only
+ * primary keys are compared, and lists the keys of rows which were changed without being audited. See
+ * {@link BaselineAuditTest} for Docker requirements.
+ */
+public class VerifyAuditTest {
+    /**
+     * Use TestContainers to spin up a Docker image of PostgreSQL to run the tests against.
+     */
+    private static final PostgreSQLContainer<?> POSTGRES = new PostgreSQLContainer<>("postgres:16-alpine");
+
+    /**
+     * The SQL statement for creating the tables which will be audited in tests.
+     */
+    private static final String CREATE_TABLES = """
+        create table public.inventory(
+            id bigint primary key,
+            name text not null,
+            quantity integer not null
+        );
+        create table public.orders(
+            id bigint primary key,
+            inventory_id bigint not null
+        );
+        create table public.shipments(
+            id bigint primary key,
+            order_id bigint not null
+        );
+     """;
+
+    @BeforeClass
+    public static void beforeClass() throws SQLException, HelpException, ParseException {
+        // Start the database
+        POSTGRES.start();
+
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            // Create the tables which should be audited. Whole rows of inventory can be compared, while only the
+            // keys of orders can be
+            assertFalse(connection.execute(CREATE_TABLES));
+            connection.execute(generate(connection, "--table", "public.inventory", "--point-in-time"));
+            connection.execute(generate(connection, "--table", "public.orders"));
+            connection.execute(generate(connection, "--table", "public.shipments"));
+
+            // Only --point-in-time creates the indexes on the key columns of the audit table which verify reads
+            connection.execute("""
+                create index ain_aud_orders on public.aud_orders (new_id, changed_at, audit_id)
+                    where operation in ('INSERT', 'UPDATE');
+                create index aio_aud_orders on public.aud_orders (old_id, changed_at, audit_id)
+                    where operation in ('DELETE', 'TRUNCATE')
+                        or (operation = 'UPDATE' and old_id is distinct from new_id);
+            """);
+
+            connection.execute("insert into public.inventory select g, 'item ' || g, g from generate_series(1, 5000) g");
+            connection.execute("update public.inventory set quantity = quantity * 2 where id % 7 = 0");
+            connection.execute("update public.inventory set id = id + 10000 where id % 100 = 0");
+            connection.execute("delete from public.inventory where id % 11 = 0");
+            connection.execute("insert into public.orders select g, g from generate_series(1, 5000) g");
+            connection.execute("update public.orders set inventory_id = 1 where id % 3 = 0");
+            connection.execute("delete from public.orders where id % 13 = 0");
+            connection.execute("insert into public.shipments select g, g from generate_series(1, 1000) g");
+        }
+    }
+
+    @AfterClass
+    public static void afterClass() {
+        POSTGRES.stop();
+    }
+
+    private static Configuration configure(final String... options) throws HelpException, ParseException {
+        List<String> args = new ArrayList<>(List.of(
+                "--username", POSTGRES.getUsername(),
+                "--password", POSTGRES.getPassword(),
+                "--dbname", POSTGRES.getDatabaseName(),
+                "--host", POSTGRES.getHost(),
+                "--port", POSTGRES.getMappedPort(5432).toString()
+        ));
+        args.addAll(List.of(options));
+
+        InfluxCli cli = new InfluxCli();
+        return (Configuration) cli.bind(Configuration.class, args.toArray(new String[0]));
+    }
+
+    private static String generate(final InfluxConnection connection, final String... options)
+            throws SQLException, HelpException, ParseException {
+        // Execute PgAuditor
+        PgAuditor pgAuditor = new PgAuditor(connection, configure(options));
+        pgAuditor.run();
+
+        String ddl = pgAuditor.toString();
+        System.err.println(ddl);
+        return ddl;
+    }
+
+    /**
+     * Run the verify command on a table and return what it printed, followed by whether it found no differences.
+     */
+    private static String verify(final String table) throws Exception {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(buffer, true, StandardCharsets.UTF_8));
+        boolean matches;
+
+        try (Connection jdbcConnection = DriverManager.getConnection(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(),
+                POSTGRES.getPassword())) {
+            matches = new AuditVerify(configure("--table", table, "--max-connections", "4"))
+                    .run(jdbcConnection, new InfluxConnection(jdbcConnection));
+        } finally {
+            System.setOut(stdout);
+        }
+
+        String output = buffer.toString(StandardCharsets.UTF_8);
+        System.err.println(output);
+        return output + matches;
+    }
+
+    /**
+     * Verify that audit trails which were written by the triggers match their tables.
+     *
+     * @throws Exception Thrown when something goes wrong
+     */
+    @Test
+    public void testAuditTrailsMatch() throws Exception {
+        String inventory = verify("public.inventory");
+        assertTrue(inventory.startsWith("Verifying public.inventory against public.aud_inventory in "));
+        assertTrue(inventory.contains("comparing whole rows"));
+        assertTrue(inventory.endsWith(": the audit trail matches the table\ntrue"));
+
+        String orders = verify("public.orders");
+        assertTrue(orders.contains("comparing primary keys only"));
+        assertTrue(orders.endsWith(": the audit trail matches the table\ntrue"));
+    }
+
+    /**
+     * Verify that rows which were changed while the audit triggers were disabled are listed by key.
+     *
+     * @throws Exception Thrown when something goes wrong
+     */
+    @Test
+    public void testUnauditedChangesListed() throws Exception {
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            // Triggers don't fire for a session which acts as a replica
+            connection.execute("""
+                set session_replication_role = replica;
+                update public.inventory set name = 'changed' where id = 3;
+                delete from public.inventory where id = 4;
+                insert into public.inventory values(6000, 'unaudited', 1);
+                set session_replication_role = origin;
+            """);
+
+            String output = verify("public.inventory");
+            assertTrue(output.contains("\n  (3): differs from the audit trail\n"));
+            assertTrue(output.contains("\n  (4): missing from the table\n"));
+            assertTrue(output.contains("\n  (6000): missing from the audit trail\n"));
+            assertTrue(output.endsWith(": 3 keys differ from their audit trail\nfalse"));
+
+            // Put the rows back the way the audit trail has them
+            connection.execute("""
+                set session_replication_role = replica;
+                update public.inventory set name = 'item 3' where id = 3;
+                insert into public.inventory values(4, 'item 4', 4);
+                delete from public.inventory where id = 6000;
+                set session_replication_role = origin;
+            """);
+            assertTrue(verify("public.inventory").endsWith("true"));
+        }
+    }
+
+    /**
+     * Verify that an audit table without indexes on its key columns is refused, along with the statements which create
+     * them, and that it can be verified once they exist.
+     *
+     * @throws Exception Thrown when something goes wrong
+     */
+    @Test
+    public void testKeyIndexesRequired() throws Exception {
+        String message = null;
+
+        try {
+            verify("public.shipments");
+            fail("Verification should require the key indexes");
+        } catch (RuntimeException e) {
+            message = e.getMessage();
+        }
+        assertTrue(message.startsWith("public.aud_shipments has no index on its key columns"));
+
+        try(InfluxConnection connection = connect(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword())) {
+            // Each statement creates its index concurrently, so they can't be executed together
+            for (String statement : message.substring(message.indexOf('\n') + 1).split("\n")) {
+                assertTrue(statement.startsWith("CREATE INDEX CONCURRENTLY IF NOT EXISTS "));
+                connection.execute(statement);
+            }
+        }
+        assertTrue(verify("public.shipments").endsWith(": the audit trail matches the table\ntrue"));
+    }
+}